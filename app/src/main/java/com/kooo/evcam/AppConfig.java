@@ -46,6 +46,22 @@ public class AppConfig {
     
     // 分段录制配置
     private static final String KEY_SEGMENT_DURATION_MINUTES = "segment_duration_minutes";  // 分段时长（分钟）
+    private static final String KEY_SEAMLESS_SEGMENT_ENABLED = "seamless_segment_enabled";  // 无缝分段（关键帧对齐，编码器不重启）
+    private static final String KEY_FRAGMENTED_MP4_ENABLED = "fragmented_mp4_enabled";  // 分片 MP4 封装（防断电）
+    private static final String KEY_PRE_ROLL_SECONDS = "pre_roll_seconds";  // 预录时长（秒，0 表示关闭）
+    private static final String KEY_SHARED_EGL_RENDER_ENABLED = "shared_egl_render_enabled";  // 所有摄像头共用一个 EGL 渲染线程
+    private static final String KEY_MOSAIC_RECORDING_ENABLED = "mosaic_recording_enabled";  // 拼接录制（多路合成一个文件）
+    private static final String KEY_SUB_STREAM_PREFIX = "sub_stream_";  // 子码流配置前缀（按摄像头位置）
+    private static final String KEY_ADAPTIVE_BITRATE_ENABLED = "adaptive_bitrate_enabled";  // 按存储写入速度自适应码率
+    private static final String KEY_HEVC_ENCODING_ENABLED = "hevc_encoding_enabled";  // 有可用硬件编码器时使用 H.265
+    private static final String KEY_PARKING_TIME_LAPSE_ENABLED = "parking_time_lapse_enabled";  // 息屏停车时改为延时录影
+    private static final String KEY_PARKING_TIME_LAPSE_FPS = "parking_time_lapse_fps";  // 延时录影采集帧率
+    private static final String KEY_FRAME_TRACE_SECTIONS_ENABLED = "frame_trace_sections_enabled";  // 逐帧追踪输出系统 Trace 区段
+    private static final String KEY_STAGED_BRING_UP_ENABLED = "staged_bring_up_enabled";  // 分阶段并行启动摄像头和编码器
+    private static final String KEY_THERMAL_GOVERNOR_ENABLED = "thermal_governor_enabled";  // 过热降级
+    private static final String KEY_HEADLESS_SCREEN_OFF_ENABLED = "headless_screen_off_enabled";  // 息屏无头录制
+    private static final String KEY_DATE_SHARDED_STORAGE_ENABLED = "date_sharded_storage_enabled";  // 按日期分层存储
+    private static final String KEY_AUTO_RELAY_PLACEMENT_ENABLED = "auto_relay_placement_enabled";  // 按U盘实测性能自动选择直写/中转
     
     // 录制状态显示配置
     private static final String KEY_RECORDING_STATS_ENABLED = "recording_stats_enabled";  // 录制状态显示开关
@@ -1217,6 +1233,24 @@ public class AppConfig {
         return isUsingExternalSdCard();
     }
     
+    /**
+     * 设置是否按U盘实测性能自动选择录制位置
+     * 启用后U盘足够快时直接写入，否则经内部存储中转（见 StorageBenchmark）
+     * @param enabled true 表示启用
+     */
+    public void setAutoRelayPlacementEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_AUTO_RELAY_PLACEMENT_ENABLED, enabled).apply();
+        AppLog.d(TAG, "自动选择录制位置设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取是否按U盘实测性能自动选择录制位置
+     * @return true 表示启用（默认启用）
+     */
+    public boolean isAutoRelayPlacementEnabled() {
+        return prefs.getBoolean(KEY_AUTO_RELAY_PLACEMENT_ENABLED, true);
+    }
+    
     // ==================== 悬浮窗配置相关方法 ====================
     
     /**
@@ -1369,6 +1403,320 @@ public class AppConfig {
         return getSegmentDurationMinutes() * 60 * 1000L;
     }
     
+    /**
+     * 设置无缝分段开关（仅 Codec 录制模式生效）
+     * @param enabled true 表示分段时编码器持续运行，在关键帧处切换到新文件
+     */
+    public void setSeamlessSegmentEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_SEAMLESS_SEGMENT_ENABLED, enabled).apply();
+        AppLog.d(TAG, "无缝分段设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取无缝分段开关
+     * @return true 表示启用无缝分段（默认启用）
+     */
+    public boolean isSeamlessSegmentEnabled() {
+        return prefs.getBoolean(KEY_SEAMLESS_SEGMENT_ENABLED, true);
+    }
+    
+    /**
+     * 设置分片 MP4 封装开关（仅 Codec 录制模式生效）
+     * @param enabled true 表示按 GOP 分片写入，异常断电时已写出的内容仍可播放
+     */
+    public void setFragmentedMp4Enabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_FRAGMENTED_MP4_ENABLED, enabled).apply();
+        AppLog.d(TAG, "分片MP4设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取分片 MP4 封装开关
+     * @return true 表示使用分片 MP4（默认启用）
+     */
+    public boolean isFragmentedMp4Enabled() {
+        return prefs.getBoolean(KEY_FRAGMENTED_MP4_ENABLED, true);
+    }
+    
+    /**
+     * 设置预录时长（仅 Codec 录制模式生效，拼接录制不支持）
+     * 空闲时各路编码器保持运行（不写文件），在内存中保留最近 N 秒的已编码画面，
+     * 远程录制等触发式录制开始时先写入这些画面；录制中触发时画面已在上一个文件中，不再重复写入
+     * 开启后空闲时编码器也在工作，功耗和发热高于关闭时
+     * @param seconds 预录时长（秒），0 表示关闭
+     */
+    public void setPreRollSeconds(int seconds) {
+        prefs.edit().putInt(KEY_PRE_ROLL_SECONDS, Math.max(0, Math.min(seconds, 30))).apply();
+        AppLog.d(TAG, "预录时长设置: " + seconds + " 秒");
+    }
+    
+    /**
+     * 获取预录时长
+     * @return 预录时长（秒），默认 0（关闭：空闲待命需要编码器一直运行）
+     */
+    public int getPreRollSeconds() {
+        return prefs.getInt(KEY_PRE_ROLL_SECONDS, 0);
+    }
+    
+    /**
+     * 设置共享 EGL 渲染开关（仅 Codec 录制模式生效）
+     * @param enabled true 表示所有摄像头共用一个 EGL Context 和渲染线程；false 表示每路独立
+     */
+    public void setSharedEglRenderEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_SHARED_EGL_RENDER_ENABLED, enabled).apply();
+        AppLog.d(TAG, "共享EGL渲染设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取共享 EGL 渲染开关
+     * @return true 表示启用共享渲染（默认启用）
+     */
+    public boolean isSharedEglRenderEnabled() {
+        return prefs.getBoolean(KEY_SHARED_EGL_RENDER_ENABLED, true);
+    }
+    
+    /**
+     * 设置拼接录制开关（仅 Codec 录制模式生效）
+     * 启用后多路摄像头按 2x2 宫格合成到一个画面，只用一个编码器、每段只生成一个文件
+     * @param enabled true 表示启用拼接录制
+     */
+    public void setMosaicRecordingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_MOSAIC_RECORDING_ENABLED, enabled).apply();
+        AppLog.d(TAG, "拼接录制设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取拼接录制开关
+     * @return true 表示启用拼接录制（默认关闭）
+     */
+    public boolean isMosaicRecordingEnabled() {
+        return prefs.getBoolean(KEY_MOSAIC_RECORDING_ENABLED, false);
+    }
+    
+    /**
+     * 设置存储自适应码率开关（仅 Codec 录制模式生效）
+     * 启用后根据实际写入速度实时下调码率/帧率，介质恢复后逐步回到配置值，避免慢速 U 盘导致编码器重建
+     * @param enabled true 表示启用
+     */
+    public void setAdaptiveBitrateEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_ADAPTIVE_BITRATE_ENABLED, enabled).apply();
+        AppLog.d(TAG, "存储自适应码率设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取存储自适应码率开关
+     * @return true 表示启用（默认启用）
+     */
+    public boolean isAdaptiveBitrateEnabled() {
+        return prefs.getBoolean(KEY_ADAPTIVE_BITRATE_ENABLED, true);
+    }
+    
+    /**
+     * 设置 H.265 编码开关
+     * 启用后在探测到可用的 H.265 硬件编码器（及解码器）时使用 H.265 录制，码率约为 H.264 的 60%；
+     * 不可用或创建失败时自动使用 H.264。子码流始终为 H.264
+     * 只对录制子码流的摄像头生效（Codec 多路录制）：远程上传发送子码流，接收端（钉钉、Telegram 等）不一定能播放 H.265；
+     * 未启用子码流、MediaRecorder 模式和拼接录制始终使用 H.264
+     * @param enabled true 表示优先使用 H.265
+     */
+    public void setHevcEncodingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_HEVC_ENCODING_ENABLED, enabled).apply();
+        AppLog.d(TAG, "H.265编码设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取 H.265 编码开关
+     * @return true 表示优先使用 H.265（默认启用）
+     */
+    public boolean isHevcEncodingEnabled() {
+        return prefs.getBoolean(KEY_HEVC_ENCODING_ENABLED, true);
+    }
+    
+    /**
+     * 设置停车延时录影开关（仅 Codec 录制模式生效）
+     * 启用后息屏录制期间自动切换为低帧率延时录影，亮屏后恢复正常录制，降低功耗和存储占用
+     * @param enabled true 表示启用
+     */
+    public void setParkingTimeLapseEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_PARKING_TIME_LAPSE_ENABLED, enabled).apply();
+        AppLog.d(TAG, "停车延时录影设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取停车延时录影开关
+     * @return true 表示启用（默认关闭）
+     */
+    public boolean isParkingTimeLapseEnabled() {
+        return prefs.getBoolean(KEY_PARKING_TIME_LAPSE_ENABLED, false);
+    }
+    
+    /**
+     * 设置延时录影采集帧率
+     * @param fps 每秒采集的帧数（1-10）
+     */
+    public void setParkingTimeLapseFrameRate(int fps) {
+        prefs.edit().putInt(KEY_PARKING_TIME_LAPSE_FPS, Math.max(1, Math.min(fps, 10))).apply();
+        AppLog.d(TAG, "延时录影帧率设置: " + fps + " fps");
+    }
+    
+    /**
+     * 获取延时录影采集帧率
+     * @return 每秒采集的帧数，默认 1
+     */
+    public int getParkingTimeLapseFrameRate() {
+        return prefs.getInt(KEY_PARKING_TIME_LAPSE_FPS, 1);
+    }
+    
+    /**
+     * 设置逐帧追踪是否输出系统 Trace 区段（用于 Perfetto 抓取渲染/写入耗时）
+     * 逐帧追踪本身始终开启，录制停止时输出各阶段延迟汇总；该开关只影响系统 Trace
+     * @param enabled true 表示输出
+     */
+    public void setFrameTraceSectionsEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_FRAME_TRACE_SECTIONS_ENABLED, enabled).apply();
+        AppLog.d(TAG, "逐帧追踪 Trace 区段设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取逐帧追踪 Trace 区段开关
+     * @return true 表示输出（默认关闭）
+     */
+    public boolean isFrameTraceSectionsEnabled() {
+        return prefs.getBoolean(KEY_FRAME_TRACE_SECTIONS_ENABLED, false);
+    }
+    
+    /**
+     * 设置是否分阶段并行启动（Codec 模式）
+     * 启用后各摄像头并行打开、并行准备编码器，先就绪的摄像头先开始录制，不再等待最慢的一路
+     * @param enabled true 表示启用
+     */
+    public void setStagedBringUpEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_STAGED_BRING_UP_ENABLED, enabled).apply();
+        AppLog.d(TAG, "分阶段并行启动设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取是否分阶段并行启动
+     * @return true 表示启用（默认启用）
+     */
+    public boolean isStagedBringUpEnabled() {
+        return prefs.getBoolean(KEY_STAGED_BRING_UP_ENABLED, true);
+    }
+    
+    /**
+     * 设置是否启用过热降级（Codec 模式）
+     * 启用后录制期间根据系统热状态和实测帧率逐级降码率、降帧率、暂停预览、暂停低优先级摄像头，冷却后逐级恢复
+     * @param enabled true 表示启用
+     */
+    public void setThermalGovernorEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_THERMAL_GOVERNOR_ENABLED, enabled).apply();
+        AppLog.d(TAG, "过热降级设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取是否启用过热降级
+     * @return true 表示启用（默认启用）
+     */
+    public boolean isThermalGovernorEnabled() {
+        return prefs.getBoolean(KEY_THERMAL_GOVERNOR_ENABLED, true);
+    }
+    
+    /**
+     * 设置是否启用息屏无头录制
+     * 启用后息屏期间各路会话只输出到录制 Surface，停止向预览、悬浮窗、副屏推帧，亮屏后恢复
+     * @param enabled true 表示启用
+     */
+    public void setHeadlessScreenOffEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_HEADLESS_SCREEN_OFF_ENABLED, enabled).apply();
+        AppLog.d(TAG, "息屏无头录制设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取是否启用息屏无头录制
+     * @return true 表示启用（默认启用）
+     */
+    public boolean isHeadlessScreenOffEnabled() {
+        return prefs.getBoolean(KEY_HEADLESS_SCREEN_OFF_ENABLED, true);
+    }
+    
+    /**
+     * 设置是否按日期分层存储视频和照片
+     * 启用后新文件保存到 根目录/yyyy/MM/dd/，已有的根目录文件由后台迁移到对应日期目录
+     * @param enabled true 表示启用
+     */
+    public void setDateShardedStorageEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_DATE_SHARDED_STORAGE_ENABLED, enabled).apply();
+        AppLog.d(TAG, "按日期分层存储设置: " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取是否按日期分层存储视频和照片
+     * @return true 表示启用（默认禁用）
+     */
+    public boolean isDateShardedStorageEnabled() {
+        return prefs.getBoolean(KEY_DATE_SHARDED_STORAGE_ENABLED, false);
+    }
+    
+    // ==================== 子码流配置相关方法 ====================
+    
+    /** 子码流默认短边像素数 */
+    public static final int DEFAULT_SUB_STREAM_SHORT_EDGE = 360;
+    /** 子码流默认码率（bps） */
+    public static final int DEFAULT_SUB_STREAM_BITRATE = 400_000;
+    
+    /**
+     * 设置摄像头的子码流开关（仅 Codec 录制模式生效，拼接录制不支持）
+     * 启用后每个分段额外录制一个低分辨率、低码率的同名文件，远程上传和缩略图优先使用
+     * @param position 位置（front/back/left/right）
+     */
+    public void setSubStreamEnabled(String position, boolean enabled) {
+        prefs.edit().putBoolean(KEY_SUB_STREAM_PREFIX + position + "_enabled", enabled).apply();
+        AppLog.d(TAG, "子码流设置 " + position + ": " + (enabled ? "启用" : "禁用"));
+    }
+    
+    /**
+     * 获取摄像头的子码流开关
+     * @param position 位置（front/back/left/right）
+     * @return true 表示录制子码流（默认关闭）
+     */
+    public boolean isSubStreamEnabled(String position) {
+        return prefs.getBoolean(KEY_SUB_STREAM_PREFIX + position + "_enabled", false);
+    }
+    
+    /**
+     * 设置摄像头的子码流分辨率（短边像素数，按主码流比例缩放）
+     * @param position 位置（front/back/left/right）
+     */
+    public void setSubStreamShortEdge(String position, int shortEdge) {
+        prefs.edit().putInt(KEY_SUB_STREAM_PREFIX + position + "_short_edge", Math.max(144, Math.min(shortEdge, 720))).apply();
+    }
+    
+    /**
+     * 获取摄像头的子码流分辨率（短边像素数）
+     * @param position 位置（front/back/left/right）
+     * @return 默认 360
+     */
+    public int getSubStreamShortEdge(String position) {
+        return prefs.getInt(KEY_SUB_STREAM_PREFIX + position + "_short_edge", DEFAULT_SUB_STREAM_SHORT_EDGE);
+    }
+    
+    /**
+     * 设置摄像头的子码流码率
+     * @param position 位置（front/back/left/right）
+     * @param bitrate 码率（bps）
+     */
+    public void setSubStreamBitrate(String position, int bitrate) {
+        prefs.edit().putInt(KEY_SUB_STREAM_PREFIX + position + "_bitrate", Math.max(100_000, Math.min(bitrate, 2_000_000))).apply();
+    }
+    
+    /**
+     * 获取摄像头的子码流码率
+     * @param position 位置（front/back/left/right）
+     * @return 码率（bps），默认 400Kbps
+     */
+    public int getSubStreamBitrate(String position) {
+        return prefs.getInt(KEY_SUB_STREAM_PREFIX + position + "_bitrate", DEFAULT_SUB_STREAM_BITRATE);
+    }
+    
     // ==================== 录制状态显示配置相关方法 ====================
     
     /**
@@ -7,6 +7,8 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.kooo.evcam.camera.BringUpMetrics;
+
 /**
  * 开机启动广播接收器
  * 监听系统开机广播，自动启动必要的服务
@@ -37,6 +39,7 @@ public class BootReceiver extends BroadcastReceiver {
             "android.intent.action.QUICKBOOT_POWERON".equals(action)) {
             
             AppLog.d(TAG, "系统开机完成！");
+            BringUpMetrics.getInstance().mark(BringUpMetrics.BOOT_RECEIVED);
             
             // 立即启动前台服务（最重要！参考应用0的做法）
             startForegroundServiceImmediately(context);
@@ -2,6 +2,7 @@ package com.kooo.evcam;
 
 
 import com.kooo.evcam.AppLog;
+import com.kooo.evcam.camera.BringUpMetrics;
 import com.kooo.evcam.camera.MultiCameraManager;
 // import android.app.AlarmManager;  // 已移除，使用 TIME_TICK 替代
 import android.app.Notification;
@@ -64,6 +65,7 @@ public class CameraForegroundService extends Service {
     public void onCreate() {
         super.onCreate();
         AppLog.d(TAG, "Service created");
+        BringUpMetrics.getInstance().mark(BringUpMetrics.SERVICE_STARTED);
         createNotificationChannel();
         
         // 如果无障碍服务未运行，则在此注册 TIME_TICK 广播
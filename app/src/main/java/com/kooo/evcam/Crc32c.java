@@ -0,0 +1,79 @@
+package com.kooo.evcam;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C（Castagnoli）校验，查表实现
+ * java.util.zip.CRC32C 从 API 34 才有，应用最低支持 API 28，因此自带实现；结果与 CRC32C 标准一致
+ *
+ * 线程：非线程安全，每个复制任务各用一个实例
+ */
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;  // 0x1EDC6F41 的反转形式
+    private static final int SCRATCH_SIZE = 8192;  // 读取直接缓冲区时的中转大小
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+    private byte[] scratch;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        int value = crc;
+        for (int i = off, end = off + len; i < end; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    /**
+     * 计算缓冲区中 position 到 limit 的数据，之后 position 等于 limit（与 CRC32.update(ByteBuffer) 一致）
+     */
+    public void update(ByteBuffer buffer) {
+        int remaining = buffer.remaining();
+        if (remaining <= 0) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), remaining);
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, length);
+            update(scratch, 0, length);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -1230,6 +1230,43 @@ public class CustomLayoutManager {
         return layoutData.getAspectRatio(position);
     }
     
+    /**
+     * 获取摄像头裁剪比例（供拼接录制按预览效果裁剪画面）
+     * 裁剪值以预览视图像素保存，按布局数据中保存的视图尺寸换算为比例；没有保存尺寸时按参考尺寸换算
+     * @param referenceWidth 参考宽度（通常为旋转后的预览宽度）
+     * @param referenceHeight 参考高度
+     * @return {left, top, right, bottom}，取值 0~1；没有裁剪或裁剪无效时返回 null
+     */
+    public static float[] getCropFractions(AppConfig appConfig, String cameraKey, int referenceWidth, int referenceHeight) {
+        int cropTop = appConfig.getCameraCrop(cameraKey, "top");
+        int cropBottom = appConfig.getCameraCrop(cameraKey, "bottom");
+        int cropLeft = appConfig.getCameraCrop(cameraKey, "left");
+        int cropRight = appConfig.getCameraCrop(cameraKey, "right");
+        if (cropTop == 0 && cropBottom == 0 && cropLeft == 0 && cropRight == 0) {
+            return null;
+        }
+
+        int width = referenceWidth;
+        int height = referenceHeight;
+        String savedData = appConfig.getCustomLayoutData();
+        if (savedData != null && !savedData.isEmpty()) {
+            LayoutData data = LayoutData.fromJson(savedData);
+            if (data.getWidth(cameraKey) > 0 && data.getHeight(cameraKey) > 0) {
+                width = data.getWidth(cameraKey);
+                height = data.getHeight(cameraKey);
+            }
+        }
+        if (width <= 0 || height <= 0 || cropLeft + cropRight >= width || cropTop + cropBottom >= height) {
+            return null;
+        }
+        return new float[] {
+                (float) cropLeft / width,
+                (float) cropTop / height,
+                (float) cropRight / width,
+                (float) cropBottom / height
+        };
+    }
+    
     /**
      * 是否处于编辑模式
      */
@@ -0,0 +1,189 @@
+package com.kooo.evcam;
+
+import android.content.Context;
+
+import com.kooo.evcam.camera.SubStreamEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按日期分层迁移（启用按日期分层存储后运行一次）
+ * 把视频/照片根目录中已有的文件移动到对应的日期目录（根目录/yyyy/MM/dd/），子码流文件一起移动，
+ * 同时更新媒体索引。同一存储上的移动只是改名，不复制数据；每移动 MOVE_BATCH_SIZE 个文件暂停一下，避免和录制争抢 I/O。
+ * 最近仍在写入的文件跳过，下次启动再迁移。
+ *
+ * 迁移前后各测一次目录操作耗时（列举、查找不存在的文件、创建并删除文件），
+ * 对比平铺的根目录和日期目录，结果输出到日志
+ */
+public class DateShardMigrator {
+    private static final String TAG = "DateShardMigrator";
+
+    private static final long INITIAL_DELAY_MS = 40 * 1000;  // 冷启动后40秒（在修复和首次清理之后）
+    private static final long ACTIVE_FILE_GUARD_MS = 2 * 60 * 1000;  // 最近2分钟内修改过的文件可能正在写入，跳过
+    private static final int MOVE_BATCH_SIZE = 50;
+    private static final long MOVE_BATCH_PAUSE_MS = 200;
+    private static final int BENCHMARK_ROUNDS = 5;
+    private static final String PROBE_NAME = ".evcam_probe";
+
+    private final Context context;
+    private ScheduledExecutorService scheduler;
+    private boolean isRunning = false;
+
+    public DateShardMigrator(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 启动迁移任务（未启用按日期分层存储时不做任何事）
+     */
+    public void start() {
+        if (isRunning || !new AppConfig(context).isDateShardedStorageEnabled()) {
+            return;
+        }
+        isRunning = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.schedule(this::performMigration, INITIAL_DELAY_MS, TimeUnit.MILLISECONDS);
+        AppLog.d(TAG, "日期分层迁移任务已启动：40秒后迁移根目录中的文件");
+    }
+
+    /**
+     * 停止迁移任务（未完成的部分下次启动继续）
+     */
+    public void stop() {
+        if (scheduler != null && !scheduler.isShutdown()) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        isRunning = false;
+    }
+
+    private void performMigration() {
+        File videoDir = StorageHelper.getVideoDir(context);
+        File photoDir = StorageHelper.getPhotoDir(context);
+        String before = benchmark(videoDir);
+        migrateDirectory(videoDir, "视频");
+        migrateDirectory(photoDir, "照片");
+        if (before != null) {
+            String today = new SimpleDateFormat("yyyyMMdd", Locale.getDefault()).format(new Date());
+            AppLog.d(TAG, "目录操作耗时（" + BENCHMARK_ROUNDS + " 次平均）迁移前根目录: " + before +
+                    "；迁移后根目录: " + benchmark(videoDir) +
+                    "；今天的日期目录: " + benchmark(StorageHelper.getDateShardDir(videoDir, today)));
+        }
+    }
+
+    /**
+     * 把根目录中以日期开头的文件移动到日期目录（迁移线程）
+     */
+    private void migrateDirectory(File rootDir, String typeName) {
+        String[] names = rootDir != null ? rootDir.list() : null;
+        if (names == null || names.length == 0) {
+            return;
+        }
+        MediaIndex mediaIndex = MediaIndex.getInstance(context);
+        long startTime = System.currentTimeMillis();
+        int moved = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (String name : names) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            File shardDir = StorageHelper.getDateShardDir(rootDir, name);
+            if (shardDir.equals(rootDir)) {
+                continue;  // 不是以日期命名的文件（或日期目录本身）
+            }
+            File file = new File(rootDir, name);
+            if (!file.isFile()) {
+                continue;
+            }
+            if (System.currentTimeMillis() - file.lastModified() < ACTIVE_FILE_GUARD_MS) {
+                skipped++;
+                continue;
+            }
+            File target = new File(shardDir, name);
+            if (target.exists() || (!shardDir.exists() && !shardDir.mkdirs())) {
+                AppLog.w(TAG, "无法迁移" + typeName + ": " + name);
+                failed++;
+                continue;
+            }
+            if (!file.renameTo(target)) {
+                AppLog.w(TAG, "迁移" + typeName + "失败: " + name);
+                failed++;
+                continue;
+            }
+            mediaIndex.onFileMoved(file, target);
+            moveSubStreamFile(file, target);
+            moved++;
+
+            if (moved % MOVE_BATCH_SIZE == 0) {
+                try {
+                    Thread.sleep(MOVE_BATCH_PAUSE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        // 子码流文件都已跟随主文件移走时删除空的子码流目录
+        new File(rootDir, SubStreamEncoder.SUB_STREAM_DIR).delete();
+
+        AppLog.d(TAG, "日期分层迁移" + typeName + "完成：移动 " + moved + " 个，跳过 " + skipped + " 个，失败 " + failed +
+                " 个，耗时 " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static void moveSubStreamFile(File mainFile, File target) {
+        File subFile = SubStreamEncoder.getSubStreamFile(mainFile);
+        if (!subFile.isFile()) {
+            return;
+        }
+        File subTarget = SubStreamEncoder.getSubStreamFile(target);
+        File subDir = subTarget.getParentFile();
+        if (subDir != null && !subDir.exists()) {
+            subDir.mkdirs();
+        }
+        if (!subFile.renameTo(subTarget)) {
+            AppLog.w(TAG, "迁移子码流文件失败: " + subFile.getName());
+        }
+    }
+
+    /**
+     * 测量目录操作耗时，返回可读的结果，目录不存在时返回 null
+     */
+    private static String benchmark(File dir) {
+        if (dir == null || !dir.isDirectory()) {
+            return null;
+        }
+        int entries = 0;
+        long listNs = 0;
+        long lookupNs = 0;
+        long createNs = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            String[] names = dir.list();
+            long t1 = System.nanoTime();
+            new File(dir, PROBE_NAME + "_missing_" + round).exists();
+            long t2 = System.nanoTime();
+            File probe = new File(dir, PROBE_NAME);
+            try {
+                probe.createNewFile();
+            } catch (IOException e) {
+                AppLog.w(TAG, "创建测试文件失败: " + e.getMessage());
+            }
+            probe.delete();
+            long t3 = System.nanoTime();
+            entries = names != null ? names.length : 0;
+            listNs += t1 - t0;
+            lookupNs += t2 - t1;
+            createNs += t3 - t2;
+        }
+        return String.format(Locale.US, "%d 项，列举 %.2fms，查找 %.2fms，创建删除 %.2fms", entries,
+                listNs / 1e6 / BENCHMARK_ROUNDS, lookupNs / 1e6 / BENCHMARK_ROUNDS, createNs / 1e6 / BENCHMARK_ROUNDS);
+    }
+}
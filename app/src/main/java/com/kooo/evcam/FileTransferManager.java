@@ -4,12 +4,31 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
 
+import com.kooo.evcam.camera.SubStreamEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -19,12 +38,24 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * 工作原理：
  * 1. 录制时先写入内部存储的临时目录（高速）
  * 2. 分段完成后，将文件加入传输队列
- * 3. 后台线程负责将文件移动/复制到目标目录
- * 4. 传输完成后删除临时文件
+ * 3. 调度线程把任务分给传输线程池，传输线程负责将文件移动/复制到目标目录
+ * 4. 校验通过后删除临时文件
  * 
  * 这样可以避免U盘慢速写入影响录制性能
+ * 
+ * 断点续传：未完成的任务记录在私有目录的任务日志中，
+ * 复制按 CHUNK_SIZE 分块，每块写完 fsync 后记录已确认的偏移和该块的 CRC32C（读取源文件时计算，作为之后回读校验的基准）。
+ * 任务日志每确认 JOURNAL_SAVE_INTERVAL_CHUNKS 块（以及暂停、出错时）写一次，写入后 fsync 再改名，
+ * 中断后最多重新复制这几块。
+ * 进程被杀或U盘掉线后，重启时从日志恢复任务：先回读已确认的部分逐块比对 CRC32C，
+ * 从第一个不一致的块（都一致则从最后确认的偏移）继续复制，而不是从头开始。
+ * 复制完成后、删除源文件之前，回读整个目标文件逐块比对记录的 CRC32C，并比对文件大小；
+ * 有不一致的块则从该块重新复制，源文件保留到校验通过为止。
+ * 
+ * 并发：传输线程数在 1..MAX_WORKERS 之间按实测吞吐调整：
+ * 增加一个线程后总吞吐提升明显才继续增加，没有提升则减少（U盘随机写入差时多线程反而更慢）
  */
-public class FileTransferManager {
+public class FileTransferManager implements SubStreamEncoder.FileListener {
     private static final String TAG = "FileTransferManager";
     
     // 临时目录名称（在内部存储的应用缓存目录下）
@@ -34,8 +65,10 @@ public class FileTransferManager {
     private static class TransferTask {
         final File sourceFile;      // 源文件（临时目录中）
         final File targetFile;      // 目标文件（最终存储位置）
-        final TransferCallback callback;
+        volatile TransferCallback callback;  // 从任务日志恢复的任务没有回调，重新添加时补上
         int retryCount;             // 重试次数
+        long verifiedOffset;        // 目标文件中已 fsync 并记录 CRC 的长度（CHUNK_SIZE 的整数倍或文件大小）
+        final List<Integer> chunkCrcs = new ArrayList<>();  // 已确认各块的 CRC32C
         
         TransferTask(File source, File target, TransferCallback callback) {
             this.sourceFile = source;
@@ -58,26 +91,51 @@ public class FileTransferManager {
     private final ConcurrentLinkedQueue<TransferTask> transferQueue;
     private HandlerThread transferThread;
     private Handler transferHandler;
+    private ExecutorService workerPool;
     private final AtomicBoolean isRunning;
-    private final AtomicBoolean isProcessing;
+    private final File journalFile;
     
     // 配置
-    private static final int MAX_RETRY_COUNT = 3;           // 最大重试次数
+    private static final int MAX_RETRY_COUNT = 3;           // 最大重试次数（本次运行内，任务日志中的任务下次启动继续）
     private static final long RETRY_DELAY_MS = 5000;        // 重试延迟（毫秒）
     private static final long TRANSFER_CHECK_INTERVAL_MS = 1000;  // 检查队列间隔
     private static final long STARTUP_CLEANUP_DELAY_MS = 60 * 1000;  // 启动后清理延迟：1分钟
     private static final long TEMP_FILE_EXPIRE_MS = 60 * 60 * 1000;  // 临时文件过期时间：1小时
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;  // 续传和校验的块大小：8MB
+    private static final int BUFFER_SIZE = 1024 * 1024;     // 复制缓冲区：1MB
+    private static final int JOURNAL_SAVE_INTERVAL_CHUNKS = 4;  // 每确认 4 块（32MB）写一次任务日志
+    private static final int MAX_WORKERS = 3;               // 最多传输线程数
+    private static final double WORKER_GAIN_RATIO = 1.15;   // 增加线程后总吞吐至少提升15%才保留
+    private static final double THROUGHPUT_EWMA_ALPHA = 0.3;
+    
+    // 任务日志
+    private static final String JOURNAL_NAME = "transfer.journal";
+    private static final int JOURNAL_MAGIC = 0x45565446;  // "EVTF"
+    private static final int JOURNAL_VERSION = 1;
+    
+    // 未完成的任务（排队中和传输中），源文件路径 -> 任务，写入任务日志（this 保护）
+    private final Map<String, TransferTask> pendingTasks = new LinkedHashMap<>();
     
-    // 统计
+    // 子码流文件：在关键帧处切换，晚于主码流文件关闭，关闭之前不能传输（this 保护）
+    private final Set<String> openSubStreamFiles = new HashSet<>();  // 子码流编码器正在写入的文件
+    private final Map<String, TransferTask> waitingSubStreamTasks = new HashMap<>();  // 等待文件关闭的子码流任务
+    
+    // 并发控制（this 保护）
+    private int activeWorkers = 0;
+    private int workerLimit = 1;
+    private final double[] throughputByWorkers = new double[MAX_WORKERS + 1];  // 各并发数下单个任务的平均复制速度（字节/秒）
+    
+    // 统计（this 保护）
     private long totalTransferred = 0;      // 已传输文件数
     private long totalFailed = 0;           // 失败文件数
     private long totalBytesTransferred = 0; // 已传输字节数
+    private long totalResumed = 0;          // 断点续传次数
     
     private FileTransferManager(Context context) {
         this.context = context.getApplicationContext();
         this.transferQueue = new ConcurrentLinkedQueue<>();
         this.isRunning = new AtomicBoolean(false);
-        this.isProcessing = new AtomicBoolean(false);
+        this.journalFile = new File(this.context.getFilesDir(), JOURNAL_NAME);
     }
     
     /**
@@ -102,6 +160,10 @@ public class FileTransferManager {
         transferThread = new HandlerThread("FileTransfer");
         transferThread.start();
         transferHandler = new Handler(transferThread.getLooper());
+        workerPool = Executors.newFixedThreadPool(MAX_WORKERS);
+        
+        // 恢复上次未完成的任务（进程被杀、U盘掉线）
+        transferHandler.post(this::restoreJournal);
         
         // 启动定期检查队列
         scheduleNextCheck();
@@ -125,6 +187,17 @@ public class FileTransferManager {
             transferHandler = null;
         }
         
+        // 传输线程在当前块写完后退出，任务保留在任务日志中，下次启动续传
+        if (workerPool != null) {
+            workerPool.shutdown();
+            try {
+                workerPool.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            workerPool = null;
+        }
+        
         if (transferThread != null) {
             transferThread.quitSafely();
             try {
@@ -154,17 +227,93 @@ public class FileTransferManager {
             return;
         }
         
-        TransferTask task = new TransferTask(sourceFile, targetFile, callback);
-        transferQueue.offer(task);
+        if (!enqueue(new TransferTask(sourceFile, targetFile, callback))) {
+            return;
+        }
         
         AppLog.d(TAG, "Added transfer task: " + sourceFile.getName() + " -> " + targetFile.getAbsolutePath());
         
         // 如果服务在运行，立即触发处理
-        if (isRunning.get() && transferHandler != null) {
-            transferHandler.post(this::processQueue);
+        Handler handler = transferHandler;
+        if (isRunning.get() && handler != null) {
+            handler.post(this::processQueue);
+        }
+        
+        // 子码流文件随主码流文件一起传输到目标目录的 .sub 子目录
+        // 子码流编码器还在写入时（等待关键帧切换）先挂起，文件关闭后再加入队列
+        File subSource = SubStreamEncoder.getSubStreamFile(sourceFile);
+        if (subSource.exists()) {
+            TransferTask subTask = new TransferTask(subSource, SubStreamEncoder.getSubStreamFile(targetFile), null);
+            synchronized (this) {
+                if (openSubStreamFiles.contains(subSource.getAbsolutePath())) {
+                    waitingSubStreamTasks.put(subSource.getAbsolutePath(), subTask);
+                    AppLog.d(TAG, "Sub-stream file still being written, transfer after close: " + subSource.getName());
+                    return;
+                }
+            }
+            enqueueAndProcess(subTask);
+        }
+    }
+    
+    /**
+     * 子码流文件开始写入（子码流编码器线程）
+     */
+    @Override
+    public void onSubStreamFileOpened(File subFile) {
+        synchronized (this) {
+            openSubStreamFiles.add(subFile.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * 子码流文件写完（子码流编码器线程），主码流已加入传输时把挂起的子码流任务加入队列
+     */
+    @Override
+    public void onSubStreamFileClosed(File subFile) {
+        TransferTask subTask;
+        synchronized (this) {
+            openSubStreamFiles.remove(subFile.getAbsolutePath());
+            subTask = waitingSubStreamTasks.remove(subFile.getAbsolutePath());
+        }
+        if (subTask != null) {
+            enqueueAndProcess(subTask);
+        }
+    }
+    
+    /**
+     * 加入队列并触发处理
+     */
+    private void enqueueAndProcess(TransferTask task) {
+        if (!enqueue(task)) {
+            return;
+        }
+        Handler handler = transferHandler;
+        if (isRunning.get() && handler != null) {
+            handler.post(this::processQueue);
         }
     }
     
+    /**
+     * 加入队列并写入任务日志
+     * 同一源文件已有未完成的任务时（从任务日志恢复后，启动扫描临时目录再次添加）只补上回调
+     * @return true 表示新加入
+     */
+    private boolean enqueue(TransferTask task) {
+        synchronized (this) {
+            TransferTask existing = pendingTasks.get(task.sourceFile.getAbsolutePath());
+            if (existing != null) {
+                if (existing.callback == null) {
+                    existing.callback = task.callback;
+                }
+                return false;
+            }
+            pendingTasks.put(task.sourceFile.getAbsolutePath(), task);
+            saveJournal();
+        }
+        transferQueue.offer(task);
+        return true;
+    }
+    
     /**
      * 获取临时视频目录
      * @return 临时目录，如果创建失败返回null
@@ -243,10 +392,10 @@ public class FileTransferManager {
     /**
      * 获取传输统计信息
      */
-    public String getStats() {
-        return String.format("已传输: %d 个文件 (%s), 失败: %d, 队列: %d, 临时文件: %d",
+    public synchronized String getStats() {
+        return String.format("已传输: %d 个文件 (%s), 失败: %d, 续传: %d, 队列: %d, 并发: %d, 临时文件: %d",
                 totalTransferred, formatSize(totalBytesTransferred), 
-                totalFailed, getQueueSize(), getPendingFileCount());
+                totalFailed, totalResumed, getQueueSize(), workerLimit, getPendingFileCount());
     }
     
     // ===== 私有方法 =====
@@ -287,6 +436,11 @@ public class FileTransferManager {
         long deletedSize = 0;
         
         for (File file : files) {
+            synchronized (this) {
+                if (pendingTasks.containsKey(file.getAbsolutePath())) {
+                    continue;  // 等待续传的任务
+                }
+            }
             long fileAge = now - file.lastModified();
             if (fileAge > TEMP_FILE_EXPIRE_MS) {
                 long fileSize = file.length();
@@ -304,39 +458,59 @@ public class FileTransferManager {
     }
     
     /**
-     * 处理传输队列
+     * 处理传输队列（调度线程）：并发数未满时把任务交给传输线程
      */
     private void processQueue() {
-        if (!isRunning.get() || isProcessing.getAndSet(true)) {
-            return;
-        }
-        
-        try {
+        while (isRunning.get()) {
             TransferTask task;
-            while ((task = transferQueue.poll()) != null) {
-                if (!isRunning.get()) {
-                    // 服务停止，将任务放回队列
-                    transferQueue.offer(task);
-                    break;
+            synchronized (this) {
+                if (activeWorkers >= workerLimit) {
+                    return;
                 }
-                
-                processTask(task);
+                task = transferQueue.poll();
+                if (task == null) {
+                    return;
+                }
+                activeWorkers++;
             }
-        } finally {
-            isProcessing.set(false);
+            ExecutorService pool = workerPool;
+            if (pool == null || pool.isShutdown()) {
+                synchronized (this) {
+                    activeWorkers--;
+                }
+                transferQueue.offer(task);
+                return;
+            }
+            final TransferTask runTask = task;
+            pool.execute(() -> {
+                try {
+                    processTask(runTask);
+                } finally {
+                    synchronized (this) {
+                        activeWorkers--;
+                    }
+                    Handler handler = transferHandler;
+                    if (handler != null) {
+                        handler.post(this::processQueue);
+                    }
+                }
+            });
         }
     }
     
     /**
-     * 处理单个传输任务
+     * 处理单个传输任务（传输线程）
      */
     private void processTask(TransferTask task) {
+        // 录制器交给后台修复的分段，等修复完成后再移动/复制
+        VideoRepairManager.awaitPendingRepair(task.sourceFile);
+
         if (!task.sourceFile.exists()) {
             AppLog.w(TAG, "Source file no longer exists: " + task.sourceFile.getName());
             if (task.callback != null) {
                 task.callback.onTransferFailed(task.sourceFile, task.targetFile, "Source file not found");
             }
-            totalFailed++;
+            finishTask(task, false, 0);
             return;
         }
         
@@ -351,7 +525,7 @@ public class FileTransferManager {
         }
         
         // 尝试移动文件（如果在同一文件系统，这是最快的）
-        boolean moved = task.sourceFile.renameTo(task.targetFile);
+        boolean moved = task.verifiedOffset == 0 && task.sourceFile.renameTo(task.targetFile);
         
         if (moved) {
             // 移动成功
@@ -359,20 +533,34 @@ public class FileTransferManager {
             AppLog.d(TAG, "File moved successfully: " + task.sourceFile.getName() + 
                     " -> " + task.targetFile.getAbsolutePath() + " (" + formatSize(fileSize) + ")");
             
-            totalTransferred++;
-            totalBytesTransferred += fileSize;
+            finishTask(task, true, fileSize);
+            MediaIndex.getInstance(context).onFileAdded(task.targetFile);
             
             if (task.callback != null) {
                 task.callback.onTransferComplete(task.sourceFile, task.targetFile);
             }
         } else {
-            // 移动失败（可能跨文件系统），尝试复制
-            AppLog.d(TAG, "Move failed, trying copy: " + task.sourceFile.getName());
+            // 移动失败（可能跨文件系统），分块复制
+            if (task.verifiedOffset == 0) {
+                AppLog.d(TAG, "Move failed, trying copy: " + task.sourceFile.getName());
+            }
             
-            boolean copied = copyFile(task.sourceFile, task.targetFile);
+            boolean copied;
+            try {
+                copied = copyFile(task);
+            } catch (IOException e) {
+                AppLog.e(TAG, "Error copying file: " + task.sourceFile.getName(), e);
+                copied = false;
+            }
+            
+            if (!isRunning.get() && !copied) {
+                // 服务停止，任务留在任务日志中，下次启动续传
+                AppLog.d(TAG, "Transfer paused at " + formatSize(task.verifiedOffset) + ": " + task.sourceFile.getName());
+                return;
+            }
             
             if (copied) {
-                // 复制成功，删除源文件
+                // 复制完成（每块已 fsync，回读 CRC32C 和大小一致），删除源文件
                 long fileSize = task.targetFile.length();
                 
                 if (task.sourceFile.delete()) {
@@ -382,19 +570,33 @@ public class FileTransferManager {
                     AppLog.w(TAG, "File copied but failed to delete source: " + task.sourceFile.getName());
                 }
                 
-                totalTransferred++;
-                totalBytesTransferred += fileSize;
+                finishTask(task, true, fileSize);
+                MediaIndex.getInstance(context).onFileAdded(task.targetFile);
                 
                 if (task.callback != null) {
                     task.callback.onTransferComplete(task.sourceFile, task.targetFile);
                 }
             } else {
-                // 复制也失败
+                // 复制失败
                 handleTransferFailure(task, "Copy failed");
             }
         }
     }
     
+    /**
+     * 任务结束（成功或源文件不存在），从任务日志中移除
+     */
+    private synchronized void finishTask(TransferTask task, boolean success, long fileSize) {
+        pendingTasks.remove(task.sourceFile.getAbsolutePath());
+        saveJournal();
+        if (success) {
+            totalTransferred++;
+            totalBytesTransferred += fileSize;
+        } else {
+            totalFailed++;
+        }
+    }
+    
     /**
      * 处理传输失败
      */
@@ -407,17 +609,20 @@ public class FileTransferManager {
                     task.sourceFile.getName() + " - " + error);
             
             // 延迟后重新加入队列
-            if (transferHandler != null) {
-                transferHandler.postDelayed(() -> {
+            Handler handler = transferHandler;
+            if (handler != null) {
+                handler.postDelayed(() -> {
                     transferQueue.offer(task);
                 }, RETRY_DELAY_MS);
             }
         } else {
-            // 超过重试次数，放弃
+            // 超过重试次数，本次运行放弃；任务保留在任务日志中，下次启动从已确认的偏移续传
             AppLog.e(TAG, "Transfer failed after " + MAX_RETRY_COUNT + " retries: " + 
                     task.sourceFile.getName() + " - " + error);
             
-            totalFailed++;
+            synchronized (this) {
+                totalFailed++;
+            }
             
             if (task.callback != null) {
                 task.callback.onTransferFailed(task.sourceFile, task.targetFile, error);
@@ -426,55 +631,261 @@ public class FileTransferManager {
     }
     
     /**
-     * 复制文件（使用 NIO Channel，效率较高）
+     * 分块复制文件（传输线程）
+     * 从 task.verifiedOffset 继续（续传前先校验已确认的部分）；每块写完 fsync 并记录 CRC32C，
+     * 每 JOURNAL_SAVE_INTERVAL_CHUNKS 块写一次任务日志；全部写完后回读目标文件逐块比对 CRC32C 和文件大小
+     * @return true 表示复制完成且校验一致（可以删除源文件）；服务停止或校验失败时返回 false（一致的部分保留）
      */
-    private boolean copyFile(File source, File target) {
-        FileChannel sourceChannel = null;
-        FileChannel targetChannel = null;
+    private boolean copyFile(TransferTask task) throws IOException {
+        File source = task.sourceFile;
+        File target = task.targetFile;
+        long startNs = System.nanoTime();
+        long copiedBytes = 0;
+        int workers;
+        synchronized (this) {
+            workers = activeWorkers;
+        }
+        boolean journalDirty = false;  // 已确认但尚未写入任务日志的块
         
-        try {
-            sourceChannel = new FileInputStream(source).getChannel();
-            targetChannel = new FileOutputStream(target).getChannel();
-            
+        try (FileChannel sourceChannel = new FileInputStream(source).getChannel();
+             RandomAccessFile targetRaf = new RandomAccessFile(target, "rw")) {
+            FileChannel targetChannel = targetRaf.getChannel();
             long size = sourceChannel.size();
-            long transferred = 0;
-            
-            // 分块传输，避免内存问题
-            final long CHUNK_SIZE = 8 * 1024 * 1024;  // 8MB chunks
+            long offset = task.verifiedOffset;
             
-            while (transferred < size) {
-                long remaining = size - transferred;
-                long toTransfer = Math.min(remaining, CHUNK_SIZE);
-                long actualTransferred = sourceChannel.transferTo(transferred, toTransfer, targetChannel);
-                
-                if (actualTransferred == 0) {
-                    // 传输停滞，可能有问题
-                    AppLog.w(TAG, "Transfer stalled at " + transferred + "/" + size);
-                    break;
+            // 目标文件比已确认的部分短（U盘换过、文件被删）或源文件变了：从头开始
+            if (offset > 0 && (targetChannel.size() < offset || offset > size)) {
+                AppLog.w(TAG, "Resume state invalid, restarting: " + source.getName());
+                offset = 0;
+                task.chunkCrcs.clear();
+            } else if (offset > 0) {
+                int validChunks = verifyConfirmedChunks(task, targetChannel);
+                if (validChunks < task.chunkCrcs.size()) {
+                    AppLog.w(TAG, "Checksum mismatch in chunk " + validChunks + ", resuming from there: " + source.getName());
+                    resetProgress(task, validChunks);
+                    offset = task.verifiedOffset;
+                }
+                AppLog.d(TAG, "Resuming transfer at " + formatSize(offset) + "/" + formatSize(size) + ": " + source.getName());
+                synchronized (this) {
+                    totalResumed++;
                 }
-                
-                transferred += actualTransferred;
             }
+            // 丢弃未确认的尾部（上次中断时写了一半的块）
+            targetChannel.truncate(offset);
             
-            return transferred == size;
-            
-        } catch (IOException e) {
-            AppLog.e(TAG, "Error copying file: " + source.getName(), e);
-            
-            // 删除可能不完整的目标文件
-            if (target.exists()) {
-                target.delete();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            Crc32c crc = new Crc32c();
+            while (offset < size) {
+                if (!isRunning.get()) {
+                    return false;
+                }
+                long chunkEnd = Math.min(offset + CHUNK_SIZE, size);
+                crc.reset();
+                long position = offset;
+                while (position < chunkEnd) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(BUFFER_SIZE, chunkEnd - position));
+                    if (sourceChannel.read(buffer, position) <= 0) {
+                        throw new IOException("Source truncated at " + position + "/" + size);
+                    }
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        position += targetChannel.write(buffer, position);
+                    }
+                }
+                // 块写入存储后才记录为已确认
+                targetChannel.force(false);
+                copiedBytes += chunkEnd - offset;
+                offset = chunkEnd;
+                synchronized (this) {
+                    task.chunkCrcs.add((int) crc.getValue());
+                    task.verifiedOffset = offset;
+                    journalDirty = task.chunkCrcs.size() % JOURNAL_SAVE_INTERVAL_CHUNKS != 0;
+                    if (!journalDirty) {
+                        saveJournal();
+                    }
+                }
+            }
+
+            // 删除源文件前回读目标文件，逐块比对复制时记录的 CRC32C（本次没有复制时续传前已校验过）
+            int validChunks = copiedBytes > 0 ? verifyConfirmedChunks(task, targetChannel) : task.chunkCrcs.size();
+            if (validChunks < task.chunkCrcs.size()) {
+                AppLog.w(TAG, "Checksum mismatch in chunk " + validChunks + " after copy: " + target.getName());
+                resetProgress(task, validChunks);
+                journalDirty = false;
+                return false;
             }
-            
-            return false;
         } finally {
-            try {
-                if (sourceChannel != null) sourceChannel.close();
-                if (targetChannel != null) targetChannel.close();
-            } catch (IOException e) {
-                // Ignore
+            if (journalDirty) {
+                synchronized (this) {
+                    saveJournal();
+                }
+            }
+            recordThroughput(workers, copiedBytes, System.nanoTime() - startNs);
+        }
+        
+        if (target.length() != task.verifiedOffset || source.length() != task.verifiedOffset) {
+            AppLog.w(TAG, "Size mismatch after copy: " + target.getName());
+            resetProgress(task, 0);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * 回读目标文件中已确认的部分，逐块比对 CRC32C（续传前和复制完成后，传输线程）
+     * @return 从头开始连续一致的块数（全部一致时等于 task.chunkCrcs.size()）
+     */
+    private int verifyConfirmedChunks(TransferTask task, FileChannel targetChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Crc32c crc = new Crc32c();
+        long position = 0;
+        for (int chunk = 0; chunk < task.chunkCrcs.size(); chunk++) {
+            long chunkEnd = Math.min(position + CHUNK_SIZE, task.verifiedOffset);
+            crc.reset();
+            while (position < chunkEnd) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, chunkEnd - position));
+                int read = targetChannel.read(buffer, position);
+                if (read <= 0) {
+                    return chunk;
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+            if ((int) crc.getValue() != task.chunkCrcs.get(chunk)) {
+                return chunk;
+            }
+        }
+        return task.chunkCrcs.size();
+    }
+    
+    private synchronized void resetProgress(TransferTask task, int validChunks) {
+        while (task.chunkCrcs.size() > validChunks) {
+            task.chunkCrcs.remove(task.chunkCrcs.size() - 1);
+        }
+        task.verifiedOffset = validChunks * CHUNK_SIZE;
+        saveJournal();
+    }
+    
+    // ===== 并发调整 =====
+    
+    /**
+     * 记录一次复制的速度，并按各并发数下的总吞吐调整传输线程数
+     * 总吞吐按「单个任务速度 × 并发数」估算：多一个线程后总吞吐提升不足 WORKER_GAIN_RATIO 则退回
+     */
+    private synchronized void recordThroughput(int workers, long bytes, long elapsedNs) {
+        if (bytes < CHUNK_SIZE || elapsedNs <= 0 || workers < 1 || workers > MAX_WORKERS) {
+            return;  // 太小的样本不准确
+        }
+        double bytesPerSecond = bytes * 1e9 / elapsedNs;
+        double previous = throughputByWorkers[workers];
+        throughputByWorkers[workers] = previous > 0
+                ? previous + THROUGHPUT_EWMA_ALPHA * (bytesPerSecond - previous) : bytesPerSecond;
+        
+        int oldLimit = workerLimit;
+        double current = throughputByWorkers[workerLimit] * workerLimit;
+        if (workerLimit > 1 && throughputByWorkers[workerLimit - 1] > 0
+                && current < throughputByWorkers[workerLimit - 1] * (workerLimit - 1) * WORKER_GAIN_RATIO) {
+            workerLimit--;
+        } else if (workerLimit < MAX_WORKERS && transferQueue.size() >= workerLimit) {
+            // 有积压时尝试增加：未测过更高并发，或测过且总吞吐确实更高
+            double higher = throughputByWorkers[workerLimit + 1] * (workerLimit + 1);
+            if (higher == 0 || higher >= current * WORKER_GAIN_RATIO) {
+                workerLimit++;
             }
         }
+        if (workerLimit != oldLimit) {
+            AppLog.d(TAG, String.format(Locale.US, "Transfer workers %d -> %d (per-task %.1f MB/s at %d workers)",
+                    oldLimit, workerLimit, bytesPerSecond / (1024 * 1024), workers));
+        }
+    }
+    
+    // ===== 任务日志 =====
+    // int magic, int version, int count，之后每个任务：
+    // UTF source, UTF target, long verifiedOffset, int chunkCount, int[chunkCount] crc
+    
+    /**
+     * 重写任务日志：先写临时文件并 fsync 再改名（调用方持有锁）
+     * 不先 fsync 的话，断电后可能留下改名已生效但内容为空的日志
+     */
+    private void saveJournal() {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeInt(pendingTasks.size());
+            for (TransferTask task : pendingTasks.values()) {
+                out.writeUTF(task.sourceFile.getAbsolutePath());
+                out.writeUTF(task.targetFile.getAbsolutePath());
+                out.writeLong(task.verifiedOffset);
+                out.writeInt(task.chunkCrcs.size());
+                for (int crc : task.chunkCrcs) {
+                    out.writeInt(crc);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            AppLog.w(TAG, "Failed to write transfer journal: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(journalFile)) {
+            AppLog.w(TAG, "Failed to replace transfer journal");
+            tmp.delete();
+        }
+    }
+    
+    /**
+     * 启动时恢复上次未完成的任务（调度线程），源文件已不存在的任务丢弃
+     */
+    private void restoreJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        List<TransferTask> restored = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                AppLog.w(TAG, "Transfer journal version mismatch, ignored");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                TransferTask task = new TransferTask(new File(in.readUTF()), new File(in.readUTF()), null);
+                task.verifiedOffset = in.readLong();
+                int chunks = in.readInt();
+                for (int c = 0; c < chunks; c++) {
+                    task.chunkCrcs.add(in.readInt());
+                }
+                restored.add(task);
+            }
+        } catch (IOException | RuntimeException e) {
+            AppLog.w(TAG, "Transfer journal incomplete, restored " + restored.size() + " task(s): " + e.getMessage());
+        }
+        
+        int resumable = 0;
+        synchronized (this) {
+            for (TransferTask task : restored) {
+                String key = task.sourceFile.getAbsolutePath();
+                if (!task.sourceFile.exists() || pendingTasks.containsKey(key)) {
+                    continue;
+                }
+                pendingTasks.put(key, task);
+                transferQueue.offer(task);
+                if (task.verifiedOffset > 0) {
+                    resumable++;
+                }
+            }
+            saveJournal();
+        }
+        if (!restored.isEmpty()) {
+            AppLog.d(TAG, "Restored " + restored.size() + " transfer task(s) from journal, " + resumable + " partially copied");
+        }
+        processQueue();
     }
     
     /**
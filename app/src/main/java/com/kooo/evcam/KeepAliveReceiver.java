@@ -56,6 +56,7 @@ public class KeepAliveReceiver extends BroadcastReceiver {
     // 上次触发时间，用于防止短时间内重复触发
     private static long lastTriggerTime = 0;
     private static final long MIN_TRIGGER_INTERVAL = 3000; // 最小触发间隔 3 秒
+    private static final long MEDIA_MOUNT_PROBE_DELAY_MS = 5000; // U盘挂载后 5 秒再测速
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -135,6 +136,8 @@ public class KeepAliveReceiver extends BroadcastReceiver {
             case Intent.ACTION_MEDIA_MOUNTED:
                 AppLog.d(TAG, "【存储】存储已挂载（U盘/SD卡插入）");
                 ensureServicesRunning(context, "存储挂载");
+                // 新插入的U盘测速（已测过的U盘按卷 UUID 使用缓存结果）
+                StorageBenchmark.getInstance(context).probeRecordingVolume(MEDIA_MOUNT_PROBE_DELAY_MS);
                 break;
                 
             case Intent.ACTION_MEDIA_UNMOUNTED:
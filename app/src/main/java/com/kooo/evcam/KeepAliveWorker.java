@@ -29,6 +29,9 @@ public class KeepAliveWorker extends Worker {
             AppLog.d(TAG, "应用进程保持活跃");
             AppLog.d(TAG, "无障碍服务状态: " + (KeepAliveAccessibilityService.isRunning() ? "运行中" : "未运行"));
             
+            // U盘测速的空闲补测：启动/挂载时因录制中跳过、或结果已过期时重新测量（录制中仍会跳过）
+            StorageBenchmark.getInstance(context).probeRecordingVolume(0);
+            
             // 可以在这里做一些轻量级的检查，确保核心服务正常
             // 例如检查钉钉连接状态等
             
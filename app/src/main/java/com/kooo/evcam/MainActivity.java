@@ -151,11 +151,13 @@ public class MainActivity extends AppCompatActivity {
     private Runnable screenOffStopRunnable;  // 息屏停止录制的延迟任务
     private Runnable screenOnStartRunnable;  // 亮屏恢复录制的延迟任务
     private Runnable screenOffBackgroundRunnable;  // 息屏退后台的延迟任务
+    private Runnable parkingModeRunnable;  // 息屏进入停车延时录影的延迟任务
     private boolean isScreenOff = false;  // 当前是否息屏
     private boolean wasRecordingBeforeScreenOff = false;  // 息屏前是否正在录制
     private static final long SCREEN_OFF_DELAY_MS = 10000;  // 息屏后等待10秒（停止录制）
     private static final long SCREEN_ON_DELAY_MS = 10000;   // 亮屏后等待10秒（恢复录制）
     private static final long SCREEN_OFF_BACKGROUND_DELAY_MS = 15000;  // 息屏后等待15秒（退后台）
+    private static final long PARKING_MODE_DELAY_MS = 30000;  // 息屏后等待30秒（进入停车延时录影，避免短暂息屏频繁切换）
     
     
     // 车型配置相关
@@ -217,6 +219,8 @@ public class MainActivity extends AppCompatActivity {
     
     // 存储清理管理器
     private StorageCleanupManager storageCleanupManager;
+    private VideoRepairManager videoRepairManager;
+    private DateShardMigrator dateShardMigrator;
     
     // 远程命令分发器（重构后的统一入口）
     private RemoteCommandDispatcher remoteCommandDispatcher;
@@ -421,8 +425,19 @@ public class MainActivity extends AppCompatActivity {
         storageCleanupManager = new StorageCleanupManager(this);
         storageCleanupManager.start();
         
+        // 启动视频修复任务（修复异常断电留下的损坏视频）
+        videoRepairManager = new VideoRepairManager(this);
+        videoRepairManager.start();
+        
+        // 启动日期分层迁移（启用按日期分层存储时，把根目录中的旧文件移到日期目录）
+        dateShardMigrator = new DateShardMigrator(this);
+        dateShardMigrator.start();
+        
         // 启动文件传输服务（用于U盘中转写入模式）
         FileTransferManager.getInstance(this).start();
+        
+        // U盘测速（没有结果或结果过期时在后台测量，用于自动选择直写/中转）
+        StorageBenchmark.getInstance(this).probeRecordingVolume(0);
 
         // 检查是否是开机自启动
         boolean autoStartFromBoot = getIntent().getBooleanExtra("auto_start_from_boot", false);
@@ -1487,7 +1502,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public boolean startRecording(String timestamp) {
                 if (cameraManager != null) {
-                    return cameraManager.startRecording(timestamp);
+                    return cameraManager.startTriggeredRecording(timestamp);
                 }
                 return false;
             }
@@ -3298,6 +3313,12 @@ public class MainActivity extends AppCompatActivity {
             heartbeatManager.onScreenOff();
         }
         
+        // 停车延时录影：息屏持续一段时间后切换为低帧率录制
+        scheduleParkingMode();
+        
+        // 息屏无头录制：停止向预览推帧
+        enterHeadlessMode();
+        
         // 取消可能存在的亮屏恢复录制任务
         if (screenOnStartRunnable != null) {
             screenStateHandler.removeCallbacks(screenOnStartRunnable);
@@ -3375,6 +3396,60 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    /**
+     * 安排息屏后进入停车延时录影的任务（仅 Codec 录制模式生效）
+     */
+    private void scheduleParkingMode() {
+        if (parkingModeRunnable != null) {
+            screenStateHandler.removeCallbacks(parkingModeRunnable);
+            parkingModeRunnable = null;
+        }
+        if (!appConfig.isParkingTimeLapseEnabled()) {
+            return;
+        }
+        
+        parkingModeRunnable = () -> {
+            parkingModeRunnable = null;
+            if (!isScreenOff || cameraManager == null) {
+                return;
+            }
+            AppLog.d(TAG, "息屏已持续" + (PARKING_MODE_DELAY_MS / 1000) + "秒，进入停车延时录影");
+            cameraManager.setParkingMode(true);
+        };
+        screenStateHandler.postDelayed(parkingModeRunnable, PARKING_MODE_DELAY_MS);
+    }
+    
+    /**
+     * 进入息屏无头录制（息屏时调用）
+     * 息屏推图需要从预览画面截图，启用时保持预览输出
+     */
+    private void enterHeadlessMode() {
+        if (cameraManager == null || !appConfig.isHeadlessScreenOffEnabled()) {
+            return;
+        }
+        if (heartbeatManager != null && heartbeatManager.getConfig().isEnabled()
+                && heartbeatManager.getConfig().isScreenOffPushEnabled()) {
+            AppLog.d(TAG, "息屏推图已启用，保持预览输出，不进入无头录制");
+            return;
+        }
+        AppLog.d(TAG, "息屏，进入无头录制");
+        cameraManager.setHeadless(true);
+    }
+    
+    /**
+     * 退出停车延时录影（亮屏时调用）
+     */
+    private void exitParkingMode() {
+        if (parkingModeRunnable != null) {
+            screenStateHandler.removeCallbacks(parkingModeRunnable);
+            parkingModeRunnable = null;
+        }
+        if (cameraManager != null && cameraManager.isParkingMode()) {
+            AppLog.d(TAG, "亮屏，退出停车延时录影");
+            cameraManager.setParkingMode(false);
+        }
+    }
+    
     /**
      * 安排息屏后退到后台的任务
      */
@@ -3434,6 +3509,13 @@ public class MainActivity extends AppCompatActivity {
             heartbeatManager.onScreenOn();
         }
         
+        exitParkingMode();
+        
+        if (cameraManager != null && cameraManager.isHeadless()) {
+            AppLog.d(TAG, "亮屏，退出息屏无头录制");
+            cameraManager.setHeadless(false);
+        }
+        
         // 取消可能存在的息屏停止录制任务
         if (screenOffStopRunnable != null) {
             screenStateHandler.removeCallbacks(screenOffStopRunnable);
@@ -4764,6 +4846,9 @@ public class MainActivity extends AppCompatActivity {
             if (screenOffBackgroundRunnable != null) {
                 screenStateHandler.removeCallbacks(screenOffBackgroundRunnable);
             }
+            if (parkingModeRunnable != null) {
+                screenStateHandler.removeCallbacks(parkingModeRunnable);
+            }
         }
 
         // 停止前台服务（确保清理）
@@ -4780,6 +4865,16 @@ public class MainActivity extends AppCompatActivity {
             storageCleanupManager.stop();
         }
         
+        // 停止视频修复任务
+        if (videoRepairManager != null) {
+            videoRepairManager.stop();
+        }
+        
+        // 停止日期分层迁移任务
+        if (dateShardMigrator != null) {
+            dateShardMigrator.stop();
+        }
+        
         // 停止文件传输服务
         FileTransferManager.getInstance(this).stop();
 
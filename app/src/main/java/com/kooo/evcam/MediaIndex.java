@@ -0,0 +1,842 @@
+package com.kooo.evcam;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 媒体文件索引（录制分段和照片，进程内单例）
+ * 回放列表、远程查找、存储清理和占用统计原本每次都要 listFiles 并对每个文件取 length / lastModified，
+ * U 盘上有几万个分段时每次都要好几秒。索引在内存中按目录维护「文件名 -> 条目」的有序表，
+ * 记录时间戳、摄像头位置、大小、时长和存储位置（内部存储 / U 盘），按文件名前缀查找为 O(log n)。
+ *
+ * 持久化：私有目录下的追加式日志（新增 / 删除 / 目录同步三种记录），启动时重放；
+ * 日志记录数远多于有效条目时压缩（写临时文件后改名）。末尾半条记录（断电）在加载时丢弃并压缩。
+ *
+ * 更新来源：分段切换、拍照保存、文件传输、清理删除时主动通知；
+ * 其他途径（回放界面删除、用户在电脑上增删文件、换 U 盘）由偏差检测兜底：
+ * 查询时目录修改时间与上次同步不一致，或距上次同步超过 RESYNC_INTERVAL_MS，
+ * 只列出文件名（不逐个取属性）与索引比对，新增的文件才取属性，消失的文件移除，即增量重建。
+ * 最近仍在写入的条目（修改时间在 ACTIVE_WINDOW_MS 内）同步时重新取属性，保证正在录制的分段大小准确
+ *
+ * 清理引擎使用不做偏差检测的 getIndexedSize / getOldestGroup（O(日期目录数) / O(组内文件数)），
+ * 只在恢复时调用 refresh 重新比对目录。查询都包括目录下按日期分层的子目录（yyyy/MM/dd）
+ *
+ * 线程：所有方法可在任意线程调用（内部同步），查询可能触发目录列举，不要在主线程频繁调用
+ */
+public class MediaIndex {
+    private static final String TAG = "MediaIndex";
+
+    public static final int TIER_INTERNAL = 0;  // 内部存储
+    public static final int TIER_EXTERNAL = 1;  // U 盘 / SD 卡
+
+    private static final String JOURNAL_NAME = "media_index.journal";
+    private static final int MAGIC = 0x45564D49;  // "EVMI"
+    private static final int VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_DIR_SYNC = 3;
+
+    private static final long RESYNC_INTERVAL_MS = 5 * 60 * 1000;  // 目录修改时间未变时最长多久强制比对一次
+    private static final long ACTIVE_WINDOW_MS = 5 * 60 * 1000;  // 修改时间在此范围内的条目视为可能仍在写入
+    private static final long MAX_VIDEO_DURATION_MS = 60 * 60 * 1000;  // 时长估算上限（超过视为文件名与修改时间不对应）
+    private static final int COMPACT_MIN_RECORDS = 2000;
+
+    /**
+     * 索引条目（不可变）
+     */
+    public static final class Entry {
+        public final File file;
+        public final long timestampMs;  // 录制/拍摄开始时间（解析自文件名，失败时为修改时间）
+        public final String position;  // 摄像头位置（front/back/left/right/mosaic 等），无法识别时为 null
+        public final long size;
+        public final long lastModifiedMs;
+        public final long durationMs;  // 视频时长（由文件名时间和修改时间估算），照片为 0
+        public final int tier;  // TIER_*
+
+        Entry(File file, long timestampMs, String position, long size, long lastModifiedMs, long durationMs, int tier) {
+            this.file = file;
+            this.timestampMs = timestampMs;
+            this.position = position;
+            this.size = size;
+            this.lastModifiedMs = lastModifiedMs;
+            this.durationMs = durationMs;
+            this.tier = tier;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+    }
+
+    /**
+     * 单个目录的索引
+     */
+    private static final class DirIndex {
+        final TreeMap<String, Entry> entries = new TreeMap<>();
+        long totalSize = 0;
+        long syncedDirMtime = -1;  // 上次同步时的目录修改时间（持久化）
+        long syncedAtElapsedMs = -1;  // 上次同步的时刻（不持久化，进程启动后首次查询必定比对一次）
+        final Set<String> nonFiles = new HashSet<>();  // 子目录等非文件名称（不持久化）
+
+        void put(Entry entry) {
+            Entry old = entries.put(entry.getName(), entry);
+            if (old != null) {
+                totalSize -= old.size;
+            }
+            totalSize += entry.size;
+        }
+
+        Entry remove(String name) {
+            Entry old = entries.remove(name);
+            if (old != null) {
+                totalSize -= old.size;
+            }
+            return old;
+        }
+    }
+
+    /**
+     * 新文件加入索引的通知（在调用 onFileAdded 的线程回调，不持有索引锁）
+     */
+    public interface Listener {
+        void onFileAdded(Entry entry);
+    }
+
+    private static volatile MediaIndex instance;
+
+    private final File journalFile;
+    private final String internalRoot;
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+    private final Map<String, DirIndex> dirs = new HashMap<>();  // 目录绝对路径 -> 索引（this 保护）
+    private DataOutputStream journal;
+    private int journalRecords = 0;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static MediaIndex getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MediaIndex.class) {
+                if (instance == null) {
+                    instance = new MediaIndex(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private MediaIndex(Context context) {
+        this.journalFile = new File(context.getFilesDir(), JOURNAL_NAME);
+        this.internalRoot = Environment.getExternalStorageDirectory().getAbsolutePath();
+        load();
+    }
+
+    // ==================== 更新通知 ====================
+
+    /**
+     * 文件已写入完成（分段切换、拍照保存、传输完成），重新取属性后加入索引
+     */
+    public void onFileAdded(File file) {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        File dir = file.getParentFile();
+        if (dir == null) {
+            return;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = createEntry(file);
+            getDirIndex(dir.getAbsolutePath()).put(entry);
+            appendAdd(entry);
+            flushJournal();
+        }
+        for (Listener listener : listeners) {
+            listener.onFileAdded(entry);
+        }
+    }
+
+    /**
+     * 文件已删除
+     */
+    public synchronized void onFileRemoved(File file) {
+        if (file == null || file.getParentFile() == null) {
+            return;
+        }
+        DirIndex dirIndex = dirs.get(file.getParentFile().getAbsolutePath());
+        if (dirIndex != null && dirIndex.remove(file.getName()) != null) {
+            appendRemove(file);
+            flushJournal();
+        }
+    }
+
+    /**
+     * 文件已移动（按日期分层迁移），不通知监听者
+     */
+    public synchronized void onFileMoved(File from, File to) {
+        if (from == null || to == null || from.getParentFile() == null || to.getParentFile() == null) {
+            return;
+        }
+        DirIndex fromIndex = dirs.get(from.getParentFile().getAbsolutePath());
+        if (fromIndex != null && fromIndex.remove(from.getName()) != null) {
+            appendRemove(from);
+        }
+        if (to.isFile()) {
+            Entry entry = createEntry(to);
+            getDirIndex(to.getParentFile().getAbsolutePath()).put(entry);
+            appendAdd(entry);
+        }
+        flushJournal();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // ==================== 查询 ====================
+    // 查询的目录按「树」处理：目录本身加上其下的日期子目录（yyyy/MM/dd，见 StorageHelper），
+    // 按日期分层存储和迁移过程中根目录与日期目录并存，调用方不需要区分
+
+    /**
+     * 目录中的全部文件条目（按文件名排序，即按录制时间排序）
+     */
+    public synchronized List<Entry> list(File dir) {
+        List<Entry> result = new ArrayList<>();
+        for (DirIndex dirIndex : syncTree(dir)) {
+            result.addAll(dirIndex.entries.values());
+        }
+        sortByName(result);
+        return result;
+    }
+
+    /**
+     * 目录中文件名以 prefix 开头的条目（按文件名排序）
+     * prefix 含完整日期（yyyyMMdd）时只查根目录和该日期的子目录
+     */
+    public synchronized List<Entry> listByPrefix(File dir, String prefix) {
+        List<Entry> result = new ArrayList<>();
+        if (dir == null || prefix == null) {
+            return result;
+        }
+        List<DirIndex> indexes;
+        File shardDir = StorageHelper.getDateShardDir(dir, prefix);
+        if (!shardDir.equals(dir)) {
+            indexes = new ArrayList<>();
+            DirIndex rootIndex = sync(dir);
+            if (rootIndex != null) {
+                indexes.add(rootIndex);
+            }
+            DirIndex shardIndex = sync(shardDir);
+            if (shardIndex != null) {
+                indexes.add(shardIndex);
+            }
+        } else {
+            indexes = syncTree(dir);
+        }
+        for (DirIndex dirIndex : indexes) {
+            result.addAll(dirIndex.entries.subMap(prefix, prefix + Character.MAX_VALUE).values());
+        }
+        sortByName(result);
+        return result;
+    }
+
+    /**
+     * 目录中的全部文件条目，按修改时间从旧到新排序（清理用）
+     */
+    public List<Entry> listOldestFirst(File dir) {
+        List<Entry> entries = list(dir);
+        Collections.sort(entries, Comparator.comparingLong(e -> e.lastModifiedMs));
+        return entries;
+    }
+
+    /**
+     * 目录中文件的总大小（字节）
+     */
+    public synchronized long getTotalSize(File dir) {
+        long total = 0;
+        for (DirIndex dirIndex : syncTree(dir)) {
+            total += dirIndex.totalSize;
+        }
+        return total;
+    }
+
+    /**
+     * 目录中的文件数
+     */
+    public synchronized int getCount(File dir) {
+        int count = 0;
+        for (DirIndex dirIndex : syncTree(dir)) {
+            count += dirIndex.entries.size();
+        }
+        return count;
+    }
+
+    /**
+     * 索引中目录的总大小（不做偏差检测，O(日期目录数)）
+     */
+    public synchronized long getIndexedSize(File dir) {
+        long total = 0;
+        for (DirIndex dirIndex : getIndexedTree(dir)) {
+            total += dirIndex.totalSize;
+        }
+        return total;
+    }
+
+    /**
+     * 索引中最旧的一组文件：文件名最小的条目及与它时间戳前缀相同的全部条目（同一次录制的各路分段），
+     * 不做偏差检测。目录为空时返回空列表
+     */
+    public synchronized List<Entry> getOldestGroup(File dir) {
+        List<Entry> group = new ArrayList<>();
+        DirIndex oldest = null;
+        for (DirIndex dirIndex : getIndexedTree(dir)) {
+            if (!dirIndex.entries.isEmpty() && (oldest == null
+                    || dirIndex.entries.firstKey().compareTo(oldest.entries.firstKey()) < 0)) {
+                oldest = dirIndex;
+            }
+        }
+        if (oldest == null) {
+            return group;
+        }
+        String prefix = null;
+        for (Entry entry : oldest.entries.values()) {
+            String entryPrefix = getGroupPrefix(entry.getName());
+            if (prefix == null) {
+                prefix = entryPrefix;
+            } else if (!prefix.equals(entryPrefix)) {
+                break;
+            }
+            group.add(entry);
+        }
+        return group;
+    }
+
+    /**
+     * 强制与目录（及其日期子目录）重新比对（恢复用：启动后首次清理、删除时发现索引与实际不符）
+     */
+    public synchronized void refresh(File dir) {
+        if (dir == null) {
+            return;
+        }
+        for (DirIndex dirIndex : getIndexedTree(dir)) {
+            dirIndex.syncedAtElapsedMs = -1;
+            dirIndex.syncedDirMtime = -1;
+        }
+        syncTree(dir);
+    }
+
+    /**
+     * 整个目录已删除（清理整天的日期目录），移除其中全部条目
+     */
+    public synchronized void onDirRemoved(File dir) {
+        if (dir != null && dropDirIndex(dir.getAbsolutePath())) {
+            flushJournal();
+        }
+    }
+
+    private static void sortByName(List<Entry> entries) {
+        Collections.sort(entries, (a, b) -> a.getName().compareTo(b.getName()));
+    }
+
+    // ==================== 偏差检测 / 增量重建 ====================
+
+    /**
+     * 检查目录是否与索引一致，不一致时增量重建（调用方持有锁）
+     * @return 目录索引，目录不存在时返回 null（保留已有条目，U 盘重新插入后继续使用）
+     */
+    private DirIndex sync(File dir) {
+        if (dir == null || !dir.isDirectory()) {
+            return null;
+        }
+        DirIndex dirIndex = getDirIndex(dir.getAbsolutePath());
+        long dirMtime = dir.lastModified();
+        long now = SystemClock.elapsedRealtime();
+        boolean stale = dirIndex.syncedAtElapsedMs < 0 || now - dirIndex.syncedAtElapsedMs >= RESYNC_INTERVAL_MS;
+        if (dirMtime == dirIndex.syncedDirMtime && !stale) {
+            return dirIndex;
+        }
+
+        long startMs = now;
+        String[] names = dir.list();
+        if (names == null) {
+            return dirIndex;
+        }
+        Set<String> present = new HashSet<>(names.length * 2);
+        int added = 0;
+        int updated = 0;
+        for (String name : names) {
+            present.add(name);
+            if (dirIndex.nonFiles.contains(name)) {
+                continue;
+            }
+            Entry existing = dirIndex.entries.get(name);
+            if (existing != null && System.currentTimeMillis() - existing.lastModifiedMs > ACTIVE_WINDOW_MS) {
+                continue;
+            }
+            File file = new File(dir, name);
+            if (!file.isFile()) {
+                dirIndex.nonFiles.add(name);
+                continue;
+            }
+            if (existing != null && existing.size == file.length() && existing.lastModifiedMs == file.lastModified()) {
+                continue;
+            }
+            Entry entry = createEntry(file);
+            dirIndex.put(entry);
+            appendAdd(entry);
+            if (existing != null) {
+                updated++;
+            } else {
+                added++;
+            }
+        }
+        List<String> vanished = new ArrayList<>();
+        for (String name : dirIndex.entries.keySet()) {
+            if (!present.contains(name)) {
+                vanished.add(name);
+            }
+        }
+        for (String name : vanished) {
+            dirIndex.remove(name);
+            appendRemove(new File(dir, name));
+        }
+        dirIndex.nonFiles.retainAll(present);
+
+        dirIndex.syncedDirMtime = dirMtime;
+        dirIndex.syncedAtElapsedMs = SystemClock.elapsedRealtime();
+        appendDirSync(dir.getAbsolutePath(), dirMtime);
+        flushJournal();
+        if (added > 0 || updated > 0 || !vanished.isEmpty()) {
+            AppLog.d(TAG, "索引同步 " + dir.getName() + "：新增 " + added + "，更新 " + updated + "，移除 " + vanished.size() +
+                    "，共 " + dirIndex.entries.size() + " 个文件，耗时 " + (dirIndex.syncedAtElapsedMs - startMs) + "ms");
+        }
+        compactIfNeeded();
+        return dirIndex;
+    }
+
+    /**
+     * 同步目录及其下的日期子目录（调用方持有锁）
+     * 根目录重新列举时顺带发现新的日期目录（其他途径写入、迁移）；录制写入的日期目录由 onFileAdded 直接登记。
+     * 根目录存在而日期目录已不存在时移除其索引
+     * @return 存在的目录索引，根目录在前
+     */
+    private List<DirIndex> syncTree(File dir) {
+        List<DirIndex> result = new ArrayList<>();
+        if (dir == null) {
+            return result;
+        }
+        DirIndex existing = dirs.get(dir.getAbsolutePath());
+        long syncedBefore = existing != null ? existing.syncedAtElapsedMs : -1;
+        DirIndex rootIndex = sync(dir);
+        if (rootIndex == null) {
+            return result;
+        }
+        result.add(rootIndex);
+        if (rootIndex.syncedAtElapsedMs != syncedBefore) {
+            discoverShards(dir, rootIndex);
+        }
+        boolean dropped = false;
+        for (String shardPath : getShardPaths(dir)) {
+            DirIndex shardIndex = sync(new File(shardPath));
+            if (shardIndex != null) {
+                result.add(shardIndex);
+            } else {
+                dropped |= dropDirIndex(shardPath);
+            }
+        }
+        if (dropped) {
+            flushJournal();
+        }
+        return result;
+    }
+
+    /**
+     * 索引中目录及其日期子目录的条目（不访问文件系统，调用方持有锁）
+     */
+    private List<DirIndex> getIndexedTree(File dir) {
+        List<DirIndex> result = new ArrayList<>();
+        if (dir == null) {
+            return result;
+        }
+        DirIndex rootIndex = dirs.get(dir.getAbsolutePath());
+        if (rootIndex != null) {
+            result.add(rootIndex);
+        }
+        for (String shardPath : getShardPaths(dir)) {
+            result.add(dirs.get(shardPath));
+        }
+        return result;
+    }
+
+    /**
+     * 索引中属于 dir 的日期子目录路径（按日期排序）
+     */
+    private List<String> getShardPaths(File dir) {
+        List<String> result = new ArrayList<>();
+        String rootPath = dir.getAbsolutePath();
+        String childPrefix = rootPath + File.separator;
+        for (String path : dirs.keySet()) {
+            if (path.startsWith(childPrefix) && path.length() == childPrefix.length() + 10) {
+                File shardRoot = StorageHelper.getDateShardRoot(new File(path));
+                if (shardRoot != null && shardRoot.getAbsolutePath().equals(rootPath)) {
+                    result.add(path);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * 列举根目录下的年/月/日目录，登记尚未索引的日期目录（之后由 sync 列举其中文件）
+     */
+    private void discoverShards(File dir, DirIndex rootIndex) {
+        for (String yearName : rootIndex.nonFiles) {
+            if (!StorageHelper.isDigits(yearName, 4)) {
+                continue;
+            }
+            File yearDir = new File(dir, yearName);
+            String[] monthNames = yearDir.list();
+            if (monthNames == null) {
+                continue;
+            }
+            for (String monthName : monthNames) {
+                if (!StorageHelper.isDigits(monthName, 2)) {
+                    continue;
+                }
+                File monthDir = new File(yearDir, monthName);
+                String[] dayNames = monthDir.list();
+                if (dayNames == null) {
+                    continue;
+                }
+                for (String dayName : dayNames) {
+                    if (StorageHelper.isDigits(dayName, 2)) {
+                        getDirIndex(new File(monthDir, dayName).getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 移除整个目录的索引（日志中逐条记录删除），返回是否有变化（调用方持有锁并负责 flush）
+     */
+    private boolean dropDirIndex(String dirPath) {
+        DirIndex dirIndex = dirs.remove(dirPath);
+        if (dirIndex == null) {
+            return false;
+        }
+        for (Entry entry : dirIndex.entries.values()) {
+            appendRemove(entry.file);
+        }
+        return true;
+    }
+
+    private DirIndex getDirIndex(String dirPath) {
+        DirIndex dirIndex = dirs.get(dirPath);
+        if (dirIndex == null) {
+            dirIndex = new DirIndex();
+            dirs.put(dirPath, dirIndex);
+        }
+        return dirIndex;
+    }
+
+    private Entry createEntry(File file) {
+        String name = file.getName();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        long timestampMs = parseTimestamp(name);
+        if (timestampMs <= 0) {
+            timestampMs = lastModified;
+        }
+        long durationMs = 0;
+        if (name.toLowerCase(Locale.US).endsWith(".mp4")) {
+            long estimate = lastModified - timestampMs;
+            durationMs = estimate > 0 && estimate <= MAX_VIDEO_DURATION_MS ? estimate : 0;
+        }
+        int tier = file.getAbsolutePath().startsWith(internalRoot) ? TIER_INTERNAL : TIER_EXTERNAL;
+        return new Entry(file, timestampMs, parsePosition(name), size, lastModified, durationMs, tier);
+    }
+
+    /**
+     * 文件名前缀 yyyyMMdd_HHmmss 解析为时间，失败返回 -1（调用方持有锁，SimpleDateFormat 非线程安全）
+     */
+    private long parseTimestamp(String name) {
+        if (name.length() < 15) {
+            return -1;
+        }
+        try {
+            return timestampFormat.parse(name.substring(0, 15)).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 文件名 yyyyMMdd_HHmmss_{position}.ext 中的时间戳前缀（同一组的各路文件相同）
+     */
+    private static String getGroupPrefix(String name) {
+        int dotIndex = name.lastIndexOf('.');
+        String base = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        int lastUnderscore = base.lastIndexOf('_');
+        return lastUnderscore > 0 ? base.substring(0, lastUnderscore) : base;
+    }
+
+    /**
+     * 文件名 yyyyMMdd_HHmmss_{position}.ext 中的位置
+     */
+    private static String parsePosition(String name) {
+        int dotIndex = name.lastIndexOf('.');
+        String base = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        int lastUnderscore = base.lastIndexOf('_');
+        if (lastUnderscore > 0 && lastUnderscore < base.length() - 1) {
+            return base.substring(lastUnderscore + 1).toLowerCase(Locale.US);
+        }
+        return null;
+    }
+
+    // ==================== 日志文件 ====================
+    // int magic, int version，之后每条记录：
+    // OP_ADD: UTF path, long timestamp, UTF position（空串表示 null）, long size, long lastModified, long duration, byte tier
+    // OP_REMOVE: UTF path
+    // OP_DIR_SYNC: UTF dirPath, long dirMtime
+
+    private void load() {
+        long startMs = SystemClock.elapsedRealtime();
+        boolean needCompact = false;
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    AppLog.w(TAG, "媒体索引版本不符，重新建立");
+                    needCompact = true;
+                } else {
+                    while (true) {
+                        byte op;
+                        try {
+                            op = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        readRecord(in, op);
+                        journalRecords++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // 末尾半条记录（写入时断电）或文件损坏：保留已读出的部分，重写日志
+                AppLog.w(TAG, "媒体索引日志不完整，已读取 " + journalRecords + " 条记录: " + e.getMessage());
+                needCompact = true;
+            }
+        }
+        int count = 0;
+        for (DirIndex dirIndex : dirs.values()) {
+            count += dirIndex.entries.size();
+        }
+        AppLog.d(TAG, "媒体索引加载完成：" + dirs.size() + " 个目录，" + count + " 个文件，耗时 " +
+                (SystemClock.elapsedRealtime() - startMs) + "ms");
+        synchronized (this) {
+            if (needCompact || !journalFile.exists()) {
+                compact();
+            } else {
+                compactIfNeeded();
+            }
+        }
+    }
+
+    private void readRecord(DataInputStream in, byte op) throws IOException {
+        if (op == OP_ADD) {
+            File file = new File(in.readUTF());
+            long timestampMs = in.readLong();
+            String position = in.readUTF();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            long durationMs = in.readLong();
+            int tier = in.readByte();
+            File dir = file.getParentFile();
+            if (dir != null) {
+                getDirIndex(dir.getAbsolutePath()).put(new Entry(file, timestampMs,
+                        position.isEmpty() ? null : position, size, lastModified, durationMs, tier));
+            }
+        } else if (op == OP_REMOVE) {
+            File file = new File(in.readUTF());
+            File dir = file.getParentFile();
+            DirIndex dirIndex = dir != null ? dirs.get(dir.getAbsolutePath()) : null;
+            if (dirIndex != null) {
+                dirIndex.remove(file.getName());
+            }
+        } else if (op == OP_DIR_SYNC) {
+            String dirPath = in.readUTF();
+            getDirIndex(dirPath).syncedDirMtime = in.readLong();
+        } else {
+            throw new IOException("unknown record type " + op);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(OP_ADD);
+        out.writeUTF(entry.file.getAbsolutePath());
+        out.writeLong(entry.timestampMs);
+        out.writeUTF(entry.position != null ? entry.position : "");
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModifiedMs);
+        out.writeLong(entry.durationMs);
+        out.writeByte(entry.tier);
+    }
+
+    private static void writeRemove(DataOutputStream out, File file) throws IOException {
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(file.getAbsolutePath());
+    }
+
+    private static void writeDirSync(DataOutputStream out, String dirPath, long dirMtime) throws IOException {
+        out.writeByte(OP_DIR_SYNC);
+        out.writeUTF(dirPath);
+        out.writeLong(dirMtime);
+    }
+
+    private void appendAdd(Entry entry) {
+        DataOutputStream out = openJournal();
+        if (out == null) {
+            return;
+        }
+        try {
+            writeAdd(out, entry);
+            journalRecords++;
+        } catch (IOException e) {
+            onJournalError(e);
+        }
+    }
+
+    private void appendRemove(File file) {
+        DataOutputStream out = openJournal();
+        if (out == null) {
+            return;
+        }
+        try {
+            writeRemove(out, file);
+            journalRecords++;
+        } catch (IOException e) {
+            onJournalError(e);
+        }
+    }
+
+    private void appendDirSync(String dirPath, long dirMtime) {
+        DataOutputStream out = openJournal();
+        if (out == null) {
+            return;
+        }
+        try {
+            writeDirSync(out, dirPath, dirMtime);
+            journalRecords++;
+        } catch (IOException e) {
+            onJournalError(e);
+        }
+    }
+
+    private DataOutputStream openJournal() {
+        if (journal == null) {
+            try {
+                journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+            } catch (IOException e) {
+                AppLog.w(TAG, "无法打开媒体索引日志: " + e.getMessage());
+            }
+        }
+        return journal;
+    }
+
+    private void flushJournal() {
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                onJournalError(e);
+            }
+        }
+    }
+
+    private void onJournalError(IOException e) {
+        AppLog.w(TAG, "写入媒体索引日志失败: " + e.getMessage());
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * 日志中的记录数远多于有效条目时压缩
+     */
+    private void compactIfNeeded() {
+        int live = dirs.size();
+        for (DirIndex dirIndex : dirs.values()) {
+            live += dirIndex.entries.size();
+        }
+        if (journalRecords > COMPACT_MIN_RECORDS && journalRecords > live * 2) {
+            compact();
+        }
+    }
+
+    /**
+     * 用当前内存索引重写日志：先写临时文件再改名，避免断电留下半个文件（调用方持有锁）
+     */
+    private void compact() {
+        closeJournal();
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        int records = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, DirIndex> dir : dirs.entrySet()) {
+                for (Entry entry : dir.getValue().entries.values()) {
+                    writeAdd(out, entry);
+                    records++;
+                }
+                writeDirSync(out, dir.getKey(), dir.getValue().syncedDirMtime);
+                records++;
+            }
+        } catch (IOException e) {
+            AppLog.w(TAG, "压缩媒体索引日志失败: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(journalFile)) {
+            AppLog.w(TAG, "替换媒体索引日志失败");
+            tmp.delete();
+            return;
+        }
+        journalRecords = records;
+        AppLog.d(TAG, "媒体索引日志已压缩：" + records + " 条记录");
+    }
+}
@@ -17,6 +17,7 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.kooo.evcam.camera.SubStreamEncoder;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -220,6 +221,7 @@ public class PlaybackFragment extends Fragment {
                         if (position < videoFiles.size()) {
                             File file = videoFiles.get(position);
                             if (file.delete()) {
+                                SubStreamEncoder.deleteSubStreamFile(file);  // 同时删除子码流文件
                                 videoFiles.remove((int) position);
                                 deletedCount++;
                             }
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Bundle;
 import android.util.Range;
 import android.util.Size;
@@ -22,6 +21,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import com.kooo.evcam.camera.CameraCapabilityCache;
 import com.kooo.evcam.camera.ImageAdjustManager;
 
 import java.util.ArrayList;
@@ -171,74 +171,66 @@ public class ResolutionSettingsFragment extends Fragment {
         try {
             CameraManager cameraManager = (CameraManager) getContext().getSystemService(Context.CAMERA_SERVICE);
             String[] cameraIds = cameraManager.getCameraIdList();
+            CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance(getContext());
 
             for (String cameraId : cameraIds) {
-                try {
-                    CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
-                    CameraInfo info = new CameraInfo();
-                    info.cameraId = cameraId;
-                    
-                    // 获取摄像头朝向
-                    Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (facing != null) {
-                        switch (facing) {
-                            case CameraCharacteristics.LENS_FACING_FRONT:
-                                info.facing = "前置";
-                                break;
-                            case CameraCharacteristics.LENS_FACING_BACK:
-                                info.facing = "后置";
-                                break;
-                            case CameraCharacteristics.LENS_FACING_EXTERNAL:
-                                info.facing = "外置";
-                                break;
-                        }
+                // 能力来自持久化缓存，重复打开设置页不再访问 HAL
+                CameraCapabilityCache.Capabilities capabilities = capabilityCache.get(cameraId);
+                if (capabilities == null) {
+                    AppLog.e(TAG, "获取摄像头 " + cameraId + " 特性失败");
+                    continue;
+                }
+                CameraInfo info = new CameraInfo();
+                info.cameraId = cameraId;
+                
+                // 获取摄像头朝向
+                int facing = capabilities.lensFacing;
+                if (facing >= 0) {
+                    switch (facing) {
+                        case CameraCharacteristics.LENS_FACING_FRONT:
+                            info.facing = "前置";
+                            break;
+                        case CameraCharacteristics.LENS_FACING_BACK:
+                            info.facing = "后置";
+                            break;
+                        case CameraCharacteristics.LENS_FACING_EXTERNAL:
+                            info.facing = "外置";
+                            break;
                     }
-                    
-                    // 获取支持的帧率范围
-                    Range<Integer>[] fpsRanges = characteristics.get(
-                            CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
-                    if (fpsRanges != null && fpsRanges.length > 0) {
-                        int maxFps = 0;
-                        int minFps = Integer.MAX_VALUE;
-                        for (Range<Integer> range : fpsRanges) {
-                            if (range.getUpper() > maxFps) {
-                                maxFps = range.getUpper();
-                            }
-                            if (range.getLower() < minFps) {
-                                minFps = range.getLower();
-                            }
+                }
+                
+                // 获取支持的帧率范围
+                Range<Integer>[] fpsRanges = capabilities.fpsRanges;
+                if (fpsRanges.length > 0) {
+                    int maxFps = 0;
+                    int minFps = Integer.MAX_VALUE;
+                    for (Range<Integer> range : fpsRanges) {
+                        if (range.getUpper() > maxFps) {
+                            maxFps = range.getUpper();
                         }
-                        info.maxFps = maxFps;
-                        info.minFps = minFps;
-                    }
-
-                    // 获取支持的分辨率
-                    StreamConfigurationMap map = characteristics.get(
-                            CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                    if (map != null) {
-                        Size[] sizes = map.getOutputSizes(android.graphics.ImageFormat.PRIVATE);
-                        if (sizes == null || sizes.length == 0) {
-                            sizes = map.getOutputSizes(android.graphics.SurfaceTexture.class);
+                        if (range.getLower() < minFps) {
+                            minFps = range.getLower();
                         }
+                    }
+                    info.maxFps = maxFps;
+                    info.minFps = minFps;
+                }
 
-                        if (sizes != null && sizes.length > 0) {
-                            for (Size size : sizes) {
-                                info.supportedResolutions.add(size);
-                            }
-                            // 按分辨率从大到小排序
-                            Collections.sort(info.supportedResolutions, (s1, s2) -> {
-                                int pixels1 = s1.getWidth() * s1.getHeight();
-                                int pixels2 = s2.getWidth() * s2.getHeight();
-                                return pixels2 - pixels1;
-                            });
-                        }
+                // 获取支持的分辨率
+                Size[] sizes = capabilities.outputSizes;
+                if (sizes.length > 0) {
+                    for (Size size : sizes) {
+                        info.supportedResolutions.add(size);
                     }
-                    
-                    cameraInfoMap.put(cameraId, info);
-                    
-                } catch (CameraAccessException e) {
-                    AppLog.e(TAG, "获取摄像头 " + cameraId + " 特性失败", e);
+                    // 按分辨率从大到小排序
+                    Collections.sort(info.supportedResolutions, (s1, s2) -> {
+                        int pixels1 = s1.getWidth() * s1.getHeight();
+                        int pixels2 = s2.getWidth() * s2.getHeight();
+                        return pixels2 - pixels1;
+                    });
                 }
+                
+                cameraInfoMap.put(cameraId, info);
             }
 
             AppLog.d(TAG, "检测到 " + cameraInfoMap.size() + " 个摄像头");
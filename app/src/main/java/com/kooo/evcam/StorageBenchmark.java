@@ -0,0 +1,313 @@
+package com.kooo.evcam;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
+
+import com.kooo.evcam.camera.CameraManagerHolder;
+import com.kooo.evcam.camera.MultiCameraManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 存储测速（决定录制直接写入U盘还是经内部存储中转）
+ * 用一个小的探测文件测量卷的三项指标：
+ * - 顺序写入吞吐：连续写入 PROBE_SIZE 字节后 fsync，按总耗时计算
+ * - fsync 延迟：每写一个块立即 fsync，取中位数
+ * - 尾延迟：同上取最大值（U盘垃圾回收时的长时间卡顿，会让录制写入阻塞）
+ *
+ * 结果按卷 UUID 缓存在私有配置中，同一个U盘不会每次启动都测；超过 RESULT_MAX_AGE_MS 的结果在下次空闲测量前仍然使用。
+ * 触发时机：只在空闲时测量——启动时、U盘挂载时、定时保活任务（KeepAliveWorker，约15分钟一次）中，无结果或结果过期时。
+ * 录制中不测量：测速的写入和 fsync 会与录制争抢U盘带宽，录制中的触发直接跳过（由下一次定时保活任务补测），
+ * 测量过程中开始录制则中止本次测量；决定录制位置时也不测量，没有结果时按中转处理
+ *
+ * 录制位置：U盘吞吐能以 DIRECT_MARGIN 倍余量承受本次录制的总码率、且尾延迟不超过 MAX_TAIL_LATENCY_MS 时直接写入，
+ * 否则中转；中转时内部存储剩余空间不足以缓存 RELAY_BUFFER_SECONDS 的录制量则改为直接写入，避免把内部存储写满
+ *
+ * 线程：测量在单独的后台线程串行执行，查询可在任意线程调用
+ */
+public class StorageBenchmark {
+    private static final String TAG = "StorageBenchmark";
+
+    private static final String PREFS_NAME = "storage_benchmark";
+    private static final String PROBE_FILE_NAME = ".evcam_benchmark";
+    private static final int PROBE_SIZE = 32 * 1024 * 1024;  // 吞吐测量写入量：32MB
+    private static final int WRITE_BLOCK_SIZE = 256 * 1024;
+    private static final int FSYNC_SAMPLES = 16;  // fsync 延迟采样次数（每次写一个块）
+    private static final long RESULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;  // 结果有效期：7天
+    private static final double DIRECT_MARGIN = 2.0;  // 吞吐至少为总码率的2倍才直接写入
+    private static final long MAX_TAIL_LATENCY_MS = 500;  // fsync 最长耗时超过500ms视为会卡住录制
+    private static final long RELAY_BUFFER_SECONDS = 30 * 60;  // 中转时内部存储至少能缓存30分钟的录制量
+
+    /**
+     * 测量结果（不可变）
+     */
+    public static final class Result {
+        public final long throughputBytesPerSec;
+        public final long fsyncMedianMs;
+        public final long fsyncTailMs;
+        public final long measuredAtMs;
+
+        Result(long throughputBytesPerSec, long fsyncMedianMs, long fsyncTailMs, long measuredAtMs) {
+            this.throughputBytesPerSec = throughputBytesPerSec;
+            this.fsyncMedianMs = fsyncMedianMs;
+            this.fsyncTailMs = fsyncTailMs;
+            this.measuredAtMs = measuredAtMs;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - measuredAtMs > RESULT_MAX_AGE_MS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f MB/s, fsync %dms (max %dms)",
+                    throughputBytesPerSec / (1024.0 * 1024.0), fsyncMedianMs, fsyncTailMs);
+        }
+    }
+
+    private static volatile StorageBenchmark instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Set<String> probing = new HashSet<>();  // 已排队或正在测量的卷（this 保护）
+
+    public static StorageBenchmark getInstance(Context context) {
+        if (instance == null) {
+            synchronized (StorageBenchmark.class) {
+                if (instance == null) {
+                    instance = new StorageBenchmark(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private StorageBenchmark(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 判断录制是否应该经内部存储中转（只读取缓存结果，不触发测量）
+     * @param finalDir 最终存储目录（U盘上）
+     * @param requiredBitsPerSecond 本次录制所有摄像头的总码率
+     * @return true 表示中转写入
+     */
+    public boolean shouldRelay(File finalDir, long requiredBitsPerSecond) {
+        Result result = getResult(finalDir);
+        long requiredBytesPerSec = requiredBitsPerSecond / 8;
+        if (result == null) {
+            AppLog.d(TAG, "U盘尚未测速，使用中转写入");
+            return true;
+        }
+
+        boolean fastEnough = result.throughputBytesPerSec >= requiredBytesPerSec * DIRECT_MARGIN
+                && result.fsyncTailMs <= MAX_TAIL_LATENCY_MS;
+        if (fastEnough) {
+            AppLog.d(TAG, "U盘性能足够（" + result + "，需要 " + AppConfig.formatBitrate((int) requiredBitsPerSecond) +
+                    "），直接写入");
+            return false;
+        }
+        if (!StorageHelper.hasSufficientTempSpace(context, requiredBytesPerSec * RELAY_BUFFER_SECONDS)) {
+            AppLog.w(TAG, "U盘性能不足（" + result + "），但内部存储空间不足以中转，直接写入");
+            return false;
+        }
+        AppLog.d(TAG, "U盘性能不足（" + result + "，需要 " + AppConfig.formatBitrate((int) requiredBitsPerSecond) +
+                "），使用中转写入");
+        return true;
+    }
+
+    /**
+     * 测量当前录制的U盘（选择U盘存储且启用自动选择时），已有未过期结果时跳过
+     * @param delayMs 延迟执行（U盘刚挂载时等待文件系统就绪）
+     */
+    public void probeRecordingVolume(long delayMs) {
+        executor.execute(() -> {
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StorageHelper.clearCache();
+            }
+            AppConfig config = new AppConfig(context);
+            if (!config.shouldUseRelayWrite() || !config.isAutoRelayPlacementEnabled()
+                    || !StorageHelper.hasExternalSdCard(context)) {
+                return;
+            }
+            probeAsync(StorageHelper.getFinalVideoDir(context), false);
+        });
+    }
+
+    /**
+     * 获取目录所在卷的缓存结果，没有时返回 null
+     */
+    public Result getResult(File dir) {
+        String volumeId = getVolumeId(dir);
+        if (volumeId == null) {
+            return null;
+        }
+        String value = prefs.getString(volumeId, null);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new Result(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 后台测量目录所在的卷
+     * @param force false 时已有未过期结果则跳过
+     */
+    public void probeAsync(File dir, boolean force) {
+        String volumeId = getVolumeId(dir);
+        if (volumeId == null) {
+            return;
+        }
+        Result cached = getResult(dir);
+        if (!force && cached != null && !cached.isStale()) {
+            return;
+        }
+        synchronized (this) {
+            if (!probing.add(volumeId)) {
+                return;
+            }
+        }
+        executor.execute(() -> {
+            try {
+                if (isAnyCameraRecording()) {
+                    AppLog.d(TAG, "正在录制，推迟存储测速: " + volumeId);
+                    return;
+                }
+                Result result = probe(dir);
+                if (result != null) {
+                    prefs.edit().putString(volumeId, result.throughputBytesPerSec + "," + result.fsyncMedianMs + "," +
+                            result.fsyncTailMs + "," + result.measuredAtMs).apply();
+                    AppLog.d(TAG, "存储测速完成 " + volumeId + ": " + result);
+                }
+            } finally {
+                synchronized (this) {
+                    probing.remove(volumeId);
+                }
+            }
+        });
+    }
+
+    /**
+     * 写入探测文件测量（后台线程），失败返回 null
+     * 探测文件放在目录的上级（同一个卷），不出现在视频目录和媒体索引中
+     */
+    private Result probe(File dir) {
+        if (dir == null || (!dir.exists() && !dir.mkdirs())) {
+            return null;
+        }
+        File probeDir = dir.getParentFile() != null && dir.getParentFile().canWrite() ? dir.getParentFile() : dir;
+        File probeFile = new File(probeDir, PROBE_FILE_NAME);
+        ByteBuffer block = ByteBuffer.allocateDirect(WRITE_BLOCK_SIZE);
+        byte[] pattern = new byte[WRITE_BLOCK_SIZE];
+        new Random().nextBytes(pattern);  // 随机数据，避免存储控制器压缩
+        block.put(pattern);
+
+        try (RandomAccessFile raf = new RandomAccessFile(probeFile, "rw")) {
+            FileChannel channel = raf.getChannel();
+
+            // 顺序写入吞吐
+            long startNs = System.nanoTime();
+            long position = 0;
+            while (position < PROBE_SIZE) {
+                if (isAnyCameraRecording()) {
+                    AppLog.d(TAG, "测速中开始录制，中止存储测速");
+                    return null;
+                }
+                block.rewind();
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+            }
+            channel.force(false);
+            long elapsedNs = Math.max(System.nanoTime() - startNs, 1);
+            long throughput = (long) (PROBE_SIZE * 1e9 / elapsedNs);
+
+            // fsync 延迟：每写一个块立即 fsync
+            long[] latenciesMs = new long[FSYNC_SAMPLES];
+            for (int i = 0; i < FSYNC_SAMPLES; i++) {
+                if (isAnyCameraRecording()) {
+                    AppLog.d(TAG, "测速中开始录制，中止存储测速");
+                    return null;
+                }
+                long sampleStartNs = System.nanoTime();
+                block.rewind();
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+                channel.force(false);
+                latenciesMs[i] = (System.nanoTime() - sampleStartNs) / 1_000_000;
+            }
+            Arrays.sort(latenciesMs);
+            return new Result(throughput, latenciesMs[FSYNC_SAMPLES / 2], latenciesMs[FSYNC_SAMPLES - 1],
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            AppLog.w(TAG, "存储测速失败: " + dir.getAbsolutePath() + " - " + e.getMessage());
+            return null;
+        } finally {
+            if (probeFile.exists() && !probeFile.delete()) {
+                AppLog.w(TAG, "删除测速文件失败: " + probeFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 是否有摄像头正在录制（摄像头管理器未初始化时视为空闲）
+     */
+    private static boolean isAnyCameraRecording() {
+        MultiCameraManager cameraManager = CameraManagerHolder.getInstance().getCameraManager();
+        return cameraManager != null && cameraManager.isRecording();
+    }
+
+    /**
+     * 卷标识：卷 UUID（U盘/SD卡），内部存储为 "primary"；无法识别时使用目录路径
+     */
+    private String getVolumeId(File dir) {
+        if (dir == null) {
+            return null;
+        }
+        try {
+            StorageManager storageManager = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+            StorageVolume volume = storageManager != null ? storageManager.getStorageVolume(dir) : null;
+            if (volume != null) {
+                if (volume.getUuid() != null) {
+                    return volume.getUuid();
+                }
+                if (volume.isPrimary()) {
+                    return "primary";
+                }
+            }
+        } catch (RuntimeException e) {
+            AppLog.w(TAG, "获取存储卷失败: " + e.getMessage());
+        }
+        return dir.getAbsolutePath();
+    }
+}
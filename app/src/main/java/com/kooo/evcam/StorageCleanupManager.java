@@ -5,11 +5,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.widget.Toast;
 
+import com.kooo.evcam.camera.SubStreamEncoder;
+
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -23,6 +25,11 @@ import java.util.concurrent.TimeUnit;
  * - 每隔1小时执行定期检测
  * - 支持分别设置视频和图片的存储限制（GB）
  * - 删除时额外删除20%，避免频繁删除
+ * - 循环录制增量清理：新分段写入媒体索引时，按索引中的累计大小（O(1)）判断下一组分段是否会超出视频限制，
+ *   超出则从最旧的一组（同一时间戳的各路分段）开始整组删除，不列举目录、不排序；
+ *   删除延迟到分段切换之后，组与组之间间隔 DELETE_SPACING_MS，避免和录制争抢 I/O
+ * - 只在恢复时与目录重新比对：启动后首次检测、删除时发现文件已不存在
+ * - 按日期分层存储时，最旧的一组位于非今天的日期目录、且整天删除后不低于目标大小时，直接删除整个日期目录
  */
 public class StorageCleanupManager {
     private static final String TAG = "StorageCleanupManager";
@@ -43,15 +50,27 @@ public class StorageCleanupManager {
     // 低空间强制清理比例（删除20%的已用空间，保留80%）
     private static final double LOW_SPACE_CLEANUP_RATIO = 0.20;
     
+    // 增量清理
+    private static final long ROLLOVER_QUIET_MS = 5 * 1000;  // 分段完成后延迟5秒再删除，避开分段切换
+    private static final long DELETE_SPACING_MS = 1000;  // 相邻两组删除的间隔
+    private static final int MAX_GROUP_FILES = 4;  // 一组最多的分段数（前/后/左/右），用于预估下一组大小
+    private static final long ACTIVE_GROUP_WINDOW_MS = 2 * 60 * 1000;  // 最旧一组在2分钟内仍有写入时不删除
+    
     private final Context context;
     private final AppConfig appConfig;
+    private final MediaIndex mediaIndex;
+    private final MediaIndex.Listener indexListener = this::onMediaFileAdded;
     private ScheduledExecutorService scheduler;
     private Handler mainHandler;
     private boolean isRunning = false;
+    private boolean recovered = false;  // 启动后是否已与目录比对过（仅清理线程访问）
+    private boolean trimScheduled = false;  // 是否已安排增量清理（this 保护）
+    private long trimReserveBytes = 0;  // 增量清理需要为下一组分段预留的空间（this 保护）
     
     public StorageCleanupManager(Context context) {
         this.context = context.getApplicationContext();
         this.appConfig = new AppConfig(context);
+        this.mediaIndex = MediaIndex.getInstance(context);
         this.mainHandler = new Handler(Looper.getMainLooper());
     }
     
@@ -80,6 +99,9 @@ public class StorageCleanupManager {
             TimeUnit.MILLISECONDS
         );
         
+        // 新分段写入索引时检查视频限制
+        mediaIndex.addListener(indexListener);
+        
         AppLog.d(TAG, "存储清理任务已启动：30秒后首次检测，之后每1小时检测一次");
         AppLog.d(TAG, "视频限制: " + appConfig.getVideoStorageLimitGb() + " GB, 图片限制: " + appConfig.getPhotoStorageLimitGb() + " GB");
     }
@@ -88,6 +110,7 @@ public class StorageCleanupManager {
      * 停止存储清理任务
      */
     public void stop() {
+        mediaIndex.removeListener(indexListener);
         if (scheduler != null && !scheduler.isShutdown()) {
             scheduler.shutdown();
             scheduler = null;
@@ -102,6 +125,13 @@ public class StorageCleanupManager {
     private void performCleanup() {
         AppLog.d(TAG, "开始执行存储清理检测...");
         
+        // 恢复：启动后首次检测时与目录比对一次（期间可能有索引之外的增删）
+        if (!recovered) {
+            recovered = true;
+            mediaIndex.refresh(StorageHelper.getVideoDir(context));
+            mediaIndex.refresh(StorageHelper.getPhotoDir(context));
+        }
+        
         // 首先检测内部存储低空间情况（强制清理）
         performLowSpaceCleanupIfNeeded();
         
@@ -162,7 +192,9 @@ public class StorageCleanupManager {
         AppLog.w(TAG, "内部存储空间不足（<3GB），开始强制清理...");
         
         // 强制清理视频（删除20%的已用空间）
+        // 恢复：当前可能在用 U 盘目录（回退到内部存储前），内部存储目录需先与索引比对
         File videoDir = StorageHelper.getVideoDir(context, false);
+        mediaIndex.refresh(videoDir);
         CleanupResult videoResult = cleanupByPercentage(videoDir, LOW_SPACE_CLEANUP_RATIO, "视频");
         if (videoResult.deletedCount > 0) {
             showLowSpaceCleanupNotification(videoResult, "视频");
@@ -170,6 +202,7 @@ public class StorageCleanupManager {
         
         // 强制清理图片（删除20%的已用空间）
         File photoDir = StorageHelper.getPhotoDir(context, false);
+        mediaIndex.refresh(photoDir);
         CleanupResult photoResult = cleanupByPercentage(photoDir, LOW_SPACE_CLEANUP_RATIO, "图片");
         if (photoResult.deletedCount > 0) {
             showLowSpaceCleanupNotification(photoResult, "图片");
@@ -190,16 +223,8 @@ public class StorageCleanupManager {
             return result;
         }
         
-        File[] files = directory.listFiles(File::isFile);
-        if (files == null || files.length == 0) {
-            return result;
-        }
-        
-        // 计算当前总大小
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
-        }
+        // 计算当前总大小（来自媒体索引）
+        long totalSize = mediaIndex.getIndexedSize(directory);
         
         result.originalSize = totalSize;
         
@@ -214,32 +239,11 @@ public class StorageCleanupManager {
         AppLog.d(TAG, typeName + "强制清理：当前占用 " + StorageHelper.formatSize(totalSize) + 
                 "，将删除 " + StorageHelper.formatSize(needToDelete) + " (20%)");
         
-        // 按修改时间排序（最旧的在前）
-        List<File> sortedFiles = new ArrayList<>(Arrays.asList(files));
-        sortedFiles.sort(Comparator.comparingLong(File::lastModified));
-        
-        // 删除最旧的文件直到达到目标大小
-        long deletedSize = 0;
-        int deletedCount = 0;
-        
-        for (File file : sortedFiles) {
-            if (totalSize - deletedSize <= targetSize) {
-                break;
-            }
-            
-            long fileSize = file.length();
-            if (file.delete()) {
-                deletedSize += fileSize;
-                deletedCount++;
-                AppLog.d(TAG, "强制删除旧文件: " + file.getName() + " (" + StorageHelper.formatSize(fileSize) + ")");
-            }
-        }
-        
-        result.deletedSize = deletedSize;
-        result.deletedCount = deletedCount;
-        result.finalSize = totalSize - deletedSize;
+        // 按组删除最旧的文件直到达到目标大小
+        trimDirectory(directory, targetSize, typeName, result);
+        result.finalSize = totalSize - result.deletedSize;
         
-        AppLog.d(TAG, typeName + "强制清理完成：删除 " + deletedCount + " 个文件，释放 " + StorageHelper.formatSize(deletedSize));
+        AppLog.d(TAG, typeName + "强制清理完成：删除 " + result.deletedCount + " 个文件，释放 " + StorageHelper.formatSize(result.deletedSize));
         
         return result;
     }
@@ -270,20 +274,14 @@ public class StorageCleanupManager {
             return result;
         }
         
-        // 获取目录中所有文件（不筛选格式）
-        File[] files = directory.listFiles(File::isFile);
+        // 计算当前总大小（来自媒体索引，包含目录中所有文件，不筛选格式）
+        long totalSize = mediaIndex.getIndexedSize(directory);
         
-        if (files == null || files.length == 0) {
+        if (totalSize == 0) {
             AppLog.d(TAG, typeName + "目录为空");
             return result;
         }
         
-        // 计算当前总大小
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
-        }
-        
         result.originalSize = totalSize;
         
         AppLog.d(TAG, typeName + "当前占用: " + StorageHelper.formatSize(totalSize) + 
@@ -302,39 +300,200 @@ public class StorageCleanupManager {
         AppLog.d(TAG, typeName + "超过限制，需要删除: " + StorageHelper.formatSize(needToDelete) + 
                 "，目标大小: " + StorageHelper.formatSize(targetSize));
         
-        // 按修改时间排序（最旧的在前）
-        List<File> sortedFiles = new ArrayList<>(Arrays.asList(files));
-        sortedFiles.sort(Comparator.comparingLong(File::lastModified));
+        // 按组删除最旧的文件直到达到目标大小
+        trimDirectory(directory, targetSize, typeName, result);
+        result.finalSize = totalSize - result.deletedSize;
         
-        // 删除最旧的文件直到达到目标大小
-        long deletedSize = 0;
-        int deletedCount = 0;
+        AppLog.d(TAG, typeName + "清理完成：删除 " + result.deletedCount + " 个文件，释放 " + 
+                StorageHelper.formatSize(result.deletedSize) + "，剩余 " + StorageHelper.formatSize(result.finalSize));
         
-        for (File file : sortedFiles) {
-            if (totalSize - deletedSize <= targetSize) {
+        return result;
+    }
+    
+    /**
+     * 新文件写入媒体索引（分段完成、中转传输完成）
+     * 视频目录加上下一组分段的预估大小超过限制时，安排增量清理
+     */
+    private void onMediaFileAdded(MediaIndex.Entry entry) {
+        int videoLimitGb = appConfig.getVideoStorageLimitGb();
+        if (videoLimitGb <= 0) {
+            return;
+        }
+        File videoDir = StorageHelper.getVideoDir(context);
+        File parent = entry.file.getParentFile();
+        if (videoDir == null || parent == null) {
+            return;
+        }
+        // 按日期分层存储时新分段在日期子目录中
+        File shardRoot = StorageHelper.getDateShardRoot(parent);
+        File entryRoot = shardRoot != null ? shardRoot : parent;
+        if (!entryRoot.getAbsolutePath().equals(videoDir.getAbsolutePath())) {
+            return;
+        }
+        long reserveBytes = entry.size * MAX_GROUP_FILES;
+        if (mediaIndex.getIndexedSize(videoDir) + reserveBytes <= videoLimitGb * GB_TO_BYTES) {
+            return;
+        }
+        synchronized (this) {
+            trimReserveBytes = Math.max(trimReserveBytes, reserveBytes);
+            if (trimScheduled || scheduler == null || scheduler.isShutdown()) {
+                return;
+            }
+            trimScheduled = true;
+            scheduler.schedule(this::performIncrementalTrim, ROLLOVER_QUIET_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * 增量清理（清理线程）：删除最旧的整组分段，直到能容纳下一组分段
+     */
+    private void performIncrementalTrim() {
+        long reserveBytes;
+        synchronized (this) {
+            reserveBytes = trimReserveBytes;
+            trimReserveBytes = 0;
+            trimScheduled = false;
+        }
+        long limitBytes = appConfig.getVideoStorageLimitGb() * GB_TO_BYTES;
+        if (limitBytes <= 0) {
+            return;
+        }
+        File videoDir = StorageHelper.getVideoDir(context);
+        CleanupResult result = new CleanupResult();
+        trimDirectory(videoDir, limitBytes - reserveBytes, "视频", result);
+        if (result.deletedCount > 0) {
+            AppLog.d(TAG, "循环录制清理：删除 " + result.deletedCount + " 个文件，释放 " +
+                    StorageHelper.formatSize(result.deletedSize) + "，当前占用 " +
+                    StorageHelper.formatSize(mediaIndex.getIndexedSize(videoDir)));
+        }
+    }
+    
+    /**
+     * 按组删除最旧的文件，直到索引中的目录大小不超过目标（清理线程）
+     * 每删除一组（或一整天）间隔 DELETE_SPACING_MS；最旧一组仍在写入时停止
+     */
+    private void trimDirectory(File directory, long targetBytes, String typeName, CleanupResult result) {
+        long indexedSize;
+        while ((indexedSize = mediaIndex.getIndexedSize(directory)) > targetBytes) {
+            List<MediaIndex.Entry> group = mediaIndex.getOldestGroup(directory);
+            if (group.isEmpty()) {
+                break;
+            }
+            
+            File shardDir = group.get(0).file.getParentFile();
+            if (StorageHelper.getDateShardRoot(shardDir) != null && !isTodayShard(directory, shardDir)
+                    && isShardIdle(shardDir)) {
+                long shardSize = mediaIndex.getIndexedSize(shardDir);
+                if (indexedSize - shardSize >= targetBytes) {
+                    if (!deleteShardDir(shardDir, shardSize, typeName, result)) {
+                        break;
+                    }
+                    if (!sleepBetweenDeletes()) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            
+            boolean active = false;
+            long now = System.currentTimeMillis();
+            for (MediaIndex.Entry entry : group) {
+                if (now - entry.lastModifiedMs < ACTIVE_GROUP_WINDOW_MS) {
+                    active = true;
+                    break;
+                }
+            }
+            if (active) {
+                AppLog.w(TAG, typeName + "最旧的一组仍在写入，停止清理");
                 break;
             }
             
-            long fileSize = file.length();
-            String fileName = file.getName();
+            boolean indexStale = false;
+            boolean failed = false;
+            for (MediaIndex.Entry entry : group) {
+                File file = entry.file;
+                if (file.delete()) {
+                    mediaIndex.onFileRemoved(file);
+                    SubStreamEncoder.deleteSubStreamFile(file);
+                    result.deletedSize += entry.size;
+                    result.deletedCount++;
+                    AppLog.d(TAG, "已删除" + typeName + ": " + file.getName() + " (" + StorageHelper.formatSize(entry.size) + ")");
+                } else if (!file.exists()) {
+                    // 索引与实际不符（被其他途径删除）
+                    mediaIndex.onFileRemoved(file);
+                    indexStale = true;
+                } else {
+                    AppLog.w(TAG, "删除" + typeName + "失败: " + file.getName());
+                    failed = true;
+                }
+            }
+            if (indexStale) {
+                // 恢复：与目录重新比对
+                AppLog.w(TAG, typeName + "索引与目录不一致，重新比对");
+                mediaIndex.refresh(directory);
+            }
+            if (failed) {
+                // 删除失败的文件仍是最旧的一组，继续循环会反复命中，等下次清理再试
+                break;
+            }
+            StorageHelper.deleteEmptyShardDirs(shardDir);
             
-            if (file.delete()) {
-                deletedSize += fileSize;
-                deletedCount++;
-                AppLog.d(TAG, "已删除" + typeName + ": " + fileName + " (" + StorageHelper.formatSize(fileSize) + ")");
-            } else {
-                AppLog.w(TAG, "删除" + typeName + "失败: " + fileName);
+            if (!sleepBetweenDeletes()) {
+                break;
             }
         }
-        
-        result.deletedCount = deletedCount;
-        result.deletedSize = deletedSize;
-        result.finalSize = totalSize - deletedSize;
-        
-        AppLog.d(TAG, typeName + "清理完成：删除 " + deletedCount + " 个文件，释放 " + 
-                StorageHelper.formatSize(deletedSize) + "，剩余 " + StorageHelper.formatSize(result.finalSize));
-        
-        return result;
+    }
+    
+    /**
+     * 删除整个日期目录（清理线程），返回是否删除成功
+     */
+    private boolean deleteShardDir(File shardDir, long shardSize, String typeName, CleanupResult result) {
+        int count = mediaIndex.getCount(shardDir);
+        boolean success = StorageHelper.deleteShardDir(shardDir);
+        mediaIndex.onDirRemoved(shardDir);
+        if (!success) {
+            // 部分删除失败：与目录重新比对，登记剩余的文件
+            AppLog.w(TAG, "删除" + typeName + "日期目录失败: " + shardDir.getAbsolutePath());
+            mediaIndex.refresh(StorageHelper.getDateShardRoot(shardDir));
+            return false;
+        }
+        StorageHelper.deleteEmptyShardDirs(shardDir);
+        result.deletedSize += shardSize;
+        result.deletedCount += count;
+        AppLog.d(TAG, "已删除" + typeName + "日期目录: " + shardDir.getAbsolutePath() + " (" + count + " 个文件, " +
+                StorageHelper.formatSize(shardSize) + ")");
+        return true;
+    }
+    
+    /**
+     * 日期目录中没有仍在写入的文件（跨零点的分段保存在前一天的目录中）
+     */
+    private boolean isShardIdle(File shardDir) {
+        long now = System.currentTimeMillis();
+        for (MediaIndex.Entry entry : mediaIndex.list(shardDir)) {
+            if (now - entry.lastModifiedMs < ACTIVE_GROUP_WINDOW_MS) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean isTodayShard(File directory, File shardDir) {
+        String today = new SimpleDateFormat("yyyyMMdd", Locale.getDefault()).format(new Date());
+        return StorageHelper.getDateShardDir(directory, today).equals(shardDir);
+    }
+    
+    /**
+     * 两次删除之间的间隔，线程被中断时返回 false
+     */
+    private boolean sleepBetweenDeletes() {
+        try {
+            Thread.sleep(DELETE_SPACING_MS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
     
     /**
@@ -373,24 +532,13 @@ public class StorageCleanupManager {
     }
     
     /**
-     * 获取目录中所有文件的总大小
+     * 获取目录中所有文件的总大小（来自媒体索引）
      */
     private long getDirectorySize(File directory) {
         if (directory == null || !directory.exists() || !directory.isDirectory()) {
             return 0;
         }
-        
-        File[] files = directory.listFiles(File::isFile);
-        
-        if (files == null) {
-            return 0;
-        }
-        
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
-        }
-        return totalSize;
+        return MediaIndex.getInstance(context).getTotalSize(directory);
     }
     
     /**
@@ -234,10 +234,36 @@ public class StorageHelper {
      * @return 录制写入目录
      */
     public static File getRecordingDir(Context context) {
+        return getRecordingDir(context, new AppConfig(context).shouldUseRelayWrite());
+    }
+    
+    /**
+     * 判断本次录制是否使用中转写入
+     * 选择U盘存储时：启用自动选择则按U盘实测性能和总码率决定（见 StorageBenchmark），否则始终中转
+     * @param context 上下文
+     * @param requiredBitsPerSecond 本次录制所有摄像头的总码率
+     * @return true 表示中转写入
+     */
+    public static boolean shouldUseRelayWrite(Context context, long requiredBitsPerSecond) {
         AppConfig config = new AppConfig(context);
-        
+        if (!config.shouldUseRelayWrite()) {
+            return false;
+        }
+        if (!config.isAutoRelayPlacementEnabled() || !hasExternalSdCard(context)) {
+            return true;
+        }
+        return StorageBenchmark.getInstance(context).shouldRelay(getFinalVideoDir(context), requiredBitsPerSecond);
+    }
+    
+    /**
+     * 获取录制时实际写入的目录
+     * @param context 上下文
+     * @param useRelayWrite 是否中转写入（见 shouldUseRelayWrite）
+     * @return 中转写入时返回临时目录，否则返回最终存储目录
+     */
+    public static File getRecordingDir(Context context, boolean useRelayWrite) {
         // 检查是否应该使用中转写入
-        if (config.shouldUseRelayWrite()) {
+        if (useRelayWrite) {
             // 使用临时目录（内部存储的缓存目录）
             File tempDir = new File(context.getCacheDir(), FileTransferManager.TEMP_VIDEO_DIR);
             if (!tempDir.exists()) {
@@ -297,6 +323,146 @@ public class StorageHelper {
         return getPhotoDir(context, config.isUsingExternalSdCard());
     }
     
+    // ==================== 按日期分层目录 ====================
+    // 启用后视频/照片保存到 根目录/yyyy/MM/dd/，单个目录的文件数保持在一天的量级，
+    // 旧的日期可以整目录删除。文件名不变（yyyyMMdd_HHmmss_位置.ext），未迁移的旧文件仍在根目录
+    
+    /**
+     * 获取媒体文件的保存路径
+     * 启用按日期分层且 rootDir 是视频/照片根目录时，返回日期子目录中的路径（自动创建子目录）；
+     * 否则（未启用、中转写入的临时目录等）直接放在 rootDir 下
+     * @param context 上下文
+     * @param rootDir 视频/照片根目录
+     * @param fileName 文件名（以 yyyyMMdd 开头）
+     * @return 保存路径
+     */
+    public static File resolveMediaFile(Context context, File rootDir, String fileName) {
+        String rootName = rootDir.getName();
+        boolean mediaRoot = VIDEO_DIR_NAME.equals(rootName) || PHOTO_DIR_NAME.equals(rootName);
+        if (!mediaRoot || !new AppConfig(context).isDateShardedStorageEnabled()) {
+            return new File(rootDir, fileName);
+        }
+        return new File(ensureDir(getDateShardDir(rootDir, fileName)), fileName);
+    }
+    
+    /**
+     * 分段切换时新分段的保存路径（录制器调用，无需 Context）
+     * 上一个分段在日期子目录中时，新分段按自己的日期放入对应子目录（跨零点时自动换目录）；否则与上一个分段同目录
+     * @param previousDir 上一个分段所在目录
+     * @param fileName 新分段文件名
+     * @return 保存路径
+     */
+    public static File resolveSegmentFile(File previousDir, String fileName) {
+        File rootDir = getDateShardRoot(previousDir);
+        if (rootDir == null) {
+            return new File(previousDir, fileName);
+        }
+        return new File(ensureDir(getDateShardDir(rootDir, fileName)), fileName);
+    }
+    
+    /**
+     * 文件名对应的日期子目录（根目录/yyyy/MM/dd），文件名不以日期开头时返回根目录
+     * @param rootDir 视频/照片根目录
+     * @param fileNameOrTimestamp 文件名或时间戳（以 yyyyMMdd 开头）
+     */
+    public static File getDateShardDir(File rootDir, String fileNameOrTimestamp) {
+        if (fileNameOrTimestamp == null || fileNameOrTimestamp.length() < 8) {
+            return rootDir;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (!Character.isDigit(fileNameOrTimestamp.charAt(i))) {
+                return rootDir;
+            }
+        }
+        File yearDir = new File(rootDir, fileNameOrTimestamp.substring(0, 4));
+        File monthDir = new File(yearDir, fileNameOrTimestamp.substring(4, 6));
+        return new File(monthDir, fileNameOrTimestamp.substring(6, 8));
+    }
+    
+    /**
+     * 如果 dir 是日期子目录（.../yyyy/MM/dd），返回其根目录，否则返回 null（只比较路径，不访问文件系统）
+     */
+    public static File getDateShardRoot(File dir) {
+        if (dir == null || !isDigits(dir.getName(), 2)) {
+            return null;
+        }
+        File monthDir = dir.getParentFile();
+        if (monthDir == null || !isDigits(monthDir.getName(), 2)) {
+            return null;
+        }
+        File yearDir = monthDir.getParentFile();
+        if (yearDir == null || !isDigits(yearDir.getName(), 4)) {
+            return null;
+        }
+        return yearDir.getParentFile();
+    }
+    
+    /**
+     * 删除空的日期子目录（及变空的月、年目录），dir 不是日期子目录时不做任何事
+     * dir 本身已被删除时从月目录开始检查
+     */
+    public static void deleteEmptyShardDirs(File dir) {
+        if (getDateShardRoot(dir) == null) {
+            return;
+        }
+        // 日期目录下可能只剩空的子码流目录
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    child.delete();
+                }
+            }
+        }
+        File current = dir;
+        for (int level = 0; level < 3 && current != null; level++) {
+            if (current.exists() && !current.delete()) {
+                break;  // 非空，停止向上
+            }
+            current = current.getParentFile();
+        }
+    }
+    
+    /**
+     * 递归删除日期子目录（整天的文件，包括子码流目录），返回是否全部删除成功
+     */
+    public static boolean deleteShardDir(File dir) {
+        if (getDateShardRoot(dir) == null) {
+            return false;
+        }
+        return deleteRecursively(dir);
+    }
+    
+    private static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        boolean success = true;
+        if (children != null) {
+            for (File child : children) {
+                success &= deleteRecursively(child);
+            }
+        }
+        return (file.delete() || !file.exists()) && success;
+    }
+    
+    static boolean isDigits(String name, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static File ensureDir(File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            AppLog.e(TAG, "创建目录失败: " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+    
     /**
      * 获取存储目录
      * @param context 上下文
@@ -19,6 +19,7 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.signature.ObjectKey;
+import com.kooo.evcam.camera.SubStreamEncoder;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
@@ -129,6 +130,7 @@ public class VideoAdapter extends RecyclerView.Adapter<VideoAdapter.VideoViewHol
                         .setMessage("确定要删除 " + videoFile.getName() + " 吗？")
                         .setPositiveButton("删除", (dialog, which) -> {
                             if (videoFile.delete()) {
+                                SubStreamEncoder.deleteSubStreamFile(videoFile);  // 同时删除子码流文件
                                 videoFiles.remove(position);
                                 notifyItemRemoved(position);
                                 notifyItemRangeChanged(position, videoFiles.size());
@@ -174,18 +176,21 @@ public class VideoAdapter extends RecyclerView.Adapter<VideoAdapter.VideoViewHol
             return;
         }
 
+        // 有子码流时从子码流取帧（分辨率低，解码快）
+        File thumbnailSource = SubStreamEncoder.preferSubStream(videoFile);
+
         // 使用文件修改时间作为缓存签名，文件变化时自动更新缓存
         RequestOptions options = new RequestOptions()
                 .frame(0)  // 获取视频第一帧
                 .centerCrop()
                 .diskCacheStrategy(DiskCacheStrategy.RESOURCE)  // 缓存解码后的资源
-                .signature(new ObjectKey(videoFile.lastModified()))  // 文件修改时间作为缓存key
+                .signature(new ObjectKey(thumbnailSource.lastModified()))  // 文件修改时间作为缓存key
                 .placeholder(android.R.drawable.ic_media_play)
                 .error(android.R.drawable.ic_media_play);
 
         Glide.with(context)
                 .asBitmap()
-                .load(videoFile)
+                .load(thumbnailSource)
                 .apply(options)
                 .into(imageView);
     }
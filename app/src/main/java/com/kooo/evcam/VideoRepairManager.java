@@ -0,0 +1,303 @@
+package com.kooo.evcam;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+import com.kooo.evcam.camera.SubStreamEncoder;
+import com.kooo.evcam.camera.mp4.Mp4RepairEngine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频修复管理器
+ * 修复异常断电（熄火）留下的损坏视频，无需手动操作
+ *
+ * 功能：
+ * - 冷启动20秒后扫描一次视频目录，修复无 moov 的文件和尾部不完整的分片文件
+ * - 修复所需的 SPS/PPS 取自同机位、时间最接近的正常分段
+ * - 没有任何可解码帧的文件直接删除
+ * - 提供 repairFileAsync() 供录制器在分段校验时排队修复单个文件（修复在后台线程执行，不阻塞分段切换）
+ */
+public class VideoRepairManager {
+    private static final String TAG = "VideoRepairManager";
+
+    private static final long INITIAL_DELAY_MS = 20 * 1000;  // 冷启动后20秒
+    private static final long ACTIVE_FILE_GUARD_MS = 2 * 60 * 1000;  // 最近2分钟内修改过的文件可能正在录制，跳过
+    private static final long MIN_VALID_FILE_SIZE = 10 * 1024;  // 与录制器的最小有效文件大小一致
+    private static final int MAX_REFERENCE_CANDIDATES = 10;  // 最多尝试多少个参考文件
+
+    // 录制器提交的单文件修复（后台单线程执行）
+    private static final ExecutorService repairExecutor = Executors.newSingleThreadExecutor();
+    private static final Map<String, Future<?>> pendingRepairs = new ConcurrentHashMap<>();
+
+    /**
+     * 后台修复完成回调（在修复线程上调用）
+     */
+    public interface RepairListener {
+        /**
+         * @param usable true 表示文件已修复；false 表示无法修复（文件可能已被删除）
+         */
+        void onRepairFinished(File file, boolean usable);
+    }
+
+    private final Context context;
+    private ScheduledExecutorService scheduler;
+    private final Handler mainHandler;
+    private boolean isRunning = false;
+
+    public VideoRepairManager(Context context) {
+        this.context = context.getApplicationContext();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * 启动修复任务（冷启动20秒后执行一次批量扫描）
+     */
+    public void start() {
+        if (isRunning) {
+            AppLog.d(TAG, "视频修复任务已在运行");
+            return;
+        }
+        isRunning = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.schedule(this::performBatchRepair, INITIAL_DELAY_MS, TimeUnit.MILLISECONDS);
+        AppLog.d(TAG, "视频修复任务已启动：20秒后扫描损坏的视频");
+    }
+
+    /**
+     * 停止修复任务
+     */
+    public void stop() {
+        if (scheduler != null && !scheduler.isShutdown()) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        isRunning = false;
+        AppLog.d(TAG, "视频修复任务已停止");
+    }
+
+    /**
+     * 批量扫描并修复视频目录
+     */
+    private void performBatchRepair() {
+        File videoDir = StorageHelper.getVideoDir(context);
+        if (videoDir == null || !videoDir.isDirectory()) {
+            return;
+        }
+        // 从媒体索引获取（包括按日期分层的子目录）
+        List<MediaIndex.Entry> files = new ArrayList<>();
+        for (MediaIndex.Entry entry : MediaIndex.getInstance(context).list(videoDir)) {
+            if (entry.getName().endsWith(".mp4")) {
+                files.add(entry);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        AppLog.d(TAG, "开始扫描损坏的视频: " + files.size() + " 个文件");
+        long startTime = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
+        int repairedCount = 0;
+        int deletedCount = 0;
+
+        for (MediaIndex.Entry entry : files) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (now - entry.lastModifiedMs < ACTIVE_FILE_GUARD_MS) {
+                continue;
+            }
+            RepairOutcome outcome = repairIfNeeded(entry.file);
+            if (outcome == RepairOutcome.REPAIRED) {
+                repairedCount++;
+            } else if (outcome == RepairOutcome.DELETED) {
+                deletedCount++;
+            }
+        }
+
+        AppLog.d(TAG, "视频修复扫描完成：修复 " + repairedCount + " 个，删除 " + deletedCount
+                + " 个，耗时 " + (System.currentTimeMillis() - startTime) + "ms");
+
+        if (repairedCount > 0) {
+            final int count = repairedCount;
+            mainHandler.post(() -> Toast.makeText(context,
+                    "已修复 " + count + " 个异常断电的视频", Toast.LENGTH_LONG).show());
+        }
+    }
+
+    /**
+     * 检查单个文件，需要修复时交给后台线程（供录制器在分段校验时调用）
+     * 录制路径上只扫描顶层 Box 头决定删除还是保留；NAL 扫描、查找参考分段和重写都在后台执行
+     * @return true 表示文件保留（完好或已排队修复）；false 表示文件没有可解码数据，已被删除
+     */
+    public static boolean repairFileAsync(File file, RepairListener listener) {
+        Mp4RepairEngine.Inspection inspection;
+        try {
+            inspection = Mp4RepairEngine.inspect(file);
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error inspecting " + file.getName(), e);
+            return true;  // 留给启动时修复
+        }
+        if (inspection.status == Mp4RepairEngine.Status.UNREPAIRABLE) {
+            return deleteUnplayable(file, "no media data") != RepairOutcome.DELETED;
+        }
+        if (!inspection.needsRepair()) {
+            return true;
+        }
+
+        final String key = file.getAbsolutePath();
+        synchronized (pendingRepairs) {
+            if (pendingRepairs.containsKey(key)) {
+                return true;
+            }
+            pendingRepairs.put(key, repairExecutor.submit(() -> {
+                RepairOutcome outcome = RepairOutcome.SKIPPED;
+                try {
+                    outcome = repairIfNeeded(file);
+                } finally {
+                    synchronized (pendingRepairs) {
+                        pendingRepairs.remove(key);
+                    }
+                }
+                if (listener != null) {
+                    listener.onRepairFinished(file,
+                            outcome == RepairOutcome.INTACT || outcome == RepairOutcome.REPAIRED);
+                }
+            }));
+        }
+        AppLog.d(TAG, "Queued background repair for " + file.getName());
+        return true;
+    }
+
+    /**
+     * 等待该文件的后台修复完成（传输线程在移动/复制前调用，避免读到修复中的文件）
+     */
+    public static void awaitPendingRepair(File file) {
+        Future<?> pending = pendingRepairs.get(file.getAbsolutePath());
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            AppLog.w(TAG, "Background repair failed for " + file.getName() + ": " + e.getCause());
+        }
+    }
+
+    private enum RepairOutcome {
+        INTACT, REPAIRED, DELETED, SKIPPED
+    }
+
+    private static RepairOutcome repairIfNeeded(File file) {
+        try {
+            Mp4RepairEngine.Inspection inspection = Mp4RepairEngine.inspect(file);
+            if (inspection.status == Mp4RepairEngine.Status.UNREPAIRABLE) {
+                return deleteUnplayable(file, "no media data");
+            }
+            if (!inspection.needsRepair()) {
+                return RepairOutcome.INTACT;
+            }
+
+            Mp4RepairEngine.Reference reference = null;
+            if (inspection.status == Mp4RepairEngine.Status.NEEDS_REPAIR) {
+                reference = findReference(file);
+                if (reference == null) {
+                    AppLog.w(TAG, "No reference segment for " + file.getName() + ", will retry later");
+                    return RepairOutcome.SKIPPED;
+                }
+            }
+
+            long startTime = System.currentTimeMillis();
+            Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, reference);
+            if (result.repaired) {
+                AppLog.d(TAG, "Repaired " + file.getName() + ": " + result.message
+                        + " (" + (System.currentTimeMillis() - startTime) + "ms)");
+                return RepairOutcome.REPAIRED;
+            }
+            if (result.unrecoverable) {
+                return deleteUnplayable(file, result.message);
+            }
+            AppLog.w(TAG, "Failed to repair " + file.getName() + ": " + result.message);
+            return RepairOutcome.SKIPPED;
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error repairing " + file.getName(), e);
+            return RepairOutcome.SKIPPED;
+        }
+    }
+
+    private static RepairOutcome deleteUnplayable(File file, String reason) {
+        long size = file.length();
+        if (file.delete()) {
+            SubStreamEncoder.deleteSubStreamFile(file);  // 主码流已删除，子码流不再有对应的文件
+            AppLog.w(TAG, "Deleted unplayable video " + file.getName() + " (" + StorageHelper.formatSize(size) + "): " + reason);
+            return RepairOutcome.DELETED;
+        }
+        return RepairOutcome.SKIPPED;
+    }
+
+    /**
+     * 在同目录中查找同机位、时间最接近的正常分段，读取其轨道格式
+     */
+    private static Mp4RepairEngine.Reference findReference(File brokenFile) {
+        File dir = brokenFile.getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        final String position = getCameraPosition(brokenFile.getName());
+        File[] candidates = dir.listFiles(f -> f.isFile()
+                && !f.equals(brokenFile)
+                && f.getName().endsWith(".mp4")
+                && position.equals(getCameraPosition(f.getName()))
+                && f.length() >= MIN_VALID_FILE_SIZE);
+        if (candidates == null || candidates.length == 0) {
+            return null;
+        }
+
+        final long brokenTime = brokenFile.lastModified();
+        List<File> sorted = new ArrayList<>(Arrays.asList(candidates));
+        sorted.sort(Comparator.comparingLong(f -> Math.abs(f.lastModified() - brokenTime)));
+
+        int tried = 0;
+        for (File candidate : sorted) {
+            if (tried++ >= MAX_REFERENCE_CANDIDATES) {
+                break;
+            }
+            try {
+                Mp4RepairEngine.Reference reference = Mp4RepairEngine.readReference(candidate);
+                if (reference != null) {
+                    AppLog.d(TAG, "Using " + candidate.getName() + " as reference for " + brokenFile.getName());
+                    return reference;
+                }
+            } catch (Exception e) {
+                AppLog.w(TAG, "Cannot read reference " + candidate.getName() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从文件名中解析机位（格式：yyyyMMdd_HHmmss_position.mp4）
+     */
+    private static String getCameraPosition(String fileName) {
+        String baseName = fileName.endsWith(".mp4") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        int index = baseName.lastIndexOf('_');
+        return index >= 0 ? baseName.substring(index + 1) : "";
+    }
+}
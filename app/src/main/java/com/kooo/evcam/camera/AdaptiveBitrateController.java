@@ -0,0 +1,217 @@
+package com.kooo.evcam.camera;
+
+import com.kooo.evcam.AppLog;
+
+/**
+ * 存储写入吞吐自适应码率控制器（单个录制器）
+ * 慢速 U 盘等介质持续写入速度跟不上编码码率时，Muxer 写入会阻塞、输出队列堆积，最终触发编码器重建。
+ * 本控制器在 Muxer 写入线程上统计每次 writeSampleData 的耗时和字节数，按固定窗口评估介质是否跟得上：
+ * - 拥塞：窗口内写入耗时占比过高、出现长时间阻塞的单次写入、或输出队列积压过多
+ * - 空闲：写入耗时占比很低且没有阻塞
+ *
+ * 调整策略（带滞回，避免来回抖动）：
+ * - 连续 DOWN_WINDOWS 个窗口拥塞才降档（严重阻塞立即降档），先降码率，码率到下限后再降帧率
+ * - 连续 UP_WINDOWS 个窗口空闲才升档，先恢复帧率再恢复码率，最多恢复到配置值
+ * - 降档时参考窗口内测得的介质写入速度，目标码率不超过其 SUSTAINED_RATE_HEADROOM
+ *
+ * 码率通过 MediaCodec.setParameters 实时生效（由录制器应用），帧率通过渲染端抽帧实现
+ *
+ * 线程：onSampleWritten 只在 Muxer 写入线程调用；getBitRate / getFrameRate 可在任意线程读取
+ */
+public class AdaptiveBitrateController {
+    private static final String TAG = "AdaptiveBitrate";
+
+    private static final long WINDOW_NS = 2_000_000_000L;  // 评估窗口：2 秒
+    private static final float BUSY_RATIO_HIGH = 0.6f;  // 写入耗时占窗口比例超过该值视为拥塞
+    private static final float BUSY_RATIO_LOW = 0.25f;  // 写入耗时占窗口比例低于该值视为空闲
+    private static final long SLOW_WRITE_NS = 300_000_000L;  // 单次写入超过 300ms 视为拥塞
+    private static final long STALL_WRITE_NS = 1_000_000_000L;  // 单次写入超过 1 秒视为严重阻塞，立即降档
+    private static final float BACKLOG_RATIO_HIGH = 0.5f;  // 输出队列积压超过容量一半视为拥塞
+    private static final int DOWN_WINDOWS = 2;  // 连续拥塞窗口数（降档）
+    private static final int UP_WINDOWS = 10;  // 连续空闲窗口数（升档，约 20 秒）
+    private static final float STEP_DOWN = 0.7f;  // 每次降档比例
+    private static final float STEP_UP = 1.15f;  // 每次升档比例
+    private static final float SUSTAINED_RATE_HEADROOM = 0.6f;  // 降档目标码率不超过实测介质写入速度的该比例
+    private static final float MIN_BITRATE_RATIO = 0.25f;  // 码率下限（相对配置值）
+    private static final int MIN_FRAME_RATE = 10;  // 帧率下限
+
+    private final String cameraId;
+    private final int targetBitRate;
+    private final int targetFrameRate;
+    private final int minBitRate;
+    private final int queueCapacity;
+
+    private volatile int currentBitRate;
+    private volatile int currentFrameRate;
+
+    // 窗口统计（仅 Muxer 写入线程访问）
+    private long windowStartNs = 0;
+    private long windowBytes = 0;
+    private long windowWriteNs = 0;
+    private long windowMaxWriteNs = 0;
+    private int windowMaxBacklog = 0;
+    private int congestedWindows = 0;
+    private int idleWindows = 0;
+
+    /**
+     * @param targetBitRate 配置码率（bps），升档上限
+     * @param targetFrameRate 配置帧率，升档上限
+     * @param queueCapacity 编码输出队列容量，用于判断积压
+     */
+    public AdaptiveBitrateController(String cameraId, int targetBitRate, int targetFrameRate, int queueCapacity) {
+        this.cameraId = cameraId;
+        this.targetBitRate = targetBitRate;
+        this.targetFrameRate = targetFrameRate;
+        this.minBitRate = (int) (targetBitRate * MIN_BITRATE_RATIO);
+        this.queueCapacity = queueCapacity;
+        this.currentBitRate = targetBitRate;
+        this.currentFrameRate = targetFrameRate;
+    }
+
+    /**
+     * 当前应使用的码率（bps）
+     */
+    public int getBitRate() {
+        return currentBitRate;
+    }
+
+    /**
+     * 当前应使用的帧率（低于配置帧率时由渲染端抽帧）
+     */
+    public int getFrameRate() {
+        return currentFrameRate;
+    }
+
+    /**
+     * 记录一次写入（在 Muxer 写入线程上调用）
+     * @param bytes 写入字节数
+     * @param writeCostNs writeSampleData 耗时
+     * @param backlog 写入时输出队列中等待的条目数
+     * @param nowNs 当前时间（System.nanoTime）
+     * @return 码率发生变化时返回 true，调用者需要把新码率应用到编码器
+     */
+    public boolean onSampleWritten(int bytes, long writeCostNs, int backlog, long nowNs) {
+        if (windowStartNs == 0) {
+            windowStartNs = nowNs;
+        }
+        windowBytes += bytes;
+        windowWriteNs += writeCostNs;
+        if (writeCostNs > windowMaxWriteNs) {
+            windowMaxWriteNs = writeCostNs;
+        }
+        if (backlog > windowMaxBacklog) {
+            windowMaxBacklog = backlog;
+        }
+
+        if (writeCostNs >= STALL_WRITE_NS) {
+            // 严重阻塞：不等窗口结束，立即降档
+            AppLog.w(TAG, "Camera " + cameraId + " write stalled for " + (writeCostNs / 1_000_000L) + " ms");
+            boolean changed = stepDown(nowNs - windowStartNs);
+            resetWindow(nowNs);
+            congestedWindows = 0;
+            idleWindows = 0;
+            return changed;
+        }
+
+        long elapsedNs = nowNs - windowStartNs;
+        if (elapsedNs < WINDOW_NS) {
+            return false;
+        }
+
+        float busyRatio = (float) windowWriteNs / elapsedNs;
+        boolean congested = busyRatio >= BUSY_RATIO_HIGH
+                || windowMaxWriteNs >= SLOW_WRITE_NS
+                || windowMaxBacklog >= queueCapacity * BACKLOG_RATIO_HIGH;
+        boolean idle = busyRatio <= BUSY_RATIO_LOW && windowMaxWriteNs < SLOW_WRITE_NS / 2;
+
+        boolean changed = false;
+        if (congested) {
+            idleWindows = 0;
+            if (++congestedWindows >= DOWN_WINDOWS) {
+                congestedWindows = 0;
+                changed = stepDown(elapsedNs);
+            }
+        } else if (idle) {
+            congestedWindows = 0;
+            if (++idleWindows >= UP_WINDOWS) {
+                idleWindows = 0;
+                changed = stepUp();
+            }
+        } else {
+            congestedWindows = 0;
+            idleWindows = 0;
+        }
+
+        resetWindow(nowNs);
+        return changed;
+    }
+
+    /**
+     * 降档：先降码率，码率到下限后降帧率
+     * @return 码率是否变化
+     */
+    private boolean stepDown(long elapsedNs) {
+        int oldBitRate = currentBitRate;
+        int newBitRate = (int) (oldBitRate * STEP_DOWN);
+
+        // 介质写入速度 = 窗口字节数 / 实际写入耗时；目标码率留出余量
+        if (windowWriteNs > 0) {
+            long sustainedBps = windowBytes * 8L * 1_000_000_000L / windowWriteNs;
+            newBitRate = (int) Math.min(newBitRate, sustainedBps * SUSTAINED_RATE_HEADROOM);
+        }
+        newBitRate = Math.max(newBitRate, minBitRate);
+
+        if (newBitRate < oldBitRate) {
+            currentBitRate = newBitRate;
+            AppLog.w(TAG, "Camera " + cameraId + " storage congested, bitrate " + (oldBitRate / 1000) + " -> "
+                    + (newBitRate / 1000) + " Kbps (" + describeWindow(elapsedNs) + ")");
+            return true;
+        }
+
+        int oldFrameRate = currentFrameRate;
+        int newFrameRate = Math.max(MIN_FRAME_RATE, oldFrameRate * 2 / 3);
+        if (newFrameRate < oldFrameRate) {
+            currentFrameRate = newFrameRate;
+            AppLog.w(TAG, "Camera " + cameraId + " storage congested at minimum bitrate, frame rate "
+                    + oldFrameRate + " -> " + newFrameRate + " fps (" + describeWindow(elapsedNs) + ")");
+        }
+        return false;
+    }
+
+    /**
+     * 升档：先恢复帧率，帧率恢复后再逐步恢复码率
+     * @return 码率是否变化
+     */
+    private boolean stepUp() {
+        int oldFrameRate = currentFrameRate;
+        if (oldFrameRate < targetFrameRate) {
+            currentFrameRate = Math.min(targetFrameRate, oldFrameRate * 3 / 2);
+            AppLog.d(TAG, "Camera " + cameraId + " storage recovered, frame rate " + oldFrameRate + " -> "
+                    + currentFrameRate + " fps");
+            return false;
+        }
+
+        int oldBitRate = currentBitRate;
+        if (oldBitRate >= targetBitRate) {
+            return false;
+        }
+        currentBitRate = Math.min(targetBitRate, (int) (oldBitRate * STEP_UP));
+        AppLog.d(TAG, "Camera " + cameraId + " storage recovered, bitrate " + (oldBitRate / 1000) + " -> "
+                + (currentBitRate / 1000) + " Kbps");
+        return true;
+    }
+
+    private String describeWindow(long elapsedNs) {
+        long elapsedMs = Math.max(1, elapsedNs / 1_000_000L);
+        return "written " + (windowBytes * 8 / elapsedMs) + " Kbps, busy " + (windowWriteNs / 1_000_000L) + "/"
+                + elapsedMs + " ms, max write " + (windowMaxWriteNs / 1_000_000L) + " ms, backlog " + windowMaxBacklog;
+    }
+
+    private void resetWindow(long nowNs) {
+        windowStartNs = nowNs;
+        windowBytes = 0;
+        windowWriteNs = 0;
+        windowMaxWriteNs = 0;
+        windowMaxBacklog = 0;
+    }
+}
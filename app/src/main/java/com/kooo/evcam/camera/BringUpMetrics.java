@@ -0,0 +1,112 @@
+package com.kooo.evcam.camera;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 冷启动到录制的阶段耗时统计（进程内单例）
+ * 记录开机广播、服务启动、摄像头打开、会话配置、编码器准备、开始录制、首帧写入等里程碑第一次发生的时刻，
+ * 时间基准为 SystemClock.elapsedRealtime（开机以来的毫秒数），因此首帧时刻即为「开机到首帧」耗时；
+ * 同时给出进程启动到首帧的耗时（非开机自启时更有参考意义）
+ *
+ * 每个里程碑只记录第一次（整个进程生命周期），首帧写入时输出汇总日志
+ */
+public class BringUpMetrics {
+    private static final String TAG = "BringUpMetrics";
+
+    public static final String BOOT_RECEIVED = "boot_received";
+    public static final String SERVICE_STARTED = "service_started";
+    public static final String MANAGER_INITIALIZED = "manager_initialized";
+    public static final String FIRST_CAMERA_OPENED = "first_camera_opened";
+    public static final String FIRST_SESSION_CONFIGURED = "first_session_configured";
+    public static final String FIRST_ENCODER_PREPARED = "first_encoder_prepared";
+    public static final String FIRST_RECORDING_STARTED = "first_recording_started";
+    public static final String FIRST_FRAME_WRITTEN = "first_frame_written";
+
+    private static volatile BringUpMetrics instance;
+
+    private final Map<String, Long> milestones = new LinkedHashMap<>();
+
+    public static BringUpMetrics getInstance() {
+        if (instance == null) {
+            synchronized (BringUpMetrics.class) {
+                if (instance == null) {
+                    instance = new BringUpMetrics();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private BringUpMetrics() {
+    }
+
+    /**
+     * 记录里程碑（只记录第一次）
+     */
+    public void mark(String milestone) {
+        long nowMs = SystemClock.elapsedRealtime();
+        synchronized (milestones) {
+            if (milestones.containsKey(milestone)) {
+                return;
+            }
+            milestones.put(milestone, nowMs);
+        }
+        if (FIRST_FRAME_WRITTEN.equals(milestone)) {
+            AppLog.d(TAG, getSummary());
+        }
+    }
+
+    /**
+     * 开机到首帧写入的耗时（毫秒），尚未写入时返回 -1
+     */
+    public long getBootToFirstFrameMs() {
+        return getMilestoneMs(FIRST_FRAME_WRITTEN);
+    }
+
+    /**
+     * 进程启动到首帧写入的耗时（毫秒），尚未写入时返回 -1
+     */
+    public long getProcessStartToFirstFrameMs() {
+        long firstFrameMs = getMilestoneMs(FIRST_FRAME_WRITTEN);
+        return firstFrameMs < 0 ? -1 : firstFrameMs - Process.getStartElapsedRealtime();
+    }
+
+    /**
+     * 里程碑时刻（开机以来的毫秒数），未发生时返回 -1
+     */
+    public long getMilestoneMs(String milestone) {
+        synchronized (milestones) {
+            Long value = milestones.get(milestone);
+            return value != null ? value : -1;
+        }
+    }
+
+    /**
+     * 各阶段汇总：每个里程碑的开机时刻及距上一个里程碑的耗时
+     */
+    public String getSummary() {
+        long processStartMs = Process.getStartElapsedRealtime();
+        StringBuilder sb = new StringBuilder("Bring-up: process start at ").append(processStartMs).append(" ms");
+        synchronized (milestones) {
+            long previousMs = processStartMs;
+            for (Map.Entry<String, Long> entry : milestones.entrySet()) {
+                long ms = entry.getValue();
+                sb.append(", ").append(entry.getKey()).append(" ").append(ms).append(" ms (+")
+                        .append(ms - previousMs).append(")");
+                previousMs = Math.max(previousMs, ms);
+            }
+        }
+        long firstFrameMs = getBootToFirstFrameMs();
+        if (firstFrameMs >= 0) {
+            sb.append("; boot->first frame ").append(firstFrameMs).append(" ms, process->first frame ")
+                    .append(firstFrameMs - processStartMs).append(" ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,321 @@
+package com.kooo.evcam.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Range;
+import android.util.Rational;
+import android.util.Size;
+
+import com.kooo.evcam.AppLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 摄像头能力缓存（按设备持久化）
+ * 每个摄像头只查询一次 CameraCharacteristics，提取启动和设置界面用到的能力：
+ * 输出分辨率、帧率范围、白平衡/色调映射/边缘增强/降噪/特效模式、曝光补偿范围和步长
+ *
+ * 结果保存在私有目录的二进制文件中（版本号 + 系统指纹 + 各摄像头条目），启动时直接加载，不再访问 HAL；
+ * 系统升级（Build.FINGERPRINT 变化）或文件版本不符时整体作废重新查询。
+ * 没有可用输出分辨率的摄像头（虚拟/无效）不缓存，每次重新查询
+ *
+ * 线程：所有方法可在任意线程调用
+ */
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+
+    private static final String FILE_NAME = "camera_capabilities.bin";
+    private static final int MAGIC = 0x45564343;  // "EVCC"
+    private static final int VERSION = 1;
+
+    /**
+     * 单个摄像头的能力（不可变）
+     */
+    public static final class Capabilities {
+        public final String cameraId;
+        public final int lensFacing;  // CameraCharacteristics.LENS_FACING_*，未知为 -1
+        public final Size[] outputSizes;  // 优先 PRIVATE，没有时为 SurfaceTexture 的输出尺寸
+        public final boolean surfaceTextureSizes;  // outputSizes 是否来自 SurfaceTexture 回退
+        public final Range<Integer>[] fpsRanges;
+        public final int[] awbModes;
+        public final int[] tonemapModes;
+        public final int[] edgeModes;
+        public final int[] noiseReductionModes;
+        public final int[] effectModes;
+        public final Range<Integer> exposureRange;  // 不支持时为 null
+        public final Rational exposureStep;  // 不支持时为 null
+
+        Capabilities(String cameraId, int lensFacing, Size[] outputSizes, boolean surfaceTextureSizes,
+                     Range<Integer>[] fpsRanges, int[] awbModes, int[] tonemapModes, int[] edgeModes,
+                     int[] noiseReductionModes, int[] effectModes, Range<Integer> exposureRange,
+                     Rational exposureStep) {
+            this.cameraId = cameraId;
+            this.lensFacing = lensFacing;
+            this.outputSizes = outputSizes;
+            this.surfaceTextureSizes = surfaceTextureSizes;
+            this.fpsRanges = fpsRanges;
+            this.awbModes = awbModes;
+            this.tonemapModes = tonemapModes;
+            this.edgeModes = edgeModes;
+            this.noiseReductionModes = noiseReductionModes;
+            this.effectModes = effectModes;
+            this.exposureRange = exposureRange;
+            this.exposureStep = exposureStep;
+        }
+    }
+
+    private static volatile CameraCapabilityCache instance;
+
+    private final CameraManager cameraManager;
+    private final File cacheFile;
+    private final Map<String, Capabilities> entries = new LinkedHashMap<>();
+
+    public static CameraCapabilityCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (CameraCapabilityCache.class) {
+                if (instance == null) {
+                    instance = new CameraCapabilityCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private CameraCapabilityCache(Context context) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        cacheFile = new File(context.getFilesDir(), FILE_NAME);
+        load();
+    }
+
+    /**
+     * 获取摄像头能力，缓存中没有时查询 HAL 并写入缓存
+     * @return 能力；摄像头不存在或查询失败时返回 null
+     */
+    public Capabilities get(String cameraId) {
+        synchronized (entries) {
+            Capabilities cached = entries.get(cameraId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Capabilities queried;
+        try {
+            queried = query(cameraId);
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " failed to query characteristics", e);
+            return null;
+        }
+        if (queried.outputSizes.length == 0) {
+            // 虚拟/无效摄像头不缓存，避免偶发的查询失败被长期记住
+            return queried;
+        }
+        synchronized (entries) {
+            entries.put(cameraId, queried);
+            save();
+        }
+        return queried;
+    }
+
+    /**
+     * 清空缓存（内存和文件）
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                AppLog.w(TAG, "Failed to delete " + cacheFile);
+            }
+        }
+        AppLog.d(TAG, "Capability cache invalidated");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Capabilities query(String cameraId) throws Exception {
+        long startNs = System.nanoTime();
+        CameraCharacteristics chars = cameraManager.getCameraCharacteristics(cameraId);
+
+        Size[] sizes = null;
+        boolean surfaceTextureSizes = false;
+        StreamConfigurationMap map = chars.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            sizes = map.getOutputSizes(ImageFormat.PRIVATE);
+            if (sizes == null || sizes.length == 0) {
+                sizes = map.getOutputSizes(SurfaceTexture.class);
+                surfaceTextureSizes = true;
+            }
+        }
+        Integer facing = chars.get(CameraCharacteristics.LENS_FACING);
+        Range<Integer>[] fpsRanges = chars.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+
+        Capabilities capabilities = new Capabilities(cameraId,
+                facing != null ? facing : -1,
+                sizes != null ? sizes : new Size[0],
+                surfaceTextureSizes,
+                fpsRanges != null ? fpsRanges : (Range<Integer>[]) new Range[0],
+                chars.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES),
+                chars.get(CameraCharacteristics.TONEMAP_AVAILABLE_TONE_MAP_MODES),
+                chars.get(CameraCharacteristics.EDGE_AVAILABLE_EDGE_MODES),
+                chars.get(CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES),
+                chars.get(CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS),
+                chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE),
+                chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP));
+        AppLog.d(TAG, "Camera " + cameraId + " characteristics queried in " +
+                (System.nanoTime() - startNs) / 1_000_000 + " ms");
+        return capabilities;
+    }
+
+    // ==================== 文件格式 ====================
+    // int magic, int version, UTF fingerprint, int count，之后每个条目：
+    // UTF cameraId, int facing, bool surfaceTextureSizes, sizes(int n + n*(w,h)), fps(int n + n*(lo,hi)),
+    // 5 组模式(int n + n*int，n=-1 表示 null), bool hasExposure [+ lo, hi, num, den]
+
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                AppLog.w(TAG, "Capability cache version mismatch, discarding");
+                invalidate();
+                return;
+            }
+            String fingerprint = in.readUTF();
+            if (!Build.FINGERPRINT.equals(fingerprint)) {
+                // 系统升级后 HAL 能力可能变化
+                AppLog.d(TAG, "System build changed, discarding capability cache");
+                invalidate();
+                return;
+            }
+            int count = in.readInt();
+            synchronized (entries) {
+                for (int i = 0; i < count; i++) {
+                    Capabilities capabilities = readEntry(in);
+                    entries.put(capabilities.cameraId, capabilities);
+                }
+            }
+            AppLog.d(TAG, "Loaded capabilities for " + count + " camera(s)");
+        } catch (IOException | RuntimeException e) {
+            AppLog.w(TAG, "Failed to load capability cache, discarding: " + e.getMessage());
+            invalidate();
+        }
+    }
+
+    /**
+     * 写入缓存文件（调用方持有 entries 锁），先写临时文件再改名，避免断电留下半个文件
+     */
+    private void save() {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(entries.size());
+            for (Capabilities capabilities : entries.values()) {
+                writeEntry(out, capabilities);
+            }
+        } catch (IOException e) {
+            AppLog.w(TAG, "Failed to save capability cache: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            AppLog.w(TAG, "Failed to replace capability cache file");
+            tmp.delete();
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Capabilities c) throws IOException {
+        out.writeUTF(c.cameraId);
+        out.writeInt(c.lensFacing);
+        out.writeBoolean(c.surfaceTextureSizes);
+        out.writeInt(c.outputSizes.length);
+        for (Size size : c.outputSizes) {
+            out.writeInt(size.getWidth());
+            out.writeInt(size.getHeight());
+        }
+        out.writeInt(c.fpsRanges.length);
+        for (Range<Integer> range : c.fpsRanges) {
+            out.writeInt(range.getLower());
+            out.writeInt(range.getUpper());
+        }
+        writeModes(out, c.awbModes);
+        writeModes(out, c.tonemapModes);
+        writeModes(out, c.edgeModes);
+        writeModes(out, c.noiseReductionModes);
+        writeModes(out, c.effectModes);
+        boolean hasExposure = c.exposureRange != null && c.exposureStep != null;
+        out.writeBoolean(hasExposure);
+        if (hasExposure) {
+            out.writeInt(c.exposureRange.getLower());
+            out.writeInt(c.exposureRange.getUpper());
+            out.writeInt(c.exposureStep.getNumerator());
+            out.writeInt(c.exposureStep.getDenominator());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Capabilities readEntry(DataInputStream in) throws IOException {
+        String cameraId = in.readUTF();
+        int facing = in.readInt();
+        boolean surfaceTextureSizes = in.readBoolean();
+        Size[] sizes = new Size[in.readInt()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(in.readInt(), in.readInt());
+        }
+        Range<Integer>[] fpsRanges = (Range<Integer>[]) new Range[in.readInt()];
+        for (int i = 0; i < fpsRanges.length; i++) {
+            fpsRanges[i] = new Range<>(in.readInt(), in.readInt());
+        }
+        int[] awbModes = readModes(in);
+        int[] tonemapModes = readModes(in);
+        int[] edgeModes = readModes(in);
+        int[] noiseReductionModes = readModes(in);
+        int[] effectModes = readModes(in);
+        Range<Integer> exposureRange = null;
+        Rational exposureStep = null;
+        if (in.readBoolean()) {
+            exposureRange = new Range<>(in.readInt(), in.readInt());
+            exposureStep = new Rational(in.readInt(), in.readInt());
+        }
+        return new Capabilities(cameraId, facing, sizes, surfaceTextureSizes, fpsRanges, awbModes,
+                tonemapModes, edgeModes, noiseReductionModes, effectModes, exposureRange, exposureStep);
+    }
+
+    private static void writeModes(DataOutputStream out, int[] modes) throws IOException {
+        if (modes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(modes.length);
+        for (int mode : modes) {
+            out.writeInt(mode);
+        }
+    }
+
+    private static int[] readModes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        int[] modes = new int[count];
+        for (int i = 0; i < count; i++) {
+            modes[i] = in.readInt();
+        }
+        return modes;
+    }
+}
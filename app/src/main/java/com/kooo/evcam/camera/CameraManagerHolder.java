@@ -39,6 +39,7 @@ public class CameraManagerHolder {
         AppConfig appConfig = new AppConfig(context);
 
         cameraManager = new MultiCameraManager(context.getApplicationContext());
+        BringUpMetrics.getInstance().mark(BringUpMetrics.MANAGER_INITIALIZED);
 
         // 获取摄像头数量
         int cameraCount = getCameraCount(appConfig);
@@ -87,6 +88,7 @@ public class CameraManagerHolder {
      */
     public synchronized void setCameraManager(MultiCameraManager manager) {
         this.cameraManager = manager;
+        BringUpMetrics.getInstance().mark(BringUpMetrics.MANAGER_INITIALIZED);
     }
 
     /**
@@ -4,23 +4,32 @@ import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.view.Surface;
 
 import com.kooo.evcam.AppLog;
+import com.kooo.evcam.StorageHelper;
+import com.kooo.evcam.VideoRepairManager;
+import com.kooo.evcam.camera.mp4.Mp4SyncInfo;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 使用 MediaCodec + MediaMuxer 进行视频编码和录制
@@ -29,57 +38,103 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * 工作流程：
  * 1. 创建 MediaCodec 编码器，获取其输入 Surface
  * 2. 使用 EglSurfaceEncoder 将 Camera 的帧渲染到编码器输入 Surface
- * 3. 从 MediaCodec 获取编码后的数据
- * 4. 通过 MediaMuxer 写入 MP4 文件
+ * 3. MediaCodec 以异步回调方式在独立的输出线程上交付编码数据，输出缓冲经无锁队列交给 Muxer 写入线程
+ * 4. 通过 SegmentMuxer 写入 MP4 文件（默认分片 MP4，防断电；可回退到 MediaMuxer）
+ *
+ * 渲染线程只负责把画面画进编码器，不再轮询编码器输出，Muxer 的文件 I/O 不会拖慢渲染
+ *
+ * 分段切换默认采用无缝模式：编码器持续运行，提前创建下一段 Muxer 并请求关键帧，
+ * 在关键帧到达时把输出切换到新文件，相邻分段首尾相接不丢帧
  */
 public class CodecVideoRecorder {
     private static final String TAG = "CodecVideoRecorder";
 
     // 编码参数（常量）
-    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;  // H.264
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;  // H.264（默认及 H.265 回退）
     private static final int I_FRAME_INTERVAL = 1;  // I帧间隔（秒）
     
     // 编码参数（可配置）
     private int frameRate = 30;       // 默认 30fps
-    private int bitRate = 3000000;    // 默认 3Mbps
+    private int bitRate = 3000000;    // 默认 3Mbps（H.264 码率，H.265 编码时按比例换算）
+
+    // H.265 编码（设置了探测器时按能力选择，hevcEncoder 为 null 时使用 H.264）
+    private EncoderCapabilityProber encoderProber;
+    private EncoderCapabilityProber.EncoderChoice hevcEncoder;
 
     private final String cameraId;
     private final int width;
     private final int height;
 
     // MediaCodec 相关
-    private MediaCodec encoder;
+    private volatile MediaCodec encoder;
     private Surface encoderInputSurface;
-    private MediaCodec.BufferInfo bufferInfo;
 
-    // MediaMuxer 相关
-    private MediaMuxer muxer;
+    // Muxer 相关（分片 MP4 或 MediaMuxer）
+    private static final int FRAGMENT_KEY_FRAMES = 1;  // 每个分片包含的关键帧数（I 帧间隔 1 秒，断电最多丢约 1 秒）
+    private boolean fragmentedMp4Enabled = true;
+    // 以下 Muxer 状态（以及无缝分段的 pendingMuxer 等）只在 Muxer 写入线程上访问
+    private SegmentMuxer muxer;
     private int videoTrackIndex = -1;
-    private boolean muxerStarted = false;
+    private volatile boolean muxerStarted = false;
 
-    // EGL 渲染器
-    private EglSurfaceEncoder eglEncoder;
+    // EGL 渲染器（在编码线程上创建，输出线程经 FrameTracer 回调、分段线程切换 Surface 时也会读取）
+    private volatile EglSurfaceEncoder eglEncoder;
     private SurfaceTexture inputSurfaceTexture;
     private int textureId;
 
-    // 编码线程
+    // 编码线程（共享渲染模式下为引擎的渲染线程，不归本录制器所有）
     private HandlerThread encoderThread;
     private Handler encoderHandler;
+    private SharedEglRenderEngine sharedRenderEngine;
+
+    // 编码输出管线：MediaCodec 回调在输出线程上到达，只把输出缓冲放入无锁队列；
+    // Muxer 写入线程取出后写文件并释放缓冲
+    private static final int OUTPUT_QUEUE_CAPACITY = 64;
+    private static final long SYNC_TASK_TIMEOUT_MS = 3000;  // 同步执行 Muxer/编码线程任务的超时
+    private static final long END_OF_STREAM_TIMEOUT_MS = 2000;  // 停止录制时等待编码器流结束的超时
+    private final EncodedFrameQueue outputQueue = new EncodedFrameQueue(OUTPUT_QUEUE_CAPACITY);
+    private final EncodedFrameQueue.Entry outputEntry = new EncodedFrameQueue.Entry();  // 仅 Muxer 写入线程使用
+    private final AtomicBoolean outputDrainScheduled = new AtomicBoolean(false);
+    private final Runnable outputDrainRunnable = this::drainOutputQueue;
+    private HandlerThread outputThread;
+    private Handler outputHandler;
+    private HandlerThread muxerThread;
+    private volatile Handler muxerHandler;
+    private volatile CountDownLatch endOfStreamLatch;
+    private static final long OUTPUT_QUEUE_FULL_WAIT_MS = 50;  // 队列已满时等待写入线程腾出空间的最长时间
+    private long droppedOutputBuffers = 0;  // 队列已满时丢弃的输出缓冲数（仅输出线程访问）
+    private boolean droppingUntilKeyFrame = false;  // 队列溢出后一直丢到下一个关键帧（仅输出线程访问）
+
+    // 拼接录制（多路摄像头合成到一个编码器），为 null 时为普通单路录制
+    private MosaicCompositor mosaicCompositor;
+    private long lastMosaicFrameNs = 0;
+
+    // 逐帧流水线追踪（采集 -> 渲染 -> 编码输出 -> 写入，常驻开启，见 FrameTracer）
+    private volatile FrameTracer frameTracer;
+
+    // 渲染耗时统计（每 10 秒输出一次，用于对比共享渲染与独立 EGL 的开销）
+    private static final long RENDER_STATS_INTERVAL_MS = 10000;
+    private long renderStatsWindowStartMs = 0;
+    private int renderStatsFrames = 0;
+    private long renderStatsTotalNs = 0;
+    private long renderStatsMaxNs = 0;
+    private long renderStatsMakeCurrentBase = 0;
 
     // 状态
     private final AtomicBoolean isRecording = new AtomicBoolean(false);  // 使用 AtomicBoolean 确保线程安全
     private volatile boolean isReleased = false;
-    private String currentFilePath;
+    private volatile String currentFilePath;
     
     // 缓存的录制 Surface，避免重复创建导致内存泄漏
     private Surface cachedRecordSurface = null;
     
-    // 时间戳基准（用于计算相对时间戳，供输入端使用）
-    private long firstFrameTimestampNs = -1;
+    // 时间戳基准：录制会话原点（多路共用，见 RecordingSessionClock），输入时间戳 = 传感器时间戳 - 原点
+    private RecordingSessionClock sessionClock;  // 外部设置的共享时钟，null 表示单独使用自己的时钟
+    private volatile RecordingSessionClock activeClock;  // 本次录制实际使用的时钟
+    private long sessionOriginNs = -1;  // 缓存的会话原点（仅渲染线程访问）
     
-    // 分段开始时间（用于计算 PTS，基于系统时间而非帧数）
-    // 这样可以准确反映实际录制时长，不受帧率波动影响
-    private long segmentStartTimeNs = 0;
+    // 分段开始时间（分段第一帧的输出回调时间，用于确定分段时间轴的起点）
+    private volatile long segmentStartTimeNs = 0;
     
     // 编码器输出帧计数（仅用于日志和统计，不再用于 PTS 计算）
     private long encodedOutputFrameCount = 0;
@@ -94,16 +149,66 @@ public class CodecVideoRecorder {
     private Handler segmentHandler;
     
     private Runnable segmentRunnable;
-    private int segmentIndex = 0;
+    private volatile int segmentIndex = 0;
     private String saveDirectory;
     private String cameraPosition;
     private VideoRecorder.SegmentTimestampProvider timestampProvider;  // 分段时间戳提供者（用于多路同步）
     private long lastFileSize = 0;
+    // Muxer 启动时已写入的文件头大小（分片 MP4 的 ftyp+moov 初始化段），-1 表示 Muxer 尚未启动
+    // 首次写入检测只统计其后的数据，否则初始化段会让空文件看起来已经开始写入
+    private volatile long muxerHeaderSize = -1;
     private static final long FILE_SIZE_CHECK_INTERVAL_MS = 5000;
     private static final long FIRST_CHECK_DELAY_MS = 500;  // 首次检查延迟（更快检测首次写入）
     private Runnable fileSizeCheckRunnable;
-    private long recordedFrameCount = 0;
-    private List<String> recordedFilePaths = new ArrayList<>();  // 本次录制的所有文件路径
+    private volatile long recordedFrameCount = 0;  // 已渲染进编码器的帧数（仅渲染线程写）
+    private final List<String> recordedFilePaths = new CopyOnWriteArrayList<>();  // 本次录制的所有文件路径
+
+    // 无缝分段（关键帧对齐）相关
+    // 编码器不停止：提前创建下一个 Muxer 并请求关键帧，在关键帧到达时把输出流切换到新 Muxer
+    private static final long SEAMLESS_SWITCH_LEAD_MS = 500;  // 提前多久准备下一段（预建 Muxer + 请求关键帧）
+    private static final long SEAMLESS_SWITCH_KEYFRAME_TIMEOUT_MS = 3000;  // 等待关键帧超时，超时后回退到传统切换
+    private boolean seamlessSegmentEnabled = true;
+    private volatile MediaFormat encoderOutputFormat;  // 编码器输出格式（用于预建 Muxer 的 addTrack）
+    private SegmentMuxer pendingMuxer;  // 预先创建好的下一段 Muxer（仅在 Muxer 写入线程访问）
+    private int pendingTrackIndex = -1;
+    private String pendingFilePath;
+    private boolean segmentSwitchPending = false;  // 是否正在等待关键帧进行切换
+    private long segmentSwitchRequestTimeMs = 0;
+
+    // 预录缓冲（由 MultiCameraManager 持有，跨录制器复用）
+    // 空闲时由预录待命录制器（只编码、不写文件）填充；触发式录制开始时先把缓冲中的 GOP 写入新文件
+    // 正常录制的编码输出已经写入文件，不再进入缓冲，避免触发式录制重复上一个文件的结尾
+    private static final long PRE_ROLL_MAX_AGE_NS = 15_000_000_000L;  // 缓冲最新一帧超过 15 秒则认为已过期
+    private PreRollBuffer preRollBuffer;
+    private boolean flushPreRollOnStart = false;
+    private boolean preRollOnly = false;  // 预录待命模式：编码器运行但不创建文件，编码输出只写入预录缓冲
+
+    // 子码流（低分辨率、低码率，供远程上传和缩略图使用），分段与主码流同步
+    private int subStreamShortEdge = 0;  // 0 表示不录制子码流
+    private int subStreamBitRate = 0;
+    private volatile SubStreamEncoder subStreamEncoder;
+    private SubStreamEncoder.FileListener subStreamFileListener;
+
+    // 存储写入吞吐自适应：根据 Muxer 写入耗时实时下调/恢复码率和帧率，避免慢速介质拖垮录制
+    private boolean adaptiveBitrateEnabled = false;
+    private volatile AdaptiveBitrateController bitrateController;
+    private long lastEncodedInputNs = 0;  // 上一个送入编码器的输入帧时间戳（抽帧用，仅渲染线程访问）
+
+    // 延时录影（停车模式）：渲染端按低帧率抽帧，被丢弃的帧不进入编码器；
+    // 输入/输出时间戳按正常帧间隔递增，回放时呈现为快进的延时视频
+    private volatile boolean timeLapseEnabled = false;
+    private volatile int timeLapseFrameRate = 1;
+
+    // 过热降级（ThermalGovernor 设置）：在配置值和自适应结果之上再打折扣
+    private volatile float thermalBitRateScale = 1f;
+    private volatile int thermalMaxFrameRate = 0;  // 0 表示不限制
+    private long inputPtsOffsetNs = 0;  // 延时模式下被压缩掉的输入时间（仅渲染线程访问）
+    private long lastInputPtsNs = -1;
+
+    // 写入文件的时间戳 = 编码器输出时间戳（来自采集时间） - 分段基准（仅 Muxer 写入线程访问）
+    private long segmentBasePtsUs = 0;  // 分段时间 0 对应的编码器时间戳（即相对会话原点的时间）
+    private long lastOutputPtsUs = -1;
+    private long outputPtsSegmentStartNs = 0;  // 分段基准所属的分段（分段切换后重新计算）
     
     // 首次写入检测（与 VideoRecorder 保持一致）
     private static final long FIRST_WRITE_TIMEOUT_MS = 10000;  // 首次写入超时（10秒）
@@ -113,14 +218,15 @@ public class CodecVideoRecorder {
     // 快速恢复机制
     private static final long RECOVERY_RETRY_INTERVAL_MS = 5000;  // 恢复重试间隔：5秒
     private static final int MAX_RECOVERY_ATTEMPTS = 60;  // 最大重试次数（5秒 × 60 = 5分钟内重试）
-    private int recoveryAttempts = 0;  // 当前重试次数
+    private final AtomicInteger recoveryAttempts = new AtomicInteger();  // 当前重试次数（分段线程和 Muxer 写入线程都会修改）
     private Runnable recoveryRunnable;  // 恢复重试任务
 
     // 编码器健康检查
     private static final long ENCODER_HEALTH_CHECK_INTERVAL_MS = 3000;  // 健康检查间隔：3秒
-    private static final int MAX_FRAMES_WITHOUT_OUTPUT = 30;  // 无输出的最大帧数阈值
-    private long lastEncoderOutputTime = 0;  // 最后一次编码器输出时间
-    private int framesWithoutEncoderOutput = 0;  // 无编码器输出的连续帧数
+    private static final int MAX_FRAMES_WITHOUT_OUTPUT = 30;  // Muxer 一直未启动时允许渲染的最大帧数
+    private static final long ENCODER_OUTPUT_STALL_NS = 2_000_000_000L;  // 持续渲染但超过该时间没有输出回调，判定为卡死
+    private volatile long lastOutputCallbackNs = 0;  // 最后一次输出回调时间（输出线程写）
+    private long healthCheckFrameBase = 0;  // 上次健康检查时的渲染帧数（仅分段线程访问）
     private volatile boolean encoderHealthy = true;  // 编码器是否健康
     private Runnable healthCheckRunnable;  // 健康检查任务
 
@@ -132,10 +238,88 @@ public class CodecVideoRecorder {
 
     // 注意：帧同步变量已移除，帧处理现在直接在 onFrameAvailable 回调中完成
 
+    /**
+     * 编码器异步回调（在输出线程上执行）
+     * 只做入队和回调节奏统计，不做任何文件 I/O
+     */
+    private final MediaCodec.Callback encoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Surface 输入，不使用输入缓冲
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            long nowNs = System.nanoTime();
+            lastOutputCallbackNs = nowNs;
+            EglSurfaceEncoder egl = eglEncoder;
+            if (egl != null && info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                egl.onFrameEncoded(info.presentationTimeUs);  // 反压：该帧已离开编码器
+            }
+            boolean isFrame = info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0;
+            if (droppingUntilKeyFrame && isFrame) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    droppingUntilKeyFrame = false;
+                    AppLog.w(TAG, "Camera " + cameraId + " Output resumed at key frame (dropped " + droppedOutputBuffers + " total)");
+                } else if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                    dropOutputBuffer(codec, index);
+                    return;
+                } else {
+                    // 流结束：丢掉这一帧的数据，只保留结束标志
+                    MediaCodec.BufferInfo endOfStream = new MediaCodec.BufferInfo();
+                    endOfStream.set(info.offset, 0, info.presentationTimeUs, info.flags);
+                    info = endOfStream;
+                }
+            }
+            if (!offerOutputBuffer(codec, index, info, nowNs)) {
+                // 写入线程长时间没有腾出空间。丢掉一帧会让同一 GOP 中后面的帧都无法正确解码，
+                // 因此一直丢到下一个关键帧，并立即请求关键帧，不写入不完整的 GOP
+                dropOutputBuffer(codec, index);
+                if (!isFrame) {
+                    AppLog.e(TAG, "Camera " + cameraId + " Output queue full, lost codec config");
+                    encoderHealthy = false;
+                } else if (!droppingUntilKeyFrame) {
+                    droppingUntilKeyFrame = true;
+                    AppLog.w(TAG, "Camera " + cameraId + " Output queue full, dropping until next key frame");
+                    if (!requestSyncFrame(codec) && codec == encoder) {
+                        encoderHealthy = false;  // 无法请求关键帧，交给健康检查重建编码器
+                    }
+                }
+                return;
+            }
+            scheduleOutputDrain();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            long nowNs = System.nanoTime();
+            lastOutputCallbackNs = nowNs;
+            if (!outputQueue.offerFormat(codec, format, nowNs)) {
+                AppLog.e(TAG, "Camera " + cameraId + " Output queue full, lost format change");
+                encoderHealthy = false;
+                return;
+            }
+            scheduleOutputDrain();
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            if (codec != encoder) {
+                return;  // 已被替换的编码器
+            }
+            AppLog.e(TAG, "Camera " + cameraId + " Encoder error (transient=" + e.isTransient()
+                    + ", recoverable=" + e.isRecoverable() + ")", e);
+            if (!e.isTransient()) {
+                encoderHealthy = false;
+            }
+        }
+    };
+
     public CodecVideoRecorder(String cameraId, int width, int height) {
         this.cameraId = cameraId;
         this.width = width;
         this.height = height;
+        this.frameTracer = new FrameTracer(cameraId, false);
         // 创建独立的后台线程用于分段处理和文件 I/O 操作
         segmentThread = new HandlerThread("CodecRecorder-Segment-" + cameraId);
         segmentThread.start();
@@ -191,6 +375,186 @@ public class CodecVideoRecorder {
         return segmentDurationMs;
     }
 
+    /**
+     * 设置是否启用无缝分段
+     * 启用后分段切换不再停止编码器，而是在关键帧处把输出切换到预先创建的下一个 Muxer，
+     * 相邻分段首尾相接，不丢帧；关闭时使用传统的停止/重建方式
+     * @param enabled true 表示启用无缝分段
+     */
+    public void setSeamlessSegmentEnabled(boolean enabled) {
+        this.seamlessSegmentEnabled = enabled;
+        AppLog.d(TAG, "Camera " + cameraId + " seamless segment " + (enabled ? "enabled" : "disabled"));
+    }
+
+    /**
+     * 设置共享渲染引擎（需在 prepareRecording 之前调用）
+     * @param engine 共享引擎，null 表示使用独立的 EGL Context 和编码线程
+     */
+    public void setSharedRenderEngine(SharedEglRenderEngine engine) {
+        this.sharedRenderEngine = (engine != null && engine.isRunning()) ? engine : null;
+    }
+
+    /**
+     * 设置拼接录制合成器（需在 prepareRecording 之前调用）
+     * 设置后录制器不再使用单一输入，各摄像头通过 getMosaicSurfaceTexture() 获取各自的输入
+     */
+    public void setMosaicCompositor(MosaicCompositor compositor) {
+        this.mosaicCompositor = compositor;
+    }
+
+    /**
+     * 获取拼接录制中指定摄像头的输入 SurfaceTexture（prepareRecording 之后有效）
+     */
+    public SurfaceTexture getMosaicSurfaceTexture(String key) {
+        return mosaicCompositor != null ? mosaicCompositor.getSurfaceTexture(key) : null;
+    }
+
+    /**
+     * 设置预录缓冲
+     * @param buffer 预录缓冲（null 表示不使用）
+     * @param flushOnStart 是否在本次录制开始时先写入缓冲中的画面（触发式录制）
+     */
+    public void setPreRollBuffer(PreRollBuffer buffer, boolean flushOnStart) {
+        this.preRollBuffer = buffer;
+        this.flushPreRollOnStart = buffer != null && flushOnStart;
+    }
+
+    /**
+     * 设置预录待命模式（需在 prepareRecording 之前调用）
+     * 待命录制器不创建文件、不分段、不回调录制状态，编码输出只写入预录缓冲；
+     * prepareRecording 的文件路径可以为 null
+     */
+    public void setPreRollOnly(boolean enabled) {
+        this.preRollOnly = enabled;
+    }
+
+    /**
+     * 设置子码流参数（需在 prepareRecording 之前调用，拼接录制不支持）
+     * @param shortEdge 子码流短边像素数，0 表示不录制子码流
+     * @param bitrate 子码流码率（bps）
+     */
+    public void setSubStream(int shortEdge, int bitrate) {
+        this.subStreamShortEdge = Math.max(0, shortEdge);
+        this.subStreamBitRate = bitrate;
+    }
+
+    /**
+     * 设置子码流文件打开、关闭通知（中转写入时用于在子码流文件关闭后再传输，需在 prepareRecording 之前调用）
+     */
+    public void setSubStreamFileListener(SubStreamEncoder.FileListener listener) {
+        this.subStreamFileListener = listener;
+    }
+
+    /**
+     * 启用 H.265 编码（需在 prepareRecording 之前调用）
+     * 准备录制时由探测器判断当前分辨率/帧率/码率下是否有可用的 H.265 硬件编码器，没有则使用 H.264；
+     * 创建失败或编码输出无法封装时自动回退到 H.264，并通知探测器之后不再选择该配置。
+     * 子码流（H.264，远程上传使用）没有启动时也使用 H.264（预录待命除外，由调用方按子码流配置决定）
+     * @param prober 编码器探测器，null 表示使用 H.264
+     */
+    public void setHevcProber(EncoderCapabilityProber prober) {
+        this.encoderProber = prober;
+    }
+
+    /**
+     * 设置是否为逐帧追踪输出 android.os.Trace 区段（用于 Perfetto 抓取，需在 prepareRecording 之前调用）
+     * 环形缓冲追踪始终开启，该开关只控制系统 Trace 区段
+     */
+    public void setTraceSectionsEnabled(boolean enabled) {
+        this.frameTracer = new FrameTracer(cameraId, enabled);
+    }
+
+    /**
+     * 录制器标识（摄像头位置；拼接录制为 mosaic）
+     */
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    /**
+     * 因编码器反压跳过渲染的累计帧数（本次录制）
+     */
+    public long getBackPressureDroppedFrames() {
+        EglSurfaceEncoder egl = eglEncoder;
+        return egl != null ? egl.getBackPressureDroppedFrames() : 0;
+    }
+
+    /**
+     * 获取逐帧流水线追踪器（用于输出各阶段延迟汇总）
+     */
+    public FrameTracer getFrameTracer() {
+        return frameTracer;
+    }
+
+    /**
+     * 设置录制会话时钟（需在 prepareRecording 之前调用）
+     * 同一会话的多路录制器共用一个时钟，各文件的时间轴以同一原点计算，并在文件中记录同步信息
+     * @param clock 会话时钟，null 表示每次录制单独计时
+     */
+    public void setSessionClock(RecordingSessionClock clock) {
+        this.sessionClock = clock;
+    }
+
+    /**
+     * 设置是否根据存储写入速度自适应调整码率和帧率（需在 prepareRecording 之前调用）
+     * 启用后以 setBitRate / setFrameRate 配置的值为上限
+     */
+    public void setAdaptiveBitrateEnabled(boolean enabled) {
+        this.adaptiveBitrateEnabled = enabled;
+    }
+
+    /**
+     * 切换延时录影（停车模式），录制中可随时调用
+     * 启用后每秒只渲染 captureFrameRate 帧送入编码器，其余帧直接丢弃（不唤醒编码器），
+     * 写入文件的时间戳按配置帧率递增，回放速度约为实际的 frameRate / captureFrameRate 倍
+     * @param enabled true 表示进入延时录影
+     * @param captureFrameRate 延时录影时的采集帧率（fps）
+     */
+    public void setTimeLapse(boolean enabled, int captureFrameRate) {
+        this.timeLapseFrameRate = Math.max(1, Math.min(captureFrameRate, frameRate));
+        if (this.timeLapseEnabled != enabled) {
+            this.timeLapseEnabled = enabled;
+            AppLog.d(TAG, "Camera " + cameraId + " time-lapse " + (enabled
+                    ? "enabled at " + timeLapseFrameRate + " fps" : "disabled"));
+        }
+    }
+
+    /**
+     * 设置过热降级限制，录制中可随时调用，码率立即生效，帧率通过渲染端抽帧实现
+     * @param bitRateScale 码率系数（1 表示不降）
+     * @param maxFrameRate 帧率上限，0 表示不限制
+     */
+    public void setThermalLimits(float bitRateScale, int maxFrameRate) {
+        if (thermalBitRateScale == bitRateScale && thermalMaxFrameRate == maxFrameRate) {
+            return;
+        }
+        thermalBitRateScale = bitRateScale;
+        thermalMaxFrameRate = maxFrameRate;
+        AppLog.d(TAG, "Camera " + cameraId + " thermal limits: bitrate x" + bitRateScale + ", max fps " + maxFrameRate);
+        MediaCodec codec = encoder;
+        if (codec != null && isRecording.get()) {
+            applyAdaptiveBitRate(codec, getEncodeBitRate());
+        }
+    }
+
+    /**
+     * 是否处于延时录影模式
+     */
+    public boolean isTimeLapseEnabled() {
+        return timeLapseEnabled;
+    }
+
+    /**
+     * 设置是否使用分片 MP4 封装
+     * 启用后文件按 GOP 分片写入，异常断电时已写出的内容仍可播放；关闭时使用系统 MediaMuxer
+     * 仅对之后创建的分段生效
+     * @param enabled true 表示使用分片 MP4
+     */
+    public void setFragmentedMp4Enabled(boolean enabled) {
+        this.fragmentedMp4Enabled = enabled;
+        AppLog.d(TAG, "Camera " + cameraId + " fragmented MP4 " + (enabled ? "enabled" : "disabled"));
+    }
+
     /**
      * 设置录制码率
      * @param bitrate 码率（bps）
@@ -250,22 +614,29 @@ public class CodecVideoRecorder {
         this.currentFilePath = filePath;
         this.segmentIndex = 0;
         this.recordedFrameCount = 0;
-        this.firstFrameTimestampNs = -1;  // 重置时间戳基准
+        this.sessionOriginNs = -1;  // 重置时间戳基准
+        this.activeClock = sessionClock != null ? sessionClock : new RecordingSessionClock();
         this.encodedOutputFrameCount = 0;  // 重置编码输出帧计数
+        this.lastEncodedInputNs = 0;
+        this.inputPtsOffsetNs = 0;
+        this.lastInputPtsNs = -1;
+        this.hevcEncoder = encoderProber != null ? encoderProber.selectHevcEncoder(width, height, frameRate, bitRate) : null;
+        resetBitrateController();
 
         // 重置健康检查状态
         this.encoderHealthy = true;
-        this.framesWithoutEncoderOutput = 0;
-        this.lastEncoderOutputTime = System.currentTimeMillis();
+        this.lastOutputCallbackNs = System.nanoTime();
+        this.healthCheckFrameBase = 0;
 
-        // 清空并初始化本次录制的文件列表
+        // 清空并初始化本次录制的文件列表（预录待命模式不写文件）
         recordedFilePaths.clear();
-        recordedFilePaths.add(filePath);
+        if (!preRollOnly) {
+            recordedFilePaths.add(filePath);
+        }
 
         // 从文件路径中提取保存目录和摄像头位置
-        File file = new File(filePath);
-        this.saveDirectory = file.getParent();
-        String fileName = file.getName();
+        String fileName = filePath != null ? new File(filePath).getName() : "";
+        this.saveDirectory = filePath != null ? new File(filePath).getParent() : null;
         int lastUnderscoreIndex = fileName.lastIndexOf('_');
         if (lastUnderscoreIndex > 0 && fileName.endsWith(".mp4")) {
             this.cameraPosition = fileName.substring(lastUnderscoreIndex + 1, fileName.length() - 4);
@@ -274,16 +645,36 @@ public class CodecVideoRecorder {
         }
 
         try {
-            // 创建编码线程
-            encoderThread = new HandlerThread("Encoder-" + cameraId);
-            encoderThread.start();
-            encoderHandler = new Handler(encoderThread.getLooper());
+            // 创建编码线程（共享渲染模式下使用引擎的渲染线程）
+            if (sharedRenderEngine != null) {
+                encoderThread = null;
+                encoderHandler = sharedRenderEngine.getHandler();
+            } else {
+                encoderThread = new HandlerThread("Encoder-" + cameraId);
+                encoderThread.start();
+                encoderHandler = new Handler(encoderThread.getLooper());
+            }
+
+            // 创建编码输出线程（MediaCodec 回调）和 Muxer 写入线程
+            startOutputThreads();
+
+            // 创建子码流编码器（失败只影响子码流）
+            final Surface subStreamSurface = preRollOnly ? null : startSubStream(filePath);
+
+            // H.265 只在有 H.264 子码流时使用：远程上传发送子码流，接收端不一定能播放 H.265
+            if (hevcEncoder != null && !preRollOnly && subStreamSurface == null) {
+                AppLog.w(TAG, "Camera " + cameraId + " No H.264 sub-stream for remote upload, recording H.264 instead of H.265");
+                hevcEncoder = null;
+                resetBitrateController();
+            }
 
             // 创建 MediaCodec 编码器
             createEncoder();
 
-            // 创建 MediaMuxer
-            createMuxer(filePath);
+            // 创建 Muxer（在 Muxer 写入线程上，预录待命模式不创建）
+            if (!preRollOnly) {
+                runOnMuxerThread(() -> createMuxer(filePath));
+            }
 
             // 在编码线程上初始化 EGL 和 SurfaceTexture（重要：必须在同一线程上）
             // 使用 CountDownLatch 等待初始化完成
@@ -294,83 +685,51 @@ public class CodecVideoRecorder {
             encoderHandler.post(() -> {
                 try {
                     // 创建 EGL 渲染器（在编码线程上）
-                    eglEncoder = new EglSurfaceEncoder(cameraId, width, height);
+                    eglEncoder = new EglSurfaceEncoder(cameraId, width, height, sharedRenderEngine);
                     resultTextureId[0] = eglEncoder.initialize(encoderInputSurface);
                     textureId = resultTextureId[0];
 
-                    // 创建 SurfaceTexture 供 Camera 输出（在编码线程上，绑定到 EGL context）
-                    inputSurfaceTexture = new SurfaceTexture(textureId);
-                    inputSurfaceTexture.setDefaultBufferSize(width, height);
-
-                    // 设置帧可用回调（在编码线程上）
-                    // 直接在回调中处理帧，避免 Handler 死锁
-                    inputSurfaceTexture.setOnFrameAvailableListener(surfaceTexture -> {
-                        if (isReleased) {
-                            return;
-                        }
-
-                        try {
-                            // 关键修复：即使不在录制状态，也必须调用 updateTexImage() 消费帧
-                            // 否则 SurfaceTexture 会保持 pending 状态，不再触发后续回调
-                            // updateTexImage 在 drawFrame 内部调用，这里单独处理非录制状态
-                            if (!isRecording.get()) {
-                                // 不在录制状态时，仍需消费帧以保持 SurfaceTexture 正常工作
-                                if (eglEncoder != null && eglEncoder.isInitialized()) {
-                                    eglEncoder.consumeFrame();  // 只消费帧，不编码
-                                }
-                                return;
-                            }
-
-                            // 检查编码器健康状态，不健康时只消费帧不编码
-                            if (!encoderHealthy) {
-                                if (eglEncoder != null && eglEncoder.isInitialized()) {
-                                    eglEncoder.consumeFrame();  // 只消费帧，等待重建
-                                }
-                                return;
+                    if (mosaicCompositor != null) {
+                        // 拼接录制：每个摄像头一个 SurfaceTexture，合成后送入同一个编码器
+                        mosaicCompositor.initialize(eglEncoder);
+                        for (SurfaceTexture tileSource : mosaicCompositor.getSurfaceTextures()) {
+                            if (sharedRenderEngine != null) {
+                                sharedRenderEngine.registerFrameSource(cameraId, tileSource, () -> onMosaicTileFrameAvailable(tileSource));
+                            } else {
+                                tileSource.setOnFrameAvailableListener(this::onMosaicTileFrameAvailable, encoderHandler);
                             }
-
-                            // 获取绝对时间戳（系统启动以来的纳秒）
-                            long absoluteTimestampNs = surfaceTexture.getTimestamp();
-                            
-                            // 计算相对时间戳（以第一帧为基准）
-                            // 注意：firstFrameTimestampNs 在整个录制期间不重置
-                            // 因为 eglPresentationTimeANDROID 需要单调递增的时间戳
-                            // 否则 GraphicBufferSource 会拒绝帧
-                            if (firstFrameTimestampNs < 0) {
-                                firstFrameTimestampNs = absoluteTimestampNs;
-                                AppLog.d(TAG, "Camera " + cameraId + " First frame timestamp: " + absoluteTimestampNs + " ns");
-                            }
-                            long relativeTimestampNs = absoluteTimestampNs - firstFrameTimestampNs;
-
-                            // 直接渲染帧到编码器（使用相对时间戳）
-                            if (eglEncoder != null && eglEncoder.isInitialized()) {
-                                eglEncoder.drawFrame(relativeTimestampNs);
-                                recordedFrameCount++;
-
-                                // 定期输出帧计数
-                                if (recordedFrameCount % 100 == 0) {
-                                    AppLog.d(TAG, "Camera " + cameraId + " Encoded frames: " + recordedFrameCount);
-                                }
-                            }
-
-                            // 从编码器获取输出数据并写入 muxer
-                            drainEncoder(false);
-
-                        } catch (Exception e) {
-                            AppLog.e(TAG, "Camera " + cameraId + " Error processing frame", e);
-                            // 发生异常时标记编码器不健康
-                            encoderHealthy = false;
                         }
-                    }, encoderHandler);
+                    } else {
+                        // 创建 SurfaceTexture 供 Camera 输出（在编码线程上，绑定到 EGL context）
+                        inputSurfaceTexture = new SurfaceTexture(textureId);
+                        inputSurfaceTexture.setDefaultBufferSize(width, height);
+
+                        // 设置帧可用回调（在编码线程上）
+                        // 直接在回调中处理帧，避免 Handler 死锁
+                        // 共享渲染模式下由引擎接管回调，按轮转顺序调度各摄像头
+                        if (sharedRenderEngine != null) {
+                            final SurfaceTexture frameSource = inputSurfaceTexture;
+                            sharedRenderEngine.registerFrameSource(cameraId, frameSource, () -> onInputFrameAvailable(frameSource));
+                        } else {
+                            inputSurfaceTexture.setOnFrameAvailableListener(this::onInputFrameAvailable, encoderHandler);
+                        }
 
-                    // 设置 EGL 渲染器的输入
-                    eglEncoder.setInputSurfaceTexture(inputSurfaceTexture);
+                        // 设置 EGL 渲染器的输入
+                        eglEncoder.setInputSurfaceTexture(inputSurfaceTexture);
+                    }
 
                     // 设置时间水印（如果启用）
                     if (watermarkEnabled) {
                         eglEncoder.setWatermarkEnabled(true);
                     }
 
+                    // 子码流：同一帧再绘制到子码流编码器
+                    SubStreamEncoder sub = subStreamEncoder;
+                    if (sub != null && subStreamSurface != null) {
+                        eglEncoder.setSecondaryOutputSurface(subStreamSurface, sub.getWidth(), sub.getHeight(),
+                                sub.getFrameInterval());
+                    }
+
                     AppLog.d(TAG, "Camera " + cameraId + " EGL/SurfaceTexture initialized on encoder thread, textureId=" + textureId + ", watermark=" + watermarkEnabled);
 
                 } catch (Exception e) {
@@ -391,8 +750,13 @@ public class CodecVideoRecorder {
                 throw initException[0];
             }
 
-            AppLog.d(TAG, "Camera " + cameraId + " Codec recording prepared, textureId=" + textureId);
+            AppLog.d(TAG, "Camera " + cameraId + " Codec recording prepared, textureId=" + textureId
+                    + (sharedRenderEngine != null ? " (shared render thread)" : "")
+                    + (mosaicCompositor != null ? " (mosaic " + mosaicCompositor.getTileCount() + " tiles)" : ""));
 
+            if (mosaicCompositor != null) {
+                return mosaicCompositor.getSurfaceTextures()[0];
+            }
             return inputSurfaceTexture;
 
         } catch (Exception e) {
@@ -405,6 +769,202 @@ public class CodecVideoRecorder {
         }
     }
     
+    /**
+     * 处理一帧相机输入（在编码线程上执行）
+     * 独立模式下由 SurfaceTexture 回调直接调用；共享渲染模式下由引擎在渲染调度中调用
+     */
+    private void onInputFrameAvailable(SurfaceTexture surfaceTexture) {
+        if (isReleased) {
+            return;
+        }
+        long frameAvailableNs = System.nanoTime();
+        FrameTracer tracer = frameTracer;
+
+        try {
+            // 关键修复：即使不在录制状态，也必须调用 updateTexImage() 消费帧
+            // 否则 SurfaceTexture 会保持 pending 状态，不再触发后续回调
+            // 录制时由 latchFrame 调用 updateTexImage，这里单独处理非录制状态
+            if (!isRecording.get()) {
+                // 不在录制状态时，仍需消费帧以保持 SurfaceTexture 正常工作
+                if (eglEncoder != null && eglEncoder.isInitialized()) {
+                    eglEncoder.consumeFrame();  // 只消费帧，不编码
+                }
+                return;
+            }
+
+            // 检查编码器健康状态，不健康时只消费帧不编码
+            if (!encoderHealthy) {
+                if (eglEncoder != null && eglEncoder.isInitialized()) {
+                    eglEncoder.consumeFrame();  // 只消费帧，等待重建
+                }
+                tracer.onFrameDropped();
+                return;
+            }
+
+            // 先锁存帧再取传感器时间戳（采集时刻，不受渲染和编码排队延迟影响）
+            // updateTexImage() 之前 getTimestamp() 返回的是上一帧的时间，首帧为 0
+            if (eglEncoder == null || !eglEncoder.isInitialized()) {
+                return;
+            }
+            long absoluteTimestampNs = eglEncoder.latchFrame();
+            if (absoluteTimestampNs <= 0) {
+                eglEncoder.consumeFrame();
+                tracer.onFrameDropped();
+                return;
+            }
+
+            // 计算相对时间戳（以会话原点为基准，多路摄像头共用同一原点）
+            // 注意：原点在整个录制期间不重置
+            // 因为 eglPresentationTimeANDROID 需要单调递增的时间戳
+            // 否则 GraphicBufferSource 会拒绝帧
+            if (sessionOriginNs < 0) {
+                sessionOriginNs = activeClock.obtainOrigin(cameraId, absoluteTimestampNs);
+                AppLog.d(TAG, "Camera " + cameraId + " First frame timestamp: " + absoluteTimestampNs
+                        + " ns (" + ((absoluteTimestampNs - sessionOriginNs) / 1000) + " us after session origin)");
+            }
+            // 原点由另一路先到达的帧设置时，本路早于原点采集的帧从 0 开始
+            long relativeTimestampNs = Math.max(0, absoluteTimestampNs - sessionOriginNs);
+
+            // 延时录影或存储跟不上时降帧率：按目标帧率抽帧（留 10% 余量，避免与摄像头帧间隔产生拍频）
+            int encodeFrameRate = getEncodeFrameRate();
+            if (encodeFrameRate < frameRate && lastEncodedInputNs > 0
+                    && absoluteTimestampNs - lastEncodedInputNs < 1_000_000_000L / encodeFrameRate * 9 / 10) {
+                if (eglEncoder != null && eglEncoder.isInitialized()) {
+                    eglEncoder.consumeFrame();
+                }
+                tracer.onFrameDropped();
+                return;
+            }
+            lastEncodedInputNs = absoluteTimestampNs;
+
+            // 编码器反压：在途帧过多时按均匀间隔跳过渲染，避免 eglSwapBuffers 阻塞渲染线程
+            if (eglEncoder != null && eglEncoder.isInitialized() && eglEncoder.shouldSkipFrame()) {
+                eglEncoder.consumeFrame();
+                tracer.onFrameDropped();
+                return;
+            }
+
+            // 直接渲染帧到编码器（使用相对时间戳）
+            if (eglEncoder != null && eglEncoder.isInitialized()) {
+                long presentationTimeNs = mapInputTimestamp(relativeTimestampNs);
+                tracer.beginDraw(absoluteTimestampNs, frameAvailableNs);
+                long renderStartNs = System.nanoTime();
+                try {
+                    eglEncoder.drawFrame(presentationTimeNs);
+                } finally {
+                    tracer.endDraw(presentationTimeNs);
+                }
+                recordRenderTiming(System.nanoTime() - renderStartNs);
+                recordedFrameCount++;
+
+                // 定期输出帧计数
+                if (recordedFrameCount % 100 == 0) {
+                    AppLog.d(TAG, "Camera " + cameraId + " Encoded frames: " + recordedFrameCount);
+                }
+            }
+
+            // 编码输出由 MediaCodec 回调交给 Muxer 写入线程，渲染线程不再轮询编码器
+
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Error processing frame", e);
+            // 发生异常时标记编码器不健康
+            encoderHealthy = false;
+        }
+    }
+
+    /**
+     * 处理拼接录制中某一路的新帧（在编码线程上执行）
+     * 每一路的新帧都要立即锁存；合成按目标帧率节流，任何一路的新帧都可以触发合成
+     */
+    private void onMosaicTileFrameAvailable(SurfaceTexture surfaceTexture) {
+        if (isReleased || eglEncoder == null || !eglEncoder.isInitialized()) {
+            return;
+        }
+
+        try {
+            eglEncoder.makeContextCurrent();
+            mosaicCompositor.latchFrame(surfaceTexture);
+
+            if (!isRecording.get() || !encoderHealthy) {
+                return;
+            }
+
+            // 按目标帧率节流（留 10% 余量，避免与摄像头帧间隔抖动产生拍频丢帧）
+            long nowNs = System.nanoTime();
+            long frameIntervalNs = 1_000_000_000L / Math.max(1, getEncodeFrameRate()) * 9 / 10;
+            if (lastMosaicFrameNs > 0 && nowNs - lastMosaicFrameNs < frameIntervalNs) {
+                return;
+            }
+            lastMosaicFrameNs = nowNs;
+
+            // 编码器反压：在途帧过多时跳过本次合成（各路画面已锁存，无需额外消费）
+            if (eglEncoder.shouldSkipFrame()) {
+                frameTracer.onFrameDropped();
+                return;
+            }
+
+            // 合成画面没有统一的传感器时间戳，使用系统时间（单调递增，与传感器时间戳同一时基）
+            if (sessionOriginNs < 0) {
+                sessionOriginNs = activeClock.obtainOrigin(cameraId, nowNs);
+                AppLog.d(TAG, "Camera " + cameraId + " First mosaic frame timestamp: " + nowNs + " ns");
+            }
+
+            long presentationTimeNs = mapInputTimestamp(Math.max(0, nowNs - sessionOriginNs));
+            FrameTracer tracer = frameTracer;
+            tracer.beginDraw(nowNs, nowNs);
+            try {
+                mosaicCompositor.drawFrame(eglEncoder, presentationTimeNs);
+            } finally {
+                tracer.endDraw(presentationTimeNs);
+            }
+            recordRenderTiming(System.nanoTime() - nowNs);
+            recordedFrameCount++;
+            if (recordedFrameCount % 100 == 0) {
+                AppLog.d(TAG, "Camera " + cameraId + " Encoded frames: " + recordedFrameCount);
+            }
+
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Error processing mosaic frame", e);
+            encoderHealthy = false;
+        }
+    }
+
+    /**
+     * 记录一帧的渲染耗时，每 10 秒输出一次统计（帧率、平均/最大渲染耗时、eglMakeCurrent 次数）
+     */
+    private void recordRenderTiming(long costNs) {
+        long nowMs = System.currentTimeMillis();
+        if (renderStatsWindowStartMs == 0) {
+            renderStatsWindowStartMs = nowMs;
+            renderStatsMakeCurrentBase = eglEncoder.getMakeCurrentCount();
+        }
+        renderStatsFrames++;
+        renderStatsTotalNs += costNs;
+        if (costNs > renderStatsMaxNs) {
+            renderStatsMaxNs = costNs;
+        }
+
+        long elapsedMs = nowMs - renderStatsWindowStartMs;
+        if (elapsedMs < RENDER_STATS_INTERVAL_MS) {
+            return;
+        }
+        long makeCurrentCount = eglEncoder.getMakeCurrentCount();
+        AppLog.d(TAG, String.format(Locale.US,
+                "Camera %s render stats (%s): %.1f fps, avg %.2f ms, max %.2f ms, eglMakeCurrent %.1f/s, "
+                        + "in flight %d, back-pressure drops %d",
+                cameraId, eglEncoder.isShared() ? "shared" : "dedicated",
+                renderStatsFrames * 1000f / elapsedMs,
+                renderStatsTotalNs / 1e6 / renderStatsFrames,
+                renderStatsMaxNs / 1e6,
+                (makeCurrentCount - renderStatsMakeCurrentBase) * 1000f / elapsedMs,
+                eglEncoder.getFramesInFlight(), eglEncoder.getBackPressureDroppedFrames()));
+        renderStatsWindowStartMs = nowMs;
+        renderStatsFrames = 0;
+        renderStatsTotalNs = 0;
+        renderStatsMaxNs = 0;
+        renderStatsMakeCurrentBase = makeCurrentCount;
+    }
+
     /**
      * 准备录制回调接口
      */
@@ -474,9 +1034,16 @@ public class CodecVideoRecorder {
         // 重置首次写入状态
         hasFirstWrite = false;
         lastFileSize = 0;
+        muxerHeaderSize = -1;
         
         isRecording.set(true);
 
+        if (preRollOnly) {
+            // 预录待命：没有文件需要监控，也不通知录制开始
+            AppLog.d(TAG, "Camera " + cameraId + " Pre-roll encoder armed");
+            return true;
+        }
+
         // 注意：不再使用单独的编码循环
         // 帧的处理直接在 onFrameAvailable 回调中完成（该回调在 encoderHandler 上执行）
         // 这样避免了 Handler 死锁问题
@@ -532,7 +1099,7 @@ public class CodecVideoRecorder {
             segmentHandler.removeCallbacks(recoveryRunnable);
             recoveryRunnable = null;
         }
-        recoveryAttempts = 0;
+        recoveryAttempts.set(0);
 
         // 取消健康检查任务
         if (healthCheckRunnable != null) {
@@ -549,25 +1116,43 @@ public class CodecVideoRecorder {
             // Ignore
         }
 
-        // 发送结束信号给编码器
-        if (encoder != null) {
+        // 发送结束信号给编码器，等待 Muxer 写入线程写完最后一帧（收到 END_OF_STREAM）
+        MediaCodec codec = encoder;
+        if (codec != null) {
             try {
-                encoder.signalEndOfInputStream();
-                // 排空编码器
-                drainEncoder(true);
+                CountDownLatch eosLatch = new CountDownLatch(1);
+                endOfStreamLatch = eosLatch;
+                codec.signalEndOfInputStream();
+                if (!eosLatch.await(END_OF_STREAM_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    AppLog.w(TAG, "Camera " + cameraId + " Timed out waiting for encoder end of stream");
+                }
             } catch (Exception e) {
                 AppLog.e(TAG, "Camera " + cameraId + " Error signaling end of stream", e);
             }
+            endOfStreamLatch = null;
         }
 
-        // 停止 muxer
-        if (muxerStarted && muxer != null) {
-            try {
-                muxer.stop();
-            } catch (Exception e) {
-                AppLog.e(TAG, "Camera " + cameraId + " Error stopping muxer", e);
-            }
-            muxerStarted = false;
+        // 停止 muxer，并丢弃尚未切换的预建 Muxer（空文件）
+        try {
+            runOnMuxerThread(() -> {
+                if (muxerStarted && muxer != null) {
+                    try {
+                        muxer.stop();
+                    } catch (Exception e) {
+                        AppLog.e(TAG, "Camera " + cameraId + " Error stopping muxer", e);
+                    }
+                    muxerStarted = false;
+                }
+                discardPendingMuxer();
+            });
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Error stopping muxer", e);
+        }
+
+        // 结束子码流文件（渲染已停止，不会再有新帧）
+        SubStreamEncoder sub = subStreamEncoder;
+        if (sub != null) {
+            sub.finish();
         }
 
         // 验证并清理所有录制的文件
@@ -603,9 +1188,36 @@ public class CodecVideoRecorder {
         }
 
         // 释放 EGL 渲染器
-        if (eglEncoder != null) {
-            eglEncoder.release();
+        // 共享渲染模式下必须在渲染线程上释放（GL 资源属于共享 Context），并先注销帧源
+        if (sharedRenderEngine != null) {
+            final EglSurfaceEncoder sharedEncoder = eglEncoder;
+            final SurfaceTexture frameSource = inputSurfaceTexture;
+            final MosaicCompositor compositor = mosaicCompositor;
+            sharedRenderEngine.runSync(() -> {
+                if (frameSource != null) {
+                    sharedRenderEngine.unregisterFrameSource(frameSource);
+                }
+                if (compositor != null) {
+                    for (SurfaceTexture tileSource : compositor.getSurfaceTextures()) {
+                        if (tileSource != null) {
+                            sharedRenderEngine.unregisterFrameSource(tileSource);
+                        }
+                    }
+                    compositor.release(sharedEncoder);
+                }
+                if (sharedEncoder != null) {
+                    sharedEncoder.release();
+                }
+            }, 2000);
             eglEncoder = null;
+        } else {
+            if (mosaicCompositor != null) {
+                mosaicCompositor.release(eglEncoder);
+            }
+            if (eglEncoder != null) {
+                eglEncoder.release();
+                eglEncoder = null;
+            }
         }
 
         // 释放缓存的录制 Surface（必须在 SurfaceTexture 之前释放）
@@ -621,14 +1233,15 @@ public class CodecVideoRecorder {
         }
 
         // 释放编码器
-        if (encoder != null) {
+        MediaCodec codec = encoder;
+        encoder = null;  // 队列中剩余的输出随之失效
+        if (codec != null) {
             try {
-                encoder.stop();
+                codec.stop();
             } catch (Exception e) {
                 // Ignore
             }
-            encoder.release();
-            encoder = null;
+            codec.release();
         }
 
         // 释放编码器输入 Surface
@@ -637,6 +1250,16 @@ public class CodecVideoRecorder {
             encoderInputSurface = null;
         }
 
+        // 释放子码流编码器（EGL 渲染器已释放，不再使用其输入 Surface）
+        SubStreamEncoder sub = subStreamEncoder;
+        subStreamEncoder = null;
+        if (sub != null) {
+            sub.release();
+        }
+
+        // 停止编码输出线程和 Muxer 写入线程（之后 Muxer 只在当前线程访问）
+        quitOutputThreads();
+
         // 释放 muxer
         if (muxer != null) {
             try {
@@ -649,8 +1272,12 @@ public class CodecVideoRecorder {
             muxer.release();
             muxer = null;
         }
+        discardPendingMuxer();
 
-        // 停止编码线程
+        // 停止编码线程（共享渲染线程由 MultiCameraManager 释放）
+        if (sharedRenderEngine != null) {
+            encoderHandler = null;
+        }
         if (encoderThread != null) {
             encoderThread.quitSafely();
             try {
@@ -726,35 +1353,204 @@ public class CodecVideoRecorder {
 
     /**
      * 创建 MediaCodec 编码器
+     * 选中了 H.265 时优先创建 H.265 编码器，失败则回退到 H.264
      */
     private void createEncoder() throws IOException {
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
-
-        encoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-
-        encoderInputSurface = encoder.createInputSurface();
-        encoder.start();
-
-        bufferInfo = new MediaCodec.BufferInfo();
-
-        AppLog.d(TAG, "Camera " + cameraId + " Encoder created: " + width + "x" + height + 
-                " @ " + frameRate + "fps, " + (bitRate / 1000) + " Kbps");
+        if (hevcEncoder != null) {
+            try {
+                createEncoder(hevcEncoder.mimeType, hevcEncoder.codecName);
+                return;
+            } catch (Exception e) {
+                AppLog.w(TAG, "Camera " + cameraId + " Failed to create HEVC encoder, falling back to H.264", e);
+                fallBackToAvc();
+            }
+        }
+        createEncoder(MIME_TYPE, null);
     }
 
     /**
-     * 创建 MediaMuxer
+     * 创建并启动编码器
+     * @param codecName 编码器名称，null 表示按类型选择默认编码器
      */
-    private void createMuxer(String filePath) throws IOException {
-        muxer = new MediaMuxer(filePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        videoTrackIndex = -1;
+    private void createEncoder(String mimeType, String codecName) throws IOException {
+        // 自适应码率已降档时，重建的编码器沿用降档后的码率
+        int encodeBitRate = getEncodeBitRate();
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, encodeBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        MediaCodec codec = codecName != null
+                ? MediaCodec.createByCodecName(codecName) : MediaCodec.createEncoderByType(mimeType);
+        encoderOutputFormat = null;
+        try {
+            // 异步模式：输出在输出线程上回调（必须在 configure 之前设置）
+            codec.setCallback(encoderCallback, outputHandler);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            encoderInputSurface = codec.createInputSurface();
+            encoder = codec;  // 先发布再启动，回调中据此识别当前编码器
+            codec.start();
+        } catch (RuntimeException e) {
+            encoder = null;
+            if (encoderInputSurface != null) {
+                encoderInputSurface.release();
+                encoderInputSurface = null;
+            }
+            codec.release();
+            throw e;
+        }
+
+        AppLog.d(TAG, "Camera " + cameraId + " Encoder created: " + codec.getName() + " " + width + "x" + height +
+                " @ " + frameRate + "fps, " + (encodeBitRate / 1000) + " Kbps");
+    }
+
+    /**
+     * H.265 不可用：上报探测器并改用 H.264（码率恢复为配置的 H.264 码率）
+     */
+    private void fallBackToAvc() {
+        if (encoderProber != null) {
+            encoderProber.reportFailure(hevcEncoder, frameRate);
+        }
+        hevcEncoder = null;
+        resetBitrateController();
+    }
+
+    /**
+     * 按当前编码格式重新创建自适应码率控制器
+     */
+    private void resetBitrateController() {
+        int configuredBitRate = hevcEncoder != null ? EncoderCapabilityProber.hevcBitRate(bitRate) : bitRate;
+        bitrateController = adaptiveBitrateEnabled
+                ? new AdaptiveBitrateController(cameraId, configuredBitRate, frameRate, OUTPUT_QUEUE_CAPACITY) : null;
+    }
+
+    /**
+     * 当前实际使用的编码码率（自适应降档或过热降级后可能低于配置值）
+     */
+    private int getEncodeBitRate() {
+        AdaptiveBitrateController controller = bitrateController;
+        int rate;
+        if (controller != null) {
+            rate = controller.getBitRate();
+        } else {
+            rate = hevcEncoder != null ? EncoderCapabilityProber.hevcBitRate(bitRate) : bitRate;
+        }
+        return (int) (rate * thermalBitRateScale);
+    }
+
+    /**
+     * 当前实际送入编码器的帧率（延时录影、自适应降档或过热降级后可能低于配置值）
+     */
+    private int getEncodeFrameRate() {
+        AdaptiveBitrateController controller = bitrateController;
+        int rate = controller != null ? controller.getFrameRate() : frameRate;
+        int thermalCap = thermalMaxFrameRate;
+        if (thermalCap > 0) {
+            rate = Math.min(rate, thermalCap);
+        }
+        return timeLapseEnabled ? Math.min(rate, timeLapseFrameRate) : rate;
+    }
+
+    /**
+     * 计算送入编码器的输入时间戳（在渲染线程上执行）
+     * 延时录影时按配置帧率的帧间隔递增，使编码器的 GOP 和码率控制按回放时间工作；
+     * 退出延时录影后在压缩后的时间轴上继续，保持单调递增
+     */
+    private long mapInputTimestamp(long relativeNs) {
+        long ptsNs;
+        if (timeLapseEnabled && lastInputPtsNs >= 0) {
+            ptsNs = lastInputPtsNs + 1_000_000_000L / Math.max(1, frameRate);
+            inputPtsOffsetNs = relativeNs - ptsNs;
+        } else {
+            ptsNs = relativeNs - inputPtsOffsetNs;
+            if (lastInputPtsNs >= 0 && ptsNs <= lastInputPtsNs) {
+                ptsNs = lastInputPtsNs + 1000;
+            }
+        }
+        lastInputPtsNs = ptsNs;
+        return ptsNs;
+    }
+
+    /**
+     * 计算写入文件的时间戳（在 Muxer 写入线程上执行）
+     * 使用编码器透传的采集时间戳（输入端已按会话原点和延时录影换算），减去分段基准；
+     * 分段第一帧对齐到分段起点之后的实际经过时间，与预录帧（按回调时间写入）衔接
+     * @param encoderPtsUs 编码器输出的时间戳
+     * @param callbackTimeNs 输出回调到达时间
+     */
+    private long mapOutputPts(long encoderPtsUs, long callbackTimeNs) {
+        if (outputPtsSegmentStartNs != segmentStartTimeNs) {
+            // 新分段：时间轴从分段起点重新开始
+            outputPtsSegmentStartNs = segmentStartTimeNs;
+            long elapsedUs = Math.max(0, (callbackTimeNs - segmentStartTimeNs) / 1000);
+            segmentBasePtsUs = encoderPtsUs - elapsedUs;
+            lastOutputPtsUs = -1;
+            writeSegmentSyncInfo();
+        }
+        long ptsUs = encoderPtsUs - segmentBasePtsUs;
+        if (lastOutputPtsUs >= 0 && ptsUs <= lastOutputPtsUs) {
+            ptsUs = lastOutputPtsUs + 1;
+        }
+        lastOutputPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    /**
+     * 把会话原点和本分段起点写入当前文件（在 Muxer 写入线程上执行，分段第一帧时调用）
+     * 回放时按各文件的 startOffsetUs 对齐多路画面
+     */
+    private void writeSegmentSyncInfo() {
+        RecordingSessionClock clock = activeClock;
+        long originNs = clock != null ? clock.getOriginNs() : -1;
+        if (originNs < 0 || muxer == null) {
+            return;
+        }
+        Mp4SyncInfo syncInfo = new Mp4SyncInfo(originNs, clock.getOriginWallTimeMs(), segmentBasePtsUs);
+        try {
+            muxer.writeSyncInfo(syncInfo);
+            AppLog.d(TAG, "Camera " + cameraId + " Segment sync info: " + syncInfo);
+        } catch (Exception e) {
+            // 同步信息只影响多路对齐，写入失败不影响录制
+            AppLog.w(TAG, "Camera " + cameraId + " Failed to write sync info: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把自适应控制器给出的码率实时应用到编码器（在 Muxer 写入线程上执行）
+     */
+    private void applyAdaptiveBitRate(MediaCodec codec, int newBitRate) {
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, newBitRate);
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Failed to update bitrate: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 按当前配置打开分段封装器（分片 MP4 或系统 MediaMuxer）
+     */
+    private SegmentMuxer openMuxer(String filePath) throws IOException {
+        if (fragmentedMp4Enabled) {
+            return new FragmentedMp4SegmentMuxer(filePath, FRAGMENT_KEY_FRAMES);
+        }
+        return new MediaMuxerSegmentMuxer(filePath);
+    }
+
+    /**
+     * 创建 Muxer（在 Muxer 写入线程上执行）
+     * 如果编码器输出格式已经到达，立即启动
+     */
+    private void createMuxer(String filePath) throws IOException {
+        muxer = openMuxer(filePath);
+        videoTrackIndex = -1;
         muxerStarted = false;
 
         AppLog.d(TAG, "Camera " + cameraId + " Muxer created: " + filePath);
+        startMuxerIfReady();
     }
 
     // 注意：encodingLoop() 方法已被移除
@@ -762,113 +1558,381 @@ public class CodecVideoRecorder {
     // 这样可以避免 Handler 死锁问题
 
     /**
-     * 排空编码器输出
-     * 
-     * 增强错误处理：
-     * - 捕获 IllegalStateException 并标记编码器不健康
-     * - 跟踪无输出的帧数，用于健康检查
+     * 创建并启动子码流编码器（未启用或拼接录制时不创建）
+     * @return 子码流输入 Surface，失败或未启用时返回 null
+     */
+    private Surface startSubStream(String filePath) {
+        if (subStreamShortEdge <= 0 || mosaicCompositor != null) {
+            return null;
+        }
+        SubStreamEncoder sub = new SubStreamEncoder(cameraId, width, height, subStreamShortEdge, subStreamBitRate,
+                frameRate, fragmentedMp4Enabled);
+        sub.setFileListener(subStreamFileListener);
+        try {
+            Surface surface = sub.start(filePath);
+            subStreamEncoder = sub;
+            return surface;
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to start sub-stream, recording main stream only", e);
+            sub.release();
+            return null;
+        }
+    }
+
+    /**
+     * 主码流切换到新文件时，通知子码流在下一个关键帧处同步切换
      */
-    private void drainEncoder(boolean endOfStream) {
-        if (encoder == null) {
+    private void switchSubStreamSegment(String filePath) {
+        SubStreamEncoder sub = subStreamEncoder;
+        if (sub != null && filePath != null) {
+            sub.switchSegment(filePath);
+        }
+    }
+
+    /**
+     * 创建编码输出线程和 Muxer 写入线程（已创建则复用）
+     */
+    private void startOutputThreads() {
+        if (outputThread == null) {
+            outputThread = new HandlerThread("CodecOutput-" + cameraId);
+            outputThread.start();
+            outputHandler = new Handler(outputThread.getLooper());
+        }
+        if (muxerThread == null) {
+            muxerThread = new HandlerThread("CodecMuxer-" + cameraId);
+            muxerThread.start();
+            muxerHandler = new Handler(muxerThread.getLooper());
+        }
+    }
+
+    /**
+     * 停止编码输出线程和 Muxer 写入线程（编码器释放之后调用）
+     */
+    private void quitOutputThreads() {
+        outputHandler = null;
+        muxerHandler = null;
+        HandlerThread[] threads = {outputThread, muxerThread};
+        for (HandlerThread thread : threads) {
+            if (thread == null) {
+                continue;
+            }
+            thread.quitSafely();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        outputThread = null;
+        muxerThread = null;
+    }
+
+    /**
+     * 编码输出入队（在输出线程上调用）
+     * 队列已满时通知写入线程处理，并最多等待 OUTPUT_QUEUE_FULL_WAIT_MS 腾出空间
+     * @return 仍然无法入队时返回 false
+     */
+    private boolean offerOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info, long nowNs) {
+        if (outputQueue.offerBuffer(codec, index, info, nowNs)) {
+            return true;
+        }
+        long deadlineNs = System.nanoTime() + OUTPUT_QUEUE_FULL_WAIT_MS * 1_000_000L;
+        do {
+            scheduleOutputDrain();
+            LockSupport.parkNanos(1_000_000L);
+            if (outputQueue.offerBuffer(codec, index, info, nowNs)) {
+                return true;
+            }
+        } while (System.nanoTime() < deadlineNs);
+        return false;
+    }
+
+    /**
+     * 丢弃一个编码输出缓冲（在输出线程上调用）
+     */
+    private void dropOutputBuffer(MediaCodec codec, int index) {
+        droppedOutputBuffers++;
+        try {
+            codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    /**
+     * 请求编码器尽快输出关键帧（任意线程）
+     * @return 请求失败返回 false
+     */
+    private boolean requestSyncFrame(MediaCodec codec) {
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            codec.setParameters(params);
+            return true;
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Failed to request sync frame: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 通知 Muxer 写入线程处理队列（在输出线程上调用）
+     * 写入线程正在处理或已排队时不重复投递
+     */
+    private void scheduleOutputDrain() {
+        Handler handler = muxerHandler;
+        if (handler != null && outputDrainScheduled.compareAndSet(false, true)) {
+            if (!handler.post(outputDrainRunnable)) {
+                outputDrainScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 取出队列中的编码输出并写入 Muxer（在 Muxer 写入线程上执行）
+     */
+    private void drainOutputQueue() {
+        // 先清除标志再取队列，取完之后入队的条目会重新投递
+        outputDrainScheduled.set(false);
+        EncodedFrameQueue.Entry entry = outputEntry;
+        while (outputQueue.poll(entry)) {
+            if (entry.codec != encoder) {
+                // 已停止或已替换的编码器，其输出缓冲已失效
+                continue;
+            }
+            if (entry.type == EncodedFrameQueue.TYPE_FORMAT) {
+                handleOutputFormat(entry.format);
+            } else {
+                writeEncodedBuffer(entry.codec, entry.index, entry.info, entry.callbackTimeNs);
+            }
+        }
+        entry.codec = null;
+        entry.format = null;
+    }
+
+    /**
+     * 处理编码器输出格式变化（在 Muxer 写入线程上执行）
+     */
+    private void handleOutputFormat(MediaFormat newFormat) {
+        if (muxerStarted) {
+            AppLog.w(TAG, "Camera " + cameraId + " Format changed twice");
             return;
         }
+        encoderOutputFormat = newFormat;
+        encoderHealthy = true;  // 收到格式变化说明编码器正常
+        if (preRollOnly) {
+            if (preRollBuffer != null) {
+                preRollBuffer.updateFormat(newFormat);
+            }
+            return;
+        }
+        startMuxerIfReady();
+    }
 
-        final int TIMEOUT_USEC = 10000;
-        boolean gotOutput = false;
+    /**
+     * 编码器输出格式和 Muxer 都就绪后启动 Muxer（在 Muxer 写入线程上执行）
+     * 分段切换、重建时编码器先于 Muxer 创建，两者到达的先后不确定，因此两处都会调用
+     */
+    private void startMuxerIfReady() {
+        MediaFormat format = encoderOutputFormat;
+        if (muxer == null || muxerStarted || format == null) {
+            return;
+        }
+        try {
+            videoTrackIndex = muxer.addTrack(format);
+            muxer.start();
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to start muxer", e);
+            encoderHealthy = false;
+            return;
+        }
+        muxerStarted = true;
+        String startedPath = currentFilePath;
+        muxerHeaderSize = startedPath != null ? new File(startedPath).length() : 0;
+        AppLog.d(TAG, "Camera " + cameraId + " Muxer started, track=" + videoTrackIndex + ", header=" + muxerHeaderSize + " bytes");
+
+        if (preRollBuffer != null) {
+            boolean compatible = preRollBuffer.updateFormat(format);
+            if (flushPreRollOnStart) {
+                flushPreRollOnStart = false;
+                if (compatible) {
+                    flushPreRoll();
+                }
+            }
+            // 缓冲中的画面已写入本文件，或早于本次录制（中间没有待命），清空避免之后的触发重复写入
+            preRollBuffer.clear();
+        }
+    }
 
+    /**
+     * 写入一个编码输出缓冲并释放（在 Muxer 写入线程上执行）
+     * @param callbackTimeNs 输出回调到达时间，用于计算 PTS（不受写入排队延迟影响）
+     */
+    private void writeEncodedBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info, long callbackTimeNs) {
         try {
-            while (true) {
-                int outputBufferIndex;
-                try {
-                    outputBufferIndex = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-                } catch (IllegalStateException e) {
-                    // 编码器处于无效状态，标记为不健康
-                    AppLog.e(TAG, "Camera " + cameraId + " Encoder in invalid state during dequeueOutputBuffer", e);
-                    encoderHealthy = false;
-                    return;
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+
+            if (encodedData == null) {
+                AppLog.e(TAG, "Camera " + cameraId + " Encoder output buffer " + index + " was null");
+            } else if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // 配置数据，忽略（已在格式变化中处理）
+                info.size = 0;
+            }
+
+            if (encodedData != null && info.size != 0) {
+                boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+                // 无缝分段：在关键帧处切换到预建的下一个 Muxer
+                if (segmentSwitchPending && keyFrame) {
+                    handOverToPendingMuxer(callbackTimeNs);
                 }
 
-                if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (!endOfStream) {
-                        break;  // 没有数据了
+                if (preRollOnly) {
+                    // 预录待命：不写文件，只进入预录缓冲（使用回调到达时间，flush 时按此重建时间轴）
+                    if (preRollBuffer != null) {
+                        preRollBuffer.append(encodedData, info.offset, info.size, keyFrame, callbackTimeNs);
                     }
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // 输出格式变化，添加视频轨道
-                    if (muxerStarted) {
-                        AppLog.w(TAG, "Camera " + cameraId + " Format changed twice");
-                    } else {
-                        MediaFormat newFormat = encoder.getOutputFormat();
-                        videoTrackIndex = muxer.addTrack(newFormat);
-                        muxer.start();
-                        muxerStarted = true;
-                        encoderHealthy = true;  // 收到格式变化说明编码器正常
-                        lastEncoderOutputTime = System.currentTimeMillis();
-                        AppLog.d(TAG, "Camera " + cameraId + " Muxer started, track=" + videoTrackIndex);
-                    }
-                    gotOutput = true;
-                } else if (outputBufferIndex >= 0) {
-                    ByteBuffer encodedData = encoder.getOutputBuffer(outputBufferIndex);
-
-                    if (encodedData == null) {
-                        AppLog.e(TAG, "Camera " + cameraId + " Encoder output buffer " + outputBufferIndex + " was null");
-                    } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // 配置数据，忽略（已在 FORMAT_CHANGED 中处理）
-                        bufferInfo.size = 0;
+                    encodedOutputFrameCount++;
+                } else if (!muxerStarted) {
+                    AppLog.e(TAG, "Camera " + cameraId + " Muxer not started but got data");
+                } else {
+                    // 使用采集时间戳计算 PTS，而不是基于帧数或输出到达时间
+                    // 优点：
+                    //   1. 视频时长精确反映实际录制时长
+                    //   2. 不受帧率波动和编码/写入排队延迟影响（帧间隔与采集时一致）
+                    //   3. 多路摄像头共用会话原点，可以按同步信息对齐
+                    // 延时录影的时间压缩已在输入端完成（见 mapInputTimestamp）
+                    long encoderPtsUs = info.presentationTimeUs;
+                    long calculatedPtsUs = mapOutputPts(encoderPtsUs, callbackTimeNs);
+
+                    // 调试日志（仅第一帧）
+                    if (encodedOutputFrameCount == 0) {
+                        AppLog.d(TAG, "Camera " + cameraId + " First frame PTS: " + calculatedPtsUs + " us");
                     }
 
-                    if (bufferInfo.size != 0) {
-                        if (!muxerStarted) {
-                            AppLog.e(TAG, "Camera " + cameraId + " Muxer not started but got data");
-                        } else {
-                            // 使用系统时间计算 PTS，而不是基于帧数和假设帧率
-                            // 优点：
-                            //   1. 视频时长精确反映实际录制时长
-                            //   2. 不受帧率波动影响（实际帧率可能是 25-30fps 不等）
-                            //   3. 掉帧时时间轴仍然正确（只是画面会卡顿）
-                            long currentTimeNs = System.nanoTime();
-                            long calculatedPtsUs = (currentTimeNs - segmentStartTimeNs) / 1000;
-                            
-                            // 调试日志（仅第一帧）
-                            if (encodedOutputFrameCount == 0) {
-                                AppLog.d(TAG, "Camera " + cameraId + " First frame PTS: " + calculatedPtsUs + " us");
-                            }
-                            
-                            // 使用计算的时间戳
-                            bufferInfo.presentationTimeUs = calculatedPtsUs;
-                            
-                            encodedData.position(bufferInfo.offset);
-                            encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                            muxer.writeSampleData(videoTrackIndex, encodedData, bufferInfo);
-                            
-                            encodedOutputFrameCount++;
-                            lastEncoderOutputTime = System.currentTimeMillis();
-                            gotOutput = true;
-                        }
-                    }
+                    // 使用计算的时间戳
+                    info.presentationTimeUs = calculatedPtsUs;
 
+                    encodedData.position(info.offset);
+                    encodedData.limit(info.offset + info.size);
+                    FrameTracer tracer = frameTracer;
+                    tracer.beginWrite();
+                    long writeStartNs = System.nanoTime();
                     try {
-                        encoder.releaseOutputBuffer(outputBufferIndex, false);
-                    } catch (IllegalStateException e) {
-                        AppLog.e(TAG, "Camera " + cameraId + " Encoder in invalid state during releaseOutputBuffer", e);
-                        encoderHealthy = false;
-                        return;
+                        muxer.writeSampleData(videoTrackIndex, encodedData, info);
+                    } finally {
+                        tracer.endWrite(encoderPtsUs, callbackTimeNs);
                     }
 
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        break;  // 流结束
+                    AdaptiveBitrateController controller = bitrateController;
+                    if (controller != null) {
+                        long writeEndNs = System.nanoTime();
+                        if (controller.onSampleWritten(info.size, writeEndNs - writeStartNs, outputQueue.size(), writeEndNs)) {
+                            applyAdaptiveBitRate(codec, getEncodeBitRate());
+                        }
                     }
+
+                    encodedOutputFrameCount++;
                 }
             }
         } catch (Exception e) {
-            AppLog.e(TAG, "Camera " + cameraId + " Unexpected error in drainEncoder", e);
+            AppLog.e(TAG, "Camera " + cameraId + " Unexpected error writing encoder output", e);
             encoderHealthy = false;
         }
 
-        // 更新无输出帧计数器
-        if (gotOutput) {
-            framesWithoutEncoderOutput = 0;
-        } else {
-            framesWithoutEncoderOutput++;
+        try {
+            codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Encoder in invalid state during releaseOutputBuffer", e);
+            encoderHealthy = false;
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            CountDownLatch latch = endOfStreamLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * 需要在指定线程上同步执行的任务（Muxer 写入线程或编码线程）
+     */
+    private interface SyncTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * 在 Muxer 写入线程上同步执行任务（先写完队列中已到达的输出，保证顺序）
+     * 任务抛出的异常会在调用线程上重新抛出
+     */
+    private void runOnMuxerThread(SyncTask task) throws Exception {
+        runSync(muxerHandler, "muxer", () -> {
+            drainOutputQueue();
+            task.run();
+        });
+    }
+
+    /**
+     * 在编码线程（共享渲染线程）上同步执行任务，只用于必须在 GL 线程上完成的 EGL 操作
+     * 任务开始时渲染线程上正在绘制的帧已经结束；传入空任务即可等待当前帧绘制完成
+     */
+    private void runOnEncoderThread(SyncTask task) throws Exception {
+        runSync(encoderHandler, "encoder", task);
+    }
+
+    /**
+     * 在 handler 所在线程上同步执行任务，任务抛出的异常会在调用线程上重新抛出
+     */
+    private void runSync(Handler handler, String threadName, SyncTask task) throws Exception {
+        if (handler == null) {
+            throw new IllegalStateException("Thread not running: " + threadName);
+        }
+        if (handler.getLooper().isCurrentThread()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Exception[] error = {null};
+        boolean posted = handler.post(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                error[0] = e;
+            } finally {
+                latch.countDown();
+            }
+        });
+        if (!posted) {
+            throw new IllegalStateException("Thread not running: " + threadName);
+        }
+        if (!latch.await(SYNC_TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Timeout waiting for " + threadName + " thread");
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * 暂停渲染后等待编码线程上正在绘制的帧结束（之后才能释放编码器输入 Surface）
+     */
+    private void waitForRenderIdle() {
+        try {
+            runOnEncoderThread(() -> {
+            });
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Error waiting for render thread: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把 EGL 输出切换到新编码器的输入 Surface（在编码线程上执行，调用线程等待完成）
+     */
+    private void attachEncoderSurface() throws Exception {
+        final EglSurfaceEncoder egl = eglEncoder;
+        final Surface surface = encoderInputSurface;
+        if (egl != null && surface != null) {
+            runOnEncoderThread(() -> egl.updateOutputSurface(surface));
         }
     }
 
@@ -881,27 +1945,50 @@ public class CodecVideoRecorder {
      * 3. 这样可以确保实际录制的视频时长达到设定的分段时长
      */
     private void scheduleNextSegment() {
+        scheduleNextSegment(System.nanoTime());
+    }
+
+    /**
+     * 调度下一段录制，时长从指定的分段起点开始计
+     * 无缝切换时起点是切换所在关键帧的输出时间，扣除从切换到调度之间已经过的时间，分段不会逐段变长
+     * @param segmentStartNs 当前分段的起点（System.nanoTime()）
+     */
+    private void scheduleNextSegment(long segmentStartNs) {
         if (segmentRunnable != null) {
             segmentHandler.removeCallbacks(segmentRunnable);
         }
 
+        // 无缝分段要求 Muxer 已启动（已拿到编码器输出格式），否则回退到传统切换
+        final boolean seamless = seamlessSegmentEnabled && encoderOutputFormat != null
+                && segmentDurationMs > SEAMLESS_SWITCH_LEAD_MS * 2;
+
         segmentRunnable = () -> {
-            if (isRecording.get() && encoderHandler != null) {
-                AppLog.d(TAG, "Camera " + cameraId + " Scheduling segment switch on encoder thread");
-                // 在编码线程上执行切换，避免线程冲突
-                encoderHandler.post(() -> switchToNextSegment());
+            if (!isRecording.get() || encoderHandler == null) {
+                return;
+            }
+            if (seamless) {
+                AppLog.d(TAG, "Camera " + cameraId + " Preparing seamless segment switch");
+                prepareSeamlessSwitch();
+            } else {
+                // 在分段线程上执行切换，不占用各摄像头共用的渲染线程
+                switchToNextSegment();
             }
         };
 
         // 延迟执行（使用配置的分段时长 + 补偿时间）
         // 补偿编码器初始化延迟和停止时的帧丢失
-        long actualDelayMs = segmentDurationMs + SEGMENT_DURATION_COMPENSATION_MS;
+        // 无缝模式下提前 SEAMLESS_SWITCH_LEAD_MS 准备，实际切换点是其后的第一个关键帧
+        long actualDelayMs = seamless
+                ? segmentDurationMs - SEAMLESS_SWITCH_LEAD_MS
+                : segmentDurationMs + SEGMENT_DURATION_COMPENSATION_MS;
+        long elapsedMs = Math.max(0, (System.nanoTime() - segmentStartNs) / 1000000L);
+        actualDelayMs = Math.max(0, actualDelayMs - elapsedMs);
         segmentHandler.postDelayed(segmentRunnable, actualDelayMs);
         AppLog.d(TAG, "Camera " + cameraId + " Scheduled next segment in " + (segmentDurationMs / 1000) + " seconds (actual delay: " + actualDelayMs + "ms)");
     }
 
     /**
-     * 切换到下一段（在编码线程上执行）
+     * 切换到下一段（在分段线程上执行）
      * 
      * 采用简单方案：完整停止当前录制，然后重新开始
      * 类似 MediaRecorder 的方式，虽然会丢失几帧，但更简单可靠
@@ -917,7 +2004,7 @@ public class CodecVideoRecorder {
             return;
         }
         
-        AppLog.d(TAG, "Camera " + cameraId + " Starting segment switch on encoder thread");
+        AppLog.d(TAG, "Camera " + cameraId + " Starting segment switch");
         
         boolean switchSuccess = false;
         
@@ -934,21 +2021,22 @@ public class CodecVideoRecorder {
             String nextSegmentPath = generateSegmentPath();
             currentFilePath = nextSegmentPath;
             recordedFilePaths.add(nextSegmentPath);  // 记录新分段文件
+            switchSubStreamSegment(nextSegmentPath);
             
-            // 重置分段开始时间和帧计数
-            segmentStartTimeNs = System.nanoTime();
-            encodedOutputFrameCount = 0;
-            // 不重置 firstFrameTimestampNs，保持 EGL 时间戳单调递增
-
-            // 4. 创建新的 Muxer
-            createMuxer(nextSegmentPath);
+            // 4. 创建新的 Muxer（在 Muxer 写入线程上），并重置分段开始时间和帧计数
+            // 不重置会话原点，保持 EGL 时间戳单调递增
+            runOnMuxerThread(() -> {
+                createMuxer(nextSegmentPath);
+                segmentStartTimeNs = System.nanoTime();
+                encodedOutputFrameCount = 0;
+            });
             
             // 5. 重新开始录制
             isRecording.set(true);
             switchSuccess = true;
             
             // 成功：重置恢复计数器
-            recoveryAttempts = 0;
+            recoveryAttempts.set(0);
             
             AppLog.d(TAG, "Camera " + cameraId + " Switched to segment " + segmentIndex + ": " + nextSegmentPath);
 
@@ -959,7 +2047,7 @@ public class CodecVideoRecorder {
             }
 
         } catch (Exception e) {
-            AppLog.e(TAG, "Camera " + cameraId + " Failed to switch segment (attempt " + (recoveryAttempts + 1) + ")", e);
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to switch segment (attempt " + (recoveryAttempts.get() + 1) + ")", e);
             
             // 标记录制状态（允许帧回调继续消费帧）
             isRecording.set(false);
@@ -976,17 +2064,17 @@ public class CodecVideoRecorder {
             segmentHandler.post(() -> scheduleNextSegment());
         } else {
             // 失败：启动快速恢复机制
-            recoveryAttempts++;
-            if (recoveryAttempts <= MAX_RECOVERY_ATTEMPTS) {
+            int attempts = recoveryAttempts.incrementAndGet();
+            if (attempts <= MAX_RECOVERY_ATTEMPTS) {
                 // 快速重试（5秒后）
                 AppLog.w(TAG, "Camera " + cameraId + " Segment switch failed, quick retry in " 
-                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + recoveryAttempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
+                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + attempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
                 scheduleRecoveryRetry();
             } else {
                 // 超过最大重试次数，回到正常分段间隔
                 AppLog.w(TAG, "Camera " + cameraId + " Max recovery attempts reached, will retry in " 
                     + (segmentDurationMs / 1000) + " seconds");
-                recoveryAttempts = 0;  // 重置计数器
+                recoveryAttempts.set(0);  // 重置计数器
                 segmentHandler.post(() -> scheduleNextSegment());
             }
         }
@@ -1004,8 +2092,7 @@ public class CodecVideoRecorder {
         recoveryRunnable = () -> {
             if (!isReleased && encoderHandler != null) {
                 AppLog.d(TAG, "Camera " + cameraId + " Recovery retry triggered");
-                // 在编码线程上执行恢复
-                encoderHandler.post(() -> attemptRecovery());
+                attemptRecovery();
             }
         };
         
@@ -1013,10 +2100,10 @@ public class CodecVideoRecorder {
     }
     
     /**
-     * 尝试恢复录制
+     * 尝试恢复录制（在分段线程上执行）
      */
     private void attemptRecovery() {
-        AppLog.d(TAG, "Camera " + cameraId + " Attempting recovery (attempt " + recoveryAttempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
+        AppLog.d(TAG, "Camera " + cameraId + " Attempting recovery (attempt " + recoveryAttempts.get() + "/" + MAX_RECOVERY_ATTEMPTS + ")");
         
         boolean recoverySuccess = false;
         
@@ -1024,28 +2111,27 @@ public class CodecVideoRecorder {
             // 确保编码器和 EGL 已准备好
             if (encoder == null) {
                 createEncoder();
-                if (eglEncoder != null && encoderInputSurface != null) {
-                    eglEncoder.updateOutputSurface(encoderInputSurface);
-                }
+                attachEncoderSurface();
             }
             
-            // 创建新的 Muxer
-            if (muxer == null) {
-                String nextSegmentPath = generateSegmentPath();
-                currentFilePath = nextSegmentPath;
-                createMuxer(nextSegmentPath);
-            }
-            
-            // 重置分段开始时间和帧计数
-            segmentStartTimeNs = System.nanoTime();
-            encodedOutputFrameCount = 0;
+            // 创建新的 Muxer，并重置分段开始时间和帧计数（在 Muxer 写入线程上）
+            runOnMuxerThread(() -> {
+                if (muxer == null) {
+                    String nextSegmentPath = generateSegmentPath();
+                    currentFilePath = nextSegmentPath;
+                    createMuxer(nextSegmentPath);
+                    switchSubStreamSegment(nextSegmentPath);
+                }
+                segmentStartTimeNs = System.nanoTime();
+                encodedOutputFrameCount = 0;
+            });
             
             // 恢复录制
             isRecording.set(true);
             recoverySuccess = true;
             
             // 成功：重置恢复计数器
-            recoveryAttempts = 0;
+            recoveryAttempts.set(0);
             
             AppLog.d(TAG, "Camera " + cameraId + " Recovery successful, recording resumed: " + currentFilePath);
             
@@ -1057,22 +2143,22 @@ public class CodecVideoRecorder {
             isRecording.set(false);
             
             // 继续快速重试或回到正常间隔
-            recoveryAttempts++;
-            if (recoveryAttempts <= MAX_RECOVERY_ATTEMPTS) {
+            int attempts = recoveryAttempts.incrementAndGet();
+            if (attempts <= MAX_RECOVERY_ATTEMPTS) {
                 AppLog.w(TAG, "Camera " + cameraId + " Recovery failed, quick retry in " 
-                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + recoveryAttempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
+                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + attempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
                 scheduleRecoveryRetry();
             } else {
                 AppLog.w(TAG, "Camera " + cameraId + " Max recovery attempts reached, will retry in " 
                     + (segmentDurationMs / 1000) + " seconds");
-                recoveryAttempts = 0;
+                recoveryAttempts.set(0);
                 segmentHandler.post(() -> scheduleNextSegment());
             }
         }
     }
     
     /**
-     * 为分段切换停止录制（在编码线程上执行）
+     * 为分段切换停止录制（在分段线程上执行）
      * 完整停止并重新创建编码器
      * 
      * 注意：此方法有完善的异常处理，即使部分操作失败也会继续执行
@@ -1080,46 +2166,46 @@ public class CodecVideoRecorder {
     private void stopRecordingForSegmentSwitch() {
         AppLog.d(TAG, "Camera " + cameraId + " Stopping recording for segment switch");
         
-        // 1. 停止录制（阻止新帧写入）
+        // 1. 停止录制（阻止新帧写入），并等待渲染线程上正在绘制的帧结束
         isRecording.set(false);
+        waitForRenderIdle();
         
-        // 2. 排空编码器（drainEncoder 现在在同一线程执行，不会有竞争）
-        if (encoder != null) {
-            try {
-                drainEncoder(false);  // 先排空已有数据
-            } catch (Exception e) {
-                AppLog.e(TAG, "Camera " + cameraId + " Error draining encoder during segment switch", e);
-            }
-        }
-        
-        // 3. 停止 Muxer（即使失败也继续）
-        if (muxer != null) {
-            try {
-                if (muxerStarted) {
-                    muxer.stop();
+        // 2-3. 写完队列中已到达的输出，停止 Muxer 并丢弃预建 Muxer（在 Muxer 写入线程上执行，即使失败也继续）
+        try {
+            runOnMuxerThread(() -> {
+                discardPendingMuxer();
+                if (muxer != null) {
+                    try {
+                        if (muxerStarted) {
+                            muxer.stop();
+                        }
+                        muxer.release();
+                    } catch (Exception e) {
+                        AppLog.e(TAG, "Camera " + cameraId + " Error stopping muxer during segment switch", e);
+                    }
+                    muxer = null;
+                    muxerStarted = false;
+                    videoTrackIndex = -1;
                 }
-                muxer.release();
-            } catch (Exception e) {
-                AppLog.e(TAG, "Camera " + cameraId + " Error stopping muxer during segment switch", e);
-            }
-            muxer = null;
-            muxerStarted = false;
-            videoTrackIndex = -1;
+            });
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Error finishing muxer during segment switch", e);
         }
         
-        // 4. 释放旧编码器（即使失败也继续）
-        if (encoder != null) {
+        // 4. 释放旧编码器（即使失败也继续），之后队列中残留的旧编码器输出会被丢弃
+        MediaCodec oldEncoder = encoder;
+        encoder = null;
+        if (oldEncoder != null) {
             try {
-                encoder.stop();
+                oldEncoder.stop();
             } catch (Exception e) {
                 AppLog.w(TAG, "Camera " + cameraId + " Error stopping encoder: " + e.getMessage());
             }
             try {
-                encoder.release();
+                oldEncoder.release();
             } catch (Exception e) {
                 AppLog.w(TAG, "Camera " + cameraId + " Error releasing encoder: " + e.getMessage());
             }
-            encoder = null;
         }
         
         if (encoderInputSurface != null) {
@@ -1135,10 +2221,8 @@ public class CodecVideoRecorder {
         try {
             createEncoder();
             
-            // 重新设置 EGL 的输出 Surface
-            if (eglEncoder != null && encoderInputSurface != null) {
-                eglEncoder.updateOutputSurface(encoderInputSurface);
-            }
+            // 重新设置 EGL 的输出 Surface（在渲染线程上执行）
+            attachEncoderSurface();
             
             AppLog.d(TAG, "Camera " + cameraId + " Encoder recreated for new segment");
             
@@ -1149,6 +2233,214 @@ public class CodecVideoRecorder {
         }
     }
 
+    /**
+     * 把预录缓冲中的帧写入当前文件（在 Muxer 写入线程上执行，Muxer 刚启动、尚未写入实时帧时调用）
+     * 文件时间轴从缓冲中最早的一帧开始，之后的实时帧按实际时间接续
+     */
+    private void flushPreRoll() {
+        final long[] firstTimeNs = {-1};
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int flushed;
+        try {
+            flushed = preRollBuffer.drainTo((frame, timestampNs, keyFrame) -> {
+                if (firstTimeNs[0] < 0) {
+                    firstTimeNs[0] = timestampNs;
+                }
+                info.set(0, frame.remaining(), (timestampNs - firstTimeNs[0]) / 1000,
+                        keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(videoTrackIndex, frame, info);
+            }, PRE_ROLL_MAX_AGE_NS);
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to write pre-roll frames", e);
+            return;
+        }
+        if (flushed > 0) {
+            segmentStartTimeNs = firstTimeNs[0];
+            encodedOutputFrameCount += flushed;
+            AppLog.d(TAG, "Camera " + cameraId + " Wrote " + flushed + " pre-roll frames ("
+                    + ((System.nanoTime() - firstTimeNs[0]) / 1000000L) + " ms before now)");
+        } else {
+            // 预录缓冲只在空闲待命时填充：触发前正在录制（画面已在上一个文件中）或未待命时没有可写入的画面
+            AppLog.d(TAG, "Camera " + cameraId + " No pre-roll frames available (pre-roll encoder was not armed)");
+        }
+    }
+
+    /**
+     * 准备无缝分段切换（在分段线程上执行）
+     * 1. 在分段线程上创建下一段的 Muxer（文件创建属于 I/O，不占用编码线程）
+     * 2. 投递到 Muxer 写入线程：请求关键帧并挂起切换，等待关键帧到达
+     */
+    private void prepareSeamlessSwitch() {
+        final String nextPath = generateSegmentPath();
+        final MediaFormat format = encoderOutputFormat;
+        SegmentMuxer nextMuxer = null;
+        int trackIndex;
+        try {
+            nextMuxer = openMuxer(nextPath);
+            trackIndex = nextMuxer.addTrack(format);
+            nextMuxer.start();
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to pre-create next muxer, falling back to legacy switch", e);
+            if (nextMuxer != null) {
+                try {
+                    nextMuxer.release();
+                } catch (Exception ignored) {
+                }
+            }
+            new File(nextPath).delete();
+            switchToNextSegment();
+            return;
+        }
+
+        final SegmentMuxer preparedMuxer = nextMuxer;
+        final int preparedTrack = trackIndex;
+        Handler handler = muxerHandler;
+        if (handler == null || !handler.post(() -> armSeamlessSwitch(preparedMuxer, preparedTrack, nextPath))) {
+            releaseMuxerQuietly(preparedMuxer, true);
+            new File(nextPath).delete();
+        }
+    }
+
+    /**
+     * 挂起无缝切换并请求关键帧（在 Muxer 写入线程上执行）
+     */
+    private void armSeamlessSwitch(SegmentMuxer nextMuxer, int trackIndex, String nextPath) {
+        MediaCodec codec = encoder;
+        if (!isRecording.get() || isReleased || codec == null) {
+            releaseMuxerQuietly(nextMuxer, true);
+            new File(nextPath).delete();
+            return;
+        }
+
+        discardPendingMuxer();
+        pendingMuxer = nextMuxer;
+        pendingTrackIndex = trackIndex;
+        pendingFilePath = nextPath;
+        segmentSwitchPending = true;
+        segmentSwitchRequestTimeMs = System.currentTimeMillis();
+
+        // 请求失败也没关系：I 帧间隔为 1 秒，自然关键帧很快会到达
+        requestSyncFrame(codec);
+
+        AppLog.d(TAG, "Camera " + cameraId + " Seamless switch armed, waiting for key frame -> " + nextPath);
+
+        // 关键帧超时保护：超时仍未切换则回退到传统切换
+        final String armedPath = nextPath;
+        segmentHandler.postDelayed(() -> {
+            Handler handler = muxerHandler;
+            if (handler != null) {
+                handler.post(() -> {
+                    if (segmentSwitchPending && armedPath.equals(pendingFilePath)) {
+                        AppLog.w(TAG, "Camera " + cameraId + " No key frame within " + SEAMLESS_SWITCH_KEYFRAME_TIMEOUT_MS
+                                + "ms, falling back to legacy segment switch");
+                        // 不再在关键帧处切换，预建 Muxer 由传统切换丢弃
+                        segmentSwitchPending = false;
+                        segmentHandler.post(() -> switchToNextSegment());
+                    }
+                });
+            }
+        }, SEAMLESS_SWITCH_KEYFRAME_TIMEOUT_MS);
+    }
+
+    /**
+     * 在关键帧处把输出切换到预建的 Muxer（在 Muxer 写入线程上执行，由 writeEncodedBuffer 调用）
+     * 旧 Muxer 的 stop()（写 moov）交给分段线程，避免阻塞写入线程
+     * @param keyFrameTimeNs 关键帧输出回调时间，新分段的 PTS 从这里开始计
+     */
+    private void handOverToPendingMuxer(long keyFrameTimeNs) {
+        final SegmentMuxer completedMuxer = muxer;
+        final boolean completedStarted = muxerStarted;
+        final String completedPath = currentFilePath;
+
+        muxer = pendingMuxer;
+        videoTrackIndex = pendingTrackIndex;
+        muxerStarted = true;
+        currentFilePath = pendingFilePath;
+        recordedFilePaths.add(pendingFilePath);
+        switchSubStreamSegment(pendingFilePath);
+        segmentIndex++;
+
+        pendingMuxer = null;
+        pendingTrackIndex = -1;
+        pendingFilePath = null;
+        segmentSwitchPending = false;
+
+        // 新分段的 PTS 从该关键帧开始计
+        segmentStartTimeNs = keyFrameTimeNs;
+        encodedOutputFrameCount = 0;
+        recoveryAttempts.set(0);
+
+        final int newIndex = segmentIndex;
+        AppLog.d(TAG, "Camera " + cameraId + " Seamless switch to segment " + newIndex + " at key frame ("
+                + (System.currentTimeMillis() - segmentSwitchRequestTimeMs) + "ms after request): " + currentFilePath);
+
+        // 下一次切换从该关键帧开始计时，不等旧 Muxer 停止（stop 写 moov 的耗时不计入新分段）
+        segmentHandler.post(() -> {
+            if (isRecording.get()) {
+                scheduleNextSegment(keyFrameTimeNs);
+            }
+        });
+
+        segmentHandler.post(() -> {
+            if (completedMuxer != null) {
+                try {
+                    if (completedStarted) {
+                        completedMuxer.stop();
+                    }
+                } catch (Exception e) {
+                    AppLog.e(TAG, "Camera " + cameraId + " Error stopping completed muxer", e);
+                }
+                try {
+                    completedMuxer.release();
+                } catch (Exception e) {
+                    AppLog.w(TAG, "Camera " + cameraId + " Error releasing completed muxer: " + e.getMessage());
+                }
+            }
+            validateAndCleanupFile(completedPath);
+            if (callback != null) {
+                callback.onSegmentSwitch(cameraId, newIndex, completedPath);
+            }
+        });
+    }
+
+    /**
+     * 丢弃尚未切换的预建 Muxer，并删除其空文件
+     */
+    private void discardPendingMuxer() {
+        segmentSwitchPending = false;
+        if (pendingMuxer == null) {
+            return;
+        }
+        releaseMuxerQuietly(pendingMuxer, true);
+        if (pendingFilePath != null) {
+            new File(pendingFilePath).delete();
+        }
+        pendingMuxer = null;
+        pendingTrackIndex = -1;
+        pendingFilePath = null;
+    }
+
+    /**
+     * 静默释放 Muxer
+     * @param started 是否已经 start()（需要先 stop）
+     */
+    private void releaseMuxerQuietly(SegmentMuxer target, boolean started) {
+        if (target == null) {
+            return;
+        }
+        try {
+            if (started) {
+                target.stop();
+            }
+        } catch (Exception ignored) {
+            // 未写入任何样本的 Muxer stop 会抛异常，忽略
+        }
+        try {
+            target.release();
+        } catch (Exception ignored) {
+        }
+    }
+
     /**
      * 生成新的分段文件路径
      * 优先使用 TimestampProvider 获取统一时间戳（多路摄像头同步）
@@ -1166,7 +2458,8 @@ public class CodecVideoRecorder {
             AppLog.d(TAG, "Camera " + cameraId + " using local timestamp: " + timestamp);
         }
         String fileName = timestamp + "_" + cameraPosition + ".mp4";
-        return new File(saveDirectory, fileName).getAbsolutePath();
+        // 按日期分层存储时，跨零点的分段放入新日期的目录
+        return StorageHelper.resolveSegmentFile(new File(saveDirectory), fileName).getAbsolutePath();
     }
 
     /**
@@ -1194,18 +2487,19 @@ public class CodecVideoRecorder {
                 // Muxer 从未启动，但已经处理了很多帧
                 needsRecovery = true;
                 reason = "muxer never started after " + recordedFrameCount + " frames";
-            } else if (framesWithoutEncoderOutput > MAX_FRAMES_WITHOUT_OUTPUT) {
+            } else if (isEncoderOutputStalled()) {
                 needsRecovery = true;
-                reason = "no encoder output for " + framesWithoutEncoderOutput + " frames";
+                reason = "no encoder output callback for "
+                        + ((System.nanoTime() - lastOutputCallbackNs) / 1000000L) + " ms while rendering";
             }
 
             if (needsRecovery) {
                 AppLog.w(TAG, "Camera " + cameraId + " Encoder health check FAILED: " + reason);
                 AppLog.w(TAG, "Camera " + cameraId + " Attempting to rebuild encoder...");
 
-                // 在编码线程上执行重建
+                // 在分段线程上执行重建，只有 EGL Surface 的切换交给渲染线程
                 if (encoderHandler != null) {
-                    encoderHandler.post(() -> rebuildEncoder());
+                    rebuildEncoder();
                 }
             } else {
                 // 编码器健康，继续调度下一次检查
@@ -1217,44 +2511,68 @@ public class CodecVideoRecorder {
     }
 
     /**
-     * 重建编码器（在编码线程上执行）
+     * 根据输出回调节奏判断编码器是否卡死（在分段线程上执行）
+     * 两次检查之间仍有新帧渲染进编码器，但超过 ENCODER_OUTPUT_STALL_NS（低帧率时按帧间隔放宽）没有任何输出回调
+     */
+    private boolean isEncoderOutputStalled() {
+        long frames = recordedFrameCount;
+        boolean rendering = frames > healthCheckFrameBase;
+        healthCheckFrameBase = frames;
+        // 低帧率（延时录影）时输出间隔本来就长，阈值至少为 3 个帧间隔
+        long stallNs = Math.max(ENCODER_OUTPUT_STALL_NS, 3_000_000_000L / Math.max(1, getEncodeFrameRate()));
+        return rendering && System.nanoTime() - lastOutputCallbackNs > stallNs;
+    }
+
+    /**
+     * 重建编码器（在分段线程上执行）
      * 当检测到编码器不健康时调用
      */
     private void rebuildEncoder() {
         AppLog.d(TAG, "Camera " + cameraId + " Rebuilding encoder due to health check failure");
 
-        // 暂停录制
+        // 暂停录制，并等待渲染线程上正在绘制的帧结束
         isRecording.set(false);
+        waitForRenderIdle();
+
+        // H.265 编码器从未输出过可封装的数据（Muxer 未启动），判定 H.265 不可用，改用 H.264 重建
+        if (hevcEncoder != null && !muxerStarted) {
+            AppLog.w(TAG, "Camera " + cameraId + " HEVC encoder produced no usable output, falling back to H.264");
+            fallBackToAvc();
+        }
 
         try {
-            // 1. 清理旧的 Muxer（可能已损坏）
-            if (muxer != null) {
-                try {
-                    if (muxerStarted) {
-                        muxer.stop();
+            // 1. 清理旧的 Muxer（可能已损坏，在 Muxer 写入线程上执行）
+            runOnMuxerThread(() -> {
+                discardPendingMuxer();
+                if (muxer != null) {
+                    try {
+                        if (muxerStarted) {
+                            muxer.stop();
+                        }
+                        muxer.release();
+                    } catch (Exception e) {
+                        AppLog.w(TAG, "Camera " + cameraId + " Error releasing old muxer: " + e.getMessage());
                     }
-                    muxer.release();
-                } catch (Exception e) {
-                    AppLog.w(TAG, "Camera " + cameraId + " Error releasing old muxer: " + e.getMessage());
+                    muxer = null;
+                    muxerStarted = false;
+                    videoTrackIndex = -1;
                 }
-                muxer = null;
-                muxerStarted = false;
-                videoTrackIndex = -1;
-            }
+            });
 
             // 2. 清理旧的编码器
-            if (encoder != null) {
+            MediaCodec oldEncoder = encoder;
+            encoder = null;
+            if (oldEncoder != null) {
                 try {
-                    encoder.stop();
+                    oldEncoder.stop();
                 } catch (Exception e) {
                     // Ignore
                 }
                 try {
-                    encoder.release();
+                    oldEncoder.release();
                 } catch (Exception e) {
                     // Ignore
                 }
-                encoder = null;
             }
 
             if (encoderInputSurface != null) {
@@ -1272,24 +2590,25 @@ public class CodecVideoRecorder {
             // 4. 重新创建编码器
             createEncoder();
 
-            // 5. 更新 EGL 输出 Surface
-            if (eglEncoder != null && encoderInputSurface != null) {
-                eglEncoder.updateOutputSurface(encoderInputSurface);
-            }
+            // 5. 更新 EGL 输出 Surface（在渲染线程上执行）
+            attachEncoderSurface();
 
             // 6. 创建新的 Muxer（生成新的文件名）
             segmentIndex++;
             String newFilePath = generateSegmentPath();
             currentFilePath = newFilePath;
             recordedFilePaths.add(newFilePath);
-            createMuxer(newFilePath);
+            switchSubStreamSegment(newFilePath);
+            runOnMuxerThread(() -> {
+                createMuxer(newFilePath);
+                segmentStartTimeNs = System.nanoTime();
+                encodedOutputFrameCount = 0;
+            });
 
             // 7. 重置状态
-            segmentStartTimeNs = System.nanoTime();
-            encodedOutputFrameCount = 0;
-            framesWithoutEncoderOutput = 0;
             encoderHealthy = true;
-            lastEncoderOutputTime = System.currentTimeMillis();
+            lastOutputCallbackNs = System.nanoTime();
+            healthCheckFrameBase = recordedFrameCount;
 
             // 8. 恢复录制
             isRecording.set(true);
@@ -1306,10 +2625,10 @@ public class CodecVideoRecorder {
             AppLog.e(TAG, "Camera " + cameraId + " Failed to rebuild encoder", e);
 
             // 重建失败，启动恢复重试机制
-            recoveryAttempts++;
-            if (recoveryAttempts <= MAX_RECOVERY_ATTEMPTS) {
+            int attempts = recoveryAttempts.incrementAndGet();
+            if (attempts <= MAX_RECOVERY_ATTEMPTS) {
                 AppLog.w(TAG, "Camera " + cameraId + " Will retry encoder rebuild in " 
-                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + recoveryAttempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
+                    + (RECOVERY_RETRY_INTERVAL_MS / 1000) + "s (attempt " + attempts + "/" + MAX_RECOVERY_ATTEMPTS + ")");
                 scheduleRecoveryRetry();
             } else {
                 AppLog.e(TAG, "Camera " + cameraId + " Max recovery attempts reached, giving up");
@@ -1335,8 +2654,10 @@ public class CodecVideoRecorder {
                 long currentSize = file.exists() ? file.length() : 0;
                 long sizeIncrease = currentSize - lastFileSize;
 
-                // 检查是否有写入
-                boolean hasWrite = (sizeIncrease > 0) || (currentSize > MIN_VALID_FILE_SIZE);
+                // 检查是否有写入（只统计文件头之后的数据，Muxer 未启动时视为没有写入）
+                long headerSize = muxerHeaderSize;
+                long dataSize = headerSize >= 0 ? currentSize - headerSize : 0;
+                boolean hasWrite = dataSize > 0 && ((sizeIncrease > 0) || (dataSize > MIN_VALID_FILE_SIZE));
                 
                 if (hasWrite) {
                     // 首次写入检测
@@ -1450,10 +2771,35 @@ public class CodecVideoRecorder {
         if (fileSize < MIN_VALID_FILE_SIZE) {
             AppLog.w(TAG, "Camera " + cameraId + " Video file too small: " + filePath + " (" + fileSize + " bytes). Deleting...");
             file.delete();
+            SubStreamEncoder.deleteSubStreamFile(file);
             return file.getName();
-        } else {
-            AppLog.d(TAG, "Camera " + cameraId + " Video file validated: " + filePath + " (" + (fileSize / 1024) + " KB)");
-            return null;
+        }
+
+        // 无可解码帧的直接删除；异常中断的文件（无 moov 或分片不完整）交给后台修复，不阻塞下一段开始
+        if (!VideoRepairManager.repairFileAsync(file, this::onBackgroundRepairFinished)) {
+            SubStreamEncoder.deleteSubStreamFile(file);
+            return file.getName();
+        }
+
+        AppLog.d(TAG, "Camera " + cameraId + " Video file validated: " + filePath + " (" + (fileSize / 1024) + " KB)");
+        return null;
+    }
+
+    /**
+     * 后台修复结束（在修复线程上调用）：无法修复且已删除的文件通知外部
+     */
+    private void onBackgroundRepairFinished(File file, boolean usable) {
+        if (usable) {
+            AppLog.d(TAG, "Camera " + cameraId + " Video file repaired in background: " + file.getName());
+            return;
+        }
+        if (file.exists()) {
+            AppLog.w(TAG, "Camera " + cameraId + " Video file could not be repaired now, left for startup repair: " + file.getName());
+            return;
+        }
+        SubStreamEncoder.deleteSubStreamFile(file);
+        if (callback != null) {
+            callback.onCorruptedFilesDeleted(cameraId, Collections.singletonList(file.getName()));
         }
     }
 }
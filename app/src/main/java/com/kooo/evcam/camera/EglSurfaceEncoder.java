@@ -1,11 +1,6 @@
 package com.kooo.evcam.camera;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.SurfaceTexture;
-import android.graphics.Typeface;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
@@ -14,7 +9,6 @@ import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.view.Surface;
 
@@ -23,9 +17,7 @@ import com.kooo.evcam.AppLog;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * EGL/OpenGL 渲染桥接类
@@ -36,6 +28,11 @@ import java.util.Locale;
  * 2. 本类监听 SurfaceTexture 的 onFrameAvailable 回调
  * 3. 使用 OpenGL 将 SurfaceTexture 的内容渲染到 MediaCodec 的输入 Surface
  * 4. MediaCodec 编码后通过 MediaMuxer 写入文件
+ *
+ * 共享模式（传入 SharedEglRenderEngine）：不再创建自己的 EGL Display/Context，
+ * 只在共享 Context 下创建自己的窗口 Surface 和 OES 纹理，着色器程序和顶点缓冲由引擎共享
+ *
+ * 子码流（可选）：绘制完主码流后，把同一帧按较小的视口再绘制到子码流编码器的输入 Surface（见 SubStreamEncoder）
  */
 public class EglSurfaceEncoder {
     private static final String TAG = "EglSurfaceEncoder";
@@ -62,34 +59,17 @@ public class EglSurfaceEncoder {
             "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
             "}\n";
 
-    // Fragment shader - 带时间水印版本
-    private static final String FRAGMENT_SHADER_WITH_WATERMARK =
-            "#extension GL_OES_EGL_image_external : require\n" +
+    // Fragment shader - 2D 纹理叠加（时间水印字形，配合 GL_BLEND 使用）
+    private static final String OVERLAY_FRAGMENT_SHADER =
             "precision mediump float;\n" +
             "varying vec2 vTextureCoord;\n" +
-            "uniform samplerExternalOES sTexture;\n" +
-            "uniform sampler2D sWatermarkTexture;\n" +
-            "uniform vec4 uWatermarkRect;\n" +  // x, y, width, height (归一化坐标)
+            "uniform sampler2D sTexture;\n" +
             "void main() {\n" +
-            "    vec4 videoColor = texture2D(sTexture, vTextureCoord);\n" +
-            "    // 检查是否在水印区域内\n" +
-            "    if (vTextureCoord.x >= uWatermarkRect.x && vTextureCoord.x <= uWatermarkRect.x + uWatermarkRect.z &&\n" +
-            "        vTextureCoord.y >= uWatermarkRect.y && vTextureCoord.y <= uWatermarkRect.y + uWatermarkRect.w) {\n" +
-            "        // 计算水印纹理坐标\n" +
-            "        vec2 watermarkCoord = vec2(\n" +
-            "            (vTextureCoord.x - uWatermarkRect.x) / uWatermarkRect.z,\n" +
-            "            (vTextureCoord.y - uWatermarkRect.y) / uWatermarkRect.w\n" +
-            "        );\n" +
-            "        vec4 watermarkColor = texture2D(sWatermarkTexture, watermarkCoord);\n" +
-            "        // Alpha 混合\n" +
-            "        gl_FragColor = mix(videoColor, watermarkColor, watermarkColor.a);\n" +
-            "    } else {\n" +
-            "        gl_FragColor = videoColor;\n" +
-            "    }\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
             "}\n";
 
     // 顶点坐标（全屏四边形）
-    private static final float[] VERTICES = {
+    static final float[] VERTICES = {
             -1.0f, -1.0f,  // 左下
              1.0f, -1.0f,  // 右下
             -1.0f,  1.0f,  // 左上
@@ -97,7 +77,7 @@ public class EglSurfaceEncoder {
     };
 
     // 纹理坐标
-    private static final float[] TEXTURE_COORDS = {
+    static final float[] TEXTURE_COORDS = {
             0.0f, 0.0f,  // 左下
             1.0f, 0.0f,  // 右下
             0.0f, 1.0f,  // 左上
@@ -108,6 +88,9 @@ public class EglSurfaceEncoder {
     private final int width;
     private final int height;
 
+    // 共享渲染引擎（为 null 时使用独立 EGL）
+    private final SharedEglRenderEngine sharedEngine;
+
     // EGL 相关
     private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
@@ -137,31 +120,64 @@ public class EglSurfaceEncoder {
     // 状态
     private boolean isInitialized = false;
     private boolean isReleased = false;
-
-    // 时间水印相关
+    private boolean frameLatched = false;  // latchFrame 已锁存当前帧，drawFrame/consumeFrame 不再重复 updateTexImage（仅渲染线程访问）
+
+    // 子码流输出（为 EGL_NO_SURFACE 时不绘制）
+    private EGLSurface secondarySurface = EGL14.EGL_NO_SURFACE;
+    private int secondaryWidth;
+    private int secondaryHeight;
+    private int secondaryFrameInterval = 1;
+    private long secondaryFrameCounter = 0;
+
+    // 统计：本编码器引起的 eglMakeCurrent 次数
+    private long makeCurrentCount = 0;
+
+    // 编码器反压：已交换到编码器、尚未输出的帧数超过高水位时跳过渲染（仍需消费帧），
+    // 避免 eglSwapBuffers 阻塞渲染线程、拖慢其他摄像头
+    private static final int DEFAULT_HIGH_WATER_FRAMES = 4;
+    private static final int IN_FLIGHT_RING_SIZE = 32;  // 记录最近交换帧的时间戳（上限即可统计的最大在途帧数）
+    private final long[] swappedPtsUs = new long[IN_FLIGHT_RING_SIZE];
+    private long swappedFrameCount = 0;  // 仅渲染线程访问
+    private volatile long lastEncodedPtsUs = Long.MIN_VALUE;  // 编码器最近输出帧的时间戳（编码回调线程写）
+    private volatile int highWaterFrames = DEFAULT_HIGH_WATER_FRAMES;
+    private int dropAccumulator = 0;  // 均匀丢帧的误差累加（仅渲染线程访问）
+    private volatile long backPressureDroppedFrames = 0;
+
+    // 时间水印相关（字形图集：纹理只上传一次，每秒只重新生成字形四边形）
+    private static final int WATERMARK_TEXT_SIZE = 28;  // 水印字号（像素）
     private boolean watermarkEnabled = false;
+    private TimestampGlyphAtlas glyphAtlas;
     private int watermarkProgram;
     private int watermarkTextureId;
     private int watermarkTextureHandle;
-    private int watermarkRectHandle;
     private int watermarkPositionHandle;
     private int watermarkTexCoordHandle;
     private int watermarkMvpMatrixHandle;
     private int watermarkTexMatrixHandle;
-    private int watermarkOesTextureHandle;
-    private Bitmap watermarkBitmap;
-    private String lastWatermarkTime = "";
-    private static final int WATERMARK_WIDTH = 400;   // 水印纹理宽度（需容纳19字符的时间戳）
-    private static final int WATERMARK_HEIGHT = 44;   // 水印纹理高度
-    private final SimpleDateFormat watermarkDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+    private FloatBuffer watermarkVertexBuffer;
+    private FloatBuffer watermarkTexCoordBuffer;
+    private int watermarkVertexCount = 0;
+    private long lastWatermarkSecond = Long.MIN_VALUE;
+    private final char[] watermarkChars = new char[TimestampGlyphAtlas.TIMESTAMP_LENGTH];
+    private final TimeZone watermarkTimeZone = TimeZone.getDefault();
+    private final float[] identityMatrix = new float[16];
 
     public EglSurfaceEncoder(String cameraId, int width, int height) {
+        this(cameraId, width, height, null);
+    }
+
+    /**
+     * @param sharedEngine 共享渲染引擎，非 null 时使用引擎的 EGL Context（必须在引擎的渲染线程上调用本类的方法）
+     */
+    public EglSurfaceEncoder(String cameraId, int width, int height, SharedEglRenderEngine sharedEngine) {
         this.cameraId = cameraId;
         this.width = width;
         this.height = height;
+        this.sharedEngine = sharedEngine;
 
         // 初始化 MVP 矩阵为单位矩阵
         Matrix.setIdentityM(mvpMatrix, 0);
+        Matrix.setIdentityM(identityMatrix, 0);
     }
 
     /**
@@ -179,7 +195,11 @@ public class EglSurfaceEncoder {
 
         try {
             // 初始化 EGL
-            initEgl(outputSurface);
+            if (sharedEngine != null) {
+                initSharedEgl(outputSurface);
+            } else {
+                initEgl(outputSurface);
+            }
 
             // 初始化 OpenGL
             initGl();
@@ -225,9 +245,31 @@ public class EglSurfaceEncoder {
         return watermarkEnabled;
     }
 
+    /**
+     * 锁存相机送来的新帧并返回其传感器时间戳
+     * getTimestamp() 只有在 updateTexImage() 之后才对应当前帧，否则得到的是上一帧的时间（首帧为 0）
+     * 之后的 drawFrame/consumeFrame 使用已锁存的帧，不再调用 updateTexImage()
+     * @return 当前帧的采集时间戳（纳秒），无法锁存时返回 -1
+     */
+    public long latchFrame() {
+        if (!isInitialized || isReleased || inputSurfaceTexture == null) {
+            return -1;
+        }
+
+        try {
+            makeContextCurrent();
+            inputSurfaceTexture.updateTexImage();
+            frameLatched = true;
+            return inputSurfaceTexture.getTimestamp();
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Error latching frame", e);
+            return -1;
+        }
+    }
+
     /**
      * 渲染一帧到输出 Surface
-     * 应该在 SurfaceTexture.onFrameAvailable 回调中调用
+     * 应该在 SurfaceTexture.onFrameAvailable 回调中调用（可先调用 latchFrame 获取时间戳）
      * @param presentationTimeNs 帧的呈现时间（纳秒）
      */
     public void drawFrame(long presentationTimeNs) {
@@ -244,8 +286,12 @@ public class EglSurfaceEncoder {
             // 首先绑定 EGL context（必须在 updateTexImage 之前）
             makeCurrent();
 
-            // 更新纹理（需要在正确的 EGL context 中）
-            inputSurfaceTexture.updateTexImage();
+            // 更新纹理（需要在正确的 EGL context 中；已由 latchFrame 锁存时跳过）
+            if (frameLatched) {
+                frameLatched = false;
+            } else {
+                inputSurfaceTexture.updateTexImage();
+            }
             inputSurfaceTexture.getTransformMatrix(texMatrix);
 
             // 设置视口
@@ -255,16 +301,24 @@ public class EglSurfaceEncoder {
             GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-            // 根据是否启用水印选择不同的渲染路径
+            // 绘制摄像头画面
+            drawCameraFrame();
+
+            // 叠加时间水印
             if (watermarkEnabled && watermarkProgram != 0) {
-                drawFrameWithWatermark();
-            } else {
-                drawFrameWithoutWatermark();
+                drawWatermarkOverlay(width, height);
             }
 
             // 设置呈现时间戳并交换缓冲区
             EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, presentationTimeNs);
             EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+            recordSwappedFrame(presentationTimeNs);
+
+            // 子码流：同一纹理按较小视口再绘制一次（按帧间隔抽帧）
+            if (secondarySurface != EGL14.EGL_NO_SURFACE
+                    && secondaryFrameCounter++ % secondaryFrameInterval == 0) {
+                drawSecondaryFrame(presentationTimeNs);
+            }
 
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " Error drawing frame", e);
@@ -272,9 +326,9 @@ public class EglSurfaceEncoder {
     }
 
     /**
-     * 无水印渲染
+     * 绘制摄像头画面（全屏）
      */
-    private void drawFrameWithoutWatermark() {
+    private void drawCameraFrame() {
         // 使用着色器程序
         GLES20.glUseProgram(program);
         checkGlError("glUseProgram");
@@ -305,51 +359,66 @@ public class EglSurfaceEncoder {
     }
 
     /**
-     * 带水印渲染
+     * 把当前帧绘制到子码流 Surface（纹理和变换矩阵沿用主码流这一帧的）
      */
-    private void drawFrameWithWatermark() {
-        // 更新水印位图（如果时间变化了）
-        updateWatermarkBitmap();
-
-        // 使用水印着色器程序
-        GLES20.glUseProgram(watermarkProgram);
-        checkGlError("glUseProgram watermark");
-
-        // 绑定视频纹理到纹理单元0
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
-        GLES20.glUniform1i(watermarkOesTextureHandle, 0);
-
-        // 绑定水印纹理到纹理单元1
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, watermarkTextureId);
-        GLES20.glUniform1i(watermarkTextureHandle, 1);
-
-        // 设置 uniform 变量
-        GLES20.glUniformMatrix4fv(watermarkMvpMatrixHandle, 1, false, mvpMatrix, 0);
-        GLES20.glUniformMatrix4fv(watermarkTexMatrixHandle, 1, false, texMatrix, 0);
-
-        // 设置水印位置和大小（归一化坐标，右上角）
-        float watermarkW = (float) WATERMARK_WIDTH / width;   // 水印宽度占比
-        float watermarkH = (float) WATERMARK_HEIGHT / height; // 水印高度占比
-        float watermarkX = 1.0f - watermarkW - 0.01f;  // 右边距 1%
-        float watermarkY = 0.01f;  // 上边距 1%
-        GLES20.glUniform4f(watermarkRectHandle, watermarkX, watermarkY, watermarkW, watermarkH);
-
-        // 设置顶点属性
-        GLES20.glEnableVertexAttribArray(watermarkPositionHandle);
-        GLES20.glVertexAttribPointer(watermarkPositionHandle, 2, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+    private void drawSecondaryFrame(long presentationTimeNs) {
+        makeCurrent(secondarySurface);
+        GLES20.glViewport(0, 0, secondaryWidth, secondaryHeight);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        drawCameraFrame();
+        if (watermarkEnabled && watermarkProgram != 0) {
+            // 字形四边形为归一化坐标，按子码流视口等比缩小
+            drawWatermarkOverlay(secondaryWidth, secondaryHeight);
+        }
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, secondarySurface, presentationTimeNs);
+        EGL14.eglSwapBuffers(eglDisplay, secondarySurface);
+    }
 
-        GLES20.glEnableVertexAttribArray(watermarkTexCoordHandle);
-        GLES20.glVertexAttribPointer(watermarkTexCoordHandle, 2, GLES20.GL_FLOAT, false, 0, texCoordBuffer);
+    /**
+     * 设置子码流输出 Surface（在编码线程上调用，initialize 之后）
+     * @param surface 子码流编码器的输入 Surface
+     * @param frameInterval 每隔多少帧绘制一次子码流（1 表示每帧）
+     */
+    public void setSecondaryOutputSurface(Surface surface, int surfaceWidth, int surfaceHeight, int frameInterval) {
+        if (!isInitialized || isReleased) {
+            AppLog.w(TAG, "Camera " + cameraId + " Cannot set secondary output surface: not initialized or released");
+            return;
+        }
+        clearSecondaryOutputSurface();
 
-        // 绘制
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        checkGlError("glDrawArrays watermark");
+        int[] surfaceAttribList = {
+                EGL14.EGL_NONE
+        };
+        EGLSurface surfaceHandle = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, surfaceAttribList, 0);
+        if (surfaceHandle == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Unable to create secondary EGL window surface");
+        }
+        secondarySurface = surfaceHandle;
+        secondaryWidth = surfaceWidth;
+        secondaryHeight = surfaceHeight;
+        secondaryFrameInterval = Math.max(1, frameInterval);
+        secondaryFrameCounter = 0;
+
+        AppLog.d(TAG, "Camera " + cameraId + " Secondary output " + surfaceWidth + "x" + surfaceHeight
+                + ", every " + secondaryFrameInterval + " frame(s)");
+    }
 
-        // 禁用顶点属性
-        GLES20.glDisableVertexAttribArray(watermarkPositionHandle);
-        GLES20.glDisableVertexAttribArray(watermarkTexCoordHandle);
+    /**
+     * 移除子码流输出 Surface（在编码线程上调用）
+     */
+    public void clearSecondaryOutputSurface() {
+        if (secondarySurface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        if (sharedEngine != null) {
+            sharedEngine.destroySurface(secondarySurface);
+        } else {
+            // 当前 Surface 是子码流 Surface 时先切回主 Surface，再销毁
+            makeCurrent(eglSurface);
+            EGL14.eglDestroySurface(eglDisplay, secondarySurface);
+        }
+        secondarySurface = EGL14.EGL_NO_SURFACE;
     }
 
     /**
@@ -369,8 +438,13 @@ public class EglSurfaceEncoder {
             // 销毁旧的 EGL Surface
             // 注意：当 surface 为 EGL_NO_SURFACE 时，context 必须也是 EGL_NO_CONTEXT，否则会报 EGL_BAD_MATCH
             if (eglSurface != EGL14.EGL_NO_SURFACE) {
-                EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
-                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+                if (sharedEngine != null) {
+                    // 共享模式：只销毁自己的 Surface，引擎切回 pbuffer 保持 Context 可用
+                    sharedEngine.destroySurface(eglSurface);
+                } else {
+                    EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                    EGL14.eglDestroySurface(eglDisplay, eglSurface);
+                }
                 eglSurface = EGL14.EGL_NO_SURFACE;
             }
 
@@ -386,6 +460,11 @@ public class EglSurfaceEncoder {
             // 设置为当前上下文
             makeCurrent();
 
+            // 旧编码器中的在途帧不会再输出，重新计数
+            swappedFrameCount = 0;
+            lastEncodedPtsUs = Long.MIN_VALUE;
+            dropAccumulator = 0;
+
             AppLog.d(TAG, "Camera " + cameraId + " Output surface updated successfully");
 
         } catch (Exception e) {
@@ -394,6 +473,77 @@ public class EglSurfaceEncoder {
         }
     }
 
+    /**
+     * 编码器输出了一帧（可在编码回调线程调用）
+     * @param presentationTimeUs 输出帧的时间戳（与 drawFrame 传入的时间戳对应）
+     */
+    public void onFrameEncoded(long presentationTimeUs) {
+        if (presentationTimeUs > lastEncodedPtsUs) {
+            lastEncodedPtsUs = presentationTimeUs;
+        }
+    }
+
+    /**
+     * 在途帧数：已交换到编码器但编码器尚未输出的帧
+     * 按时间戳统计（而不是交换/输出计数相减），编码器内部丢弃的帧不会累积误差
+     */
+    public int getFramesInFlight() {
+        long encoded = lastEncodedPtsUs;
+        int inFlight = 0;
+        for (long i = swappedFrameCount - 1; i >= 0 && inFlight < IN_FLIGHT_RING_SIZE; i--) {
+            if (swappedPtsUs[(int) (i % IN_FLIGHT_RING_SIZE)] <= encoded) {
+                break;
+            }
+            inFlight++;
+        }
+        return inFlight;
+    }
+
+    /**
+     * 设置反压高水位（在途帧数超过该值时开始丢帧）
+     */
+    public void setBackPressureHighWater(int frames) {
+        this.highWaterFrames = Math.max(1, frames);
+    }
+
+    /**
+     * 反压决策：本帧是否应跳过渲染（在渲染线程上每帧调用一次）
+     * 在途帧数不超过高水位时全部渲染；超过后按 高水位 / 在途帧数 的比例保留，
+     * 用误差累加把丢弃的帧均匀分布（如保留 2/3 时每 3 帧丢 1 帧），避免连续丢帧造成画面跳跃。
+     * 返回 true 时调用者仍需调用 consumeFrame() 消费该帧
+     */
+    public boolean shouldSkipFrame() {
+        int inFlight = getFramesInFlight();
+        int highWater = highWaterFrames;
+        if (inFlight <= highWater) {
+            dropAccumulator = 0;
+            return false;
+        }
+        dropAccumulator += highWater;
+        if (dropAccumulator >= inFlight) {
+            dropAccumulator -= inFlight;
+            return false;
+        }
+        backPressureDroppedFrames++;
+        if (backPressureDroppedFrames % 100 == 1) {
+            AppLog.w(TAG, "Camera " + cameraId + " encoder back-pressure: " + inFlight + " frames in flight, dropped "
+                    + backPressureDroppedFrames + " frames so far");
+        }
+        return true;
+    }
+
+    /**
+     * 因编码器反压跳过渲染的累计帧数
+     */
+    public long getBackPressureDroppedFrames() {
+        return backPressureDroppedFrames;
+    }
+
+    private void recordSwappedFrame(long presentationTimeNs) {
+        swappedPtsUs[(int) (swappedFrameCount % IN_FLIGHT_RING_SIZE)] = presentationTimeNs / 1000;
+        swappedFrameCount++;
+    }
+
     /**
      * 仅消费帧而不渲染（用于非录制状态时保持 SurfaceTexture 正常工作）
      * 关键：必须调用 updateTexImage() 来消费帧，否则 SurfaceTexture 会保持 pending 状态，
@@ -408,9 +558,15 @@ public class EglSurfaceEncoder {
             return;
         }
 
+        // 已由 latchFrame 锁存：帧已消费
+        if (frameLatched) {
+            frameLatched = false;
+            return;
+        }
+
         try {
             // 绑定 EGL context（必须在 updateTexImage 之前）
-            makeCurrent();
+            makeContextCurrent();
             // 只消费帧，不渲染
             inputSurfaceTexture.updateTexImage();
         } catch (Exception e) {
@@ -431,6 +587,11 @@ public class EglSurfaceEncoder {
         isReleased = true;
         isInitialized = false;
 
+        if (sharedEngine != null) {
+            releaseShared();
+            return;
+        }
+
         // 释放 OpenGL 资源
         if (program != 0) {
             GLES20.glDeleteProgram(program);
@@ -455,15 +616,15 @@ public class EglSurfaceEncoder {
             watermarkTextureId = 0;
         }
 
-        if (watermarkBitmap != null) {
-            watermarkBitmap.recycle();
-            watermarkBitmap = null;
-        }
-
         // 释放 EGL 资源
         if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
 
+            if (secondarySurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, secondarySurface);
+                secondarySurface = EGL14.EGL_NO_SURFACE;
+            }
+
             if (eglSurface != EGL14.EGL_NO_SURFACE) {
                 EGL14.eglDestroySurface(eglDisplay, eglSurface);
                 eglSurface = EGL14.EGL_NO_SURFACE;
@@ -483,6 +644,182 @@ public class EglSurfaceEncoder {
         AppLog.d(TAG, "Camera " + cameraId + " EglSurfaceEncoder released");
     }
 
+    // ===== 拼接录制（MosaicCompositor）使用，均在编码线程上调用 =====
+
+    /**
+     * 使 EGL Context 处于当前状态（用于 updateTexImage、创建/删除纹理）
+     * 共享模式下任意 Surface 为当前均可，不切换 Surface
+     */
+    void makeContextCurrent() {
+        if (sharedEngine != null) {
+            sharedEngine.ensureContextCurrent();
+        } else {
+            makeCurrent();
+        }
+    }
+
+    /**
+     * 创建一个 OES 外部纹理（用于拼接录制的宫格输入）
+     */
+    int createExternalTexture() {
+        makeContextCurrent();
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        return textures[0];
+    }
+
+    /**
+     * 删除纹理
+     */
+    void deleteTexture(int texture) {
+        if (isReleased || texture == 0) {
+            return;
+        }
+        makeContextCurrent();
+        int[] textures = {texture};
+        GLES20.glDeleteTextures(1, textures, 0);
+    }
+
+    /**
+     * 开始合成一帧：绑定输出 Surface 并清屏
+     */
+    void beginCompositeFrame() {
+        makeCurrent();
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    }
+
+    /**
+     * 把一个 OES 纹理绘制到输出画面的指定区域（GL 视口坐标，原点在左下角）
+     */
+    void drawExternalTexture(int oesTextureId, float[] textureMatrix, int x, int y, int w, int h) {
+        GLES20.glViewport(x, y, w, h);
+        GLES20.glUseProgram(program);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, oesTextureId);
+
+        GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+        GLES20.glUniformMatrix4fv(texMatrixHandle, 1, false, textureMatrix, 0);
+        GLES20.glUniform1i(textureHandle, 0);
+
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+        GLES20.glEnableVertexAttribArray(texCoordHandle);
+        GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, 0, texCoordBuffer);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkGlError("glDrawArrays tile");
+
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(texCoordHandle);
+    }
+
+    /**
+     * 结束合成：叠加时间水印（如果启用），设置呈现时间并提交到编码器
+     */
+    void finishCompositeFrame(long presentationTimeNs) {
+        if (watermarkEnabled) {
+            drawWatermarkOverlay(width, height);
+        }
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, presentationTimeNs);
+        EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+        recordSwappedFrame(presentationTimeNs);
+    }
+
+    /**
+     * 在画面右上角叠加时间水印（按字形绘制四边形，Alpha 混合）
+     * @param viewportWidth 目标 Surface 宽度（子码流为缩小后的尺寸）
+     * @param viewportHeight 目标 Surface 高度
+     */
+    private void drawWatermarkOverlay(int viewportWidth, int viewportHeight) {
+        if (watermarkProgram == 0) {
+            initWatermarkGl();
+            if (watermarkProgram == 0) {
+                return;
+            }
+        }
+        updateWatermarkQuads();
+        if (watermarkVertexCount == 0) {
+            return;
+        }
+
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glUseProgram(watermarkProgram);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, watermarkTextureId);
+        GLES20.glUniform1i(watermarkTextureHandle, 0);
+        GLES20.glUniformMatrix4fv(watermarkMvpMatrixHandle, 1, false, identityMatrix, 0);
+        GLES20.glUniformMatrix4fv(watermarkTexMatrixHandle, 1, false, identityMatrix, 0);
+
+        GLES20.glEnableVertexAttribArray(watermarkPositionHandle);
+        GLES20.glVertexAttribPointer(watermarkPositionHandle, 2, GLES20.GL_FLOAT, false, 0, watermarkVertexBuffer);
+        GLES20.glEnableVertexAttribArray(watermarkTexCoordHandle);
+        GLES20.glVertexAttribPointer(watermarkTexCoordHandle, 2, GLES20.GL_FLOAT, false, 0, watermarkTexCoordBuffer);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, watermarkVertexCount);
+        checkGlError("glDrawArrays watermark");
+
+        GLES20.glDisableVertexAttribArray(watermarkPositionHandle);
+        GLES20.glDisableVertexAttribArray(watermarkTexCoordHandle);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * 共享模式下释放资源：只删除自己的纹理和 Surface，着色器程序和 EGL Context 归引擎所有
+     */
+    private void releaseShared() {
+        try {
+            sharedEngine.ensureContextCurrent();
+            if (textureId != 0) {
+                int[] textures = {textureId};
+                GLES20.glDeleteTextures(1, textures, 0);
+                textureId = 0;
+            }
+            if (watermarkTextureId != 0) {
+                int[] textures = {watermarkTextureId};
+                GLES20.glDeleteTextures(1, textures, 0);
+                watermarkTextureId = 0;
+            }
+            if (secondarySurface != EGL14.EGL_NO_SURFACE) {
+                sharedEngine.destroySurface(secondarySurface);
+            }
+            sharedEngine.destroySurface(eglSurface);
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Error releasing shared EGL resources: " + e.getMessage());
+        }
+        eglSurface = EGL14.EGL_NO_SURFACE;
+        secondarySurface = EGL14.EGL_NO_SURFACE;
+        program = 0;
+        watermarkProgram = 0;
+        inputSurfaceTexture = null;
+
+        AppLog.d(TAG, "Camera " + cameraId + " EglSurfaceEncoder released (shared)");
+    }
+
+    /**
+     * 获取本编码器引起的 eglMakeCurrent 次数（用于渲染开销统计）
+     */
+    public long getMakeCurrentCount() {
+        return makeCurrentCount;
+    }
+
+    /**
+     * 是否使用共享渲染引擎
+     */
+    public boolean isShared() {
+        return sharedEngine != null;
+    }
+
     /**
      * 获取纹理 ID
      */
@@ -560,12 +897,35 @@ public class EglSurfaceEncoder {
         AppLog.d(TAG, "Camera " + cameraId + " EGL setup complete");
     }
 
+    /**
+     * 初始化 EGL（共享模式）：只创建绑定到 MediaCodec 输入 Surface 的窗口 Surface
+     */
+    private void initSharedEgl(Surface outputSurface) {
+        eglDisplay = sharedEngine.getEglDisplay();
+        eglContext = sharedEngine.getEglContext();
+        eglConfig = sharedEngine.getEglConfig();
+
+        int[] surfaceAttribList = {
+                EGL14.EGL_NONE
+        };
+        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, outputSurface, surfaceAttribList, 0);
+        if (eglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Unable to create EGL window surface");
+        }
+
+        makeCurrent();
+
+        AppLog.d(TAG, "Camera " + cameraId + " EGL setup complete (shared context)");
+    }
+
     /**
      * 初始化 OpenGL
      */
     private void initGl() {
-        // 创建着色器程序
-        program = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        // 创建着色器程序（共享模式下由引擎缓存，各摄像头共用）
+        program = sharedEngine != null
+                ? sharedEngine.getProgram(VERTEX_SHADER, FRAGMENT_SHADER)
+                : createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
         if (program == 0) {
             throw new RuntimeException("Unable to create shader program");
         }
@@ -588,9 +948,14 @@ public class EglSurfaceEncoder {
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-        // 创建顶点缓冲
-        vertexBuffer = createFloatBuffer(VERTICES);
-        texCoordBuffer = createFloatBuffer(TEXTURE_COORDS);
+        // 创建顶点缓冲（共享模式下使用引擎的缓冲）
+        if (sharedEngine != null) {
+            vertexBuffer = sharedEngine.getVertexBuffer();
+            texCoordBuffer = sharedEngine.getTexCoordBuffer();
+        } else {
+            vertexBuffer = createFloatBuffer(VERTICES);
+            texCoordBuffer = createFloatBuffer(TEXTURE_COORDS);
+        }
 
         AppLog.d(TAG, "Camera " + cameraId + " OpenGL setup complete, textureId=" + textureId);
     }
@@ -605,8 +970,10 @@ public class EglSurfaceEncoder {
 
         AppLog.d(TAG, "Camera " + cameraId + " Initializing watermark OpenGL resources");
 
-        // 创建带水印的着色器程序
-        watermarkProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER_WITH_WATERMARK);
+        // 创建字形叠加着色器程序
+        watermarkProgram = sharedEngine != null
+                ? sharedEngine.getProgram(VERTEX_SHADER, OVERLAY_FRAGMENT_SHADER)
+                : createProgram(VERTEX_SHADER, OVERLAY_FRAGMENT_SHADER);
         if (watermarkProgram == 0) {
             AppLog.e(TAG, "Camera " + cameraId + " Failed to create watermark shader program");
             return;
@@ -617,88 +984,72 @@ public class EglSurfaceEncoder {
         watermarkTexCoordHandle = GLES20.glGetAttribLocation(watermarkProgram, "aTextureCoord");
         watermarkMvpMatrixHandle = GLES20.glGetUniformLocation(watermarkProgram, "uMVPMatrix");
         watermarkTexMatrixHandle = GLES20.glGetUniformLocation(watermarkProgram, "uTexMatrix");
-        watermarkOesTextureHandle = GLES20.glGetUniformLocation(watermarkProgram, "sTexture");
-        watermarkTextureHandle = GLES20.glGetUniformLocation(watermarkProgram, "sWatermarkTexture");
-        watermarkRectHandle = GLES20.glGetUniformLocation(watermarkProgram, "uWatermarkRect");
+        watermarkTextureHandle = GLES20.glGetUniformLocation(watermarkProgram, "sTexture");
 
-        // 创建水印纹理
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-        watermarkTextureId = textures[0];
+        // 字形图集纹理（只上传一次）
+        glyphAtlas = TimestampGlyphAtlas.obtain(WATERMARK_TEXT_SIZE);
+        watermarkTextureId = glyphAtlas.createTexture();
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, watermarkTextureId);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        // 创建初始水印位图
-        watermarkBitmap = Bitmap.createBitmap(WATERMARK_WIDTH, WATERMARK_HEIGHT, Bitmap.Config.ARGB_8888);
-        updateWatermarkBitmap();
+        // 字形四边形顶点缓冲（每个字符 6 个顶点，每个顶点 2 个分量）
+        watermarkVertexBuffer = createFloatBuffer(new float[TimestampGlyphAtlas.TIMESTAMP_LENGTH * 12]);
+        watermarkTexCoordBuffer = createFloatBuffer(new float[TimestampGlyphAtlas.TIMESTAMP_LENGTH * 12]);
+        watermarkVertexCount = 0;
+        lastWatermarkSecond = Long.MIN_VALUE;
 
         AppLog.d(TAG, "Camera " + cameraId + " Watermark OpenGL resources initialized, textureId=" + watermarkTextureId);
     }
 
     /**
-     * 更新水印位图（每秒调用一次）
+     * 更新水印字形四边形（每秒只重新生成一次，不分配对象）
      */
-    private void updateWatermarkBitmap() {
-        if (watermarkBitmap == null) {
-            return;
-        }
+    private void updateWatermarkQuads() {
+        long now = System.currentTimeMillis();
+        long localMillis = now + watermarkTimeZone.getOffset(now);
+        long second = Math.floorDiv(localMillis, 1000);
 
-        String currentTime = watermarkDateFormat.format(new Date());
-        
         // 只有时间变化时才更新
-        if (currentTime.equals(lastWatermarkTime)) {
+        if (second == lastWatermarkSecond) {
             return;
         }
-        lastWatermarkTime = currentTime;
-
-        // 清除位图
-        watermarkBitmap.eraseColor(Color.TRANSPARENT);
-
-        Canvas canvas = new Canvas(watermarkBitmap);
-
-        // 设置画笔 - 阴影
-        Paint shadowPaint = new Paint();
-        shadowPaint.setColor(Color.BLACK);
-        shadowPaint.setTextSize(28);
-        shadowPaint.setAntiAlias(true);
-        shadowPaint.setTypeface(Typeface.MONOSPACE);
+        lastWatermarkSecond = second;
 
-        // 设置画笔 - 主文字
-        Paint textPaint = new Paint();
-        textPaint.setColor(Color.WHITE);
-        textPaint.setTextSize(28);
-        textPaint.setAntiAlias(true);
-        textPaint.setTypeface(Typeface.MONOSPACE);
+        TimestampGlyphAtlas.formatTimestamp(localMillis, watermarkChars);
 
-        // 绘制阴影（偏移2像素）
-        canvas.drawText(currentTime, 8, 32, shadowPaint);
-        // 绘制主文字
-        canvas.drawText(currentTime, 6, 30, textPaint);
-
-        // 上传纹理到 GPU
-        if (watermarkTextureId != 0) {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, watermarkTextureId);
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, watermarkBitmap, 0);
-        }
+        // 右上角，边距 1%
+        float left = width - width / 100 - watermarkChars.length * glyphAtlas.getCellWidth();
+        float top = height - height / 100;
+        watermarkVertexCount = glyphAtlas.buildQuads(watermarkChars, watermarkChars.length, left, top,
+                width, height, watermarkVertexBuffer, watermarkTexCoordBuffer);
     }
 
     /**
      * 设置为当前 EGL 上下文
      */
     private void makeCurrent() {
-        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+        makeCurrent(eglSurface);
+    }
+
+    /**
+     * 设置为当前 EGL 上下文，绑定指定的窗口 Surface
+     */
+    private void makeCurrent(EGLSurface surface) {
+        if (sharedEngine != null) {
+            // 共享模式：目标 Surface 已是当前时不调用 eglMakeCurrent
+            if (sharedEngine.makeCurrent(surface)) {
+                makeCurrentCount++;
+            }
+            return;
+        }
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
+        makeCurrentCount++;
     }
 
     /**
      * 创建着色器程序
      */
-    private int createProgram(String vertexSource, String fragmentSource) {
+    static int createProgram(String vertexSource, String fragmentSource) {
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -738,7 +1089,7 @@ public class EglSurfaceEncoder {
     /**
      * 加载着色器
      */
-    private int loadShader(int shaderType, String source) {
+    private static int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         if (shader == 0) {
             AppLog.e(TAG, "Could not create shader type " + shaderType);
@@ -762,7 +1113,7 @@ public class EglSurfaceEncoder {
     /**
      * 创建 FloatBuffer
      */
-    private FloatBuffer createFloatBuffer(float[] data) {
+    static FloatBuffer createFloatBuffer(float[] data) {
         ByteBuffer bb = ByteBuffer.allocateDirect(data.length * 4);
         bb.order(ByteOrder.nativeOrder());
         FloatBuffer fb = bb.asFloatBuffer();
@@ -0,0 +1,147 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编码输出队列（单生产者、单消费者，无锁）
+ * 生产者：MediaCodec 回调线程，只记录输出缓冲下标和 BufferInfo（不拷贝数据），立即返回
+ * 消费者：Muxer 写入线程，取出后写入文件并 releaseOutputBuffer
+ *
+ * 槽位在构造时一次性分配，入队、出队均不分配内存；
+ * 生产者只写 tail，消费者只写 head，通过 lazySet 发布（对应 release 语义）
+ *
+ * 每个条目记录产生它的 MediaCodec 实例：编码器重建后，旧实例的条目由消费者识别并丢弃
+ */
+public class EncodedFrameQueue {
+
+    /** 条目类型：编码输出缓冲 */
+    public static final int TYPE_BUFFER = 0;
+    /** 条目类型：输出格式变化 */
+    public static final int TYPE_FORMAT = 1;
+
+    /**
+     * 出队结果（消费者复用同一个实例）
+     */
+    public static class Entry {
+        public int type;
+        public MediaCodec codec;
+        public int index;
+        public final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        public MediaFormat format;
+        public long callbackTimeNs;  // 回调到达时间（System.nanoTime）
+    }
+
+    private final int mask;
+    private final int[] types;
+    private final MediaCodec[] codecs;
+    private final int[] indices;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] presentationTimesUs;
+    private final int[] flags;
+    private final MediaFormat[] formats;
+    private final long[] callbackTimesNs;
+
+    private final AtomicLong head = new AtomicLong(0);  // 下一个出队位置（消费者写）
+    private final AtomicLong tail = new AtomicLong(0);  // 下一个入队位置（生产者写）
+
+    /**
+     * @param capacity 容量（向上取整为 2 的幂）
+     */
+    public EncodedFrameQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.types = new int[size];
+        this.codecs = new MediaCodec[size];
+        this.indices = new int[size];
+        this.offsets = new int[size];
+        this.sizes = new int[size];
+        this.presentationTimesUs = new long[size];
+        this.flags = new int[size];
+        this.formats = new MediaFormat[size];
+        this.callbackTimesNs = new long[size];
+    }
+
+    /**
+     * 入队一个编码输出缓冲（仅生产者线程调用）
+     * @return 队列已满时返回 false，调用者需要自行释放该输出缓冲
+     */
+    public boolean offerBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info, long callbackTimeNs) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            return false;
+        }
+        int slot = (int) (t & mask);
+        types[slot] = TYPE_BUFFER;
+        codecs[slot] = codec;
+        indices[slot] = index;
+        offsets[slot] = info.offset;
+        sizes[slot] = info.size;
+        presentationTimesUs[slot] = info.presentationTimeUs;
+        flags[slot] = info.flags;
+        formats[slot] = null;
+        callbackTimesNs[slot] = callbackTimeNs;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 入队一个输出格式变化（仅生产者线程调用）
+     * @return 队列已满时返回 false
+     */
+    public boolean offerFormat(MediaCodec codec, MediaFormat format, long callbackTimeNs) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            return false;
+        }
+        int slot = (int) (t & mask);
+        types[slot] = TYPE_FORMAT;
+        codecs[slot] = codec;
+        indices[slot] = -1;
+        formats[slot] = format;
+        callbackTimesNs[slot] = callbackTimeNs;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 出队（仅消费者线程调用）
+     * @param out 接收结果的条目（复用）
+     * @return 队列为空时返回 false
+     */
+    public boolean poll(Entry out) {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return false;
+        }
+        int slot = (int) (h & mask);
+        out.type = types[slot];
+        out.codec = codecs[slot];
+        out.index = indices[slot];
+        out.info.set(offsets[slot], sizes[slot], presentationTimesUs[slot], flags[slot]);
+        out.format = formats[slot];
+        out.callbackTimeNs = callbackTimesNs[slot];
+        // 清除引用，避免持有已释放的编码器
+        codecs[slot] = null;
+        formats[slot] = null;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * 当前队列长度（近似值，任意线程可调用）
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * 容量
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,241 @@
+package com.kooo.evcam.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 视频编码器能力探测（按设备缓存）
+ * 枚举 MediaCodecList，判断 H.265 硬件编码器在指定分辨率/帧率/码率下是否可用：
+ * - 硬件编码器，支持 Surface 输入（COLOR_FormatSurface）
+ * - 支持该分辨率和帧率，码率在编码器支持范围内
+ * - 支持 VBR 或 CBR 码率模式，支持 Main profile
+ * - 同时存在能解码该分辨率的 H.265 解码器（保证本机回放和缩略图）
+ *
+ * 探测结果在内存中缓存，并按系统指纹（Build.FINGERPRINT）持久化，系统升级后重新探测；
+ * 录制器实际创建编码器失败时通过 reportFailure 标记，之后同一配置直接使用 H.264
+ */
+public class EncoderCapabilityProber {
+    private static final String TAG = "EncoderCapabilityProber";
+
+    private static final String PREF_NAME = "encoder_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String PREFIX_PROBE = "probe_";  // 探测结果：编码器名称，空字符串表示不可用
+    private static final String PREFIX_FAILED = "failed_";  // 实际使用时失败的配置
+
+    /** H.265 相对 H.264 的码率比例（同等画质下约节省 40%） */
+    private static final float HEVC_BITRATE_RATIO = 0.6f;
+
+    /**
+     * 探测选中的编码器
+     */
+    public static final class EncoderChoice {
+        public final String mimeType;
+        public final String codecName;
+        public final int width;
+        public final int height;
+
+        EncoderChoice(String mimeType, String codecName, int width, int height) {
+            this.mimeType = mimeType;
+            this.codecName = codecName;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return codecName + " (" + mimeType + " " + width + "x" + height + ")";
+        }
+    }
+
+    private static volatile EncoderCapabilityProber instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, String> probeCache = new HashMap<>();
+
+    public static EncoderCapabilityProber getInstance(Context context) {
+        if (instance == null) {
+            synchronized (EncoderCapabilityProber.class) {
+                if (instance == null) {
+                    instance = new EncoderCapabilityProber(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private EncoderCapabilityProber(Context context) {
+        prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            // 系统升级后编码器可能变化，清空旧结果
+            prefs.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+            AppLog.d(TAG, "Build fingerprint changed, cleared encoder probe cache");
+        }
+    }
+
+    /**
+     * H.265 编码时使用的码率
+     * @param avcBitRate 配置的（H.264）码率
+     */
+    public static int hevcBitRate(int avcBitRate) {
+        return (int) (avcBitRate * HEVC_BITRATE_RATIO);
+    }
+
+    /**
+     * 选择 H.265 硬件编码器
+     * @param avcBitRate 配置的（H.264）码率，实际按 hevcBitRate 换算后检查
+     * @return 可以安全使用时返回编码器，否则返回 null（使用 H.264）
+     */
+    public synchronized EncoderChoice selectHevcEncoder(int width, int height, int frameRate, int avcBitRate) {
+        String key = width + "x" + height + "@" + frameRate;
+        if (prefs.getBoolean(PREFIX_FAILED + key, false)) {
+            return null;
+        }
+
+        String codecName = probeCache.get(key);
+        if (codecName == null) {
+            codecName = prefs.getString(PREFIX_PROBE + key, null);
+            if (codecName == null) {
+                codecName = probeHevcEncoder(width, height, frameRate, hevcBitRate(avcBitRate));
+                prefs.edit().putString(PREFIX_PROBE + key, codecName).apply();
+            }
+            probeCache.put(key, codecName);
+        }
+        if (codecName.isEmpty()) {
+            return null;
+        }
+        return new EncoderChoice(MediaFormat.MIMETYPE_VIDEO_HEVC, codecName, width, height);
+    }
+
+    /**
+     * 录制器实际创建或使用编码器失败时调用，之后同一配置不再选择 H.265
+     */
+    public synchronized void reportFailure(EncoderChoice choice, int frameRate) {
+        if (choice == null) {
+            return;
+        }
+        String key = choice.width + "x" + choice.height + "@" + frameRate;
+        prefs.edit().putBoolean(PREFIX_FAILED + key, true).apply();
+        AppLog.w(TAG, "HEVC encoder marked unusable, using H.264 from now on: " + choice);
+    }
+
+    /**
+     * 枚举编码器并检查能力
+     * @return 编码器名称，没有合适的编码器时返回空字符串
+     */
+    private String probeHevcEncoder(int width, int height, int frameRate, int bitRate) {
+        String mime = MediaFormat.MIMETYPE_VIDEO_HEVC;
+        long startMs = System.currentTimeMillis();
+        String selected = "";
+        try {
+            MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+            if (!hasDecoder(infos, mime, width, height)) {
+                AppLog.d(TAG, "No HEVC decoder for " + width + "x" + height + ", HEVC encoding disabled");
+                return selected;
+            }
+            for (MediaCodecInfo info : infos) {
+                if (!info.isEncoder() || !supportsType(info, mime) || isSoftwareOnly(info)) {
+                    continue;
+                }
+                String reason = checkEncoder(info.getCapabilitiesForType(mime), width, height, frameRate, bitRate);
+                if (reason == null) {
+                    selected = info.getName();
+                    break;
+                }
+                AppLog.d(TAG, "HEVC encoder " + info.getName() + " rejected: " + reason);
+            }
+        } catch (Exception e) {
+            AppLog.e(TAG, "Failed to probe HEVC encoders", e);
+        }
+        AppLog.d(TAG, "HEVC probe " + width + "x" + height + "@" + frameRate + "fps, "
+                + (bitRate / 1000) + " Kbps: " + (selected.isEmpty() ? "unavailable" : selected)
+                + " (" + (System.currentTimeMillis() - startMs) + " ms)");
+        return selected;
+    }
+
+    /**
+     * 检查编码器能力
+     * @return 满足要求时返回 null，否则返回原因
+     */
+    private static String checkEncoder(MediaCodecInfo.CodecCapabilities caps, int width, int height,
+                                       int frameRate, int bitRate) {
+        boolean surfaceInput = false;
+        for (int colorFormat : caps.colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
+                surfaceInput = true;
+                break;
+            }
+        }
+        if (!surfaceInput) {
+            return "no surface input";
+        }
+
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video == null || !video.isSizeSupported(width, height)) {
+            return "size " + width + "x" + height + " not supported";
+        }
+        if (!video.areSizeAndRateSupported(width, height, frameRate)) {
+            return frameRate + "fps not supported";
+        }
+        Range<Integer> bitrateRange = video.getBitrateRange();
+        if (!bitrateRange.contains(bitRate)) {
+            return "bitrate " + bitRate + " outside " + bitrateRange;
+        }
+
+        MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+        if (encoder == null
+                || (!encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)
+                && !encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR))) {
+            return "no VBR/CBR bitrate mode";
+        }
+
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : caps.profileLevels) {
+            if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain) {
+                return null;
+            }
+        }
+        return "no Main profile";
+    }
+
+    private static boolean hasDecoder(MediaCodecInfo[] infos, String mime, int width, int height) {
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            MediaCodecInfo.VideoCapabilities video = info.getCapabilitiesForType(mime).getVideoCapabilities();
+            if (video != null && video.isSizeSupported(width, height)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否为软件编码器（H.265 软件编码在车机上无法实时编码）
+     */
+    private static boolean isSoftwareOnly(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isSoftwareOnly();
+        }
+        String name = info.getName().toLowerCase();
+        return name.startsWith("omx.google.") || name.startsWith("c2.android.");
+    }
+}
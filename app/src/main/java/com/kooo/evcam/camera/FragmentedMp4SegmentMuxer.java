@@ -0,0 +1,175 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.kooo.evcam.AppLog;
+import com.kooo.evcam.camera.mp4.FragmentedMp4Writer;
+import com.kooo.evcam.camera.mp4.Mp4SyncInfo;
+import com.kooo.evcam.camera.mp4.Mp4TrackFormat;
+import com.kooo.evcam.camera.mp4.NalUnits;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于分片 MP4 的分段封装器（防断电）
+ * 初始化段在 start() 时写入，之后按 GOP 追加 moof+mdat 分片，
+ * 异常断电时已写出的分片仍可直接播放，无需修复
+ */
+public class FragmentedMp4SegmentMuxer implements SegmentMuxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    private static final int TRACK_INDEX = 0;
+
+    private final File outputFile;
+    private final int keyFramesPerFragment;
+    private Mp4TrackFormat trackFormat;
+    private FragmentedMp4Writer writer;
+
+    /**
+     * @param filePath 输出文件路径
+     * @param keyFramesPerFragment 每个分片包含的关键帧数（I 帧间隔 1 秒时即分片秒数）
+     */
+    public FragmentedMp4SegmentMuxer(String filePath, int keyFramesPerFragment) throws IOException {
+        this.outputFile = new File(filePath);
+        this.keyFramesPerFragment = keyFramesPerFragment;
+        // 与 MediaMuxer 一致：构造时即创建文件
+        if (!outputFile.exists() && !outputFile.createNewFile()) {
+            throw new IOException("Cannot create file: " + filePath);
+        }
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (trackFormat != null) {
+            throw new IllegalStateException("Only one video track is supported");
+        }
+        trackFormat = buildTrackFormat(format);
+        return TRACK_INDEX;
+    }
+
+    @Override
+    public void start() {
+        if (trackFormat == null) {
+            throw new IllegalStateException("No track added");
+        }
+        try {
+            writer = new FragmentedMp4Writer(outputFile, trackFormat, keyFramesPerFragment);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to start fragmented writer: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (writer == null) {
+            throw new IllegalStateException("Muxer not started");
+        }
+        if (trackIndex != TRACK_INDEX) {
+            throw new IllegalArgumentException("Invalid track index: " + trackIndex);
+        }
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        try {
+            writer.writeSample(byteBuf, bufferInfo.presentationTimeUs, keyFrame);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write sample: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void writeSyncInfo(Mp4SyncInfo syncInfo) {
+        if (writer == null) {
+            throw new IllegalStateException("Muxer not started");
+        }
+        try {
+            writer.writeSyncInfo(syncInfo);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write sync info: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (writer == null) {
+            throw new IllegalStateException("Muxer not started");
+        }
+        FragmentedMp4Writer target = writer;
+        writer = null;
+        try {
+            target.close();
+            AppLog.d(TAG, "Closed " + outputFile.getName() + ": " + target.getFragmentCount() + " fragments, "
+                    + target.getSamplesWritten() + " samples, " + target.getBytesWritten() + " bytes");
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to close fragmented writer: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (writer != null) {
+            // 未调用 stop() 时也尽量写出缓冲中的分片
+            try {
+                writer.close();
+            } catch (IOException e) {
+                AppLog.w(TAG, "Error closing writer on release: " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * 从编码器输出格式构建轨道格式
+     * H.264：csd-0 = SPS, csd-1 = PPS；H.265：csd-0 中依次包含 VPS/SPS/PPS
+     */
+    private static Mp4TrackFormat buildTrackFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        if (!hevc && !MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            throw new IllegalArgumentException("Unsupported mime type: " + mime);
+        }
+        List<byte[]> nals = new ArrayList<>();
+        nals.addAll(NalUnits.splitAnnexB(readCsd(format, "csd-0")));
+        nals.addAll(NalUnits.splitAnnexB(readCsd(format, "csd-1")));
+
+        byte[] vps = null;
+        byte[] sps = null;
+        byte[] pps = null;
+        for (byte[] nal : nals) {
+            int type = hevc ? NalUnits.hevcNalType(nal[0]) : NalUnits.avcNalType(nal[0]);
+            if (hevc && type == NalUnits.HEVC_NAL_VPS && vps == null) {
+                vps = nal;
+            } else if (type == (hevc ? NalUnits.HEVC_NAL_SPS : NalUnits.AVC_NAL_SPS) && sps == null) {
+                sps = nal;
+            } else if (type == (hevc ? NalUnits.HEVC_NAL_PPS : NalUnits.AVC_NAL_PPS) && pps == null) {
+                pps = nal;
+            }
+        }
+        if (sps == null || pps == null || (hevc && vps == null)) {
+            throw new IllegalArgumentException("Missing parameter sets in output format");
+        }
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (hevc) {
+            return Mp4TrackFormat.hevc(width, height, vps, sps, pps);
+        }
+        return Mp4TrackFormat.avc(width, height, sps, pps);
+    }
+
+    private static byte[] readCsd(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key);
+        if (csd == null) {
+            return null;
+        }
+        ByteBuffer copy = csd.duplicate();
+        copy.position(0);
+        byte[] data = new byte[copy.remaining()];
+        copy.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,210 @@
+package com.kooo.evcam.camera;
+
+import android.os.Trace;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 逐帧流水线追踪（单个录制器，常驻开启）
+ * 记录每一帧从采集到写入文件的各阶段时间点，用于定位掉帧发生在哪一环：
+ * - 采集：传感器时间戳（Camera2 会话）
+ * - 到达：onFrameAvailable 回调在渲染线程上开始执行
+ * - 渲染：EglSurfaceEncoder.drawFrame 开始 / 结束
+ * - 编码输出：MediaCodec 输出回调到达
+ * - 写入：Muxer writeSampleData 完成
+ *
+ * 时间点写入预分配的环形缓冲（平行 long 数组，稳态无分配、无锁），开销约为每帧几次 System.nanoTime；
+ * 渲染端与输出端通过编码器透传的时间戳（PTS）关联到同一槽位。
+ * 可选输出 android.os.Trace 区段（draw / write），配合 Perfetto 查看
+ *
+ * 线程：begin/endDraw、onFrameDropped 只在渲染线程调用；begin/endWrite 只在 Muxer 写入线程调用；
+ * dump 可在任意线程调用（诊断用途，与写入并发时个别样本可能不准确）
+ */
+public class FrameTracer {
+
+    private static final int CAPACITY = 512;  // 环形缓冲容量（帧），30fps 约 17 秒
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_MATCH_SCAN = 64;  // 输出端向后查找匹配槽位的最大帧数
+
+    private static final String[] STAGE_NAMES = {"capture->avail", "avail->draw", "draw", "encode", "write", "total"};
+
+    private final String cameraId;
+    private final boolean traceSections;
+    private final String drawSectionName;
+    private final String writeSectionName;
+
+    // 环形缓冲（按帧序号取模）
+    private final long[] captureNs = new long[CAPACITY];
+    private final long[] availableNs = new long[CAPACITY];
+    private final long[] drawStartNs = new long[CAPACITY];
+    private final long[] drawEndNs = new long[CAPACITY];
+    private final long[] outputNs = new long[CAPACITY];
+    private final long[] writtenNs = new long[CAPACITY];
+    private final long[] ptsUs = new long[CAPACITY];
+
+    private volatile long drawnFrames = 0;  // 已完成渲染的帧序号（渲染线程写）
+    private long matchCursor = 0;  // 下一个待匹配的帧序号（仅 Muxer 写入线程访问）
+
+    // 计数（各自只由一个线程写）
+    private volatile long renderDroppedFrames = 0;  // 渲染端丢弃（抽帧、编码器反压、编码器不健康等）
+    private volatile long encoderDroppedFrames = 0;  // 已渲染但没有编码输出
+    private volatile long writtenFrames = 0;
+    private volatile long unmatchedOutputs = 0;  // 找不到对应渲染记录的输出（预录、重建等）
+
+    /**
+     * @param traceSections 是否输出 android.os.Trace 区段
+     */
+    public FrameTracer(String cameraId, boolean traceSections) {
+        this.cameraId = cameraId;
+        this.traceSections = traceSections;
+        this.drawSectionName = "EVCam draw " + cameraId;
+        this.writeSectionName = "EVCam write " + cameraId;
+    }
+
+    /**
+     * 渲染开始（渲染线程）
+     * @param frameCaptureNs 传感器时间戳
+     * @param frameAvailableNs 帧到达回调开始执行的时间
+     */
+    public void beginDraw(long frameCaptureNs, long frameAvailableNs) {
+        int slot = (int) (drawnFrames & MASK);
+        captureNs[slot] = frameCaptureNs;
+        availableNs[slot] = frameAvailableNs;
+        drawStartNs[slot] = System.nanoTime();
+        drawEndNs[slot] = 0;
+        outputNs[slot] = 0;
+        writtenNs[slot] = 0;
+        if (traceSections) {
+            Trace.beginSection(drawSectionName);
+        }
+    }
+
+    /**
+     * 渲染结束（渲染线程），发布该帧供输出端匹配
+     * @param presentationTimeNs 送入编码器的时间戳
+     */
+    public void endDraw(long presentationTimeNs) {
+        if (traceSections) {
+            Trace.endSection();
+        }
+        long seq = drawnFrames;
+        int slot = (int) (seq & MASK);
+        ptsUs[slot] = presentationTimeNs / 1000;
+        drawEndNs[slot] = System.nanoTime();
+        drawnFrames = seq + 1;
+    }
+
+    /**
+     * 帧在渲染端被丢弃（渲染线程）
+     */
+    public void onFrameDropped() {
+        renderDroppedFrames++;
+    }
+
+    /**
+     * Muxer 写入开始（Muxer 写入线程）
+     */
+    public void beginWrite() {
+        if (traceSections) {
+            Trace.beginSection(writeSectionName);
+        }
+    }
+
+    /**
+     * Muxer 写入完成（Muxer 写入线程）
+     * @param encoderPtsUs 编码器输出的时间戳（与 endDraw 的时间戳对应）
+     * @param outputCallbackNs 编码输出回调到达时间
+     */
+    public void endWrite(long encoderPtsUs, long outputCallbackNs) {
+        if (traceSections) {
+            Trace.endSection();
+        }
+        long now = System.nanoTime();
+        writtenFrames++;
+
+        long end = drawnFrames;
+        long seq = Math.max(matchCursor, end - CAPACITY);
+        long limit = Math.min(end, seq + MAX_MATCH_SCAN);
+        for (; seq < limit; seq++) {
+            int slot = (int) (seq & MASK);
+            if (ptsUs[slot] == encoderPtsUs) {
+                outputNs[slot] = outputCallbackNs;
+                writtenNs[slot] = now;
+                // 跳过的帧已渲染但编码器没有输出
+                encoderDroppedFrames += seq - matchCursor;
+                matchCursor = seq + 1;
+                return;
+            }
+        }
+        unmatchedOutputs++;
+    }
+
+    /**
+     * 汇总各阶段延迟分位数（P50 / P90 / P99 / 最大值，毫秒）及丢帧计数
+     */
+    public String dump() {
+        long end = drawnFrames;
+        long start = Math.max(0, end - CAPACITY);
+        int count = (int) (end - start);
+        long[][] stages = new long[STAGE_NAMES.length][count];
+        long[] intervals = new long[count];
+        int samples = 0;
+        int intervalCount = 0;
+        long previousCaptureNs = -1;
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            long capture = captureNs[slot];
+            if (previousCaptureNs > 0 && capture > previousCaptureNs) {
+                intervals[intervalCount++] = capture - previousCaptureNs;
+            }
+            previousCaptureNs = capture;
+            long written = writtenNs[slot];
+            if (written == 0) {
+                continue;
+            }
+            stages[0][samples] = availableNs[slot] - capture;
+            stages[1][samples] = drawStartNs[slot] - availableNs[slot];
+            stages[2][samples] = drawEndNs[slot] - drawStartNs[slot];
+            stages[3][samples] = outputNs[slot] - drawEndNs[slot];
+            stages[4][samples] = written - outputNs[slot];
+            stages[5][samples] = written - capture;
+            samples++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Camera ").append(cameraId).append(" frame trace: ").append(samples).append(" traced, ")
+                .append(writtenFrames).append(" written, dropped render=").append(renderDroppedFrames)
+                .append(" encoder=").append(encoderDroppedFrames)
+                .append(", unmatched=").append(unmatchedOutputs);
+
+        // 采集间隔超过中位数 1.5 倍视为相机端丢帧
+        if (intervalCount > 1) {
+            long[] sorted = Arrays.copyOf(intervals, intervalCount);
+            Arrays.sort(sorted);
+            long median = sorted[intervalCount / 2];
+            int gaps = 0;
+            for (int i = 0; i < intervalCount; i++) {
+                if (intervals[i] > median * 3 / 2) {
+                    gaps++;
+                }
+            }
+            sb.append(String.format(Locale.US, ", capture interval p50=%.1fms max=%.1fms gaps=%d",
+                    median / 1e6, sorted[intervalCount - 1] / 1e6, gaps));
+        }
+
+        for (int i = 0; i < STAGE_NAMES.length && samples > 0; i++) {
+            long[] values = Arrays.copyOf(stages[i], samples);
+            Arrays.sort(values);
+            sb.append(String.format(Locale.US, "\n  %-14s p50=%.2f p90=%.2f p99=%.2f max=%.2f ms", STAGE_NAMES[i],
+                    percentile(values, 50) / 1e6, percentile(values, 90) / 1e6,
+                    percentile(values, 99) / 1e6, values[samples - 1] / 1e6));
+        }
+        return sb.toString();
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
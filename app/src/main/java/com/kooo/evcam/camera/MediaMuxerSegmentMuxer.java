@@ -0,0 +1,54 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import com.kooo.evcam.camera.mp4.Mp4SyncInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于系统 MediaMuxer 的分段封装器
+ * moov 在 stop() 时写入，异常断电的文件需要修复后才能播放
+ * MediaMuxer 不支持自定义 udta，文件中没有多路同步信息
+ */
+public class MediaMuxerSegmentMuxer implements SegmentMuxer {
+
+    private final MediaMuxer muxer;
+
+    public MediaMuxerSegmentMuxer(String filePath) throws IOException {
+        muxer = new MediaMuxer(filePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void writeSyncInfo(Mp4SyncInfo syncInfo) {
+        // MediaMuxer 无法写入自定义 Box，忽略
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
@@ -0,0 +1,262 @@
+package com.kooo.evcam.camera;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.Matrix;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.List;
+
+/**
+ * 拼接录制合成器（2x2 四宫格）
+ * 把多路摄像头的 OES 纹理按宫格合成到同一个编码器输入 Surface，只需一个编码器、一个 Muxer
+ *
+ * 宫格顺序与摄像头顺序一致（通常为 前、后、左、右），从左上角开始按行排列：
+ * <pre>
+ *   +-------+-------+
+ *   |   0   |   1   |
+ *   +-------+-------+
+ *   |   2   |   3   |
+ *   +-------+-------+
+ * </pre>
+ * 每个宫格按摄像头的旋转、镜像、裁剪配置绘制（与预览界面一致），画面拉伸填满宫格。
+ *
+ * 所有方法（除构造和查询布局外）必须在编码线程上调用。
+ */
+public class MosaicCompositor {
+    private static final String TAG = "MosaicCompositor";
+
+    /** 拼接录制文件的机位名（文件名格式：yyyyMMdd_HHmmss_mosaic.mp4） */
+    public static final String POSITION_MOSAIC = "mosaic";
+
+    /** 宫格列数 */
+    public static final int COLUMNS = 2;
+
+    /**
+     * 宫格配置（一个摄像头）
+     */
+    public static class TileSpec {
+        final String key;
+        final int inputWidth;
+        final int inputHeight;
+        final int rotation;
+        final boolean mirror;
+        final float cropLeft;
+        final float cropTop;
+        final float cropRight;
+        final float cropBottom;
+
+        /**
+         * @param key 摄像头位置（front/back/left/right）
+         * @param inputWidth 摄像头输出宽度（SurfaceTexture 缓冲大小）
+         * @param inputHeight 摄像头输出高度
+         * @param rotation 顺时针旋转角度（0/90/180/270）
+         * @param mirror 是否水平镜像
+         * @param crop 裁剪比例 {left, top, right, bottom}（相对于旋转后的画面，0~1），null 表示不裁剪
+         */
+        public TileSpec(String key, int inputWidth, int inputHeight, int rotation, boolean mirror, float[] crop) {
+            this.key = key;
+            this.inputWidth = inputWidth;
+            this.inputHeight = inputHeight;
+            this.rotation = rotation;
+            this.mirror = mirror;
+            this.cropLeft = crop != null ? crop[0] : 0f;
+            this.cropTop = crop != null ? crop[1] : 0f;
+            this.cropRight = crop != null ? crop[2] : 0f;
+            this.cropBottom = crop != null ? crop[3] : 0f;
+        }
+    }
+
+    /**
+     * 宫格运行时状态
+     */
+    private static class Tile {
+        final TileSpec spec;
+        final int x;
+        final int y;
+        final float[] viewToImage = new float[16];  // 宫格坐标 -> 摄像头画面坐标（裁剪、镜像、旋转）
+        final float[] stMatrix = new float[16];     // SurfaceTexture 变换矩阵
+        final float[] texMatrix = new float[16];    // 最终纹理矩阵
+        int textureId;
+        SurfaceTexture surfaceTexture;
+        boolean hasFrame = false;
+
+        Tile(TileSpec spec, int x, int y) {
+            this.spec = spec;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private final Tile[] tiles;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int outputWidth;
+    private final int outputHeight;
+
+    /**
+     * @param specs 各宫格配置（按显示顺序）
+     * @param tileWidth 单个宫格宽度
+     * @param tileHeight 单个宫格高度
+     */
+    public MosaicCompositor(List<TileSpec> specs, int tileWidth, int tileHeight) {
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        int count = specs.size();
+        int columns = Math.min(COLUMNS, Math.max(1, count));
+        int rows = (count + COLUMNS - 1) / COLUMNS;
+        this.outputWidth = columns * tileWidth;
+        this.outputHeight = Math.max(1, rows) * tileHeight;
+
+        this.tiles = new Tile[count];
+        for (int i = 0; i < count; i++) {
+            int column = i % COLUMNS;
+            int row = i / COLUMNS;
+            // GL 视口原点在左下角，第 0 行在最上方
+            int x = column * tileWidth;
+            int y = outputHeight - (row + 1) * tileHeight;
+            tiles[i] = new Tile(specs.get(i), x, y);
+            buildViewToImageMatrix(tiles[i]);
+        }
+    }
+
+    /**
+     * 合成画面宽度
+     */
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    /**
+     * 合成画面高度
+     */
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    /**
+     * 宫格数量
+     */
+    public int getTileCount() {
+        return tiles.length;
+    }
+
+    /**
+     * 创建各宫格的 OES 纹理和 SurfaceTexture（编码线程，EGL 已初始化后调用）
+     */
+    void initialize(EglSurfaceEncoder encoder) {
+        for (Tile tile : tiles) {
+            tile.textureId = encoder.createExternalTexture();
+            tile.surfaceTexture = new SurfaceTexture(tile.textureId);
+            tile.surfaceTexture.setDefaultBufferSize(tile.spec.inputWidth, tile.spec.inputHeight);
+            Matrix.setIdentityM(tile.stMatrix, 0);
+        }
+        AppLog.d(TAG, "Mosaic initialized: " + tiles.length + " tiles of " + tileWidth + "x" + tileHeight
+                + " -> " + outputWidth + "x" + outputHeight);
+    }
+
+    /**
+     * 获取指定摄像头的 SurfaceTexture（供 Camera 输出）
+     */
+    public SurfaceTexture getSurfaceTexture(String key) {
+        for (Tile tile : tiles) {
+            if (tile.spec.key.equals(key)) {
+                return tile.surfaceTexture;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 获取所有宫格的 SurfaceTexture（按宫格顺序）
+     */
+    SurfaceTexture[] getSurfaceTextures() {
+        SurfaceTexture[] result = new SurfaceTexture[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            result[i] = tiles[i].surfaceTexture;
+        }
+        return result;
+    }
+
+    /**
+     * 锁存宫格的新帧（调用 updateTexImage，需要 EGL Context 处于当前状态）
+     * 无论是否在录制都必须调用，否则 SurfaceTexture 不再触发 onFrameAvailable
+     */
+    void latchFrame(SurfaceTexture surfaceTexture) {
+        for (Tile tile : tiles) {
+            if (tile.surfaceTexture == surfaceTexture) {
+                surfaceTexture.updateTexImage();
+                surfaceTexture.getTransformMatrix(tile.stMatrix);
+                tile.hasFrame = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 合成一帧并提交到编码器
+     * 尚未收到画面的宫格保持黑色
+     */
+    void drawFrame(EglSurfaceEncoder encoder, long presentationTimeNs) {
+        encoder.beginCompositeFrame();
+        for (Tile tile : tiles) {
+            if (!tile.hasFrame) {
+                continue;
+            }
+            Matrix.multiplyMM(tile.texMatrix, 0, tile.stMatrix, 0, tile.viewToImage, 0);
+            encoder.drawExternalTexture(tile.textureId, tile.texMatrix, tile.x, tile.y, tileWidth, tileHeight);
+        }
+        encoder.finishCompositeFrame(presentationTimeNs);
+    }
+
+    /**
+     * 释放各宫格的 SurfaceTexture 和纹理
+     */
+    void release(EglSurfaceEncoder encoder) {
+        for (Tile tile : tiles) {
+            if (tile.surfaceTexture != null) {
+                tile.surfaceTexture.setOnFrameAvailableListener(null);
+                tile.surfaceTexture.release();
+                tile.surfaceTexture = null;
+            }
+            if (tile.textureId != 0 && encoder != null) {
+                encoder.deleteTexture(tile.textureId);
+            }
+            tile.textureId = 0;
+            tile.hasFrame = false;
+        }
+    }
+
+    /**
+     * 计算宫格坐标到摄像头画面坐标的变换（纹理坐标系，原点在左下角）
+     * 预览界面的变换为：先镜像、再顺时针旋转、最后裁剪；这里按相反顺序求逆：
+     * 画面坐标 = 镜像 × 逆时针旋转 × 裁剪 × 宫格坐标
+     */
+    private static void buildViewToImageMatrix(Tile tile) {
+        TileSpec spec = tile.spec;
+        float[] crop = new float[16];
+        Matrix.setIdentityM(crop, 0);
+        // 纹理坐标 t 轴向上，上裁剪对应 t=1 一侧
+        Matrix.translateM(crop, 0, spec.cropLeft, spec.cropBottom, 0f);
+        Matrix.scaleM(crop, 0, 1f - spec.cropLeft - spec.cropRight, 1f - spec.cropTop - spec.cropBottom, 1f);
+
+        float[] rotate = new float[16];
+        Matrix.setIdentityM(rotate, 0);
+        if (spec.rotation % 360 != 0) {
+            Matrix.translateM(rotate, 0, 0.5f, 0.5f, 0f);
+            Matrix.rotateM(rotate, 0, spec.rotation, 0f, 0f, 1f);
+            Matrix.translateM(rotate, 0, -0.5f, -0.5f, 0f);
+        }
+
+        float[] mirror = new float[16];
+        Matrix.setIdentityM(mirror, 0);
+        if (spec.mirror) {
+            Matrix.translateM(mirror, 0, 1f, 0f, 0f);
+            Matrix.scaleM(mirror, 0, -1f, 1f, 1f);
+        }
+
+        float[] temp = new float[16];
+        Matrix.multiplyMM(temp, 0, rotate, 0, crop, 0);
+        Matrix.multiplyMM(tile.viewToImage, 0, mirror, 0, temp, 0);
+    }
+}
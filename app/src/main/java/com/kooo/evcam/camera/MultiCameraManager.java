@@ -4,6 +4,7 @@ package com.kooo.evcam.camera;
 import com.kooo.evcam.AppConfig;
 import com.kooo.evcam.AppLog;
 import com.kooo.evcam.FileTransferManager;
+import com.kooo.evcam.MediaIndex;
 import com.kooo.evcam.StorageHelper;
 import android.content.Context;
 import android.os.Environment;
@@ -15,8 +16,10 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.List;
 import java.util.Map;
@@ -32,22 +35,49 @@ public class MultiCameraManager {
     private static final long RECORDING_STABLE_FRAME_MAX_AGE_MS = 1500;
     private static final int MAX_STABLE_WAIT_ATTEMPTS = 10;
     private static final long STABLE_WAIT_INTERVAL_MS = 200;
+    private static final int MAX_CONCURRENT_HAL_OPERATIONS = 1;  // 重连/重开/卡顿恢复同时进行的 HAL 操作上限
+    // 拼接录制画面上限（大多数车机 H.264 硬件编码器可以稳定编码 2560x1600）
+    private static final int MAX_MOSAIC_WIDTH = 2560;
+    private static final int MAX_MOSAIC_HEIGHT = 1600;
     // 录制分辨率将使用预览的实际分辨率，不再硬编码
 
     private final Context context;
     private final Map<String, SingleCamera> cameras = new LinkedHashMap<>();
     private final Map<String, VideoRecorder> recorders = new LinkedHashMap<>();
     private final Map<String, CodecVideoRecorder> codecRecorders = new LinkedHashMap<>();  // 软编码录制器
+    private final Map<String, PreRollBuffer> preRollBuffers = new LinkedHashMap<>();  // 预录缓冲（跨录制复用）
+    private boolean preRollFlushPending = false;  // 下一次录制是否写入预录画面（触发式录制）
+    private final Map<String, CodecVideoRecorder> preRollRecorders = new LinkedHashMap<>();  // 空闲时的预录待命录制器（只编码、不写文件）
+    private static final long PRE_ROLL_ARM_DELAY_MS = 2000;  // 会话配置完成后延迟启动预录待命（等待预览稳定、避开紧接着的录制启动）
+    private final Runnable armPreRollRunnable = this::armPreRoll;
+    private SharedEglRenderEngine sharedRenderEngine;  // 共享 EGL 渲染引擎（Codec 模式，跨录制复用）
+    private RecordingSessionClock recordingSessionClock;  // 本次录制的会话时钟（Codec 模式，各路共用时间原点）
+    private final ReconnectCoordinator reconnectCoordinator =
+            new ReconnectCoordinator(MAX_CONCURRENT_HAL_OPERATIONS, this::isCameraIdRecording);
+    private ThermalGovernor thermalGovernor;  // 过热降级调度（Codec 录制期间运行）
+    private final Map<String, Float> thermalBaselineFps = new HashMap<>();  // 各摄像头本次录制中测得的最高帧率（实测帧率基准）
+    private boolean headless = false;  // 息屏无头模式（录制期间各路只输出到录制 Surface）
+    private PowerSampler powerSampler;  // 录制功耗采样（无头 / 预览对比）
+
+    // 分阶段启动（Codec 模式）：各路并行准备编码器，哪一路的会话先配置好就先开始录制
+    private static final long STAGED_BRING_UP_TIMEOUT_MS = 8000;  // 分阶段启动总超时，超时仍未就绪的摄像头放弃
+    private volatile int stagedGeneration = 0;  // 分阶段启动批次号（停止或重新开始录制后旧批次的回调全部忽略）
+    private final Set<String> stagedPendingKeys = new HashSet<>();  // 尚未有结果的摄像头（sessionLock 保护）
+    private final Set<String> stagedAwaitingSession = new HashSet<>();  // 编码器已准备、等待会话配置的摄像头（sessionLock 保护）
+    private final Set<String> stagedStartedKeys = new HashSet<>();
+    private final Set<String> stagedFailedKeys = new HashSet<>();
+    private final Set<String> stagedAttachedKeys = new HashSet<>();  // 已把录制 Surface 交给摄像头的摄像头（sessionLock 保护）
     private final List<String> activeCameraKeys = new ArrayList<>();
     private int maxOpenCameras = DEFAULT_MAX_OPEN_CAMERAS;
 
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;  // 存储测速线程也会读取
     private volatile boolean repairSuppressed = false;  // 主动关闭摄像头时抑制 repair loop
     private boolean useCodecRecording = false;  // 是否使用软编码录制（用于 L6/L7）
     private boolean useRelayWrite = false;      // 是否使用中转写入（录制到内部存储，异步传输到U盘）
     private File finalSaveDir = null;           // 最终存储目录（用于中转写入模式）
     private volatile int lastNotifiedSegmentIndex = -1;  // 已通知的分段索引，避免重复通知
     private long overrideSegmentDurationMs = 0;  // 临时覆盖分段时长（0=使用配置值，>0=使用此值）
+    private volatile boolean parkingMode = false;  // 停车模式（Codec 录制改为延时录影）
     
     // 统一分段时间戳管理（解决多路摄像头分段切换时时间戳差1秒的问题）
     private String cachedSegmentTimestamp = null;  // 缓存的分段时间戳
@@ -224,6 +254,31 @@ public class MultiCameraManager {
         AppLog.d(TAG, "Segment duration override cleared, using config value");
     }
 
+    /**
+     * 切换停车模式（息屏锁车时由外部调用）
+     * 停车模式下 Codec 录制改为低帧率延时录影，录制中立即生效，之后开始的录制也沿用该模式；
+     * MediaRecorder 录制模式不受影响
+     * @param enabled true 表示进入停车模式
+     */
+    public void setParkingMode(boolean enabled) {
+        if (parkingMode == enabled) {
+            return;
+        }
+        parkingMode = enabled;
+        int captureFrameRate = new AppConfig(context).getParkingTimeLapseFrameRate();
+        AppLog.d(TAG, "Parking mode " + (enabled ? "entered, time-lapse at " + captureFrameRate + " fps" : "exited"));
+        for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+            recorder.setTimeLapse(enabled, captureFrameRate);
+        }
+    }
+
+    /**
+     * 是否处于停车模式
+     */
+    public boolean isParkingMode() {
+        return parkingMode;
+    }
+
     public void setCodecFallbackCallback(CodecFallbackCallback callback) {
         this.codecFallbackCallback = callback;
     }
@@ -268,6 +323,9 @@ public class MultiCameraManager {
      */
     public void setCodecRecordingMode(boolean enabled) {
         this.useCodecRecording = enabled;
+        if (!enabled) {
+            disarmPreRoll(true);
+        }
         AppLog.d(TAG, "Codec recording mode: " + (enabled ? "ENABLED" : "DISABLED"));
     }
 
@@ -377,6 +435,11 @@ public class MultiCameraManager {
         
         AppLog.d(TAG, "共初始化 " + cameras.size() + " 个摄像头");
 
+        for (SingleCamera camera : cameras.values()) {
+            camera.setReconnectCoordinator(reconnectCoordinator);
+            camera.setHeadless(headless);
+        }
+
         // 检测重复的cameraId，只让第一个实例成为主实例
         Set<String> primaryIds = new HashSet<>();
         for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
@@ -399,6 +462,7 @@ public class MultiCameraManager {
             @Override
             public void onCameraOpened(String cameraId) {
                 AppLog.d(TAG, "Callback: Camera " + cameraId + " opened");
+                BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_CAMERA_OPENED);
                 if (statusCallback != null) {
                     statusCallback.onCameraStatusUpdate(cameraId, "已打开");
                 }
@@ -407,10 +471,19 @@ public class MultiCameraManager {
             @Override
             public void onCameraConfigured(String cameraId) {
                 AppLog.d(TAG, "Callback: Camera " + cameraId + " configured");
+                BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_SESSION_CONFIGURED);
                 if (statusCallback != null) {
                     statusCallback.onCameraStatusUpdate(cameraId, "预览已启动");
                 }
 
+                // 分阶段启动：该摄像头的录制会话已配置，单独开始录制（不等待其他摄像头）
+                onStagedSessionConfigured(cameraId);
+
+                // 空闲时启动预录待命（已待命或正在录制时不处理）
+                if (!isRecording) {
+                    scheduleArmPreRoll();
+                }
+
                 // 检查是否有录制器正在等待会话重新配置（分段切换）
                 for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
                     if (entry.getValue().getCameraId().equals(cameraId)) {
@@ -527,6 +600,11 @@ public class MultiCameraManager {
             @Override
             public void onPreviewSizeChosen(String cameraId, Size previewSize) {
                 AppLog.d(TAG, "Callback: Camera " + cameraId + " preview size: " + previewSize);
+                if (android.os.Looper.myLooper() != android.os.Looper.getMainLooper()) {
+                    // 并行打开时在后台线程回调，切回主线程通知界面
+                    mainHandler.post(() -> onPreviewSizeChosen(cameraId, previewSize));
+                    return;
+                }
                 // 找到对应的 camera key
                 for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
                     if (entry.getValue().getCameraId().equals(cameraId)) {
@@ -614,6 +692,8 @@ public class MultiCameraManager {
                             if (useRelayWrite && finalSaveDir != null && newSegmentIndex > 0 && completedFilePath != null) {
                                 // 传输已完成的文件（由回调提供确切路径，避免传输正在录制的新文件）
                                 scheduleRelayTransfer(completedFilePath);
+                            } else if (completedFilePath != null) {
+                                MediaIndex.getInstance(context).onFileAdded(new File(completedFilePath));
                             }
                             
                             // 更新录制 Surface 并重新创建会话（MediaRecorder 模式）
@@ -655,6 +735,7 @@ public class MultiCameraManager {
             @Override
             public void onFirstDataWritten(String cameraId) {
                 AppLog.d(TAG, "First data written for camera " + cameraId);
+                BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_FRAME_WRITTEN);
                 // 只在第一个摄像头首次写入时通知外部（每次录制只通知一次）
                 if (!hasNotifiedFirstDataWritten && firstDataWrittenCallback != null) {
                     hasNotifiedFirstDataWritten = true;
@@ -710,6 +791,7 @@ public class MultiCameraManager {
         activeCameraKeys.clear();
         int opened = 0;
         Set<String> openedIds = new HashSet<>();
+        boolean parallel = new AppConfig(context).isStagedBringUpEnabled();
         for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
             if (opened >= maxOpenCameras) {
                 break;
@@ -720,7 +802,12 @@ public class MultiCameraManager {
                 continue;
             }
             activeCameraKeys.add(entry.getKey());
-            camera.openCamera();
+            if (parallel) {
+                // 并行打开：查询特性、选择分辨率等同步操作在各摄像头自己的线程上执行，不再逐路串行
+                camera.openCameraAsync();
+            } else {
+                camera.openCamera();
+            }
             opened++;
         }
 
@@ -732,6 +819,7 @@ public class MultiCameraManager {
      */
     public void closeAllCameras() {
         repairSuppressed = true;
+        disarmPreRoll(false);
         for (SingleCamera camera : cameras.values()) {
             camera.closeCamera();
         }
@@ -757,6 +845,9 @@ public class MultiCameraManager {
             return false;
         }
 
+        // 停止预录待命（预录缓冲保留，触发式录制写入新文件）
+        disarmPreRoll(false);
+
         // 清除缓存的分段时间戳，开始新的录制周期
         clearCachedSegmentTimestamp();
 
@@ -779,6 +870,9 @@ public class MultiCameraManager {
             return false;
         }
 
+        // 停止预录待命（预录缓冲保留，触发式录制写入新文件）
+        disarmPreRoll(false);
+
         // 清除缓存的分段时间戳，开始新的录制周期
         clearCachedSegmentTimestamp();
 
@@ -790,6 +884,23 @@ public class MultiCameraManager {
         }
     }
 
+    /**
+     * 估算本次录制所有摄像头的总码率（决定直写/中转用）
+     */
+    private long estimateRecordingBitrate(List<String> keys, AppConfig appConfig) {
+        int targetFrameRate = appConfig.getActualFrameRate(30);
+        long total = 0;
+        for (String key : keys) {
+            SingleCamera camera = cameras.get(key);
+            Size previewSize = camera != null ? camera.getPreviewSize() : null;
+            if (previewSize == null) {
+                previewSize = new Size(1280, 720);
+            }
+            total += appConfig.getActualBitrate(previewSize.getWidth(), previewSize.getHeight(), targetFrameRate);
+        }
+        return total;
+    }
+
     /**
      * 使用 MediaRecorder 开始录制（标准模式）
      * @param timestamp 时间戳
@@ -805,27 +916,7 @@ public class MultiCameraManager {
         currentRecordingTimestamp = timestamp;
         currentEnabledCameras = enabledCameras;
 
-        // 检查是否使用中转写入模式
         AppConfig appConfig = new AppConfig(context);
-        useRelayWrite = appConfig.shouldUseRelayWrite();
-        
-        // 获取录制目录（可能是临时目录或最终目录）
-        File saveDir = StorageHelper.getRecordingDir(context);
-        if (!saveDir.exists()) {
-            saveDir.mkdirs();
-        }
-        
-        // 如果使用中转写入，记录最终目录
-        if (useRelayWrite) {
-            finalSaveDir = StorageHelper.getFinalVideoDir(context);
-            if (!finalSaveDir.exists()) {
-                finalSaveDir.mkdirs();
-            }
-            AppLog.d(TAG, "Relay write mode: recording to " + saveDir.getAbsolutePath() + 
-                    ", will transfer to " + finalSaveDir.getAbsolutePath());
-        } else {
-            finalSaveDir = null;
-        }
 
         List<String> allKeys = getActiveCameraKeys();
         if (allKeys.isEmpty()) {
@@ -853,6 +944,27 @@ public class MultiCameraManager {
             return false;
         }
 
+        // 检查是否使用中转写入模式（按本次录制的总码率和U盘实测性能决定）
+        useRelayWrite = StorageHelper.shouldUseRelayWrite(context, estimateRecordingBitrate(keys, appConfig));
+        
+        // 获取录制目录（可能是临时目录或最终目录）
+        File saveDir = StorageHelper.getRecordingDir(context, useRelayWrite);
+        if (!saveDir.exists()) {
+            saveDir.mkdirs();
+        }
+        
+        // 如果使用中转写入，记录最终目录
+        if (useRelayWrite) {
+            finalSaveDir = StorageHelper.getFinalVideoDir(context);
+            if (!finalSaveDir.exists()) {
+                finalSaveDir.mkdirs();
+            }
+            AppLog.d(TAG, "Relay write mode: recording to " + saveDir.getAbsolutePath() + 
+                    ", will transfer to " + finalSaveDir.getAbsolutePath());
+        } else {
+            finalSaveDir = null;
+        }
+
         // 获取录制配置（使用上面已创建的 appConfig）
         // 如果有临时覆盖值（远程录制），使用覆盖值；否则使用配置值
         long segmentDurationMs = (overrideSegmentDurationMs > 0) 
@@ -895,6 +1007,8 @@ public class MultiCameraManager {
             recorder.setSegmentDuration(segmentDurationMs);
             recorder.setVideoBitrate(bitrate);
             recorder.setVideoFrameRate(targetFrameRate);
+            // MediaRecorder 模式没有 H.264 子码流，远程上传只能发送主码流文件，不使用 H.265
+            recorder.setHevcProber(null);
             // 注：最大编码分辨率限制使用 VideoRecorder 内部默认值（4096x4096）
             
             AppLog.d(TAG, "Recording params for " + key + ": " + 
@@ -902,7 +1016,7 @@ public class MultiCameraManager {
                     " @ " + targetFrameRate + "fps, " + AppConfig.formatBitrate(bitrate));
             
             // 所有摄像头使用统一的时间戳：日期_时间_摄像头位置.mp4
-            String path = new File(saveDir, timestamp + "_" + key + ".mp4").getAbsolutePath();
+            String path = StorageHelper.resolveMediaFile(context, saveDir, timestamp + "_" + key + ".mp4").getAbsolutePath();
             // 只准备 MediaRecorder，获取 Surface，使用预览的实际分辨率
             AppLog.d(TAG, "Preparing recording for " + key + " with size: " + previewSize.getWidth() + "x" + previewSize.getHeight());
             if (!recorder.prepareRecording(path, previewSize.getWidth(), previewSize.getHeight())) {
@@ -1040,6 +1154,7 @@ public class MultiCameraManager {
             isRecording = true;
             lastNotifiedSegmentIndex = -1;
             AppLog.d(TAG, activeCameras.size() + " camera(s) started recording successfully: " + activeCameras);
+            getPowerSampler().start();
             
             // 如果有失败的摄像头，通知上层
             if (!failedCameras.isEmpty() && recordingStatusCallback != null) {
@@ -1104,27 +1219,7 @@ public class MultiCameraManager {
         // 重置首次写入通知标志（每次录制只通知一次）
         hasNotifiedFirstDataWritten = false;
 
-        // 检查是否使用中转写入模式
         AppConfig appConfig = new AppConfig(context);
-        useRelayWrite = appConfig.shouldUseRelayWrite();
-        
-        // 获取录制目录（可能是临时目录或最终目录）
-        File saveDir = StorageHelper.getRecordingDir(context);
-        if (!saveDir.exists()) {
-            saveDir.mkdirs();
-        }
-        
-        // 如果使用中转写入，记录最终目录
-        if (useRelayWrite) {
-            finalSaveDir = StorageHelper.getFinalVideoDir(context);
-            if (!finalSaveDir.exists()) {
-                finalSaveDir.mkdirs();
-            }
-            AppLog.d(TAG, "Codec relay write mode: recording to " + saveDir.getAbsolutePath() + 
-                    ", will transfer to " + finalSaveDir.getAbsolutePath());
-        } else {
-            finalSaveDir = null;
-        }
 
         List<String> allKeys = getActiveCameraKeys();
         if (allKeys.isEmpty()) {
@@ -1152,6 +1247,27 @@ public class MultiCameraManager {
             return false;
         }
 
+        // 检查是否使用中转写入模式（按本次录制的总码率和U盘实测性能决定）
+        useRelayWrite = StorageHelper.shouldUseRelayWrite(context, estimateRecordingBitrate(keys, appConfig));
+        
+        // 获取录制目录（可能是临时目录或最终目录）
+        File saveDir = StorageHelper.getRecordingDir(context, useRelayWrite);
+        if (!saveDir.exists()) {
+            saveDir.mkdirs();
+        }
+        
+        // 如果使用中转写入，记录最终目录
+        if (useRelayWrite) {
+            finalSaveDir = StorageHelper.getFinalVideoDir(context);
+            if (!finalSaveDir.exists()) {
+                finalSaveDir.mkdirs();
+            }
+            AppLog.d(TAG, "Codec relay write mode: recording to " + saveDir.getAbsolutePath() + 
+                    ", will transfer to " + finalSaveDir.getAbsolutePath());
+        } else {
+            finalSaveDir = null;
+        }
+
         // 获取录制配置（使用上面已创建的 appConfig）
         // 如果有临时覆盖值（远程录制），使用覆盖值；否则使用配置值
         long segmentDurationMs = (overrideSegmentDurationMs > 0) 
@@ -1168,172 +1284,122 @@ public class MultiCameraManager {
         AppLog.d(TAG, "Codec target frame rate: " + targetFrameRate + " fps (level: " + appConfig.getFramerateLevel() + ")");
 
         // 清理之前的软编码录制器
-        for (CodecVideoRecorder recorder : codecRecorders.values()) {
+        for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
             recorder.release();
         }
         codecRecorders.clear();
 
-        // 为每个摄像头创建软编码录制器并准备
-        boolean prepareSuccess = true;
-        for (String key : keys) {
-            SingleCamera camera = cameras.get(key);
-            if (camera == null) {
-                continue;
-            }
-
-            // 获取摄像头的实际预览分辨率
-            Size previewSize = camera.getPreviewSize();
-            if (previewSize == null) {
-                AppLog.e(TAG, "Camera " + key + " preview size not available, using fallback 1280x800");
-                previewSize = new Size(1280, 800);
-            }
-            
-            // 最大编码分辨率限制（H.264 编码器硬件限制，固定值）
-            final int MAX_ENCODE_SIZE = 4096;
-            
-            // 计算调整后的编码分辨率（防止超大分辨率摄像头导致编码失败）
-            int encodeWidth = previewSize.getWidth();
-            int encodeHeight = previewSize.getHeight();
-            if (encodeWidth > MAX_ENCODE_SIZE || encodeHeight > MAX_ENCODE_SIZE) {
-                float widthRatio = (float) MAX_ENCODE_SIZE / encodeWidth;
-                float heightRatio = (float) MAX_ENCODE_SIZE / encodeHeight;
-                float scaleFactor = Math.min(widthRatio, heightRatio);
-                encodeWidth = ((int) (encodeWidth * scaleFactor) / 2) * 2;  // 确保是偶数
-                encodeHeight = ((int) (encodeHeight * scaleFactor) / 2) * 2;
-                if (encodeWidth < 2) encodeWidth = 2;
-                if (encodeHeight < 2) encodeHeight = 2;
-                AppLog.w(TAG, "Camera " + key + " codec resolution adjusted: " + 
-                        previewSize.getWidth() + "x" + previewSize.getHeight() + " -> " + 
-                        encodeWidth + "x" + encodeHeight + " (max: " + MAX_ENCODE_SIZE + ")");
-            }
-            
-            // 计算码率（基于调整后的分辨率和帧率）
-            int bitrate = appConfig.getActualBitrate(encodeWidth, encodeHeight, targetFrameRate);
-
-            // 创建软编码录制器（使用调整后的分辨率）
-            CodecVideoRecorder codecRecorder = new CodecVideoRecorder(
-                    camera.getCameraId(), 
-                    encodeWidth, 
-                    encodeHeight
-            );
-
-            // 设置统一时间戳提供者（确保多路摄像头分段切换时使用相同时间戳）
-            codecRecorder.setTimestampProvider(segmentTimestampProvider);
-
-            // 设置录制参数
-            codecRecorder.setSegmentDuration(segmentDurationMs);
-            codecRecorder.setBitRate(bitrate);
-            codecRecorder.setFrameRate(targetFrameRate);
-            
-            AppLog.d(TAG, "Codec recording params for " + key + ": " + 
-                    encodeWidth + "x" + encodeHeight + 
-                    " @ " + targetFrameRate + "fps, " + AppConfig.formatBitrate(bitrate));
+        // 触发式录制：新文件先写入预录缓冲中的画面（标志只对本次录制生效）
+        final boolean flushPreRoll = preRollFlushPending;
+        preRollFlushPending = false;
 
-            // 设置时间水印（从配置读取，使用方法开头已创建的 appConfig）
-            codecRecorder.setWatermarkEnabled(appConfig.isTimestampWatermarkEnabled());
+        // 每次录制使用新的会话时钟，各路文件的时间轴以同一原点计算
+        recordingSessionClock = new RecordingSessionClock();
 
-            // 设置回调
-            codecRecorder.setCallback(new RecordCallback() {
-                @Override
-                public void onRecordStart(String cameraId) {
-                    AppLog.d(TAG, "Codec recording started for camera " + cameraId);
+        boolean prepareSuccess = true;
+        boolean mosaic = appConfig.isMosaicRecordingEnabled() && keys.size() > 1;
+        boolean stagedBringUp = !mosaic && appConfig.isStagedBringUpEnabled();
+        if (mosaic) {
+            // 拼接录制：所有摄像头合成到一个编码器
+            prepareSuccess = prepareMosaicCodecRecording(keys, saveDir, timestamp, segmentDurationMs,
+                    targetFrameRate, appConfig, flushPreRoll);
+        } else {
+            // 为每个摄像头创建软编码录制器并准备
+            for (String key : keys) {
+                SingleCamera camera = cameras.get(key);
+                if (camera == null) {
+                    continue;
                 }
 
-                @Override
-                public void onRecordStop(String cameraId) {
-                    AppLog.d(TAG, "Codec recording stopped for camera " + cameraId);
+                // 获取摄像头的实际预览分辨率（日志用）和编码分辨率
+                Size previewSize = camera.getPreviewSize();
+                if (previewSize == null) {
+                    previewSize = new Size(1280, 800);
                 }
-
-                @Override
-                public void onRecordError(String cameraId, String error) {
-                    AppLog.e(TAG, "Codec recording error for camera " + cameraId + ": " + error);
+                Size encodeSize = getCodecEncodeSize(key, camera);
+                int encodeWidth = encodeSize.getWidth();
+                int encodeHeight = encodeSize.getHeight();
+            
+                // 计算码率（基于调整后的分辨率和帧率）
+                int bitrate = appConfig.getActualBitrate(encodeWidth, encodeHeight, targetFrameRate);
+
+                // 创建软编码录制器（使用调整后的分辨率）
+                CodecVideoRecorder codecRecorder = new CodecVideoRecorder(
+                        camera.getCameraId(), 
+                        encodeWidth, 
+                        encodeHeight
+                );
+
+                // 设置统一时间戳提供者（确保多路摄像头分段切换时使用相同时间戳）
+                codecRecorder.setTimestampProvider(segmentTimestampProvider);
+                codecRecorder.setSessionClock(recordingSessionClock);
+                codecRecorder.setTraceSectionsEnabled(appConfig.isFrameTraceSectionsEnabled());
+
+                // 设置录制参数
+                codecRecorder.setSegmentDuration(segmentDurationMs);
+                codecRecorder.setBitRate(bitrate);
+                codecRecorder.setFrameRate(targetFrameRate);
+                codecRecorder.setSeamlessSegmentEnabled(appConfig.isSeamlessSegmentEnabled());
+                codecRecorder.setFragmentedMp4Enabled(appConfig.isFragmentedMp4Enabled());
+                codecRecorder.setAdaptiveBitrateEnabled(appConfig.isAdaptiveBitrateEnabled());
+                codecRecorder.setHevcProber(getHevcProber(appConfig, key));
+                codecRecorder.setPreRollBuffer(obtainPreRollBuffer(key, bitrate, appConfig.getPreRollSeconds()), flushPreRoll);
+                codecRecorder.setSharedRenderEngine(appConfig.isSharedEglRenderEnabled() ? obtainSharedRenderEngine() : null);
+                codecRecorder.setTimeLapse(parkingMode, appConfig.getParkingTimeLapseFrameRate());
+                if (appConfig.isSubStreamEnabled(key)) {
+                    codecRecorder.setSubStream(appConfig.getSubStreamShortEdge(key), appConfig.getSubStreamBitrate(key));
+                    codecRecorder.setSubStreamFileListener(FileTransferManager.getInstance(context));
                 }
+            
+                AppLog.d(TAG, "Codec recording params for " + key + ": " + 
+                        encodeWidth + "x" + encodeHeight + 
+                        " @ " + targetFrameRate + "fps, " + AppConfig.formatBitrate(bitrate));
 
-                @Override
-                public void onPrepareSegmentSwitch(String cameraId, int currentSegmentIndex) {
-                    AppLog.d(TAG, "Codec prepare segment switch for camera " + cameraId + " (current segment: " + currentSegmentIndex + ")");
-                    // 软编码录制器使用独立的 SurfaceTexture，不需要暂停 Camera CaptureSession
-                    // 但为了一致性，我们记录日志
-                }
+                // 设置时间水印（从配置读取，使用方法开头已创建的 appConfig）
+                codecRecorder.setWatermarkEnabled(appConfig.isTimestampWatermarkEnabled());
 
-                @Override
-                public void onSegmentSwitch(String cameraId, int newSegmentIndex, String completedFilePath) {
-                    AppLog.d(TAG, "Codec segment switch for camera " + cameraId + " to segment " + newSegmentIndex);
-                    
-                    // 如果使用中转写入，将上一个分段的文件传输到最终目录
-                    if (useRelayWrite && finalSaveDir != null && newSegmentIndex > 0 && completedFilePath != null) {
-                        // 传输已完成的文件（由回调提供确切路径，避免传输正在录制的新文件）
-                        scheduleRelayTransfer(completedFilePath);
-                    }
-                    
-                    // 通知分段切换回调（只通知一次，第一个触发的摄像头会通知）
-                    if (segmentSwitchCallback != null && newSegmentIndex > lastNotifiedSegmentIndex) {
-                        lastNotifiedSegmentIndex = newSegmentIndex;
-                        segmentSwitchCallback.onSegmentSwitch(newSegmentIndex);
-                    }
-                }
+                // 设置回调
+                codecRecorder.setCallback(createCodecRecordCallback());
 
-                @Override
-                public void onCorruptedFilesDeleted(String cameraId, List<String> deletedFiles) {
-                    if (deletedFiles != null && !deletedFiles.isEmpty()) {
-                        AppLog.w(TAG, "Corrupted files deleted for codec camera " + cameraId + ": " + deletedFiles.size() + " file(s)");
-                        for (String file : deletedFiles) {
-                            AppLog.d(TAG, "  Deleted: " + file);
-                        }
-                        // 通知 MainActivity 显示弹窗
-                        if (corruptedFilesCallback != null) {
-                            mainHandler.post(() -> corruptedFilesCallback.onCorruptedFilesDeleted(deletedFiles));
-                        }
-                    }
+                if (stagedBringUp) {
+                    // 分阶段启动：先收集录制器，循环结束后并行准备
+                    codecRecorders.put(key, codecRecorder);
+                    continue;
                 }
 
-                @Override
-                public void onRecordingRebuildRequested(String cameraId, String reason) {
-                    // CodecVideoRecorder 通常不会触发此回调，但为了接口完整性实现
-                    AppLog.e(TAG, "Codec recording rebuild requested for camera " + cameraId + ", reason: " + reason);
-                    // Codec 模式不需要回退，记录日志即可
-                }
+                // 准备录制
+                String path = StorageHelper.resolveMediaFile(context, saveDir, timestamp + "_" + key + ".mp4").getAbsolutePath();
+                AppLog.d(TAG, "Preparing codec recording for " + key + " with size: " + previewSize.getWidth() + "x" + previewSize.getHeight());
 
-                @Override
-                public void onFirstDataWritten(String cameraId) {
-                    AppLog.d(TAG, "Codec first data written for camera " + cameraId);
-                    // 只在第一个摄像头首次写入时通知外部（每次录制只通知一次）
-                    if (!hasNotifiedFirstDataWritten && firstDataWrittenCallback != null) {
-                        hasNotifiedFirstDataWritten = true;
-                        AppLog.d(TAG, "Notifying external: first data written, recording truly started");
-                        mainHandler.post(() -> firstDataWrittenCallback.onFirstDataWritten());
-                    }
+                android.graphics.SurfaceTexture surfaceTexture = codecRecorder.prepareRecording(path);
+                if (surfaceTexture == null) {
+                    AppLog.e(TAG, "Failed to prepare codec recording for " + key);
+                    prepareSuccess = false;
+                    break;
                 }
-            });
 
-            // 准备录制
-            String path = new File(saveDir, timestamp + "_" + key + ".mp4").getAbsolutePath();
-            AppLog.d(TAG, "Preparing codec recording for " + key + " with size: " + previewSize.getWidth() + "x" + previewSize.getHeight());
+                // 将 SurfaceTexture 设置给 Camera（通过 Surface）
+                android.view.Surface recordSurface = new android.view.Surface(surfaceTexture);
+                camera.setRecordSurface(recordSurface, true);  // Codec 模式
 
-            android.graphics.SurfaceTexture surfaceTexture = codecRecorder.prepareRecording(path);
-            if (surfaceTexture == null) {
-                AppLog.e(TAG, "Failed to prepare codec recording for " + key);
-                prepareSuccess = false;
-                break;
+                codecRecorders.put(key, codecRecorder);
             }
-
-            // 将 SurfaceTexture 设置给 Camera（通过 Surface）
-            android.view.Surface recordSurface = new android.view.Surface(surfaceTexture);
-            camera.setRecordSurface(recordSurface, true);  // Codec 模式
-
-            codecRecorders.put(key, codecRecorder);
         }
 
         if (!prepareSuccess) {
             AppLog.e(TAG, "Failed to prepare codec recording");
             // 清理已准备的录制器
-            for (CodecVideoRecorder recorder : codecRecorders.values()) {
+            for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
                 recorder.release();
             }
             codecRecorders.clear();
             return false;
         }
 
+        if (stagedBringUp) {
+            return startStagedCodecRecording(saveDir, timestamp);
+        }
+
         // 重新创建摄像头会话
         synchronized (sessionLock) {
             sessionConfiguredCount = 0;
@@ -1370,100 +1436,858 @@ public class MultiCameraManager {
         return true;
     }
 
-    private void executeCodecRecordingStart(List<String> keys, int stableAttempt, boolean forcedReopen) {
-        AppLog.d(TAG, "Attempting to start codec recording...");
-        if (isRecording) {
-            AppLog.w(TAG, "Codec recording already active, skipping duplicate start");
-            synchronized (sessionLock) {
-                pendingRecordingStart = null;
-                sessionConfiguredCount = 0;
-                expectedSessionCount = 0;
-                cameraSessionReady.clear();
-                cameraRecordingActive.clear();
-            }
-            if (sessionTimeoutRunnable != null) {
-                mainHandler.removeCallbacks(sessionTimeoutRunnable);
-                sessionTimeoutRunnable = null;
-            }
-            return;
-        }
-
-        long now = System.currentTimeMillis();
-        List<String> unstable = getUnstableCameras(keys, now);
-        if (!unstable.isEmpty()) {
-            if (stableAttempt < MAX_STABLE_WAIT_ATTEMPTS) {
-                AppLog.w(TAG, "Waiting for stable frames before codec recording, attempt " + (stableAttempt + 1) +
-                        "/" + MAX_STABLE_WAIT_ATTEMPTS + ", unstable=" + unstable);
-                mainHandler.postDelayed(() -> executeCodecRecordingStart(keys, stableAttempt + 1, forcedReopen), STABLE_WAIT_INTERVAL_MS);
-                return;
-            }
-            if (!forcedReopen) {
-                AppLog.w(TAG, "Codec frames still unstable after wait, forcing reopen all cameras once: " + unstable);
-                forceReopenAllCameras();
-                mainHandler.postDelayed(() -> executeCodecRecordingStart(keys, 0, true), 500);
-                return;
-            }
-            AppLog.w(TAG, "Codec frames still unstable after force reopen, starting with stable subset: " + unstable);
+    /**
+     * 获取摄像头的 H.265 探测器：只在该摄像头录制 H.264 子码流时使用 H.265
+     * （远程上传发送子码流，接收端不一定能播放 H.265），否则返回 null 使用 H.264
+     */
+    private EncoderCapabilityProber getHevcProber(AppConfig appConfig, String key) {
+        if (!appConfig.isHevcEncodingEnabled() || !appConfig.isSubStreamEnabled(key)) {
+            return null;
         }
+        return EncoderCapabilityProber.getInstance(context);
+    }
 
-        boolean anyActive = false;
-        int activeCount = 0;
+    /**
+     * 计算摄像头的编码分辨率：使用预览的实际分辨率，超过编码器上限时等比缩小
+     * 正式录制和预录待命使用同一分辨率，预录缓冲中的画面才能写入录制文件
+     */
+    private Size getCodecEncodeSize(String key, SingleCamera camera) {
+        // 获取摄像头的实际预览分辨率
+        Size previewSize = camera.getPreviewSize();
+        if (previewSize == null) {
+            AppLog.e(TAG, "Camera " + key + " preview size not available, using fallback 1280x800");
+            previewSize = new Size(1280, 800);
+        }
+
+        // 最大编码分辨率限制（H.264 编码器硬件限制，固定值）
+        final int MAX_ENCODE_SIZE = 4096;
+
+        // 计算调整后的编码分辨率（防止超大分辨率摄像头导致编码失败）
+        int encodeWidth = previewSize.getWidth();
+        int encodeHeight = previewSize.getHeight();
+        if (encodeWidth > MAX_ENCODE_SIZE || encodeHeight > MAX_ENCODE_SIZE) {
+            float widthRatio = (float) MAX_ENCODE_SIZE / encodeWidth;
+            float heightRatio = (float) MAX_ENCODE_SIZE / encodeHeight;
+            float scaleFactor = Math.min(widthRatio, heightRatio);
+            encodeWidth = ((int) (encodeWidth * scaleFactor) / 2) * 2;  // 确保是偶数
+            encodeHeight = ((int) (encodeHeight * scaleFactor) / 2) * 2;
+            if (encodeWidth < 2) encodeWidth = 2;
+            if (encodeHeight < 2) encodeHeight = 2;
+            AppLog.w(TAG, "Camera " + key + " codec resolution adjusted: " +
+                    previewSize.getWidth() + "x" + previewSize.getHeight() + " -> " +
+                    encodeWidth + "x" + encodeHeight + " (max: " + MAX_ENCODE_SIZE + ")");
+        }
+        return new Size(encodeWidth, encodeHeight);
+    }
 
+    /**
+     * 准备拼接录制：所有摄像头按 2x2 宫格合成到一个录制器（一个编码器、一个 Muxer）
+     * 同一个录制器以每个摄像头的 key 放入 codecRecorders（按摄像头查找录制器的流程与多路录制相同），
+     * 遍历录制器的地方都通过 getDistinctCodecRecorders 去重，每个录制器只统计、释放一次
+     */
+    private boolean prepareMosaicCodecRecording(List<String> keys, File saveDir, String timestamp,
+                                                long segmentDurationMs, int targetFrameRate,
+                                                AppConfig appConfig, boolean flushPreRoll) {
+        // 旋转、镜像、裁剪只在自定义车型中由用户配置（与预览界面一致）
+        boolean customModel = appConfig.isCustomCarModel();
+        List<MosaicCompositor.TileSpec> specs = new ArrayList<>();
+        int tileWidth = Integer.MAX_VALUE;
+        int tileHeight = Integer.MAX_VALUE;
         for (String key : keys) {
-            Boolean ready = cameraSessionReady.get(key);
-            if (ready == null || !ready) {
-                continue;
-            }
-            if (!unstable.isEmpty() && !isFrameStable(key, System.currentTimeMillis())) {
-                continue;
-            }
-            CodecVideoRecorder codecRecorder = codecRecorders.get(key);
-            if (codecRecorder == null) {
-                continue;
-            }
-            if (codecRecorder.isRecording()) {
-                anyActive = true;
-                activeCount++;
+            SingleCamera camera = cameras.get(key);
+            if (camera == null) {
                 continue;
             }
-            if (codecRecorder.startRecording() || codecRecorder.isRecording()) {
-                anyActive = true;
-                activeCount++;
-            } else {
-                AppLog.e(TAG, "Failed to start codec recording for " + key);
+            Size previewSize = camera.getPreviewSize();
+            if (previewSize == null) {
+                AppLog.e(TAG, "Camera " + key + " preview size not available, using fallback 1280x800");
+                previewSize = new Size(1280, 800);
             }
+            int rotation = customModel ? appConfig.getCameraRotation(key) : 0;
+            boolean mirror = customModel && appConfig.getCameraMirror(key);
+            boolean swapped = rotation == 90 || rotation == 270;
+            float[] crop = customModel ? CustomLayoutManager.getCropFractions(appConfig, key,
+                    swapped ? previewSize.getHeight() : previewSize.getWidth(),
+                    swapped ? previewSize.getWidth() : previewSize.getHeight()) : null;
+            specs.add(new MosaicCompositor.TileSpec(key, previewSize.getWidth(), previewSize.getHeight(),
+                    rotation, mirror, crop));
+            tileWidth = Math.min(tileWidth, previewSize.getWidth());
+            tileHeight = Math.min(tileHeight, previewSize.getHeight());
+        }
+        if (specs.isEmpty()) {
+            AppLog.e(TAG, "No cameras available for mosaic recording");
+            return false;
         }
 
-        if (anyActive) {
-            lastNotifiedSegmentIndex = -1;
-            isRecording = true;
-            AppLog.d(TAG, activeCount + " camera(s) started codec recording successfully");
-        } else {
-            AppLog.e(TAG, "Failed to start codec recording on all cameras");
-            isRecording = false;
-            for (CodecVideoRecorder recorder : codecRecorders.values()) {
-                recorder.release();
-            }
-            codecRecorders.clear();
+        // 宫格大小取各路预览的最小值，整体不超过编码器上限，并按 16 对齐
+        int rows = (specs.size() + MosaicCompositor.COLUMNS - 1) / MosaicCompositor.COLUMNS;
+        float scale = Math.min(1f, Math.min((float) MAX_MOSAIC_WIDTH / (tileWidth * MosaicCompositor.COLUMNS),
+                (float) MAX_MOSAIC_HEIGHT / (tileHeight * rows)));
+        tileWidth = Math.max(16, ((int) (tileWidth * scale)) / 16 * 16);
+        tileHeight = Math.max(16, ((int) (tileHeight * scale)) / 16 * 16);
+
+        MosaicCompositor compositor = new MosaicCompositor(specs, tileWidth, tileHeight);
+        int encodeWidth = compositor.getOutputWidth();
+        int encodeHeight = compositor.getOutputHeight();
+        int bitrate = appConfig.getActualBitrate(encodeWidth, encodeHeight, targetFrameRate);
+
+        CodecVideoRecorder codecRecorder = new CodecVideoRecorder(MosaicCompositor.POSITION_MOSAIC, encodeWidth, encodeHeight);
+        codecRecorder.setTimestampProvider(segmentTimestampProvider);
+        codecRecorder.setSessionClock(recordingSessionClock);
+        codecRecorder.setTraceSectionsEnabled(appConfig.isFrameTraceSectionsEnabled());
+        codecRecorder.setSegmentDuration(segmentDurationMs);
+        codecRecorder.setBitRate(bitrate);
+        codecRecorder.setFrameRate(targetFrameRate);
+        codecRecorder.setSeamlessSegmentEnabled(appConfig.isSeamlessSegmentEnabled());
+        codecRecorder.setFragmentedMp4Enabled(appConfig.isFragmentedMp4Enabled());
+        codecRecorder.setAdaptiveBitrateEnabled(appConfig.isAdaptiveBitrateEnabled());
+        codecRecorder.setHevcProber(null);  // 拼接录制不支持子码流，不使用 H.265
+        codecRecorder.setPreRollBuffer(obtainPreRollBuffer(MosaicCompositor.POSITION_MOSAIC, bitrate, appConfig.getPreRollSeconds()), flushPreRoll);
+        codecRecorder.setSharedRenderEngine(appConfig.isSharedEglRenderEnabled() ? obtainSharedRenderEngine() : null);
+        codecRecorder.setTimeLapse(parkingMode, appConfig.getParkingTimeLapseFrameRate());
+        codecRecorder.setWatermarkEnabled(appConfig.isTimestampWatermarkEnabled());
+        codecRecorder.setMosaicCompositor(compositor);
+        codecRecorder.setCallback(createCodecRecordCallback());
+
+        AppLog.d(TAG, "Mosaic recording params: " + specs.size() + " tiles " + tileWidth + "x" + tileHeight +
+                " -> " + encodeWidth + "x" + encodeHeight + " @ " + targetFrameRate + "fps, " + AppConfig.formatBitrate(bitrate));
+
+        String path = StorageHelper.resolveMediaFile(context, saveDir, timestamp + "_" + MosaicCompositor.POSITION_MOSAIC + ".mp4").getAbsolutePath();
+        if (codecRecorder.prepareRecording(path) == null) {
+            AppLog.e(TAG, "Failed to prepare mosaic recording");
+            return false;
         }
 
-        synchronized (sessionLock) {
-            pendingRecordingStart = null;
-            sessionConfiguredCount = 0;
-            expectedSessionCount = 0;
-            cameraSessionReady.clear();
-            cameraRecordingActive.clear();
-        }
-        if (sessionTimeoutRunnable != null) {
-            mainHandler.removeCallbacks(sessionTimeoutRunnable);
-            sessionTimeoutRunnable = null;
+        for (MosaicCompositor.TileSpec spec : specs) {
+            SingleCamera camera = cameras.get(spec.key);
+            android.graphics.SurfaceTexture surfaceTexture = codecRecorder.getMosaicSurfaceTexture(spec.key);
+            if (camera == null || surfaceTexture == null) {
+                continue;
+            }
+            camera.setRecordSurface(new android.view.Surface(surfaceTexture), true);  // Codec 模式
+            codecRecorders.put(spec.key, codecRecorder);
         }
+        return true;
     }
 
     /**
-     * 停止录制所有摄像头
+     * 创建软编码录制器的回调（多路录制和拼接录制共用）
      */
-    public void stopRecording() {
+    private RecordCallback createCodecRecordCallback() {
+        return new RecordCallback() {
+            @Override
+            public void onRecordStart(String cameraId) {
+                AppLog.d(TAG, "Codec recording started for camera " + cameraId);
+            }
+
+            @Override
+            public void onRecordStop(String cameraId) {
+                AppLog.d(TAG, "Codec recording stopped for camera " + cameraId);
+            }
+
+            @Override
+            public void onRecordError(String cameraId, String error) {
+                AppLog.e(TAG, "Codec recording error for camera " + cameraId + ": " + error);
+            }
+
+            @Override
+            public void onPrepareSegmentSwitch(String cameraId, int currentSegmentIndex) {
+                AppLog.d(TAG, "Codec prepare segment switch for camera " + cameraId + " (current segment: " + currentSegmentIndex + ")");
+                // 软编码录制器使用独立的 SurfaceTexture，不需要暂停 Camera CaptureSession
+                // 但为了一致性，我们记录日志
+            }
+
+            @Override
+            public void onSegmentSwitch(String cameraId, int newSegmentIndex, String completedFilePath) {
+                AppLog.d(TAG, "Codec segment switch for camera " + cameraId + " to segment " + newSegmentIndex);
+                
+                // 如果使用中转写入，将上一个分段的文件传输到最终目录
+                if (useRelayWrite && finalSaveDir != null && newSegmentIndex > 0 && completedFilePath != null) {
+                    // 传输已完成的文件（由回调提供确切路径，避免传输正在录制的新文件）
+                    scheduleRelayTransfer(completedFilePath);
+                } else if (completedFilePath != null) {
+                    MediaIndex.getInstance(context).onFileAdded(new File(completedFilePath));
+                }
+                
+                // 通知分段切换回调（只通知一次，第一个触发的摄像头会通知）
+                if (segmentSwitchCallback != null && newSegmentIndex > lastNotifiedSegmentIndex) {
+                    lastNotifiedSegmentIndex = newSegmentIndex;
+                    segmentSwitchCallback.onSegmentSwitch(newSegmentIndex);
+                }
+            }
+
+            @Override
+            public void onCorruptedFilesDeleted(String cameraId, List<String> deletedFiles) {
+                if (deletedFiles != null && !deletedFiles.isEmpty()) {
+                    AppLog.w(TAG, "Corrupted files deleted for codec camera " + cameraId + ": " + deletedFiles.size() + " file(s)");
+                    for (String file : deletedFiles) {
+                        AppLog.d(TAG, "  Deleted: " + file);
+                    }
+                    // 通知 MainActivity 显示弹窗
+                    if (corruptedFilesCallback != null) {
+                        mainHandler.post(() -> corruptedFilesCallback.onCorruptedFilesDeleted(deletedFiles));
+                    }
+                }
+            }
+
+            @Override
+            public void onRecordingRebuildRequested(String cameraId, String reason) {
+                // CodecVideoRecorder 通常不会触发此回调，但为了接口完整性实现
+                AppLog.e(TAG, "Codec recording rebuild requested for camera " + cameraId + ", reason: " + reason);
+                // Codec 模式不需要回退，记录日志即可
+            }
+
+            @Override
+            public void onFirstDataWritten(String cameraId) {
+                AppLog.d(TAG, "Codec first data written for camera " + cameraId);
+                BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_FRAME_WRITTEN);
+                // 只在第一个摄像头首次写入时通知外部（每次录制只通知一次）
+                if (!hasNotifiedFirstDataWritten && firstDataWrittenCallback != null) {
+                    hasNotifiedFirstDataWritten = true;
+                    AppLog.d(TAG, "Notifying external: first data written, recording truly started");
+                    mainHandler.post(() -> firstDataWrittenCallback.onFirstDataWritten());
+                }
+            }
+        };
+    }
+
+    /**
+     * 开始触发式录制（远程录制等）
+     * Codec 模式下，新文件会先写入触发前预录缓冲中的画面。
+     * 预录缓冲由空闲时的预录待命录制器填充（见 armPreRoll）：空闲状态下触发时，新文件包含触发前的画面；
+     * 触发前正在录制时，那段画面已在上一个文件中，缓冲为空，新文件从触发时刻开始，不重复上一个文件的结尾
+     */
+    public boolean startTriggeredRecording(String timestamp) {
+        preRollFlushPending = true;
+        boolean success = startRecording(timestamp);
+        preRollFlushPending = false;
+        return success;
+    }
+
+    /**
+     * 输出各路软编码录制器的逐帧流水线追踪汇总（各阶段延迟分位数和丢帧计数）
+     * 录制停止时自动调用，也可在诊断时随时调用
+     * @return 汇总文本，没有软编码录制器时返回空字符串
+     */
+    public String dumpFrameTraces() {
+        StringBuilder sb = new StringBuilder();
+        for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+            String summary = recorder.getFrameTracer().dump();
+            AppLog.d(TAG, summary);
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(summary);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 获取各路软编码录制器因编码器反压跳过渲染的帧数
+     * @return 摄像头位置（拼接录制为 mosaic）-> 丢帧数
+     */
+    public Map<String, Long> getBackPressureDropCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+            counts.put(recorder.getCameraId(), recorder.getBackPressureDroppedFrames());
+        }
+        return counts;
+    }
+
+    /**
+     * 去重后的软编码录制器：拼接录制时同一个录制器放在每个摄像头的 key 下，
+     * 遍历录制器（而不是按摄像头查找）时用它，每个录制器只处理一次
+     */
+    private List<CodecVideoRecorder> getDistinctCodecRecorders() {
+        return new ArrayList<>(new LinkedHashSet<>(codecRecorders.values()));
+    }
+
+    /**
+     * 获取（必要时创建）摄像头的预录缓冲
+     * 缓冲按码率和时长确定容量，参数不变时跨录制复用，避免重复分配直接内存
+     * @return 预录缓冲；预录关闭时返回 null
+     */
+    private PreRollBuffer obtainPreRollBuffer(String key, int bitrate, int seconds) {
+        synchronized (preRollBuffers) {
+            if (seconds <= 0) {
+                preRollBuffers.remove(key);
+                return null;
+            }
+            // 容量：码率 × (预录时长 + 1 个 GOP 余量) × 1.5（关键帧和码率波动）
+            long capacity = (long) bitrate / 8 * (seconds + 1) * 3 / 2;
+            int capacityBytes = (int) Math.min(capacity, 64L * 1024 * 1024);
+            long durationMs = seconds * 1000L;
+            PreRollBuffer buffer = preRollBuffers.get(key);
+            if (buffer == null || buffer.getCapacity() < capacityBytes || buffer.getDurationMs() != durationMs) {
+                buffer = new PreRollBuffer(key, capacityBytes, durationMs);
+                preRollBuffers.put(key, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * 延迟启动预录待命（会话配置、录制停止后调用，重复调用只保留最后一次）
+     */
+    private void scheduleArmPreRoll() {
+        mainHandler.removeCallbacks(armPreRollRunnable);
+        mainHandler.postDelayed(armPreRollRunnable, PRE_ROLL_ARM_DELAY_MS);
+    }
+
+    /**
+     * 启动预录待命（主线程）
+     * 空闲时每个摄像头运行一个只编码、不写文件的录制器，编码输出持续写入预录缓冲，
+     * 空闲状态下触发的录制（远程录制等）因此也包含触发前的画面。
+     * 代价是空闲时编码器一直运行（功耗和发热），只在 Codec 模式且设置了预录时长时启用；
+     * 拼接录制只有一路合成画面，各路单独待命的缓冲无法写入，不启用
+     */
+    private void armPreRoll() {
+        if (!useCodecRecording || isRecording || repairSuppressed || !codecRecorders.isEmpty()) {
+            return;
+        }
+        synchronized (sessionLock) {
+            if (pendingRecordingStart != null) {
+                return;
+            }
+        }
+        AppConfig appConfig = new AppConfig(context);
+        int seconds = appConfig.getPreRollSeconds();
+        List<String> keys = getActiveCameraKeys();
+        if (seconds <= 0 || keys.isEmpty() || (appConfig.isMosaicRecordingEnabled() && keys.size() > 1)) {
+            return;
+        }
+        int targetFrameRate = appConfig.getActualFrameRate(30);
+
+        synchronized (preRollRecorders) {
+            if (!preRollRecorders.isEmpty()) {
+                return;
+            }
+            for (String key : keys) {
+                SingleCamera camera = cameras.get(key);
+                if (camera == null) {
+                    continue;
+                }
+                // 编码参数与正式录制一致（分辨率、码率、编码格式、水印），缓冲的画面才能直接写入录制文件
+                Size encodeSize = getCodecEncodeSize(key, camera);
+                int bitrate = appConfig.getActualBitrate(encodeSize.getWidth(), encodeSize.getHeight(), targetFrameRate);
+                final CodecVideoRecorder recorder = new CodecVideoRecorder(
+                        camera.getCameraId(), encodeSize.getWidth(), encodeSize.getHeight());
+                recorder.setPreRollOnly(true);
+                recorder.setBitRate(bitrate);
+                recorder.setFrameRate(targetFrameRate);
+                recorder.setHevcProber(getHevcProber(appConfig, key));  // 与触发后的录制使用同一编码格式
+                recorder.setPreRollBuffer(obtainPreRollBuffer(key, bitrate, seconds), false);
+                recorder.setSharedRenderEngine(appConfig.isSharedEglRenderEnabled() ? obtainSharedRenderEngine() : null);
+                recorder.setWatermarkEnabled(appConfig.isTimestampWatermarkEnabled());
+                preRollRecorders.put(key, recorder);
+                recorder.prepareRecordingAsync(null, (success, surfaceTexture, errorMessage) ->
+                        onPreRollPrepared(key, recorder, success, surfaceTexture, errorMessage));
+            }
+        }
+        AppLog.d(TAG, "Arming pre-roll encoders for " + keys + " (" + seconds + " s)");
+    }
+
+    /**
+     * 预录待命录制器准备完成（主线程）：开始编码并把录制 Surface 加入摄像头会话
+     */
+    private void onPreRollPrepared(String key, CodecVideoRecorder recorder, boolean success,
+                                   android.graphics.SurfaceTexture surfaceTexture, String errorMessage) {
+        synchronized (preRollRecorders) {
+            if (preRollRecorders.get(key) != recorder) {
+                // 准备期间已停止待命（开始录制或关闭摄像头）
+                recorder.release();
+                return;
+            }
+            SingleCamera camera = cameras.get(key);
+            if (!success || camera == null || !recorder.startRecording()) {
+                AppLog.w(TAG, "Pre-roll encoder for " + key + " not armed: " + errorMessage);
+                preRollRecorders.remove(key);
+                recorder.release();
+                return;
+            }
+            camera.setRecordSurface(new android.view.Surface(surfaceTexture), true);  // Codec 模式
+            camera.recreateSession();
+        }
+    }
+
+    /**
+     * 停止预录待命（开始录制、关闭摄像头、切换到 MediaRecorder 模式时调用）
+     * 预录缓冲保留，触发式录制开始时写入新文件
+     * @param restoreSessions 是否重建摄像头会话（移除待命录制器的 Surface）；随后会重建会话或关闭摄像头时传 false
+     */
+    private void disarmPreRoll(boolean restoreSessions) {
+        mainHandler.removeCallbacks(armPreRollRunnable);
+        Map<String, CodecVideoRecorder> armed;
+        synchronized (preRollRecorders) {
+            if (preRollRecorders.isEmpty()) {
+                return;
+            }
+            armed = new LinkedHashMap<>(preRollRecorders);
+            preRollRecorders.clear();
+        }
+        for (Map.Entry<String, CodecVideoRecorder> entry : armed.entrySet()) {
+            CodecVideoRecorder recorder = entry.getValue();
+            if (!recorder.isRecording()) {
+                continue;  // 仍在准备中，由准备完成回调释放
+            }
+            recorder.stopRecording();
+            recorder.release();
+            SingleCamera camera = cameras.get(entry.getKey());
+            if (camera != null) {
+                camera.clearRecordSurface();
+                if (restoreSessions) {
+                    camera.recreateSession();
+                }
+            }
+        }
+        AppLog.d(TAG, "Pre-roll encoders disarmed: " + armed.keySet());
+    }
+
+    /**
+     * 获取（必要时启动）共享 EGL 渲染引擎
+     * @return 共享引擎；启动失败时返回 null，录制器回退到每路独立的 EGL
+     */
+    private SharedEglRenderEngine obtainSharedRenderEngine() {
+        if (sharedRenderEngine == null) {
+            sharedRenderEngine = new SharedEglRenderEngine();
+        }
+        if (!sharedRenderEngine.isRunning() && !sharedRenderEngine.start()) {
+            AppLog.w(TAG, "Shared EGL render engine unavailable, using dedicated EGL per camera");
+            return null;
+        }
+        return sharedRenderEngine;
+    }
+
+    /**
+     * 分阶段启动 Codec 录制（每个摄像头独立推进，不再等待最慢的一路）
+     * 编码器在各自的后台线程并行准备，准备完成的摄像头立即重建会话，会话配置完成并且画面稳定后立即开始录制；
+     * 超时仍未就绪的摄像头放弃，已开始的摄像头按部分启动处理
+     */
+    private boolean startStagedCodecRecording(File saveDir, String timestamp) {
+        final int generation = ++stagedGeneration;
+        final Map<String, CodecVideoRecorder> staged = new LinkedHashMap<>(codecRecorders);
+        synchronized (sessionLock) {
+            sessionConfiguredCount = 0;
+            expectedSessionCount = 0;
+            cameraSessionReady.clear();
+            cameraRecordingActive.clear();
+            stagedPendingKeys.clear();
+            stagedPendingKeys.addAll(staged.keySet());
+            stagedAwaitingSession.clear();
+            stagedStartedKeys.clear();
+            stagedFailedKeys.clear();
+            stagedAttachedKeys.clear();
+        }
+        AppLog.d(TAG, "Staged codec bring-up for " + staged.keySet());
+
+        for (Map.Entry<String, CodecVideoRecorder> entry : staged.entrySet()) {
+            final String key = entry.getKey();
+            final CodecVideoRecorder recorder = entry.getValue();
+            String path = StorageHelper.resolveMediaFile(context, saveDir, timestamp + "_" + key + ".mp4").getAbsolutePath();
+            recorder.prepareRecordingAsync(path, (success, surfaceTexture, errorMessage) ->
+                    onStagedPrepareComplete(generation, key, recorder, success, surfaceTexture, errorMessage));
+        }
+
+        sessionTimeoutRunnable = () -> onStagedTimeout(generation);
+        mainHandler.postDelayed(sessionTimeoutRunnable, STAGED_BRING_UP_TIMEOUT_MS);
+        return true;
+    }
+
+    /**
+     * 分阶段启动：编码器准备完成（主线程）
+     */
+    private void onStagedPrepareComplete(int generation, String key, CodecVideoRecorder recorder,
+                                         boolean success, android.graphics.SurfaceTexture surfaceTexture,
+                                         String errorMessage) {
+        if (generation != stagedGeneration || codecRecorders.get(key) != recorder) {
+            AppLog.d(TAG, "Stale staged prepare result for " + key + ", releasing");
+            recorder.release();
+            return;
+        }
+        SingleCamera camera = cameras.get(key);
+        if (!success || camera == null) {
+            AppLog.e(TAG, "Staged prepare failed for " + key + ": " + errorMessage);
+            codecRecorders.remove(key);
+            releaseStagedRecorder(key, recorder);
+            onStagedCameraFinished(key, false);
+            return;
+        }
+
+        BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_ENCODER_PREPARED);
+        camera.setRecordSurface(new android.view.Surface(surfaceTexture), true);  // Codec 模式
+        synchronized (sessionLock) {
+            stagedAwaitingSession.add(key);
+            stagedAttachedKeys.add(key);
+        }
+        camera.recreateSession();
+    }
+
+    /**
+     * 分阶段启动：摄像头会话配置完成（相机回调线程），等待会话稳定后单独开始该摄像头的录制
+     */
+    private void onStagedSessionConfigured(String cameraId) {
+        final int generation = stagedGeneration;
+        synchronized (sessionLock) {
+            if (stagedAwaitingSession.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
+                final String key = entry.getKey();
+                if (entry.getValue().getCameraId().equals(cameraId) && stagedAwaitingSession.remove(key)) {
+                    AppLog.d(TAG, "Staged session configured for " + key);
+                    // 与整体启动相同，延迟 300ms 让 Camera Session 稳定
+                    mainHandler.postDelayed(() -> startStagedCamera(generation, key, 0), 300);
+                }
+            }
+        }
+    }
+
+    /**
+     * 分阶段启动：开始单个摄像头的录制（主线程）
+     */
+    private void startStagedCamera(int generation, String key, int stableAttempt) {
+        if (generation != stagedGeneration) {
+            return;
+        }
+        CodecVideoRecorder recorder = codecRecorders.get(key);
+        if (recorder == null) {
+            return;
+        }
+        if (!isFrameStable(key, System.currentTimeMillis()) && stableAttempt < MAX_STABLE_WAIT_ATTEMPTS) {
+            AppLog.w(TAG, "Waiting for stable frames before staged start of " + key + ", attempt " +
+                    (stableAttempt + 1) + "/" + MAX_STABLE_WAIT_ATTEMPTS);
+            mainHandler.postDelayed(() -> startStagedCamera(generation, key, stableAttempt + 1), STABLE_WAIT_INTERVAL_MS);
+            return;
+        }
+
+        if (recorder.startRecording() || recorder.isRecording()) {
+            if (!isRecording) {
+                lastNotifiedSegmentIndex = -1;
+                isRecording = true;
+                BringUpMetrics.getInstance().mark(BringUpMetrics.FIRST_RECORDING_STARTED);
+                startThermalGovernor();
+                getPowerSampler().start();
+            }
+            AppLog.d(TAG, "Staged codec recording started for " + key);
+            onStagedCameraFinished(key, true);
+        } else {
+            AppLog.e(TAG, "Failed to start staged codec recording for " + key);
+            codecRecorders.remove(key);
+            releaseStagedRecorder(key, recorder);
+            onStagedCameraFinished(key, false);
+        }
+    }
+
+    /**
+     * 分阶段启动：单个摄像头有了结果（主线程），全部有结果后汇总
+     */
+    private void onStagedCameraFinished(String key, boolean started) {
+        Set<String> activeCameras;
+        Set<String> failedCameras;
+        synchronized (sessionLock) {
+            if (!stagedPendingKeys.remove(key)) {
+                return;
+            }
+            (started ? stagedStartedKeys : stagedFailedKeys).add(key);
+            if (!stagedPendingKeys.isEmpty()) {
+                return;
+            }
+            activeCameras = new HashSet<>(stagedStartedKeys);
+            failedCameras = new HashSet<>(stagedFailedKeys);
+        }
+        finishStagedBringUp(activeCameras, failedCameras);
+    }
+
+    /**
+     * 分阶段启动超时：放弃仍未就绪的摄像头
+     */
+    private void onStagedTimeout(int generation) {
+        if (generation != stagedGeneration) {
+            return;
+        }
+        Set<String> activeCameras;
+        Set<String> failedCameras;
+        synchronized (sessionLock) {
+            AppLog.w(TAG, "Staged bring-up timeout, giving up on " + stagedPendingKeys);
+            for (String key : stagedPendingKeys) {
+                CodecVideoRecorder recorder = codecRecorders.remove(key);
+                if (recorder != null) {
+                    releaseStagedRecorder(key, recorder);
+                }
+            }
+            stagedFailedKeys.addAll(stagedPendingKeys);
+            stagedPendingKeys.clear();
+            stagedAwaitingSession.clear();
+            activeCameras = new HashSet<>(stagedStartedKeys);
+            failedCameras = new HashSet<>(stagedFailedKeys);
+        }
+        sessionTimeoutRunnable = null;
+        finishStagedBringUp(activeCameras, failedCameras);
+    }
+
+    /**
+     * 分阶段启动：释放放弃的摄像头的录制器（主线程）
+     * 编码器准备完成后会话已指向该录制器的 Surface，先移除录制 Surface 并重建会话，
+     * 避免会话继续输出到已废弃的 Surface，导致该摄像头出错或卡住直到下次重新打开
+     */
+    private void releaseStagedRecorder(String key, CodecVideoRecorder recorder) {
+        boolean attached;
+        synchronized (sessionLock) {
+            attached = stagedAttachedKeys.remove(key);
+            stagedAwaitingSession.remove(key);
+        }
+        SingleCamera camera = cameras.get(key);
+        if (attached && camera != null) {
+            camera.clearRecordSurface();
+            camera.recreateSession();
+        }
+        recorder.release();
+    }
+
+    private void finishStagedBringUp(Set<String> activeCameras, Set<String> failedCameras) {
+        stagedGeneration++;
+        if (sessionTimeoutRunnable != null) {
+            mainHandler.removeCallbacks(sessionTimeoutRunnable);
+            sessionTimeoutRunnable = null;
+        }
+
+        if (activeCameras.isEmpty()) {
+            AppLog.e(TAG, "Failed to start codec recording on all cameras (staged)");
+            isRecording = false;
+            for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+                recorder.release();
+            }
+            codecRecorders.clear();
+        } else {
+            AppLog.d(TAG, activeCameras.size() + " camera(s) started codec recording successfully (staged), failed=" + failedCameras);
+            if (!failedCameras.isEmpty() && recordingStatusCallback != null) {
+                recordingStatusCallback.onPartialRecordingStart(activeCameras, failedCameras);
+            }
+        }
+        synchronized (sessionLock) {
+            stagedStartedKeys.clear();
+            stagedFailedKeys.clear();
+            stagedAttachedKeys.clear();
+        }
+    }
+
+    /**
+     * 取消进行中的分阶段启动（旧批次的回调全部忽略）
+     */
+    private void cancelStagedBringUp() {
+        stagedGeneration++;
+        synchronized (sessionLock) {
+            stagedPendingKeys.clear();
+            stagedAwaitingSession.clear();
+            stagedStartedKeys.clear();
+            stagedFailedKeys.clear();
+            stagedAttachedKeys.clear();
+        }
+    }
+
+    /**
+     * 启动过热降级调度（Codec 录制开始后调用）
+     */
+    private void startThermalGovernor() {
+        if (!new AppConfig(context).isThermalGovernorEnabled()) {
+            return;
+        }
+        if (thermalGovernor == null) {
+            thermalGovernor = new ThermalGovernor(context, new ThermalGovernor.Host() {
+                @Override
+                public float getFrameRateRatio() {
+                    return getThermalFrameRateRatio();
+                }
+
+                @Override
+                public void applyThermalLevel(int level) {
+                    MultiCameraManager.this.applyThermalLevel(level);
+                }
+            });
+        }
+        thermalBaselineFps.clear();
+        thermalGovernor.start();
+    }
+
+    /**
+     * 录制中摄像头实测帧率相对本次录制最高帧率的最低比例（不依赖配置帧率，摄像头原生帧率低于配置时也能正确冷却）
+     */
+    private float getThermalFrameRateRatio() {
+        float minRatio = -1;
+        for (Map.Entry<String, CodecVideoRecorder> entry : codecRecorders.entrySet()) {
+            SingleCamera camera = cameras.get(entry.getKey());
+            if (camera == null || !entry.getValue().isRecording()) {
+                continue;
+            }
+            float fps = camera.getCurrentFps();
+            if (fps <= 0) {
+                continue;
+            }
+            Float baseline = thermalBaselineFps.get(entry.getKey());
+            if (baseline == null || fps > baseline) {
+                baseline = fps;
+                thermalBaselineFps.put(entry.getKey(), fps);
+            }
+            float ratio = fps / baseline;
+            minRatio = minRatio < 0 ? ratio : Math.min(minRatio, ratio);
+        }
+        return minRatio;
+    }
+
+    /**
+     * 应用过热降级级别：
+     * 1 码率降到 70%；2 帧率再降到 2/3（不低于 15fps）；3 暂停预览输出；
+     * 4 除优先级最高的录制器外，其余只保留 1fps（保持文件连续，不触发编码器停滞检测）
+     */
+    private void applyThermalLevel(int level) {
+        float bitRateScale = level >= ThermalGovernor.LEVEL_REDUCED_BITRATE ? 0.7f : 1f;
+        CodecVideoRecorder primary = null;
+        for (String key : new String[]{"front", "back", "left", "right"}) {
+            CodecVideoRecorder recorder = codecRecorders.get(key);
+            if (recorder != null && recorder.isRecording()) {
+                primary = recorder;
+                break;
+            }
+        }
+        for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+            int maxFrameRate = 0;
+            if (level >= ThermalGovernor.LEVEL_LOW_PRIORITY_PAUSED && recorder != primary) {
+                maxFrameRate = 1;
+            } else if (level >= ThermalGovernor.LEVEL_REDUCED_FRAME_RATE) {
+                maxFrameRate = Math.max(15, recorder.getFrameRate() * 2 / 3);
+            }
+            recorder.setThermalLimits(bitRateScale, maxFrameRate);
+        }
+        boolean suspendPreviews = level >= ThermalGovernor.LEVEL_PREVIEWS_SUSPENDED;
+        for (SingleCamera camera : cameras.values()) {
+            camera.setPreviewSuspended(suspendPreviews);
+        }
+    }
+
+    /**
+     * 进入/退出息屏无头模式（息屏时进入，亮屏时退出）
+     * 录制期间各路会话只输出到录制 Surface，不再向 TextureView、悬浮窗、副屏推帧；
+     * 退出时预览优先通过延迟预览流直接绑定恢复，不重建会话（见 SingleCamera.setHeadless）
+     */
+    public void setHeadless(boolean enabled) {
+        if (headless == enabled) {
+            return;
+        }
+        headless = enabled;
+        AppLog.d(TAG, "Headless mode " + (enabled ? "entered" : "exited") + (isRecording ? " while recording" : ""));
+        getPowerSampler().setHeadless(enabled);
+        for (SingleCamera camera : cameras.values()) {
+            camera.setHeadless(enabled);
+        }
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    private PowerSampler getPowerSampler() {
+        if (powerSampler == null) {
+            powerSampler = new PowerSampler(context);
+        }
+        return powerSampler;
+    }
+
+    private void executeCodecRecordingStart(List<String> keys, int stableAttempt, boolean forcedReopen) {
+        AppLog.d(TAG, "Attempting to start codec recording...");
+        if (isRecording) {
+            AppLog.w(TAG, "Codec recording already active, skipping duplicate start");
+            synchronized (sessionLock) {
+                pendingRecordingStart = null;
+                sessionConfiguredCount = 0;
+                expectedSessionCount = 0;
+                cameraSessionReady.clear();
+                cameraRecordingActive.clear();
+            }
+            if (sessionTimeoutRunnable != null) {
+                mainHandler.removeCallbacks(sessionTimeoutRunnable);
+                sessionTimeoutRunnable = null;
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> unstable = getUnstableCameras(keys, now);
+        if (!unstable.isEmpty()) {
+            if (stableAttempt < MAX_STABLE_WAIT_ATTEMPTS) {
+                AppLog.w(TAG, "Waiting for stable frames before codec recording, attempt " + (stableAttempt + 1) +
+                        "/" + MAX_STABLE_WAIT_ATTEMPTS + ", unstable=" + unstable);
+                mainHandler.postDelayed(() -> executeCodecRecordingStart(keys, stableAttempt + 1, forcedReopen), STABLE_WAIT_INTERVAL_MS);
+                return;
+            }
+            if (!forcedReopen) {
+                AppLog.w(TAG, "Codec frames still unstable after wait, forcing reopen all cameras once: " + unstable);
+                forceReopenAllCameras();
+                mainHandler.postDelayed(() -> executeCodecRecordingStart(keys, 0, true), 500);
+                return;
+            }
+            AppLog.w(TAG, "Codec frames still unstable after force reopen, starting with stable subset: " + unstable);
+        }
+
+        boolean anyActive = false;
+        int activeCount = 0;
+
+        for (String key : keys) {
+            Boolean ready = cameraSessionReady.get(key);
+            if (ready == null || !ready) {
+                continue;
+            }
+            if (!unstable.isEmpty() && !isFrameStable(key, System.currentTimeMillis())) {
+                continue;
+            }
+            CodecVideoRecorder codecRecorder = codecRecorders.get(key);
+            if (codecRecorder == null) {
+                continue;
+            }
+            if (codecRecorder.isRecording()) {
+                anyActive = true;
+                activeCount++;
+                continue;
+            }
+            if (codecRecorder.startRecording() || codecRecorder.isRecording()) {
+                anyActive = true;
+                activeCount++;
+            } else {
+                AppLog.e(TAG, "Failed to start codec recording for " + key);
+            }
+        }
+
+        if (anyActive) {
+            lastNotifiedSegmentIndex = -1;
+            isRecording = true;
+            AppLog.d(TAG, activeCount + " camera(s) started codec recording successfully");
+            startThermalGovernor();
+            getPowerSampler().start();
+        } else {
+            AppLog.e(TAG, "Failed to start codec recording on all cameras");
+            isRecording = false;
+            for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
+                recorder.release();
+            }
+            codecRecorders.clear();
+        }
+
+        synchronized (sessionLock) {
+            pendingRecordingStart = null;
+            sessionConfiguredCount = 0;
+            expectedSessionCount = 0;
+            cameraSessionReady.clear();
+            cameraRecordingActive.clear();
+        }
+        if (sessionTimeoutRunnable != null) {
+            mainHandler.removeCallbacks(sessionTimeoutRunnable);
+            sessionTimeoutRunnable = null;
+        }
+    }
+
+    /**
+     * 停止录制所有摄像头
+     */
+    public void stopRecording() {
         stopRecording(false);
     }
 
@@ -1474,6 +2298,8 @@ public class MultiCameraManager {
     public void stopRecording(boolean skipRelayTransfer) {
         AppLog.d(TAG, "stopRecording called, isRecording=" + isRecording + ", useCodecRecording=" + useCodecRecording + ", skipRelayTransfer=" + skipRelayTransfer);
 
+        cancelStagedBringUp();
+
         // 清理待处理的录制启动任务和会话计数器（线程安全处理）
         synchronized (sessionLock) {
             if (pendingRecordingStart != null) {
@@ -1502,26 +2328,34 @@ public class MultiCameraManager {
                 if (recorder != null) {
                     recorder.release();
                 }
-                CodecVideoRecorder codecRecorder = codecRecorders.get(key);
-                if (codecRecorder != null) {
-                    codecRecorder.release();
-                }
+            }
+            for (CodecVideoRecorder codecRecorder : getDistinctCodecRecorders()) {
+                codecRecorder.release();
             }
             codecRecorders.clear();
             return;
         }
 
+        if (thermalGovernor != null) {
+            thermalGovernor.stop();
+        }
+        if (powerSampler != null) {
+            powerSampler.stop();
+        }
+
         // 停止软编码录制
         if (!codecRecorders.isEmpty()) {
             AppLog.d(TAG, "Stopping codec recorders...");
-            for (String key : keys) {
-                CodecVideoRecorder codecRecorder = codecRecorders.get(key);
-                if (codecRecorder != null && codecRecorder.isRecording()) {
+            dumpFrameTraces();
+            for (CodecVideoRecorder codecRecorder : getDistinctCodecRecorders()) {
+                if (codecRecorder.isRecording()) {
+                    String lastFilePath = codecRecorder.getCurrentFilePath();
                     codecRecorder.stopRecording();
+                    indexFinalSegment(lastFilePath);
                 }
             }
             // 释放软编码录制器
-            for (CodecVideoRecorder recorder : codecRecorders.values()) {
+            for (CodecVideoRecorder recorder : getDistinctCodecRecorders()) {
                 recorder.release();
             }
             codecRecorders.clear();
@@ -1531,7 +2365,9 @@ public class MultiCameraManager {
         for (String key : keys) {
             VideoRecorder recorder = recorders.get(key);
             if (recorder != null && recorder.isRecording()) {
+                String lastFilePath = recorder.getCurrentFilePath();
                 recorder.stopRecording();
+                indexFinalSegment(lastFilePath);
             }
         }
 
@@ -1577,6 +2413,9 @@ public class MultiCameraManager {
         currentEnabledCameras = null;
         rebuildAttemptCount = 0;
         isRebuildingRecording = false;  // 重置重建标志
+
+        // 回到空闲后重新启动预录待命（紧接着开始的触发式录制会取消）
+        scheduleArmPreRoll();
         
         AppLog.d(TAG, "All cameras stopped recording");
     }
@@ -1756,7 +2595,7 @@ public class MultiCameraManager {
             return;
         }
         
-        File targetFile = new File(finalSaveDir, tempFile.getName());
+        File targetFile = StorageHelper.resolveMediaFile(context, finalSaveDir, tempFile.getName());
         
         AppLog.d(TAG, "Scheduling relay transfer: " + tempFile.getName() + 
                 " -> " + targetFile.getAbsolutePath());
@@ -1830,7 +2669,7 @@ public class MultiCameraManager {
                 continue;
             }
             
-            File targetFile = new File(targetDir, tempFile.getName());
+            File targetFile = StorageHelper.resolveMediaFile(context, targetDir, tempFile.getName());
             
             transferManager.addTransferTask(tempFile, targetFile, 
                     new FileTransferManager.TransferCallback() {
@@ -1896,7 +2735,7 @@ public class MultiCameraManager {
             }
             
             // 7. 释放 CodecVideoRecorder
-            for (CodecVideoRecorder codecRecorder : codecRecorders.values()) {
+            for (CodecVideoRecorder codecRecorder : getDistinctCodecRecorders()) {
                 try {
                     codecRecorder.release();
                 } catch (Exception e) {
@@ -1904,13 +2743,20 @@ public class MultiCameraManager {
                 }
             }
             
+            // 8. 释放共享 EGL 渲染引擎（所有录制器释放之后）
+            if (sharedRenderEngine != null) {
+                sharedRenderEngine.release();
+                sharedRenderEngine = null;
+            }
+            
         } catch (Exception e) {
             AppLog.e(TAG, "Unexpected error during release", e);
         } finally {
-            // 8. 清理集合（确保执行）
+            // 9. 清理集合（确保执行）
             cameras.clear();
             recorders.clear();
             codecRecorders.clear();
+            preRollBuffers.clear();
             isRecording = false;
             isRebuildingRecording = false;
             currentRecordingTimestamp = null;
@@ -2054,7 +2900,7 @@ public class MultiCameraManager {
             if (!camera.isConnected()) {
                 disconnectedCount++;
                 AppLog.d(TAG, "Camera " + entry.getKey() + " reconnecting...");
-                camera.forceReopen();
+                camera.requestForceReopen("repair reopen");
             }
         }
         
@@ -2071,9 +2917,43 @@ public class MultiCameraManager {
     public void forceReopenAllCameras() {
         AppLog.d(TAG, "Force reopening all cameras...");
         repairSuppressed = false;
+        // 经协调器排队，错开各路的打开操作，录制中的摄像头优先
         for (SingleCamera camera : cameras.values()) {
-            camera.forceReopen();
+            camera.requestForceReopen("force reopen");
+        }
+    }
+
+    /**
+     * 录制停止后把最后一个分段写入媒体索引（中转写入时由传输完成后写入）
+     */
+    private void indexFinalSegment(String filePath) {
+        if (!useRelayWrite && filePath != null) {
+            MediaIndex.getInstance(context).onFileAdded(new File(filePath));
+        }
+    }
+
+    /**
+     * 获取重连协调器（恢复耗时统计等）
+     */
+    public ReconnectCoordinator getReconnectCoordinator() {
+        return reconnectCoordinator;
+    }
+
+    /**
+     * 指定 cameraId 的摄像头是否正在录制（重连优先级）
+     */
+    private boolean isCameraIdRecording(String cameraId) {
+        for (Map.Entry<String, SingleCamera> entry : cameras.entrySet()) {
+            if (!entry.getValue().getCameraId().equals(cameraId)) {
+                continue;
+            }
+            CodecVideoRecorder codecRecorder = codecRecorders.get(entry.getKey());
+            VideoRecorder recorder = recorders.get(entry.getKey());
+            if ((codecRecorder != null && codecRecorder.isRecording()) || (recorder != null && recorder.isRecording())) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -2100,6 +2980,15 @@ public class MultiCameraManager {
             sb.append(String.format(java.util.Locale.US, "%.1f fps  ", fps));
             sb.append(res);
         }
+        long lastRecoveryMs = reconnectCoordinator.getLastRecoveryMs();
+        if (lastRecoveryMs >= 0) {
+            sb.append("\n恢复 ").append(lastRecoveryMs).append("ms (max ")
+                    .append(reconnectCoordinator.getMaxRecoveryMs()).append("ms)");
+        }
+        String powerLine = powerSampler != null ? powerSampler.getDebugLine() : null;
+        if (powerLine != null) {
+            sb.append("\n无头省电 ").append(powerLine);
+        }
         return sb.toString();
     }
 
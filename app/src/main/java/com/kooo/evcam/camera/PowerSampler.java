@@ -0,0 +1,179 @@
+package com.kooo.evcam.camera;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.Locale;
+
+/**
+ * 录制功耗采样（对比息屏无头模式与正常预览模式）
+ * 录制期间每 SAMPLE_INTERVAL_MS 采样一次进程 CPU 时间（Process.getElapsedCpuTime）和电池瞬时电流
+ * （BatteryManager.BATTERY_PROPERTY_CURRENT_NOW），每个采样区间按区间开始时的模式累计到「无头」或「预览」。
+ * 模式切换时立即结算当前区间，两种模式的数据不会混在同一区间里。
+ * 统计在进程生命周期内累计（跨多次录制），样本越多对比越准确
+ *
+ * 电流：部分车机不支持或始终返回 0，此时只给出 CPU 对比；不同设备符号约定不同，取绝对值
+ *
+ * 线程：所有方法在主线程调用
+ */
+public class PowerSampler {
+    private static final String TAG = "PowerSampler";
+
+    private static final long SAMPLE_INTERVAL_MS = 10_000;
+    private static final int MODE_PREVIEW = 0;
+    private static final int MODE_HEADLESS = 1;
+
+    private final BatteryManager batteryManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable sampleRunnable = this::sampleAndReschedule;
+
+    private boolean running = false;
+    private boolean headless = false;
+    private long intervalStartWallMs;
+    private long intervalStartCpuMs;
+
+    // 按模式累计（下标 MODE_*）
+    private final long[] wallMs = new long[2];
+    private final long[] cpuMs = new long[2];
+    private final long[] currentSamples = new long[2];
+    private final double[] currentSumMa = new double[2];
+
+    public PowerSampler(Context context) {
+        this.batteryManager = (BatteryManager) context.getApplicationContext().getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    /**
+     * 开始采样（录制开始时调用）
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        resetInterval();
+        handler.postDelayed(sampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * 停止采样（录制停止时调用），结算最后一个区间
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        sample();
+        running = false;
+        handler.removeCallbacks(sampleRunnable);
+        AppLog.d(TAG, getSummary());
+    }
+
+    /**
+     * 切换无头模式：先把当前区间计入旧模式
+     */
+    public void setHeadless(boolean enabled) {
+        if (headless == enabled) {
+            return;
+        }
+        if (running) {
+            sample();
+        }
+        headless = enabled;
+    }
+
+    /**
+     * 两种模式的平均 CPU 占用（单核百分比）和平均电流，以及无头模式相对预览模式的节省比例
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("Power: preview ").append(formatMode(MODE_PREVIEW))
+                .append(", headless ").append(formatMode(MODE_HEADLESS));
+        float cpuSaving = saving(getCpuPercent(MODE_PREVIEW), getCpuPercent(MODE_HEADLESS));
+        if (!Float.isNaN(cpuSaving)) {
+            sb.append(String.format(Locale.US, ", cpu saving %.0f%%", cpuSaving));
+        }
+        float currentSaving = saving(getAverageCurrentMa(MODE_PREVIEW), getAverageCurrentMa(MODE_HEADLESS));
+        if (!Float.isNaN(currentSaving)) {
+            sb.append(String.format(Locale.US, ", current saving %.0f%%", currentSaving));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 调试面板用的简短对比（两种模式都有样本时才返回，否则返回 null）
+     */
+    public String getDebugLine() {
+        if (wallMs[MODE_PREVIEW] == 0 || wallMs[MODE_HEADLESS] == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "CPU %.1f%%→%.1f%%",
+                getCpuPercent(MODE_PREVIEW), getCpuPercent(MODE_HEADLESS)));
+        float previewMa = getAverageCurrentMa(MODE_PREVIEW);
+        float headlessMa = getAverageCurrentMa(MODE_HEADLESS);
+        if (!Float.isNaN(previewMa) && !Float.isNaN(headlessMa)) {
+            sb.append(String.format(Locale.US, "  %.0fmA→%.0fmA", previewMa, headlessMa));
+        }
+        return sb.toString();
+    }
+
+    private void sampleAndReschedule() {
+        if (!running) {
+            return;
+        }
+        sample();
+        handler.postDelayed(sampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    private void sample() {
+        int mode = headless ? MODE_HEADLESS : MODE_PREVIEW;
+        long nowWallMs = SystemClock.elapsedRealtime();
+        long nowCpuMs = Process.getElapsedCpuTime();
+        wallMs[mode] += nowWallMs - intervalStartWallMs;
+        cpuMs[mode] += nowCpuMs - intervalStartCpuMs;
+        if (batteryManager != null) {
+            int currentUa = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+            if (currentUa != Integer.MIN_VALUE && currentUa != 0) {
+                currentSumMa[mode] += Math.abs(currentUa) / 1000.0;
+                currentSamples[mode]++;
+            }
+        }
+        intervalStartWallMs = nowWallMs;
+        intervalStartCpuMs = nowCpuMs;
+    }
+
+    private void resetInterval() {
+        intervalStartWallMs = SystemClock.elapsedRealtime();
+        intervalStartCpuMs = Process.getElapsedCpuTime();
+    }
+
+    private float getCpuPercent(int mode) {
+        return wallMs[mode] > 0 ? cpuMs[mode] * 100f / wallMs[mode] : Float.NaN;
+    }
+
+    private float getAverageCurrentMa(int mode) {
+        return currentSamples[mode] > 0 ? (float) (currentSumMa[mode] / currentSamples[mode]) : Float.NaN;
+    }
+
+    private String formatMode(int mode) {
+        if (wallMs[mode] == 0) {
+            return "n/a";
+        }
+        String s = String.format(Locale.US, "%ds cpu=%.1f%%", wallMs[mode] / 1000, getCpuPercent(mode));
+        float currentMa = getAverageCurrentMa(mode);
+        if (!Float.isNaN(currentMa)) {
+            s += String.format(Locale.US, " current=%.0fmA", currentMa);
+        }
+        return s;
+    }
+
+    private static float saving(float preview, float headless) {
+        if (Float.isNaN(preview) || Float.isNaN(headless) || preview <= 0) {
+            return Float.NaN;
+        }
+        return (preview - headless) * 100f / preview;
+    }
+}
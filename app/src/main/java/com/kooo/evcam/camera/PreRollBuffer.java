@@ -0,0 +1,356 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaFormat;
+
+import com.kooo.evcam.AppLog;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 预录环形缓冲（单个摄像头）
+ * 缓存最近 N 秒的已编码 H.264 帧（访问单元），触发式录制（远程录制等）开始时先把缓冲的 GOP 写入新文件，
+ * 这样触发前的几秒画面不会丢失
+ *
+ * 内存设计：
+ * - 数据存放在构造时一次性分配的一组固定大小的直接内存块（direct ByteBuffer）中，按字节环形写入，
+ *   帧可以跨块存放，不浪费空间
+ * - 帧信息（位置、大小、时间戳、关键帧标志）使用基本类型数组
+ * - 稳态下（30fps × 4 路）没有任何内存分配，不产生 GC
+ *
+ * 缓冲始终从关键帧开始：淘汰旧数据时按整个 GOP 淘汰
+ *
+ * 缓冲由空闲时的预录待命录制器填充（只编码、不写文件）；正常录制的画面已写入文件，不进入缓冲。
+ * 待命停止后缓冲保留，过期的内容在写入时丢弃
+ *
+ * 线程安全：写入在待命录制器的 Muxer 写入线程，读取在新录制器的 Muxer 写入线程，方法均为 synchronized（无竞争时开销很小）
+ */
+public class PreRollBuffer {
+    private static final String TAG = "PreRollBuffer";
+
+    private static final int BLOCK_SIZE = 256 * 1024;  // 每个内存块 256KB
+    private static final int MAX_FRAME_RATE = 60;  // 用于计算帧信息数组大小
+
+    /**
+     * 帧输出接口（flush 时逐帧回调）
+     */
+    public interface FrameSink {
+        /**
+         * @param frame 帧数据（position=0, limit=帧大小），仅在回调期间有效
+         * @param timestampNs 帧的编码输出时间（System.nanoTime）
+         * @param keyFrame 是否为关键帧
+         */
+        void onFrame(ByteBuffer frame, long timestampNs, boolean keyFrame);
+    }
+
+    private final String cameraKey;
+    private final long durationNs;
+    private final int capacity;
+
+    // 数据块（固定集合，构造时分配）
+    private final ByteBuffer[] blocks;
+
+    // 帧信息环（基本类型数组，固定大小）
+    private final long[] frameStart;  // 帧在数据环中的起始位置（单调递增的逻辑位置）
+    private final int[] frameSize;
+    private final long[] frameTimeNs;
+    private final boolean[] frameKey;
+    private int head = 0;   // 最旧帧的下标
+    private int count = 0;  // 帧数
+
+    private long writeCursor = 0;  // 下一个写入的逻辑位置
+    private long readCursor = 0;   // 最旧帧的逻辑位置（writeCursor - readCursor 即已用字节数）
+
+    // flush 时拼接帧数据的临时缓冲（按最大帧大小分配，仅在出现更大的帧时重新分配）
+    private ByteBuffer scratch;
+
+    // 编码格式（用于判断缓冲的数据能否写入新编码器的文件）
+    private byte[] csd0;
+    private byte[] csd1;
+    private int width;
+    private int height;
+
+    // 统计
+    private long droppedFrames = 0;
+
+    /**
+     * @param cameraKey 摄像头位置（用于日志）
+     * @param capacityBytes 数据容量（字节），按码率 × 时长估算
+     * @param durationMs 需要覆盖的时长
+     */
+    public PreRollBuffer(String cameraKey, int capacityBytes, long durationMs) {
+        this.cameraKey = cameraKey;
+        this.durationNs = durationMs * 1000000L;
+        int blockCount = Math.max(1, (capacityBytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        this.capacity = blockCount * BLOCK_SIZE;
+        this.blocks = new ByteBuffer[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        // 额外 2 秒余量：保证最旧的 GOP 淘汰前仍能覆盖完整时长
+        int maxFrames = (int) ((durationMs / 1000 + 2) * MAX_FRAME_RATE);
+        this.frameStart = new long[maxFrames];
+        this.frameSize = new int[maxFrames];
+        this.frameTimeNs = new long[maxFrames];
+        this.frameKey = new boolean[maxFrames];
+        AppLog.d(TAG, "Camera " + cameraKey + " pre-roll buffer created: " + (capacity / 1024) + " KB, "
+                + durationMs + " ms, " + maxFrames + " frame slots");
+    }
+
+    /**
+     * 容量（字节）
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 需要覆盖的时长（毫秒）
+     */
+    public long getDurationMs() {
+        return durationNs / 1000000L;
+    }
+
+    /**
+     * 更新编码格式
+     * 新格式与已缓冲数据的格式不同（分辨率或 SPS/PPS 变化）时清空缓冲
+     * @return true 表示已缓冲的数据与新格式兼容
+     */
+    public synchronized boolean updateFormat(MediaFormat format) {
+        byte[] newCsd0 = readCsd(format, "csd-0");
+        byte[] newCsd1 = readCsd(format, "csd-1");
+        int newWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        int newHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        boolean compatible = newWidth == width && newHeight == height
+                && Arrays.equals(newCsd0, csd0) && Arrays.equals(newCsd1, csd1);
+        if (!compatible) {
+            if (count > 0) {
+                AppLog.d(TAG, "Camera " + cameraKey + " encoder format changed, discarding " + count + " buffered frames");
+            }
+            clearLocked();
+            csd0 = newCsd0;
+            csd1 = newCsd1;
+            width = newWidth;
+            height = newHeight;
+        }
+        return compatible;
+    }
+
+    /**
+     * 追加一帧（在编码线程调用，不分配内存）
+     * @param data 编码输出缓冲，读取范围 [offset, offset + size)，不修改其 position/limit
+     * @param timestampNs 帧的编码输出时间（System.nanoTime）
+     */
+    public synchronized void append(ByteBuffer data, int offset, int size, boolean keyFrame, long timestampNs) {
+        if (size <= 0) {
+            return;
+        }
+        if (size > capacity) {
+            // 单帧超过容量，无法缓冲，清空以保持关键帧对齐
+            clearLocked();
+            droppedFrames++;
+            return;
+        }
+        if (count == 0 && !keyFrame) {
+            // 缓冲必须从关键帧开始
+            droppedFrames++;
+            return;
+        }
+
+        // 空间或帧槽不足时，按 GOP 淘汰最旧的数据
+        while (count > 0 && (writeCursor - readCursor + size > capacity || count == frameStart.length)) {
+            evictOldestGop();
+        }
+        if (count == 0 && !keyFrame) {
+            droppedFrames++;
+            return;
+        }
+
+        int slot = (head + count) % frameStart.length;
+        frameStart[slot] = writeCursor;
+        frameSize[slot] = size;
+        frameTimeNs[slot] = timestampNs;
+        frameKey[slot] = keyFrame;
+        count++;
+        copyIn(data, offset, size, writeCursor);
+        writeCursor += size;
+
+        // 时长修剪：只要第二个 GOP 的起点已经覆盖所需时长，就淘汰最旧的 GOP
+        trimToDuration(timestampNs);
+    }
+
+    /**
+     * 按时间顺序输出所有缓冲帧（不清空缓冲）
+     * @param maxAgeNs 最新一帧距今超过该时间则认为缓冲已过期，不输出并清空
+     * @return 输出的帧数
+     */
+    public synchronized int drainTo(FrameSink sink, long maxAgeNs) {
+        if (count == 0) {
+            return 0;
+        }
+        int newest = (head + count - 1) % frameStart.length;
+        long age = System.nanoTime() - frameTimeNs[newest];
+        if (age > maxAgeNs) {
+            AppLog.d(TAG, "Camera " + cameraKey + " pre-roll buffer stale (" + (age / 1000000L) + " ms), discarding");
+            clearLocked();
+            return 0;
+        }
+
+        int frames = count;
+        for (int i = 0; i < frames; i++) {
+            int slot = (head + i) % frameStart.length;
+            int size = frameSize[slot];
+            if (scratch == null || scratch.capacity() < size) {
+                scratch = ByteBuffer.allocateDirect(Math.max(size, BLOCK_SIZE));
+            }
+            scratch.clear();
+            copyOut(frameStart[slot], size, scratch);
+            scratch.flip();
+            sink.onFrame(scratch, frameTimeNs[slot], frameKey[slot]);
+        }
+        return frames;
+    }
+
+    /**
+     * 清空缓冲
+     */
+    public synchronized void clear() {
+        clearLocked();
+    }
+
+    /**
+     * 已缓冲的时长（毫秒）
+     */
+    public synchronized long getBufferedDurationMs() {
+        if (count < 2) {
+            return 0;
+        }
+        int newest = (head + count - 1) % frameStart.length;
+        return (frameTimeNs[newest] - frameTimeNs[head]) / 1000000L;
+    }
+
+    /**
+     * 已缓冲的帧数
+     */
+    public synchronized int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * 因无法缓冲而丢弃的帧数
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    // ===== 私有方法 =====
+
+    private void clearLocked() {
+        head = 0;
+        count = 0;
+        readCursor = writeCursor;
+    }
+
+    /**
+     * 淘汰最旧的 GOP（从 head 起直到下一个关键帧之前的所有帧）
+     */
+    private void evictOldestGop() {
+        removeHead();
+        while (count > 0 && !frameKey[head]) {
+            removeHead();
+        }
+    }
+
+    private void removeHead() {
+        readCursor = frameStart[head] + frameSize[head];
+        head = (head + 1) % frameStart.length;
+        count--;
+        if (count == 0) {
+            readCursor = writeCursor;
+        }
+    }
+
+    private void trimToDuration(long newestTimeNs) {
+        while (count > 1) {
+            int nextKey = findNextKeyFrameOffset();
+            if (nextKey < 0) {
+                return;
+            }
+            int nextKeySlot = (head + nextKey) % frameStart.length;
+            if (newestTimeNs - frameTimeNs[nextKeySlot] < durationNs) {
+                return;
+            }
+            for (int i = 0; i < nextKey; i++) {
+                removeHead();
+            }
+        }
+    }
+
+    /**
+     * 查找 head 之后第一个关键帧的相对下标，找不到返回 -1
+     */
+    private int findNextKeyFrameOffset() {
+        for (int i = 1; i < count; i++) {
+            if (frameKey[(head + i) % frameStart.length]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 把数据写入环形数据块（可能跨块、跨环尾）
+     */
+    private void copyIn(ByteBuffer data, int offset, int size, long cursor) {
+        int savedPosition = data.position();
+        int savedLimit = data.limit();
+        try {
+            int copied = 0;
+            while (copied < size) {
+                int ringOffset = (int) ((cursor + copied) % capacity);
+                ByteBuffer block = blocks[ringOffset / BLOCK_SIZE];
+                int blockOffset = ringOffset % BLOCK_SIZE;
+                int chunk = Math.min(size - copied, BLOCK_SIZE - blockOffset);
+                data.limit(offset + copied + chunk);
+                data.position(offset + copied);
+                block.clear();
+                block.position(blockOffset);
+                block.put(data);
+                copied += chunk;
+            }
+        } finally {
+            data.limit(savedLimit);
+            data.position(savedPosition);
+        }
+    }
+
+    /**
+     * 从环形数据块读出数据到 dst（dst 剩余空间需 >= size）
+     */
+    private void copyOut(long cursor, int size, ByteBuffer dst) {
+        int copied = 0;
+        while (copied < size) {
+            int ringOffset = (int) ((cursor + copied) % capacity);
+            ByteBuffer block = blocks[ringOffset / BLOCK_SIZE];
+            int blockOffset = ringOffset % BLOCK_SIZE;
+            int chunk = Math.min(size - copied, BLOCK_SIZE - blockOffset);
+            block.clear();
+            block.position(blockOffset);
+            block.limit(blockOffset + chunk);
+            dst.put(block);
+            copied += chunk;
+        }
+    }
+
+    private static byte[] readCsd(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key);
+        if (csd == null) {
+            return null;
+        }
+        ByteBuffer copy = csd.duplicate();
+        copy.position(0);
+        byte[] data = new byte[copy.remaining()];
+        copy.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,292 @@
+package com.kooo.evcam.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 摄像头重连协调器（MultiCameraManager 持有，所有摄像头共用）
+ * HAL 重启后各摄像头会在同一时刻重连、强制重开、重建会话，同时发起的 HAL 操作经常导致再次失败。
+ * 协调器统一调度这些操作：
+ * - 全局并发上限：同一时刻最多 maxConcurrent 个 HAL 操作（打开 + 配置会话）在进行
+ * - 错开：相邻两次操作之间至少间隔 MIN_STAGGER_MS
+ * - 退避：每个摄像头按尝试次数指数退避，带随机抖动，避免各路节奏同步
+ * - 优先级：正在录制的摄像头优先恢复
+ *
+ * 操作投递到所属摄像头的后台线程执行（关闭会话、关闭设备都是同步调用，不能放在主线程），
+ * 之后由 SingleCamera 在会话配置完成/失败、设备出错/断开等回调中调用 onOperationFinished 释放名额，
+ * 超过 OPERATION_TIMEOUT_MS 未释放的名额自动回收。
+ * 同时统计恢复耗时：从摄像头丢失（断开、出错、卡顿）到恢复出帧
+ *
+ * 线程：所有方法可在任意线程调用，调度在主线程执行，操作在摄像头线程执行
+ */
+public class ReconnectCoordinator {
+    private static final String TAG = "ReconnectCoordinator";
+
+    private static final long MIN_STAGGER_MS = 300;  // 相邻两次 HAL 操作的最小间隔
+    private static final long OPERATION_TIMEOUT_MS = 4000;  // 操作名额最长占用时间
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_MAX_MS = 30000;
+
+    /**
+     * 判断摄像头是否正在录制（决定恢复优先级）
+     */
+    public interface PriorityProvider {
+        boolean isRecording(String cameraId);
+    }
+
+    private static final class PendingOperation {
+        final String cameraId;
+        final String reason;
+        final long dueAtMs;
+        final Handler target;
+        final Runnable operation;
+
+        PendingOperation(String cameraId, String reason, long dueAtMs, Handler target, Runnable operation) {
+            this.cameraId = cameraId;
+            this.reason = reason;
+            this.dueAtMs = dueAtMs;
+            this.target = target;
+            this.operation = operation;
+        }
+    }
+
+    private final int maxConcurrent;
+    private final PriorityProvider priorityProvider;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final Runnable dispatchRunnable = this::dispatch;
+
+    // 以下字段由 this 保护
+    private final Map<String, PendingOperation> pending = new LinkedHashMap<>();  // 每个摄像头最多一个待执行操作
+    private final Map<String, Long> active = new HashMap<>();  // 进行中的操作 -> 开始时间
+    private long lastDispatchMs = 0;
+
+    // 恢复耗时统计
+    private final Map<String, Long> lostAtMs = new HashMap<>();
+    private int recoveryCount = 0;
+    private long lastRecoveryMs = -1;
+    private long maxRecoveryMs = 0;
+    private long totalRecoveryMs = 0;
+
+    public ReconnectCoordinator(int maxConcurrent, PriorityProvider priorityProvider) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.priorityProvider = priorityProvider;
+    }
+
+    /**
+     * 计算重连延迟：指数退避 + 抖动（等概率落在 [delay/2, delay]），不低于 floorMs
+     * @param attempt 第几次尝试（从 1 开始）
+     */
+    public long getBackoffDelayMs(int attempt, long floorMs) {
+        long delay = Math.min(BACKOFF_BASE_MS << Math.min(Math.max(attempt - 1, 0), 6), BACKOFF_MAX_MS);
+        long jittered;
+        synchronized (this) {
+            jittered = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+        return Math.max(jittered, floorMs);
+    }
+
+    /**
+     * 提交 HAL 操作（打开、强制重开、重建会话），替换该摄像头尚未执行的旧操作
+     * @param delayMs 最早执行时间（相对现在）
+     * @param target 摄像头后台线程的 Handler，操作投递到该线程执行；线程已退出时放弃操作并释放名额
+     * @param operation 要执行的操作，名额由摄像头回调（或操作失败时）通过 onOperationFinished 释放
+     */
+    public void schedule(String cameraId, String reason, long delayMs, Handler target, Runnable operation) {
+        synchronized (this) {
+            pending.put(cameraId, new PendingOperation(cameraId, reason,
+                    SystemClock.elapsedRealtime() + Math.max(0, delayMs), target, operation));
+        }
+        AppLog.d(TAG, "Camera " + cameraId + " " + reason + " queued (delay " + delayMs + "ms)");
+        handler.post(dispatchRunnable);
+    }
+
+    /**
+     * 取消摄像头尚未执行的操作（进行中的操作不受影响）
+     */
+    public void cancelPending(String cameraId) {
+        synchronized (this) {
+            pending.remove(cameraId);
+        }
+    }
+
+    /**
+     * 摄像头的 HAL 操作结束（成功或失败），释放并发名额
+     */
+    public void onOperationFinished(String cameraId) {
+        boolean released;
+        synchronized (this) {
+            released = active.remove(cameraId) != null;
+        }
+        if (released) {
+            handler.post(dispatchRunnable);
+        }
+    }
+
+    /**
+     * 摄像头丢失（断开、出错、卡顿），开始计算恢复耗时（重复调用保留最早时刻）
+     */
+    public void onCameraLost(String cameraId) {
+        synchronized (this) {
+            if (!lostAtMs.containsKey(cameraId)) {
+                lostAtMs.put(cameraId, SystemClock.elapsedRealtime());
+            }
+        }
+    }
+
+    /**
+     * 摄像头恢复出帧
+     */
+    public void onCameraRecovered(String cameraId) {
+        long elapsed;
+        synchronized (this) {
+            Long lostAt = lostAtMs.remove(cameraId);
+            if (lostAt == null) {
+                return;
+            }
+            elapsed = SystemClock.elapsedRealtime() - lostAt;
+            recoveryCount++;
+            lastRecoveryMs = elapsed;
+            maxRecoveryMs = Math.max(maxRecoveryMs, elapsed);
+            totalRecoveryMs += elapsed;
+        }
+        AppLog.d(TAG, "Camera " + cameraId + " recovered in " + elapsed + "ms");
+    }
+
+    /**
+     * 摄像头被主动关闭，不再计算恢复耗时
+     */
+    public void forget(String cameraId) {
+        synchronized (this) {
+            pending.remove(cameraId);
+            lostAtMs.remove(cameraId);
+        }
+        onOperationFinished(cameraId);
+    }
+
+    /**
+     * 最近一次恢复耗时（毫秒），尚未发生过恢复时返回 -1
+     */
+    public synchronized long getLastRecoveryMs() {
+        return lastRecoveryMs;
+    }
+
+    /**
+     * 最长恢复耗时（毫秒）
+     */
+    public synchronized long getMaxRecoveryMs() {
+        return maxRecoveryMs;
+    }
+
+    /**
+     * 恢复统计摘要
+     */
+    public synchronized String getRecoveryStats() {
+        long avg = recoveryCount > 0 ? totalRecoveryMs / recoveryCount : 0;
+        return "recoveries=" + recoveryCount + ", last=" + lastRecoveryMs + "ms, avg=" + avg + "ms, max=" +
+                maxRecoveryMs + "ms, lost=" + lostAtMs.keySet() + ", active=" + active.keySet() +
+                ", pending=" + pending.keySet();
+    }
+
+    /**
+     * 调度（主线程）：名额和错开间隔允许时，按「录制中优先、到期时间早优先」把一个操作投递到摄像头线程
+     */
+    private void dispatch() {
+        handler.removeCallbacks(dispatchRunnable);
+        long now = SystemClock.elapsedRealtime();
+        PendingOperation next = null;
+        long waitMs = -1;
+        synchronized (this) {
+            // 回收超时名额（会话一直没有配置完成等情况）
+            List<String> expired = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : active.entrySet()) {
+                if (now - entry.getValue() >= OPERATION_TIMEOUT_MS) {
+                    expired.add(entry.getKey());
+                }
+            }
+            for (String cameraId : expired) {
+                AppLog.w(TAG, "Camera " + cameraId + " operation timed out, releasing slot");
+                active.remove(cameraId);
+            }
+
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (active.size() >= maxConcurrent) {
+                waitMs = nextActiveExpiryMs(now);
+            } else if (now - lastDispatchMs < MIN_STAGGER_MS) {
+                waitMs = MIN_STAGGER_MS - (now - lastDispatchMs);
+            } else {
+                boolean nextRecording = false;
+                long earliestDue = Long.MAX_VALUE;
+                for (PendingOperation op : pending.values()) {
+                    if (active.containsKey(op.cameraId)) {
+                        continue;  // 同一摄像头上一个操作尚未结束
+                    }
+                    if (op.dueAtMs > now) {
+                        earliestDue = Math.min(earliestDue, op.dueAtMs);
+                        continue;
+                    }
+                    boolean recording = priorityProvider != null && priorityProvider.isRecording(op.cameraId);
+                    if (next == null || (recording && !nextRecording)
+                            || (recording == nextRecording && op.dueAtMs < next.dueAtMs)) {
+                        next = op;
+                        nextRecording = recording;
+                    }
+                }
+                if (next != null) {
+                    pending.remove(next.cameraId);
+                    active.put(next.cameraId, now);
+                    lastDispatchMs = now;
+                    waitMs = pending.isEmpty() ? nextActiveExpiryMs(now) : MIN_STAGGER_MS;
+                } else if (earliestDue != Long.MAX_VALUE) {
+                    waitMs = earliestDue - now;
+                } else {
+                    waitMs = nextActiveExpiryMs(now);
+                }
+            }
+        }
+
+        if (next != null) {
+            final PendingOperation op = next;
+            AppLog.d(TAG, "Camera " + op.cameraId + " running " + op.reason);
+            Runnable task = () -> {
+                try {
+                    op.operation.run();
+                } catch (RuntimeException e) {
+                    AppLog.e(TAG, "Camera " + op.cameraId + " " + op.reason + " failed", e);
+                    onOperationFinished(op.cameraId);
+                }
+            };
+            if (op.target == null || !op.target.post(task)) {
+                AppLog.w(TAG, "Camera " + op.cameraId + " thread not running, dropping " + op.reason);
+                onOperationFinished(op.cameraId);
+            }
+        }
+        if (waitMs >= 0) {
+            handler.postDelayed(dispatchRunnable, Math.max(waitMs, 10));
+        }
+    }
+
+    /**
+     * 距最早一个进行中操作超时的时间，没有进行中的操作时返回 -1（调用方持有锁）
+     */
+    private long nextActiveExpiryMs(long now) {
+        long wait = -1;
+        for (long startMs : active.values()) {
+            long remaining = startMs + OPERATION_TIMEOUT_MS - now;
+            wait = wait < 0 ? remaining : Math.min(wait, remaining);
+        }
+        return wait;
+    }
+}
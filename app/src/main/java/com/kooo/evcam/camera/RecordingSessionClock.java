@@ -0,0 +1,57 @@
+package com.kooo.evcam.camera;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录制会话时钟（多路摄像头共用）
+ * 以会话中任意一路摄像头的第一帧传感器时间戳为原点，所有录制器的输入时间戳都相对该原点计算，
+ * 不同摄像头同一时刻拍摄的画面在各自文件的时间轴上可以直接对齐（见 Mp4SyncInfo）
+ *
+ * 传感器时间戳来自 SurfaceTexture.getTimestamp()，各摄像头使用同一时基（通常为 CLOCK_MONOTONIC）
+ *
+ * 线程：原点由首个到达的帧通过 CAS 设置，之后只读，可在各录制器的渲染线程上并发调用
+ */
+public class RecordingSessionClock {
+    private static final String TAG = "RecordingSessionClock";
+
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private final AtomicLong originNs = new AtomicLong(UNSET);
+    private volatile long originWallTimeMs = 0;
+
+    /**
+     * 获取会话原点，尚未设置时以该时间戳为原点
+     * @param timestampNs 当前帧的传感器时间戳
+     * @return 会话原点（纳秒）
+     */
+    public long obtainOrigin(String cameraId, long timestampNs) {
+        long origin = originNs.get();
+        if (origin != UNSET) {
+            return origin;
+        }
+        if (originNs.compareAndSet(UNSET, timestampNs)) {
+            // 传感器时间戳按 CLOCK_MONOTONIC 换算墙上时间（仅用于显示，不参与对齐）
+            originWallTimeMs = System.currentTimeMillis() - (System.nanoTime() - timestampNs) / 1_000_000L;
+            AppLog.d(TAG, "Session origin set by camera " + cameraId + ": " + timestampNs + " ns");
+            return timestampNs;
+        }
+        return originNs.get();
+    }
+
+    /**
+     * 会话原点（纳秒），尚未有帧到达时返回 -1
+     */
+    public long getOriginNs() {
+        long origin = originNs.get();
+        return origin != UNSET ? origin : -1;
+    }
+
+    /**
+     * 会话原点对应的系统时间（毫秒）
+     */
+    public long getOriginWallTimeMs() {
+        return originWallTimeMs;
+    }
+}
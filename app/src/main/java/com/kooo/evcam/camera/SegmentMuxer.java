@@ -0,0 +1,35 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.kooo.evcam.camera.mp4.Mp4SyncInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 分段文件封装器接口
+ * 方法语义与 MediaMuxer 一致（单视频轨道），便于在 MediaMuxer 与分片 MP4 写入器之间切换
+ * 出错时抛出 IllegalStateException / IllegalArgumentException，与 MediaMuxer 行为一致
+ */
+public interface SegmentMuxer {
+
+    /**
+     * 添加轨道（使用编码器输出格式）
+     * @return 轨道索引
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * 写入多路同步信息（start() 之后调用，不支持时忽略）
+     */
+    void writeSyncInfo(Mp4SyncInfo syncInfo);
+
+    void stop();
+
+    void release();
+}
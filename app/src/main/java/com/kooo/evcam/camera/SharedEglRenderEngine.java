@@ -0,0 +1,439 @@
+package com.kooo.evcam.camera;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.kooo.evcam.AppLog;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享 EGL 渲染引擎（Codec 录制模式下所有摄像头共用）
+ *
+ * 原方案每个 CodecVideoRecorder 各自创建 EGL Display/Context 和编码线程，
+ * 4 路摄像头就是 4 个 GL 上下文、4 个线程在车机较弱的 GPU 驱动上来回切换。
+ * 本引擎只有一个 EGL Context 和一个渲染线程：
+ * - 所有摄像头的 OES 纹理、编码器输入 Surface 都在同一个 Context 下创建
+ * - 着色器程序和顶点缓冲在各摄像头之间共享
+ * - onFrameAvailable 只做标记，渲染在一次调度中按轮转顺序处理所有有新帧的摄像头
+ * - eglMakeCurrent 只在目标 Surface 与当前不同时调用；只需消费帧时不切换 Surface
+ *
+ * 渲染线程同时作为各录制器的编码线程（encoderHandler），只做绘制和 EGL Surface 切换。
+ * 编码输出由 MediaCodec 回调在各录制器的输出线程上接收、在 Muxer 写入线程上写文件；
+ * 编码器重建、分段切换等耗时操作在各录制器的分段线程上执行，不占用渲染线程。
+ */
+public class SharedEglRenderEngine {
+    private static final String TAG = "SharedEglRenderEngine";
+
+    private static final long INIT_TIMEOUT_MS = 5000;
+
+    /**
+     * 帧源（一个摄像头的 SurfaceTexture 及其帧处理任务）
+     */
+    private static class FrameSource {
+        final String cameraId;
+        final SurfaceTexture surfaceTexture;
+        final Runnable frameTask;
+        boolean pending = false;
+
+        FrameSource(String cameraId, SurfaceTexture surfaceTexture, Runnable frameTask) {
+            this.cameraId = cameraId;
+            this.surfaceTexture = surfaceTexture;
+            this.frameTask = frameTask;
+        }
+    }
+
+    private HandlerThread renderThread;
+    private Handler renderHandler;
+
+    // EGL 相关（只在渲染线程上使用）
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    private EGLSurface pbufferSurface = EGL14.EGL_NO_SURFACE;  // 没有编码器 Surface 时保持 Context 可用
+    private EGLSurface currentSurface = EGL14.EGL_NO_SURFACE;
+
+    // 共享的 GL 资源（只在渲染线程上使用）
+    private final Map<String, Integer> programCache = new HashMap<>();
+    private FloatBuffer vertexBuffer;
+    private FloatBuffer texCoordBuffer;
+
+    // 帧源（只在渲染线程上修改），轮转调度的起点每次调度后前移一位
+    private final List<FrameSource> sources = new ArrayList<>();
+    private FrameSource[] sourceSnapshot = new FrameSource[0];
+    private int nextSourceIndex = 0;
+    private boolean renderPassScheduled = false;
+    private final Runnable renderPass = this::runRenderPass;
+
+    // 统计
+    private long makeCurrentCount = 0;
+
+    private volatile boolean running = false;
+
+    /**
+     * 启动渲染线程并创建共享 EGL Context（阻塞等待完成）
+     * @return true 表示启动成功；失败时调用方应回退到每路独立 EGL
+     */
+    public synchronized boolean start() {
+        if (running) {
+            return true;
+        }
+
+        renderThread = new HandlerThread("SharedEglRender");
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+
+        final boolean[] success = {false};
+        boolean finished = runSync(() -> {
+            try {
+                initEgl();
+                vertexBuffer = EglSurfaceEncoder.createFloatBuffer(EglSurfaceEncoder.VERTICES);
+                texCoordBuffer = EglSurfaceEncoder.createFloatBuffer(EglSurfaceEncoder.TEXTURE_COORDS);
+                success[0] = true;
+            } catch (Exception e) {
+                AppLog.e(TAG, "Failed to initialize shared EGL context", e);
+                releaseEgl();
+            }
+        }, INIT_TIMEOUT_MS);
+
+        if (!finished || !success[0]) {
+            AppLog.e(TAG, "Shared EGL render engine start failed" + (finished ? "" : " (timeout)"));
+            quitThread();
+            return false;
+        }
+
+        running = true;
+        AppLog.d(TAG, "Shared EGL render engine started");
+        return true;
+    }
+
+    /**
+     * 是否已启动
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 渲染线程的 Handler（同时作为各录制器的编码线程）
+     */
+    public Handler getHandler() {
+        return renderHandler;
+    }
+
+    /**
+     * 当前线程是否为渲染线程
+     */
+    public boolean isRenderThread() {
+        return renderThread != null && Looper.myLooper() == renderThread.getLooper();
+    }
+
+    /**
+     * 在渲染线程上同步执行任务（当前已在渲染线程时直接执行）
+     * @return true 表示任务在超时前执行完毕
+     */
+    public boolean runSync(Runnable task, long timeoutMs) {
+        if (isRenderThread()) {
+            task.run();
+            return true;
+        }
+        Handler handler = renderHandler;
+        if (handler == null) {
+            return false;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        boolean posted = handler.post(() -> {
+            try {
+                task.run();
+            } finally {
+                latch.countDown();
+            }
+        });
+        if (!posted) {
+            return false;
+        }
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 注册帧源（在渲染线程上调用）
+     * SurfaceTexture 的 onFrameAvailable 回调由引擎接管，新帧到达时在下一次调度中执行 frameTask
+     */
+    public void registerFrameSource(String cameraId, SurfaceTexture surfaceTexture, Runnable frameTask) {
+        FrameSource source = new FrameSource(cameraId, surfaceTexture, frameTask);
+        surfaceTexture.setOnFrameAvailableListener(st -> {
+            source.pending = true;
+            if (!renderPassScheduled) {
+                renderPassScheduled = true;
+                renderHandler.post(renderPass);
+            }
+        }, renderHandler);
+        sources.add(source);
+        sourceSnapshot = sources.toArray(new FrameSource[0]);
+        AppLog.d(TAG, "Camera " + cameraId + " frame source registered, total " + sources.size());
+    }
+
+    /**
+     * 注销帧源（在渲染线程上调用）
+     */
+    public void unregisterFrameSource(SurfaceTexture surfaceTexture) {
+        for (int i = 0; i < sources.size(); i++) {
+            FrameSource source = sources.get(i);
+            if (source.surfaceTexture == surfaceTexture) {
+                surfaceTexture.setOnFrameAvailableListener(null);
+                sources.remove(i);
+                sourceSnapshot = sources.toArray(new FrameSource[0]);
+                AppLog.d(TAG, "Camera " + source.cameraId + " frame source unregistered, total " + sources.size());
+                return;
+            }
+        }
+    }
+
+    // ===== 供 EglSurfaceEncoder 使用（均在渲染线程上调用）=====
+
+    EGLDisplay getEglDisplay() {
+        return eglDisplay;
+    }
+
+    EGLContext getEglContext() {
+        return eglContext;
+    }
+
+    EGLConfig getEglConfig() {
+        return eglConfig;
+    }
+
+    FloatBuffer getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    FloatBuffer getTexCoordBuffer() {
+        return texCoordBuffer;
+    }
+
+    /**
+     * 获取共享着色器程序（相同源码只编译一次）
+     * @return 程序 ID，失败返回 0
+     */
+    int getProgram(String vertexSource, String fragmentSource) {
+        String key = vertexSource + fragmentSource;
+        Integer cached = programCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int program = EglSurfaceEncoder.createProgram(vertexSource, fragmentSource);
+        if (program != 0) {
+            programCache.put(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * 将指定 Surface 设为当前绘制目标（已是当前 Surface 时不调用 eglMakeCurrent）
+     * @return true 表示实际发生了切换
+     */
+    boolean makeCurrent(EGLSurface surface) {
+        if (surface == currentSurface) {
+            return false;
+        }
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+        currentSurface = surface;
+        makeCurrentCount++;
+        return true;
+    }
+
+    /**
+     * 确保共享 Context 处于当前状态（任意 Surface 即可，用于只消费帧、创建或删除纹理）
+     */
+    void ensureContextCurrent() {
+        if (currentSurface == EGL14.EGL_NO_SURFACE) {
+            makeCurrent(pbufferSurface);
+        }
+    }
+
+    /**
+     * 销毁编码器的窗口 Surface；若它是当前 Surface，先切回 pbuffer
+     */
+    void destroySurface(EGLSurface surface) {
+        if (surface == EGL14.EGL_NO_SURFACE) {
+            return;
+        }
+        if (surface == currentSurface) {
+            makeCurrent(pbufferSurface);
+        }
+        EGL14.eglDestroySurface(eglDisplay, surface);
+    }
+
+    /**
+     * 累计的 eglMakeCurrent 次数
+     */
+    public long getMakeCurrentCount() {
+        return makeCurrentCount;
+    }
+
+    /**
+     * 释放引擎（所有录制器释放后调用）
+     */
+    public synchronized void release() {
+        if (renderThread == null) {
+            return;
+        }
+        running = false;
+        runSync(() -> {
+            for (FrameSource source : sources) {
+                source.surfaceTexture.setOnFrameAvailableListener(null);
+            }
+            sources.clear();
+            sourceSnapshot = new FrameSource[0];
+            renderHandler.removeCallbacks(renderPass);
+            releaseEgl();
+        }, INIT_TIMEOUT_MS);
+        quitThread();
+        AppLog.d(TAG, "Shared EGL render engine released, eglMakeCurrent total: " + makeCurrentCount);
+    }
+
+    // ===== 私有方法 =====
+
+    /**
+     * 一次渲染调度：从轮转起点开始，依次处理所有有新帧的摄像头
+     */
+    private void runRenderPass() {
+        renderPassScheduled = false;
+        FrameSource[] snapshot = sourceSnapshot;
+        int count = snapshot.length;
+        if (count == 0) {
+            return;
+        }
+        int start = nextSourceIndex % count;
+        nextSourceIndex = start + 1;
+        for (int i = 0; i < count; i++) {
+            FrameSource source = snapshot[(start + i) % count];
+            if (!source.pending) {
+                continue;
+            }
+            source.pending = false;
+            try {
+                source.frameTask.run();
+            } catch (Exception e) {
+                AppLog.e(TAG, "Camera " + source.cameraId + " frame task failed", e);
+            }
+        }
+    }
+
+    private void initEgl() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("Unable to get EGL14 display");
+        }
+
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("Unable to initialize EGL14");
+        }
+
+        // 与 EglSurfaceEncoder 相同的配置（支持录制）
+        int[] attribList = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT | EGL14.EGL_WINDOW_BIT,
+                EGLExt.EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, attribList, 0, configs, 0, 1, numConfigs, 0)) {
+            throw new RuntimeException("Unable to find suitable EGL config");
+        }
+        eglConfig = configs[0];
+
+        int[] contextAttribList = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, contextAttribList, 0);
+        if (eglContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("Unable to create EGL context");
+        }
+
+        int[] pbufferAttribList = {
+                EGL14.EGL_WIDTH, 1,
+                EGL14.EGL_HEIGHT, 1,
+                EGL14.EGL_NONE
+        };
+        pbufferSurface = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig, pbufferAttribList, 0);
+        if (pbufferSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Unable to create EGL pbuffer surface");
+        }
+        makeCurrent(pbufferSurface);
+
+        AppLog.d(TAG, "Shared EGL initialized: " + version[0] + "." + version[1]);
+    }
+
+    private void releaseEgl() {
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        if (eglContext != EGL14.EGL_NO_CONTEXT && pbufferSurface != EGL14.EGL_NO_SURFACE) {
+            try {
+                makeCurrent(pbufferSurface);
+                for (int program : programCache.values()) {
+                    GLES20.glDeleteProgram(program);
+                }
+            } catch (Exception e) {
+                AppLog.w(TAG, "Error deleting shared programs: " + e.getMessage());
+            }
+        }
+        programCache.clear();
+
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        currentSurface = EGL14.EGL_NO_SURFACE;
+        if (pbufferSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(eglDisplay, pbufferSurface);
+            pbufferSurface = EGL14.EGL_NO_SURFACE;
+        }
+        if (eglContext != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            eglContext = EGL14.EGL_NO_CONTEXT;
+        }
+        EGL14.eglTerminate(eglDisplay);
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+    }
+
+    private void quitThread() {
+        if (renderThread != null) {
+            renderThread.quitSafely();
+            try {
+                renderThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            renderThread = null;
+            renderHandler = null;
+        }
+    }
+}
@@ -3,19 +3,17 @@ package com.kooo.evcam.camera;
 
 import com.kooo.evcam.AppConfig;
 import com.kooo.evcam.AppLog;
+import com.kooo.evcam.MediaIndex;
 import com.kooo.evcam.StorageHelper;
 import android.content.Context;
-import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.util.Range;
 import android.media.Image;
 import android.media.ImageReader;
@@ -69,13 +67,17 @@ public class SingleCamera {
     private Surface previewSurface;  // 预览Surface（缓存以避免重复创建）
     private ImageReader imageReader;  // 用于拍照的ImageReader
     private boolean singleOutputMode = false;  // 单一输出模式（用于不支持多路输出的车机平台）
+    private volatile boolean previewSuspended = false;  // 过热降级：录制期间暂停预览输出（只保留录制 Surface）
+    private volatile boolean headless = false;  // 息屏无头模式：录制期间只输出到录制 Surface
+    private volatile boolean deferredPreviewPending = false;  // 当前会话带有未绑定的延迟预览流（亮屏时 finalize）
+    private boolean deferredPreviewUnsupported = false;  // HAL 不支持延迟预览流，之后无头模式不再预留
     
     // 鱼眼矫正
     private FisheyeCorrector fisheyeCorrector;
     
     // 亮度/降噪调节相关
     private CaptureRequest.Builder currentRequestBuilder;  // 当前的请求构建器（用于实时更新参数）
-    private CameraCharacteristics cameraCharacteristics;  // 摄像头特性（缓存）
+    private volatile CameraCapabilityCache.Capabilities capabilities;  // 摄像头能力（缓存）
     private boolean imageAdjustEnabled = false;  // 是否启用亮度/降噪调节
     
     // 当前相机实际使用的参数（从 CaptureResult 读取）
@@ -116,6 +118,10 @@ public class SingleCamera {
     private volatile boolean isOpening = false;  // 是否正在打开中（防止并行触发时重复调用 openCamera）
     private volatile boolean deferSessionCreation = false;  // 延迟 Session 创建（与 Surface 并行打开相机时使用）
     private final Object reconnectLock = new Object();  // 重连锁
+    private volatile int openGeneration = 0;  // 每次 closeCamera 加一，关闭前排队或进行中的打开据此作废（写入受 reconnectLock 保护）
+    private int halOpenGeneration = -1;  // 最近一次向 HAL 发起打开时的 openGeneration（reconnectLock 保护）
+    private volatile ReconnectCoordinator reconnectCoordinator;  // 多路摄像头共用的重连协调器（为空时各自独立重连）
+    private volatile boolean recoveryPending = false;  // 丢失后等待恢复出帧（用于统计恢复耗时）
     private boolean isPrimaryInstance = true;  // 是否是主实例（用于多实例共享同一个cameraId时，只有主实例负责重连）
     private boolean isConfiguring = false; // 新增：标记是否正在配置中
     private boolean isPendingReconfiguration = false; // 新增：标记是否有待处理的配置请求
@@ -183,6 +189,13 @@ public class SingleCamera {
         }
     }
 
+    /**
+     * 设置重连协调器（重连、卡顿恢复等 HAL 操作统一排队，限制并发并错开执行）
+     */
+    public void setReconnectCoordinator(ReconnectCoordinator coordinator) {
+        this.reconnectCoordinator = coordinator;
+    }
+
     /**
      * 设置是否为主实例（用于多实例共享同一个cameraId时）
      * 只有主实例负责打开摄像头和重连，从属实例只负责显示
@@ -327,6 +340,105 @@ public class SingleCamera {
         return singleOutputMode;
     }
 
+    /**
+     * 进入/退出息屏无头模式
+     * 进入时重建会话，只输出到录制 Surface（MediaRecorder Surface 或 Codec 的 SurfaceTexture），
+     * 同时预留一个延迟绑定的共享预览流（不产生帧）；
+     * 退出时优先把预览、悬浮窗、副屏 Surface 绑定到预留流上（finalizeOutputConfigurations，不关闭会话），
+     * HAL 不支持时回退为重建会话。未录制时预览本身就是唯一输出，不受影响
+     */
+    public void setHeadless(boolean enabled) {
+        if (headless == enabled) {
+            return;
+        }
+        headless = enabled;
+        AppLog.d(TAG, "Camera " + cameraId + " headless mode " + (enabled ? "entered" : "exited"));
+        if (recordSurface == null || cameraDevice == null) {
+            return;
+        }
+        if (enabled) {
+            recreateSession();
+        } else if (backgroundHandler != null && deferredPreviewPending) {
+            backgroundHandler.removeCallbacks(recreateSessionRunnable);
+            backgroundHandler.post(() -> {
+                if (!tryFinalizeDeferredPreview()) {
+                    AppLog.d(TAG, "Camera " + cameraId + " deferred preview finalize failed, rebuilding session");
+                    createCameraPreviewSession();
+                }
+            });
+        } else {
+            recreateSession(true);
+        }
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * 把预览 Surface 绑定到无头会话预留的延迟预览流（在摄像头线程执行）
+     */
+    private boolean tryFinalizeDeferredPreview() {
+        synchronized (sessionLock) {
+            if (isConfiguring || isSessionClosing) return false;
+        }
+        OutputConfiguration deferredConfig = activePreviewConfig;
+        if (!deferredPreviewPending || captureSession == null || deferredConfig == null || currentRequestBuilder == null) {
+            return false;
+        }
+        java.util.List<Surface> targets = new java.util.ArrayList<>();
+        if (previewSurface != null && previewSurface.isValid()) {
+            targets.add(previewSurface);
+        }
+        // 鱼眼模式下悬浮窗/副屏由 GL 管线输出，不直接挂到 Camera2
+        boolean fisheyeActive = (fisheyeCorrector != null && fisheyeCorrector.isInitialized());
+        if (!fisheyeActive) {
+            if (mainFloatingSurface != null && mainFloatingSurface.isValid() && !targets.contains(mainFloatingSurface)) {
+                targets.add(mainFloatingSurface);
+            }
+            if (secondaryDisplaySurface != null && secondaryDisplaySurface.isValid() && !targets.contains(secondaryDisplaySurface)) {
+                targets.add(secondaryDisplaySurface);
+            }
+        }
+        if (targets.isEmpty()) {
+            return false;
+        }
+        try {
+            for (Surface target : targets) {
+                deferredConfig.addSurface(target);
+            }
+            captureSession.finalizeOutputConfigurations(java.util.Collections.singletonList(deferredConfig));
+            for (Surface target : targets) {
+                currentRequestBuilder.addTarget(target);
+            }
+            captureSession.setRepeatingRequest(currentRequestBuilder.build(), activeCaptureCallback, backgroundHandler);
+            deferredPreviewPending = false;
+            AppLog.d(TAG, "Camera " + cameraId + " preview restored via deferred output (" + targets.size() + " surface(s))");
+            return true;
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " deferred preview finalize failed: " + e.getMessage());
+            for (Surface target : targets) {
+                try { currentRequestBuilder.removeTarget(target); } catch (Exception ignored) {}
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 暂停/恢复录制期间的预览输出（过热降级用），变化时重建会话
+     * 暂停时与单一输出模式相同，只输出到录制 Surface，预览、悬浮窗、副屏画面冻结；未录制时不受影响
+     */
+    public void setPreviewSuspended(boolean suspended) {
+        if (previewSuspended == suspended) {
+            return;
+        }
+        previewSuspended = suspended;
+        AppLog.d(TAG, "Camera " + cameraId + " preview " + (suspended ? "suspended" : "resumed"));
+        if (recordSurface != null) {
+            recreateSession();
+        }
+    }
+
     // 当前录制模式（用于调试模式区分）
     private boolean isCodecRecording = false;
 
@@ -685,14 +797,15 @@ public class SingleCamera {
             if (isStalled) {
                 if (now - lastStallRecoveryMs >= MIN_RECOVERY_INTERVAL_MS) {
                     lastStallRecoveryMs = now;
+                    markCameraLost();
                     if (stallRecoveryLevel == 0) {
                         stallRecoveryLevel = 1;
                         AppLog.w(TAG, "Camera " + cameraId + " stalled (" + (now - last) + "ms), recreating session");
-                        recreateSession();
+                        runHalOperation("stall recreate session", 0, this::recreateSession);
                     } else {
                         stallRecoveryLevel++;
                         AppLog.w(TAG, "Camera " + cameraId + " stalled (" + (now - last) + "ms), force reopening (level " + stallRecoveryLevel + ")");
-                        forceReopen();
+                        runHalOperation("stall force reopen", 0, this::forceReopen);
                     }
                 }
             } else {
@@ -725,10 +838,36 @@ public class SingleCamera {
         return currentFps;
     }
 
+    /**
+     * 在该摄像头自己的后台线程上打开（并行打开多路摄像头时使用）
+     * 查询特性、选择分辨率和打开过程中的回调都在摄像头线程上执行；排队期间调用 closeCamera 则不再打开
+     */
+    public void openCameraAsync() {
+        if (!isPrimaryInstance) {
+            openCamera();  // 只打印跳过日志
+            return;
+        }
+        synchronized (reconnectLock) {
+            if (backgroundHandler == null) {
+                startBackgroundThread();
+            }
+            final int generation = openGeneration;
+            backgroundHandler.post(() -> openCamera(generation));
+        }
+    }
+
     /**
      * 打开摄像头
      */
     public void openCamera() {
+        openCamera(openGeneration);
+    }
+
+    /**
+     * 打开摄像头
+     * @param generation 发起打开时的 openGeneration，与当前值不同说明之后已被关闭
+     */
+    private void openCamera(int generation) {
         // 如果不是主实例，不执行打开操作
         if (!isPrimaryInstance) {
             AppLog.d(TAG, "Camera " + cameraId + " (" + cameraPosition + ") is SECONDARY instance, skipping openCamera");
@@ -741,14 +880,26 @@ public class SingleCamera {
             return;
         }
 
-        // 正在打开中，不重复触发
-        if (isOpening) {
-            AppLog.d(TAG, "Camera " + cameraId + " already opening, skipping duplicate openCamera");
+        // 先不加锁检查一次：closeCamera 持锁等待摄像头线程退出时，排队的打开不去抢锁
+        if (generation != openGeneration) {
+            AppLog.d(TAG, "Camera " + cameraId + " closed before queued open ran, skipping openCamera");
             return;
         }
-        isOpening = true;
-        
+
         synchronized (reconnectLock) {
+            // 在锁内再检查一次，与 closeCamera 互斥：关闭之后不再开始打开
+            if (generation != openGeneration) {
+                AppLog.d(TAG, "Camera " + cameraId + " closed before queued open ran, skipping openCamera");
+                return;
+            }
+
+            // 正在打开中，不重复触发
+            if (isOpening) {
+                AppLog.d(TAG, "Camera " + cameraId + " already opening, skipping duplicate openCamera");
+                return;
+            }
+            isOpening = true;
+
             // 安全措施：清理可能残留的录制 Surface 引用（防止 Surface abandoned 错误）
             // 放在同步块内，避免与 setRecordSurface() 的竞态条件
             if (recordSurface != null) {
@@ -766,10 +917,12 @@ public class SingleCamera {
             AppLog.d(TAG, "openCamera: Starting for camera " + cameraId + " (PRIMARY instance)");
             shouldReconnect = true;  // 启用自动重连
             reconnectAttempts = 0;  // 重置重连计数
+            if (backgroundHandler == null) {
+                startBackgroundThread();  // 在锁内启动，closeCamera 一定能看到并停止它
+            }
         }
         
         try {
-            startBackgroundThread();
 
             // 验证摄像头ID是否存在
             String[] availableCameraIds = cameraManager.getCameraIdList();
@@ -791,12 +944,10 @@ public class SingleCamera {
                 return;
             }
 
-            // 获取摄像头特性（验证摄像头是否真正可用）
-            CameraCharacteristics characteristics;
-            try {
-                characteristics = cameraManager.getCameraCharacteristics(cameraId);
-            } catch (Exception e) {
-                AppLog.e(TAG, "Camera " + cameraId + " failed to get characteristics - camera may be virtual/invalid", e);
+            // 获取摄像头能力（验证摄像头是否真正可用，优先使用持久化缓存，不访问 HAL）
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities == null) {
+                AppLog.e(TAG, "Camera " + cameraId + " failed to get characteristics - camera may be virtual/invalid");
                 if (callback != null) {
                     callback.onCameraError(cameraId, CameraDevice.StateCallback.ERROR_CAMERA_DEVICE);
                 }
@@ -807,48 +958,13 @@ public class SingleCamera {
                 return;
             }
             
-            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map != null) {
-                // 优先使用 SurfaceTexture 的输出尺寸
-                Size[] sizes = map.getOutputSizes(ImageFormat.PRIVATE);
-                if (sizes == null || sizes.length == 0) {
-                    sizes = map.getOutputSizes(SurfaceTexture.class);
-                    if (sizes != null && sizes.length > 0) {
-                        AppLog.w(TAG, "Camera " + cameraId + " no PRIVATE sizes, fallback to SurfaceTexture sizes");
-                    }
-                }
-                if (sizes == null || sizes.length == 0) {
-                    AppLog.e(TAG, "Camera " + cameraId + " has no output sizes for PRIVATE/SurfaceTexture - camera may be virtual/invalid");
-                    if (callback != null) {
-                        callback.onCameraError(cameraId, CameraDevice.StateCallback.ERROR_CAMERA_DEVICE);
-                    }
-                    synchronized (reconnectLock) {
-                        shouldReconnect = false;  // 无效摄像头不应重连
-                    }
-                    isOpening = false;
-                    return;
-                }
-
-                // 打印所有可用分辨率
-                AppLog.d(TAG, "Camera " + cameraId + " available sizes:");
-                for (int i = 0; i < Math.min(sizes.length, 10); i++) {
-                    AppLog.d(TAG, "  [" + i + "] " + sizes[i].getWidth() + "x" + sizes[i].getHeight());
-                }
-
-                // 选择合适的分辨率
-                previewSize = chooseOptimalSize(sizes);
-                AppLog.d(TAG, "Camera " + cameraId + " selected preview size: " + previewSize);
-
-                // 不在这里初始化ImageReader，改为拍照时按需创建
-                // 这样可以避免占用额外的缓冲区，防止超过系统限制(4个buffer)
-                AppLog.d(TAG, "Camera " + cameraId + " ImageReader will be created on demand when taking picture");
-
-                // 通知回调预览尺寸已确定
-                if (callback != null && previewSize != null) {
-                    callback.onPreviewSizeChosen(cameraId, previewSize);
-                }
-            } else {
-                AppLog.e(TAG, "Camera " + cameraId + " StreamConfigurationMap is null - camera may be virtual/invalid!");
+            // 优先使用 PRIVATE 的输出尺寸
+            Size[] sizes = capabilities.outputSizes;
+            if (capabilities.surfaceTextureSizes && sizes.length > 0) {
+                AppLog.w(TAG, "Camera " + cameraId + " no PRIVATE sizes, fallback to SurfaceTexture sizes");
+            }
+            if (sizes.length == 0) {
+                AppLog.e(TAG, "Camera " + cameraId + " has no output sizes for PRIVATE/SurfaceTexture - camera may be virtual/invalid");
                 if (callback != null) {
                     callback.onCameraError(cameraId, CameraDevice.StateCallback.ERROR_CAMERA_DEVICE);
                 }
@@ -859,6 +975,25 @@ public class SingleCamera {
                 return;
             }
 
+            // 打印所有可用分辨率
+            AppLog.d(TAG, "Camera " + cameraId + " available sizes:");
+            for (int i = 0; i < Math.min(sizes.length, 10); i++) {
+                AppLog.d(TAG, "  [" + i + "] " + sizes[i].getWidth() + "x" + sizes[i].getHeight());
+            }
+
+            // 选择合适的分辨率
+            previewSize = chooseOptimalSize(sizes);
+            AppLog.d(TAG, "Camera " + cameraId + " selected preview size: " + previewSize);
+
+            // 不在这里初始化ImageReader，改为拍照时按需创建
+            // 这样可以避免占用额外的缓冲区，防止超过系统限制(4个buffer)
+            AppLog.d(TAG, "Camera " + cameraId + " ImageReader will be created on demand when taking picture");
+
+            // 通知回调预览尺寸已确定
+            if (callback != null && previewSize != null) {
+                callback.onPreviewSizeChosen(cameraId, previewSize);
+            }
+
             boolean textureAvailable = textureView != null && textureView.isAvailable();
             AppLog.d(TAG, "Camera " + cameraId + " TextureView available: " + textureAvailable);
             if (textureView != null && textureView.getSurfaceTexture() != null) {
@@ -866,8 +1001,16 @@ public class SingleCamera {
             }
 
             // 打开摄像头
-            AppLog.d(TAG, "Camera " + cameraId + " calling openCamera...");
-            cameraManager.openCamera(cameraId, stateCallback, backgroundHandler);
+            synchronized (reconnectLock) {
+                // 查询特性期间可能已被 closeCamera 关闭（closeCamera 已清除 isOpening 并停止摄像头线程）
+                if (generation != openGeneration) {
+                    AppLog.d(TAG, "Camera " + cameraId + " closed while opening, skipping openCamera");
+                    return;
+                }
+                AppLog.d(TAG, "Camera " + cameraId + " calling openCamera...");
+                halOpenGeneration = generation;
+                cameraManager.openCamera(cameraId, stateCallback, backgroundHandler);
+            }
 
         } catch (CameraAccessException e) {
             isOpening = false;
@@ -946,7 +1089,11 @@ public class SingleCamera {
 
             reconnectAttempts++;
             isReconnecting = true;
-            long delayMs = Math.max(getReconnectDelayMs(reconnectAttempts), reconnectDelayFloorMs);
+            markCameraLost();
+            ReconnectCoordinator coordinator = reconnectCoordinator;
+            long delayMs = coordinator != null
+                    ? coordinator.getBackoffDelayMs(reconnectAttempts, reconnectDelayFloorMs)
+                    : Math.max(getReconnectDelayMs(reconnectAttempts), reconnectDelayFloorMs);
             AppLog.d(TAG, "Camera " + cameraId + " scheduling reconnect attempt " + reconnectAttempts + " in " + delayMs + "ms");
 
             // 取消之前的重连任务
@@ -980,12 +1127,16 @@ public class SingleCamera {
                         Handler handler = backgroundHandler;
                         if (handler == null) {
                             isReconnecting = false;
+                            finishHalOperation();
                             return;
                         }
                         handler.postDelayed(() -> {
                             synchronized (reconnectLock) {
+                                boolean openRequested = false;
                                 try {
+                                    halOpenGeneration = openGeneration;
                                     cameraManager.openCamera(cameraId, stateCallback, handler);
+                                    openRequested = true;
                                 } catch (CameraAccessException e) {
                                     AppLog.e(TAG, "Failed to reconnect camera " + cameraId + ": " + e.getMessage());
                                     isReconnecting = false;
@@ -1007,6 +1158,9 @@ public class SingleCamera {
                                         scheduleReconnect();
                                     }
                                 }
+                                if (!openRequested) {
+                                    finishHalOperation();
+                                }
                             }
                         }, 150);
                         
@@ -1018,11 +1172,20 @@ public class SingleCamera {
                 }
             };
 
-            // 延迟执行重连
-            if (backgroundHandler != null) {
-                backgroundHandler.postDelayed(reconnectRunnable, delayMs);
-            } else {
+            // 延迟执行重连（有协调器时由协调器排队，到期且有空闲名额时再投递到摄像头线程）
+            if (backgroundHandler == null) {
                 isReconnecting = false;
+            } else if (coordinator != null) {
+                final Runnable task = reconnectRunnable;
+                coordinator.schedule(cameraId, "reconnect attempt " + reconnectAttempts, delayMs, backgroundHandler, () -> {
+                    if (reconnectRunnable == task) {
+                        task.run();
+                    } else {
+                        finishHalOperation();
+                    }
+                });
+            } else {
+                backgroundHandler.postDelayed(reconnectRunnable, delayMs);
             }
         }
     }
@@ -1037,6 +1200,47 @@ public class SingleCamera {
         return Math.max(500, result);
     }
 
+    /**
+     * 执行 HAL 操作：有协调器时排队后在摄像头线程执行，否则立即执行
+     */
+    private void runHalOperation(String reason, long delayMs, Runnable operation) {
+        ReconnectCoordinator coordinator = reconnectCoordinator;
+        if (coordinator != null) {
+            coordinator.schedule(cameraId, reason, delayMs, backgroundHandler, operation);
+        } else {
+            operation.run();
+        }
+    }
+
+    /**
+     * 请求强制重开摄像头：有协调器时排队、错开后在摄像头线程执行
+     * @param reason 日志中的操作说明
+     */
+    public void requestForceReopen(String reason) {
+        if (isPrimaryInstance && backgroundHandler == null) {
+            startBackgroundThread();  // 摄像头线程已停止（如关闭后重新回到前台），先启动再排队
+        }
+        runHalOperation(reason, 0, this::forceReopen);
+    }
+
+    /**
+     * HAL 操作结束（会话配置完成/失败、设备出错/断开），释放协调器名额
+     */
+    private void finishHalOperation() {
+        ReconnectCoordinator coordinator = reconnectCoordinator;
+        if (coordinator != null) {
+            coordinator.onOperationFinished(cameraId);
+        }
+    }
+
+    private void markCameraLost() {
+        recoveryPending = true;
+        ReconnectCoordinator coordinator = reconnectCoordinator;
+        if (coordinator != null) {
+            coordinator.onCameraLost(cameraId);
+        }
+    }
+
     /**
      * 摄像头状态回调
      */
@@ -1045,6 +1249,16 @@ public class SingleCamera {
         public void onOpened(@NonNull CameraDevice camera) {
             isOpening = false;
             synchronized (reconnectLock) {
+                if (halOpenGeneration != openGeneration) {
+                    // HAL 打开期间已调用 closeCamera：不再使用这个设备
+                    AppLog.w(TAG, "Camera " + cameraId + " opened after close, closing it");
+                    try {
+                        camera.close();
+                    } catch (Exception e) {
+                        AppLog.d(TAG, "Camera " + cameraId + " ignored exception while closing late device: " + e.getMessage());
+                    }
+                    return;
+                }
                 cameraDevice = camera;
                 reconnectAttempts = 0;  // 重置重连计数
                 isReconnecting = false;  // 重连成功，清除重连标志
@@ -1065,6 +1279,7 @@ public class SingleCamera {
                 } else {
                     // 相机先于 Surface 打开，等 Surface 到达后由调用方触发 Session 创建
                     AppLog.d(TAG, "Camera " + cameraId + " opened (deferred), waiting for surface");
+                    finishHalOperation();  // 会话创建取决于 Surface 何时到达，不再占用协调器名额
                 }
             } else {
                 createCameraPreviewSession();
@@ -1082,6 +1297,7 @@ public class SingleCamera {
                     AppLog.d(TAG, "Camera " + cameraId + " ignored exception while closing on disconnect: " + e.getMessage());
                 }
                 cameraDevice = null;
+                finishHalOperation();
                 AppLog.w(TAG, "Camera " + cameraId + " DISCONNECTED - will attempt to reconnect...");
                 if (callback != null) {
                     callback.onCameraError(cameraId, -4); // 自定义错误码：断开连接
@@ -1112,6 +1328,7 @@ public class SingleCamera {
                     AppLog.d(TAG, "Camera " + cameraId + " ignored exception while closing on error: " + e.getMessage());
                 }
                 cameraDevice = null;
+                finishHalOperation();
                 String errorMsg = "UNKNOWN";
                 boolean shouldRetry = false;
                 boolean shouldStopReconnect = false;
@@ -1340,11 +1557,21 @@ public class SingleCamera {
             java.util.List<OutputConfiguration> outputConfigs = new java.util.ArrayList<>();
 
             // 单一输出模式处理（用于 L6/L7 等不支持多路输出的车机平台）
-            if (singleOutputMode && recordSurface != null && recordSurface.isValid()) {
+            deferredPreviewPending = false;
+            if ((singleOutputMode || previewSuspended || headless) && recordSurface != null && recordSurface.isValid()) {
                 AppLog.d(TAG, "Camera " + cameraId + " SINGLE OUTPUT MODE: Using ONLY record surface");
                 surfaces.add(recordSurface);
                 previewRequestBuilder.addTarget(recordSurface);
                 outputConfigs.add(new OutputConfiguration(recordSurface));
+                activePreviewConfig = null;
+                if (headless && !singleOutputMode && !previewSuspended && !deferredPreviewUnsupported && previewSize != null) {
+                    // 无头模式：预留延迟绑定的共享预览流（没有 Surface 时不产生帧），亮屏时直接绑定，无需重建会话
+                    OutputConfiguration deferredConfig = new OutputConfiguration(previewSize, SurfaceTexture.class);
+                    deferredConfig.enableSurfaceSharing();
+                    outputConfigs.add(deferredConfig);
+                    activePreviewConfig = deferredConfig;
+                    deferredPreviewPending = true;
+                }
             } else {
                 // 正常模式：使用 OutputConfiguration 实现 Surface Sharing (API 28+)
                 // 将所有预览性质的 Surface (主预览、主悬浮、副悬浮) 组合成一个硬件流
@@ -1466,6 +1693,7 @@ public class SingleCamera {
                 public void onConfigured(@NonNull CameraCaptureSession session) {
                     AppLog.d(TAG, "Camera " + cameraId + " Session configured!");
                     configFailRetryCount = 0; // 成功，重置重试计数
+                    finishHalOperation();
                     
                     boolean pending;
                     synchronized (sessionLock) {
@@ -1514,6 +1742,7 @@ public class SingleCamera {
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                     AppLog.e(TAG, "Failed to configure camera " + cameraId + " session!");
+                    finishHalOperation();
                     // 关闭失败的 session，释放 Surface 绑定（否则重试会遇到 "Surface already has a stream"）
                     try {
                         session.close();
@@ -1530,6 +1759,15 @@ public class SingleCamera {
                         createCameraPreviewSession();
                         return;
                     }
+
+                    if (deferredPreviewPending) {
+                        // HAL 不支持延迟预览流：去掉后重试，亮屏时改为重建会话
+                        AppLog.w(TAG, "Camera " + cameraId + " deferred preview output not supported, retrying without it");
+                        deferredPreviewPending = false;
+                        deferredPreviewUnsupported = true;
+                        createCameraPreviewSession();
+                        return;
+                    }
                     
                     // 重试逻辑
                     boolean fisheyeActive = (fisheyeCorrector != null && fisheyeCorrector.isInitialized());
@@ -1699,6 +1937,13 @@ public class SingleCamera {
             frameCount++;
             long now = System.currentTimeMillis();
             lastFrameTimestampMs = now;
+            if (recoveryPending) {
+                recoveryPending = false;
+                ReconnectCoordinator coordinator = reconnectCoordinator;
+                if (coordinator != null) {
+                    coordinator.onCameraRecovered(cameraId);
+                }
+            }
             if (!hasReadActualParams || frameCount == 1) {
                 readActualParamsFromResult(result);
                 hasReadActualParams = true;
@@ -1856,6 +2101,8 @@ public class SingleCamera {
         if (captureSession == null || activePreviewConfig == null || currentRequestBuilder == null) {
             return false;
         }
+        // 无头会话的延迟预览流尚未绑定：新 Surface 在退出无头模式时一并绑定
+        if (deferredPreviewPending) return false;
         if (surface == null || !surface.isValid()) return false;
 
         try {
@@ -2091,7 +2338,7 @@ public class SingleCamera {
 
         // 使用传入的时间戳命名：yyyyMMdd_HHmmss_摄像头位置.jpg
         String position = (cameraPosition != null) ? cameraPosition : cameraId;
-        File photoFile = new File(photoDir, timestamp + "_" + position + ".jpg");
+        File photoFile = StorageHelper.resolveMediaFile(context, photoDir, timestamp + "_" + position + ".jpg");
 
         // 检查是否需要添加时间角标
         android.graphics.Bitmap finalBitmap = bitmap;
@@ -2131,6 +2378,7 @@ public class SingleCamera {
                 finalBitmap.recycle();
             }
         }
+        MediaIndex.getInstance(context).onFileAdded(photoFile);
     }
 
     /**
@@ -2146,15 +2394,11 @@ public class SingleCamera {
             android.graphics.Canvas canvas = new android.graphics.Canvas(mutableBitmap);
 
             // 将时间戳转换为可读格式：yyyyMMdd_HHmmss -> yyyy-MM-dd HH:mm:ss
-            String displayTime;
-            try {
-                java.text.SimpleDateFormat inputFormat = new java.text.SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
-                java.text.SimpleDateFormat outputFormat = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-                java.util.Date date = inputFormat.parse(timestamp);
-                displayTime = outputFormat.format(date);
-            } catch (Exception e) {
+            char[] displayTime = new char[TimestampGlyphAtlas.TIMESTAMP_LENGTH];
+            if (!TimestampGlyphAtlas.formatFileTimestamp(timestamp, displayTime)) {
                 // 解析失败，使用当前时间
-                displayTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new java.util.Date());
+                long now = System.currentTimeMillis();
+                TimestampGlyphAtlas.formatTimestamp(now + java.util.TimeZone.getDefault().getOffset(now), displayTime);
             }
 
             // 根据图片宽度动态计算字体大小（约为图片宽度的3%）
@@ -2162,30 +2406,13 @@ public class SingleCamera {
             if (textSize < 16) textSize = 16;  // 最小16像素
             if (textSize > 48) textSize = 48;  // 最大48像素
 
-            // 设置画笔 - 阴影效果
-            android.graphics.Paint shadowPaint = new android.graphics.Paint();
-            shadowPaint.setColor(android.graphics.Color.BLACK);
-            shadowPaint.setTextSize(textSize);
-            shadowPaint.setAntiAlias(true);
-            shadowPaint.setTypeface(android.graphics.Typeface.MONOSPACE);
-
-            // 设置画笔 - 主文字
-            android.graphics.Paint textPaint = new android.graphics.Paint();
-            textPaint.setColor(android.graphics.Color.WHITE);
-            textPaint.setTextSize(textSize);
-            textPaint.setAntiAlias(true);
-            textPaint.setTypeface(android.graphics.Typeface.MONOSPACE);
+            // 使用与录制水印相同的字形图集（按字号缓存，只光栅化一次）
+            TimestampGlyphAtlas atlas = TimestampGlyphAtlas.obtain(Math.round(textSize));
 
             // 计算位置（左上角，留一定边距）
-            float x = textSize * 0.5f;
-            float y = textSize * 1.2f;
-
-            // 绘制阴影（偏移2像素）
-            canvas.drawText(displayTime, x + 2, y + 2, shadowPaint);
-            // 绘制主文字
-            canvas.drawText(displayTime, x, y, textPaint);
+            atlas.drawText(canvas, displayTime, displayTime.length, textSize * 0.5f, textSize * 0.2f);
 
-            AppLog.d(TAG, "Camera " + cameraId + " added timestamp watermark: " + displayTime);
+            AppLog.d(TAG, "Camera " + cameraId + " added timestamp watermark: " + new String(displayTime));
             return mutableBitmap;
 
         } catch (Exception e) {
@@ -2205,12 +2432,18 @@ public class SingleCamera {
         }
         
         synchronized (reconnectLock) {
+            openGeneration++;  // 排队中或进行中的打开作废
             shouldReconnect = false;  // 禁用自动重连
             reconnectAttempts = 0;  // 重置重连计数
             isReconnecting = false;  // 清除重连状态
             isOpening = false;  // 清除打开中状态
             deferSessionCreation = false;  // 清除延迟标志
             stopHealthMonitor();
+            recoveryPending = false;
+            ReconnectCoordinator coordinator = reconnectCoordinator;
+            if (coordinator != null) {
+                coordinator.forget(cameraId);  // 主动关闭：取消排队的操作，不计入恢复耗时
+            }
 
             // 取消待处理的重连任务
             if (reconnectRunnable != null && backgroundHandler != null) {
@@ -2447,11 +2680,13 @@ public class SingleCamera {
     /**
      * 强制重新打开摄像头（用于从后台返回前台时）
      * 即使摄像头当前是连接状态，也会重新打开
+     * 会同步关闭会话和设备，经协调器调用时在摄像头线程执行（见 requestForceReopen）
      */
     public void forceReopen() {
         // 如果不是主实例，不执行重开操作
         if (!isPrimaryInstance) {
             AppLog.d(TAG, "Camera " + cameraId + " (" + cameraPosition + ") is SECONDARY instance, skipping forceReopen");
+            finishHalOperation();
             return;
         }
         
@@ -2463,6 +2698,10 @@ public class SingleCamera {
                 backgroundHandler.removeCallbacks(reconnectRunnable);
                 reconnectRunnable = null;
             }
+            ReconnectCoordinator coordinator = reconnectCoordinator;
+            if (coordinator != null) {
+                coordinator.cancelPending(cameraId);
+            }
             
             // 重置状态
             reconnectAttempts = 0;
@@ -2494,15 +2733,18 @@ public class SingleCamera {
                 backgroundHandler.postDelayed(() -> {
                     synchronized (reconnectLock) {
                         try {
+                            halOpenGeneration = openGeneration;
                             cameraManager.openCamera(cameraId, stateCallback, backgroundHandler);
                             AppLog.d(TAG, "Camera " + cameraId + " force reopen initiated");
                         } catch (CameraAccessException e) {
                             AppLog.e(TAG, "Failed to force reopen camera " + cameraId, e);
+                            finishHalOperation();
                             if (shouldReconnect) {
                                 scheduleReconnect();
                             }
                         } catch (SecurityException e) {
                             AppLog.e(TAG, "No camera permission during force reopen", e);
+                            finishHalOperation();
                         }
                     }
                 }, 300);  // 延迟300ms，给系统时间释放资源
@@ -2616,9 +2858,9 @@ public class SingleCamera {
      */
     public Range<Integer> getExposureCompensationRange() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.exposureRange;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get exposure compensation range", e);
@@ -2632,9 +2874,9 @@ public class SingleCamera {
      */
     public android.util.Rational getExposureCompensationStep() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.exposureStep;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get exposure compensation step", e);
@@ -2648,9 +2890,9 @@ public class SingleCamera {
      */
     public int[] getSupportedAwbModes() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.awbModes;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get supported AWB modes", e);
@@ -2664,9 +2906,9 @@ public class SingleCamera {
      */
     public int[] getSupportedTonemapModes() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.TONEMAP_AVAILABLE_TONE_MAP_MODES);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.tonemapModes;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get supported tonemap modes", e);
@@ -2680,9 +2922,9 @@ public class SingleCamera {
      */
     public int[] getSupportedEdgeModes() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.EDGE_AVAILABLE_EDGE_MODES);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.edgeModes;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get supported edge modes", e);
@@ -2696,9 +2938,9 @@ public class SingleCamera {
      */
     public int[] getSupportedNoiseReductionModes() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.noiseReductionModes;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get supported noise reduction modes", e);
@@ -2712,9 +2954,9 @@ public class SingleCamera {
      */
     public int[] getSupportedEffectModes() {
         try {
-            CameraCharacteristics chars = getCameraCharacteristics();
-            if (chars != null) {
-                return chars.get(CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS);
+            CameraCapabilityCache.Capabilities capabilities = getCapabilities();
+            if (capabilities != null) {
+                return capabilities.effectModes;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Camera " + cameraId + " failed to get supported effect modes", e);
@@ -2723,20 +2965,18 @@ public class SingleCamera {
     }
     
     /**
-     * 获取摄像头特性（带缓存）
+     * 获取摄像头能力（带缓存，见 CameraCapabilityCache）
      */
-    private CameraCharacteristics getCameraCharacteristics() {
-        if (cameraCharacteristics != null) {
-            return cameraCharacteristics;
+    private CameraCapabilityCache.Capabilities getCapabilities() {
+        CameraCapabilityCache.Capabilities cached = capabilities;
+        if (cached != null) {
+            return cached;
         }
-        
-        try {
-            cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
-            return cameraCharacteristics;
-        } catch (CameraAccessException e) {
-            AppLog.e(TAG, "Camera " + cameraId + " failed to get characteristics", e);
-            return null;
+        cached = CameraCapabilityCache.getInstance(context).get(cameraId);
+        if (cached != null && cached.outputSizes.length > 0) {
+            capabilities = cached;
         }
+        return cached;
     }
     
     /**
@@ -0,0 +1,412 @@
+package com.kooo.evcam.camera;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.kooo.evcam.AppLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子码流编码器（低分辨率、低码率，每个摄像头一个）
+ * 与主码流共用同一份摄像头画面：EglSurfaceEncoder 绘制完主码流后，把同一帧按较小的视口再绘制到本编码器的输入 Surface，
+ * 不需要额外的摄像头输出，也不需要事后转码
+ *
+ * 每个主码流分段对应一个同名的子码流文件，保存在主码流所在目录下的 .sub 子目录中
+ * （隐藏目录：不出现在回放列表，也不会被媒体扫描）。远程上传、回放缩略图优先使用子码流文件。
+ *
+ * 编码输出在本类自己的线程上回调并直接写文件（码率低，写入量很小，不影响主码流）
+ * 分段切换时请求关键帧，在关键帧处切换到新文件（晚于主码流文件关闭），文件打开、关闭通过 {@link FileListener} 通知
+ */
+public class SubStreamEncoder {
+    private static final String TAG = "SubStreamEncoder";
+
+    /** 子码流目录名（位于主码流文件所在目录下） */
+    public static final String SUB_STREAM_DIR = ".sub";
+
+    /** 子码流帧率上限（主码流帧率更高时隔帧绘制） */
+    public static final int MAX_FRAME_RATE = 15;
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;  // H.264
+    private static final int I_FRAME_INTERVAL = 1;  // I帧间隔（秒）
+    private static final int FRAGMENT_KEY_FRAMES = 1;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * 子码流文件打开、关闭通知（在本类线程上回调）
+     * 中转写入时据此判断子码流文件是否仍在写入，关闭后才能传输
+     */
+    public interface FileListener {
+        void onSubStreamFileOpened(File subFile);
+
+        void onSubStreamFileClosed(File subFile);
+    }
+
+    private final String cameraId;
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private final int frameInterval;
+    private final int bitRate;
+    private final boolean fragmentedMp4Enabled;
+    private volatile FileListener fileListener;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile MediaCodec codec;
+    private Surface inputSurface;
+
+    // 以下状态只在本类线程上访问
+    private SegmentMuxer muxer;
+    private int trackIndex = -1;
+    private MediaFormat outputFormat;
+    private String currentPath;
+    private String pendingPath;  // 等待关键帧切换的下一段文件
+    private long segmentFirstPtsUs = -1;
+    private long lastPtsUs = -1;
+    private volatile CountDownLatch endOfStreamLatch;
+
+    /**
+     * @param mainWidth 主码流宽度
+     * @param mainHeight 主码流高度
+     * @param shortEdge 子码流短边像素数（按主码流比例缩放，不放大）
+     * @param bitRate 子码流码率
+     * @param mainFrameRate 主码流帧率
+     * @param fragmentedMp4Enabled 是否使用分片 MP4 封装（与主码流一致）
+     */
+    public SubStreamEncoder(String cameraId, int mainWidth, int mainHeight, int shortEdge, int bitRate,
+                            int mainFrameRate, boolean fragmentedMp4Enabled) {
+        this.cameraId = cameraId;
+        float scale = Math.min(1f, (float) shortEdge / Math.min(mainWidth, mainHeight));
+        this.width = Math.max(2, ((int) (mainWidth * scale) / 2) * 2);  // 确保是偶数
+        this.height = Math.max(2, ((int) (mainHeight * scale) / 2) * 2);
+        this.frameInterval = Math.max(1, (mainFrameRate + MAX_FRAME_RATE - 1) / MAX_FRAME_RATE);
+        this.frameRate = Math.max(1, mainFrameRate / frameInterval);
+        this.bitRate = bitRate;
+        this.fragmentedMp4Enabled = fragmentedMp4Enabled;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 设置文件打开、关闭通知（需在 start 之前调用）
+     */
+    public void setFileListener(FileListener listener) {
+        this.fileListener = listener;
+    }
+
+    /**
+     * 每隔多少个主码流帧绘制一帧子码流
+     */
+    public int getFrameInterval() {
+        return frameInterval;
+    }
+
+    /**
+     * 创建并启动编码器
+     * @param mainFilePath 第一段主码流文件路径
+     * @return 编码器输入 Surface（交给 EglSurfaceEncoder 绘制）
+     */
+    public Surface start(String mainFilePath) throws IOException {
+        thread = new HandlerThread("SubStream-" + cameraId);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        MediaCodec encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        currentPath = getSubStreamFile(new File(mainFilePath)).getAbsolutePath();
+        try {
+            encoder.setCallback(callback, handler);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+            codec = encoder;
+            encoder.start();
+        } catch (RuntimeException e) {
+            codec = null;
+            encoder.release();
+            thread.quitSafely();
+            throw e;
+        }
+
+        AppLog.d(TAG, "Camera " + cameraId + " Sub-stream encoder started: " + width + "x" + height
+                + " @ " + frameRate + "fps, " + (bitRate / 1000) + " Kbps");
+        return inputSurface;
+    }
+
+    /**
+     * 主码流切换到新分段时调用（任意线程）
+     * 请求关键帧，在下一个关键帧处切换到新文件
+     */
+    public void switchSegment(String mainFilePath) {
+        final String nextPath = getSubStreamFile(new File(mainFilePath)).getAbsolutePath();
+        Handler h = handler;
+        if (h == null) {
+            return;
+        }
+        h.post(() -> {
+            MediaCodec encoder = codec;
+            if (encoder == null) {
+                return;
+            }
+            pendingPath = nextPath;
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                encoder.setParameters(params);
+            } catch (Exception e) {
+                // 请求失败也没关系：I 帧间隔为 1 秒，自然关键帧很快会到达
+                AppLog.w(TAG, "Camera " + cameraId + " Failed to request sub-stream sync frame: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 结束当前文件（停止录制时调用，调用前应已停止向输入 Surface 绘制）
+     * 编码器本身在 {@link #release()} 中释放
+     */
+    public void finish() {
+        MediaCodec encoder = codec;
+        Handler h = handler;
+        if (encoder == null || h == null) {
+            return;
+        }
+        try {
+            CountDownLatch eosLatch = new CountDownLatch(1);
+            endOfStreamLatch = eosLatch;
+            encoder.signalEndOfInputStream();
+            if (!eosLatch.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                AppLog.w(TAG, "Camera " + cameraId + " Timed out waiting for sub-stream end of stream");
+            }
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Error signaling sub-stream end of stream: " + e.getMessage());
+        }
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        if (h.post(() -> {
+            closeMuxer();
+            pendingPath = null;
+            closed.countDown();
+        })) {
+            try {
+                closed.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 释放编码器、输入 Surface 和线程（EglSurfaceEncoder 不再使用输入 Surface 之后调用）
+     */
+    public void release() {
+        MediaCodec encoder = codec;
+        codec = null;
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (Exception e) {
+                // Ignore
+            }
+            encoder.release();
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        if (thread != null) {
+            Handler h = handler;
+            handler = null;
+            // 未调用 finish() 时也要关闭文件
+            h.post(this::closeMuxer);
+            thread.quitSafely();
+            try {
+                thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    // ===== 子码流文件 =====
+
+    /**
+     * 主码流文件对应的子码流文件（不检查是否存在）
+     */
+    public static File getSubStreamFile(File mainFile) {
+        return new File(new File(mainFile.getParentFile(), SUB_STREAM_DIR), mainFile.getName());
+    }
+
+    /**
+     * 优先返回子码流文件（存在且非空），否则返回主码流文件本身
+     * 用于远程上传和缩略图
+     */
+    public static File preferSubStream(File mainFile) {
+        if (mainFile == null) {
+            return null;
+        }
+        File subFile = getSubStreamFile(mainFile);
+        return subFile.isFile() && subFile.length() > 0 ? subFile : mainFile;
+    }
+
+    /**
+     * 删除主码流文件对应的子码流文件
+     */
+    public static void deleteSubStreamFile(File mainFile) {
+        File subFile = getSubStreamFile(mainFile);
+        if (subFile.exists() && !subFile.delete()) {
+            AppLog.w(TAG, "Failed to delete sub-stream file: " + subFile.getAbsolutePath());
+        }
+    }
+
+    // ===== 私有方法（本类线程） =====
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec mc, int index) {
+            // Surface 输入，不使用输入缓冲
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+            if (mc != codec) {
+                return;
+            }
+            try {
+                writeOutput(mc, index, info);
+            } catch (Exception e) {
+                AppLog.e(TAG, "Camera " + cameraId + " Error writing sub-stream output", e);
+            }
+            try {
+                mc.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException ignored) {
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                CountDownLatch latch = endOfStreamLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+            outputFormat = format;
+        }
+
+        @Override
+        public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+            // 子码流出错不影响主码流录制，只记录日志
+            AppLog.e(TAG, "Camera " + cameraId + " Sub-stream encoder error", e);
+        }
+    };
+
+    private void writeOutput(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            return;
+        }
+        ByteBuffer data = mc.getOutputBuffer(index);
+        if (data == null || outputFormat == null) {
+            return;
+        }
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyFrame && pendingPath != null) {
+            closeMuxer();
+            currentPath = pendingPath;
+            pendingPath = null;
+        }
+        if (muxer == null) {
+            if (!keyFrame || currentPath == null) {
+                return;  // 文件必须从关键帧开始
+            }
+            openMuxer();
+            if (muxer == null) {
+                return;
+            }
+        }
+
+        if (segmentFirstPtsUs < 0) {
+            segmentFirstPtsUs = info.presentationTimeUs;
+        }
+        long ptsUs = Math.max(info.presentationTimeUs - segmentFirstPtsUs, lastPtsUs + 1);
+        lastPtsUs = ptsUs;
+        info.presentationTimeUs = ptsUs;
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        muxer.writeSampleData(trackIndex, data, info);
+    }
+
+    private void openMuxer() {
+        File file = new File(currentPath);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            AppLog.w(TAG, "Camera " + cameraId + " Failed to create sub-stream dir: " + dir);
+        }
+        try {
+            muxer = fragmentedMp4Enabled
+                    ? new FragmentedMp4SegmentMuxer(currentPath, FRAGMENT_KEY_FRAMES)
+                    : new MediaMuxerSegmentMuxer(currentPath);
+            trackIndex = muxer.addTrack(outputFormat);
+            muxer.start();
+        } catch (Exception e) {
+            AppLog.e(TAG, "Camera " + cameraId + " Failed to open sub-stream file: " + currentPath, e);
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (Exception ignored) {
+                }
+            }
+            muxer = null;
+            currentPath = null;  // 本段放弃子码流，下一段再试
+            return;
+        }
+        segmentFirstPtsUs = -1;
+        lastPtsUs = -1;
+        AppLog.d(TAG, "Camera " + cameraId + " Sub-stream segment: " + currentPath);
+        FileListener listener = fileListener;
+        if (listener != null) {
+            listener.onSubStreamFileOpened(new File(currentPath));
+        }
+    }
+
+    private void closeMuxer() {
+        if (muxer == null) {
+            return;
+        }
+        try {
+            muxer.stop();
+        } catch (Exception e) {
+            AppLog.w(TAG, "Camera " + cameraId + " Error stopping sub-stream muxer: " + e.getMessage());
+        }
+        try {
+            muxer.release();
+        } catch (Exception ignored) {
+        }
+        muxer = null;
+        trackIndex = -1;
+        FileListener listener = fileListener;
+        if (listener != null && currentPath != null) {
+            listener.onSubStreamFileClosed(new File(currentPath));
+        }
+    }
+}
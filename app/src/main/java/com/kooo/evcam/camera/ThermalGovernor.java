@@ -0,0 +1,213 @@
+package com.kooo.evcam.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import com.kooo.evcam.AppLog;
+
+import java.util.Locale;
+
+/**
+ * 过热降级调度（录制期间运行）
+ * 车机高温降频时编码器会卡住，反复触发编码器重建。本调度器按固定间隔综合三项指标评估压力：
+ * - 系统热状态（PowerManager.getCurrentThermalStatus，API 29+，同时监听状态变化立即评估）
+ * - 热余量预测（PowerManager.getThermalHeadroom，API 30+，1.0 表示即将开始严重降频）
+ * - 实测帧率：录制中摄像头的实际 FPS 相对目标帧率的比例
+ *
+ * 降级阶梯（逐级生效，每一级包含前面各级）：
+ * 1. 降码率  2. 降帧率  3. 暂停预览输出  4. 低优先级摄像头只保留极低帧率
+ *
+ * 滞回：压力升高连续 DOWN_EVALUATIONS 次才降一级（严重时立即降级）；
+ * 连续 UP_EVALUATIONS 次冷却才升一级，且降级后至少 MIN_DWELL_MS 内不升级。
+ * 每次切换都输出带原因的日志（统一前缀 "Thermal level"，便于从日志中统计）
+ *
+ * 线程：start / stop / 评估均在主线程
+ */
+public class ThermalGovernor {
+    private static final String TAG = "ThermalGovernor";
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_REDUCED_BITRATE = 1;
+    public static final int LEVEL_REDUCED_FRAME_RATE = 2;
+    public static final int LEVEL_PREVIEWS_SUSPENDED = 3;
+    public static final int LEVEL_LOW_PRIORITY_PAUSED = 4;
+    private static final String[] LEVEL_NAMES = {"normal", "reduced-bitrate", "reduced-fps", "previews-suspended", "low-priority-paused"};
+
+    private static final long EVALUATE_INTERVAL_MS = 5000;
+    private static final int HEADROOM_FORECAST_SECONDS = 10;
+    private static final int DOWN_EVALUATIONS = 2;  // 连续 2 次压力偏高降一级（约 10 秒）
+    private static final int UP_EVALUATIONS = 6;  // 连续 6 次冷却升一级（约 30 秒）
+    private static final long MIN_DWELL_MS = 60_000;  // 降级后至少保持 1 分钟才允许升级
+
+    private static final float HEADROOM_SEVERE = 1.0f;
+    private static final float HEADROOM_HIGH = 0.85f;
+    private static final float HEADROOM_COOL = 0.7f;
+    private static final float FPS_RATIO_SEVERE = 0.6f;
+    private static final float FPS_RATIO_HIGH = 0.8f;
+    private static final float FPS_RATIO_COOL = 0.95f;
+
+    private static final int PRESSURE_COOL = 0;
+    private static final int PRESSURE_STEADY = 1;
+    private static final int PRESSURE_HIGH = 2;
+    private static final int PRESSURE_SEVERE = 3;
+
+    /**
+     * 由录制方实现：提供实测帧率，应用降级级别
+     */
+    public interface Host {
+        /**
+         * 录制中摄像头实测帧率相对目标帧率的最低比例，无法测量时返回 -1
+         */
+        float getFrameRateRatio();
+
+        /**
+         * 应用降级级别（LEVEL_*）
+         */
+        void applyThermalLevel(int level);
+    }
+
+    private final PowerManager powerManager;
+    private final Host host;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable evaluateRunnable = this::evaluate;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    private boolean running = false;
+    private int level = LEVEL_NORMAL;
+    private int highCount = 0;
+    private int coolCount = 0;
+    private long lastStepDownMs = 0;
+    private int transitionCount = 0;
+
+    public ThermalGovernor(Context context, Host host) {
+        this.powerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        this.host = host;
+    }
+
+    /**
+     * 开始调度（录制开始时调用）
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        highCount = 0;
+        coolCount = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            thermalListener = status -> {
+                if (running) {
+                    handler.removeCallbacks(evaluateRunnable);
+                    evaluate();
+                }
+            };
+            powerManager.addThermalStatusListener(handler::post, thermalListener);
+        }
+        handler.postDelayed(evaluateRunnable, EVALUATE_INTERVAL_MS);
+        AppLog.d(TAG, "Thermal governor started");
+    }
+
+    /**
+     * 停止调度并恢复到正常级别（录制停止时调用）
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(evaluateRunnable);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null && thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+        }
+        thermalListener = null;
+        if (level != LEVEL_NORMAL) {
+            transition(LEVEL_NORMAL, "recording stopped");
+        }
+        AppLog.d(TAG, "Thermal governor stopped after " + transitionCount + " transition(s)");
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public static String getLevelName(int level) {
+        return LEVEL_NAMES[Math.max(0, Math.min(level, LEVEL_NAMES.length - 1))];
+    }
+
+    private void evaluate() {
+        if (!running) {
+            return;
+        }
+        int status = getThermalStatus();
+        float headroom = getHeadroom();
+        float fpsRatio = host.getFrameRateRatio();
+        String cause = String.format(Locale.US, "status=%d, headroom=%.2f, fps ratio=%.2f", status, headroom, fpsRatio);
+
+        int pressure = classify(status, headroom, fpsRatio);
+        long now = System.currentTimeMillis();
+        if (pressure >= PRESSURE_HIGH) {
+            coolCount = 0;
+            highCount++;
+            if (level < LEVEL_LOW_PRIORITY_PAUSED && (pressure == PRESSURE_SEVERE || highCount >= DOWN_EVALUATIONS)) {
+                highCount = 0;
+                lastStepDownMs = now;
+                transition(level + 1, (pressure == PRESSURE_SEVERE ? "severe: " : "high: ") + cause);
+            }
+        } else if (pressure == PRESSURE_COOL) {
+            highCount = 0;
+            coolCount++;
+            if (level > LEVEL_NORMAL && coolCount >= UP_EVALUATIONS && now - lastStepDownMs >= MIN_DWELL_MS) {
+                coolCount = 0;
+                transition(level - 1, "cool: " + cause);
+            }
+        } else {
+            highCount = 0;
+            coolCount = 0;
+        }
+        handler.postDelayed(evaluateRunnable, EVALUATE_INTERVAL_MS);
+    }
+
+    private static int classify(int status, float headroom, float fpsRatio) {
+        boolean fpsKnown = fpsRatio >= 0;
+        if (status >= PowerManager.THERMAL_STATUS_SEVERE || headroom >= HEADROOM_SEVERE
+                || (fpsKnown && fpsRatio < FPS_RATIO_SEVERE)) {
+            return PRESSURE_SEVERE;
+        }
+        if (status >= PowerManager.THERMAL_STATUS_MODERATE || headroom >= HEADROOM_HIGH
+                || (fpsKnown && fpsRatio < FPS_RATIO_HIGH)) {
+            return PRESSURE_HIGH;
+        }
+        // 无法获取热余量时（NaN 或系统不支持）只看热状态和帧率
+        boolean headroomCool = Float.isNaN(headroom) || headroom < HEADROOM_COOL;
+        if (status <= PowerManager.THERMAL_STATUS_LIGHT && headroomCool && (!fpsKnown || fpsRatio >= FPS_RATIO_COOL)) {
+            return PRESSURE_COOL;
+        }
+        return PRESSURE_STEADY;
+    }
+
+    private void transition(int newLevel, String cause) {
+        int oldLevel = level;
+        level = newLevel;
+        transitionCount++;
+        AppLog.w(TAG, "Thermal level " + oldLevel + " -> " + newLevel + " (" + getLevelName(oldLevel) + " -> "
+                + getLevelName(newLevel) + "), cause: " + cause);
+        host.applyThermalLevel(newLevel);
+    }
+
+    private int getThermalStatus() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            return powerManager.getCurrentThermalStatus();
+        }
+        return 0;  // THERMAL_STATUS_NONE
+    }
+
+    private float getHeadroom() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && powerManager != null) {
+            return powerManager.getThermalHeadroom(HEADROOM_FORECAST_SECONDS);
+        }
+        return Float.NaN;
+    }
+}
@@ -0,0 +1,273 @@
+package com.kooo.evcam.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 时间水印字形图集
+ * 把时间戳用到的字符（数字、'-'、':'、空格）一次性光栅化到一张位图中（单行，等宽字形格），
+ * 之后绘制时间戳只需按字符取字形格拼接：
+ * - 录制（EglSurfaceEncoder）：位图只上传一次纹理，每帧按字形格生成若干个四边形绘制，不再每秒重绘、重新上传整张位图
+ * - 拍照（SingleCamera）：按字形格从图集位图复制到照片上
+ *
+ * 时间到字符的转换（{@link #formatTimestamp}）只使用基本类型运算，不分配对象
+ *
+ * 图集按字号缓存（{@link #obtain}），创建后不再修改，可以在多个线程上同时读取
+ */
+public class TimestampGlyphAtlas {
+
+    /** 时间戳格式 yyyy-MM-dd HH:mm:ss 的字符数 */
+    public static final int TIMESTAMP_LENGTH = 19;
+
+    /** 图集包含的字符（顺序即字形格下标） */
+    private static final String GLYPHS = "0123456789-: ";
+
+    private static final int SHADOW_OFFSET = 2;  // 阴影偏移（像素）
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final Map<Integer, TimestampGlyphAtlas> CACHE = new HashMap<>();
+
+    private final int cellWidth;
+    private final int cellHeight;
+    private final Bitmap bitmap;
+
+    // 拍照绘制时复用的矩形（drawText 为 synchronized）
+    private final Rect srcRect = new Rect();
+    private final RectF dstRect = new RectF();
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 获取指定字号的图集（首次调用时光栅化，之后复用）
+     * @param textSize 字号（像素）
+     */
+    public static TimestampGlyphAtlas obtain(int textSize) {
+        synchronized (CACHE) {
+            TimestampGlyphAtlas atlas = CACHE.get(textSize);
+            if (atlas == null) {
+                atlas = new TimestampGlyphAtlas(textSize);
+                CACHE.put(textSize, atlas);
+            }
+            return atlas;
+        }
+    }
+
+    private TimestampGlyphAtlas(int textSize) {
+        // 设置画笔 - 阴影
+        Paint shadowPaint = new Paint();
+        shadowPaint.setColor(Color.BLACK);
+        shadowPaint.setTextSize(textSize);
+        shadowPaint.setAntiAlias(true);
+        shadowPaint.setTypeface(Typeface.MONOSPACE);
+
+        // 设置画笔 - 主文字
+        Paint textPaint = new Paint();
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(textSize);
+        textPaint.setAntiAlias(true);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+
+        Paint.FontMetrics metrics = textPaint.getFontMetrics();
+        this.cellWidth = (int) Math.ceil(textPaint.measureText("0")) + SHADOW_OFFSET;
+        this.cellHeight = (int) Math.ceil(metrics.descent - metrics.ascent) + SHADOW_OFFSET;
+        this.bitmap = Bitmap.createBitmap(cellWidth * GLYPHS.length(), cellHeight, Bitmap.Config.ARGB_8888);
+
+        Canvas canvas = new Canvas(bitmap);
+        float baseline = -metrics.ascent;
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            String glyph = GLYPHS.substring(i, i + 1);
+            float x = i * cellWidth;
+            // 绘制阴影（偏移2像素）
+            canvas.drawText(glyph, x + SHADOW_OFFSET, baseline + SHADOW_OFFSET, shadowPaint);
+            // 绘制主文字
+            canvas.drawText(glyph, x, baseline, textPaint);
+        }
+    }
+
+    /**
+     * 字形格宽度（像素，含阴影）
+     */
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    /**
+     * 字形格高度（像素，含阴影）
+     */
+    public int getCellHeight() {
+        return cellHeight;
+    }
+
+    /**
+     * 把本地时间写成 yyyy-MM-dd HH:mm:ss（不分配对象）
+     * @param localMillis 本地时间毫秒数（UTC 毫秒 + 时区偏移）
+     * @param out 输出字符数组，长度至少 {@link #TIMESTAMP_LENGTH}
+     */
+    public static void formatTimestamp(long localMillis, char[] out) {
+        long days = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(localMillis, MILLIS_PER_DAY) / 1000);
+
+        // 天数转公历日期（公元 0000-03-01 起算的 400 年周期算法）
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        writeDigits(out, 0, year, 4);
+        out[4] = '-';
+        writeDigits(out, 5, month, 2);
+        out[7] = '-';
+        writeDigits(out, 8, day, 2);
+        out[10] = ' ';
+        writeDigits(out, 11, secondOfDay / 3600, 2);
+        out[13] = ':';
+        writeDigits(out, 14, secondOfDay / 60 % 60, 2);
+        out[16] = ':';
+        writeDigits(out, 17, secondOfDay % 60, 2);
+    }
+
+    /**
+     * 把文件名时间戳（yyyyMMdd_HHmmss）转换为 yyyy-MM-dd HH:mm:ss
+     * @return 格式不正确时返回 false
+     */
+    public static boolean formatFileTimestamp(String timestamp, char[] out) {
+        if (timestamp == null || timestamp.length() < 15 || timestamp.charAt(8) != '_') {
+            return false;
+        }
+        for (int i = 0; i < 15; i++) {
+            if (i != 8 && !Character.isDigit(timestamp.charAt(i))) {
+                return false;
+            }
+        }
+        timestamp.getChars(0, 4, out, 0);
+        out[4] = '-';
+        timestamp.getChars(4, 6, out, 5);
+        out[7] = '-';
+        timestamp.getChars(6, 8, out, 8);
+        out[10] = ' ';
+        timestamp.getChars(9, 11, out, 11);
+        out[13] = ':';
+        timestamp.getChars(11, 13, out, 14);
+        out[16] = ':';
+        timestamp.getChars(13, 15, out, 17);
+        return true;
+    }
+
+    /**
+     * 把文本按字形格生成四边形顶点（GL_TRIANGLES，每个字符 6 个顶点，空格跳过）
+     * 坐标以像素给出（原点在视口左下角），输出为归一化设备坐标
+     * @param text 文本（只包含图集中的字符）
+     * @param left 文本左边界（像素）
+     * @param top 文本上边界（像素，从视口底部算起）
+     * @param viewportWidth 视口宽度
+     * @param viewportHeight 视口高度
+     * @param positions 顶点坐标输出（x, y），容量至少 count * 12
+     * @param texCoords 纹理坐标输出（s, t），容量至少 count * 12
+     * @return 顶点数
+     */
+    public int buildQuads(char[] text, int count, float left, float top, int viewportWidth, int viewportHeight,
+                          FloatBuffer positions, FloatBuffer texCoords) {
+        positions.clear();
+        texCoords.clear();
+        int vertexCount = 0;
+        float glyphS = 1f / GLYPHS.length();
+        float y0 = (top - cellHeight) / viewportHeight * 2f - 1f;
+        float y1 = top / viewportHeight * 2f - 1f;
+        for (int i = 0; i < count; i++) {
+            int glyph = glyphIndex(text[i]);
+            if (glyph < 0 || text[i] == ' ') {
+                continue;
+            }
+            float x0 = (left + i * cellWidth) / viewportWidth * 2f - 1f;
+            float x1 = (left + (i + 1) * cellWidth) / viewportWidth * 2f - 1f;
+            float s0 = glyph * glyphS;
+            float s1 = s0 + glyphS;
+            // 位图第一行上传到纹理 t=0，因此上边对应 t=0
+            putQuad(positions, x0, y0, x1, y1);
+            putQuad(texCoords, s0, 1f, s1, 0f);
+            vertexCount += 6;
+        }
+        positions.flip();
+        texCoords.flip();
+        return vertexCount;
+    }
+
+    /**
+     * 创建图集纹理（需要在 GL 线程上、EGL Context 为当前时调用）
+     * @return 纹理 ID
+     */
+    public int createTexture() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        return textures[0];
+    }
+
+    /**
+     * 在 Canvas 上绘制文本（拍照水印使用）
+     * @param x 文本左边界
+     * @param top 文本上边界
+     */
+    public synchronized void drawText(Canvas canvas, char[] text, int count, float x, float top) {
+        for (int i = 0; i < count; i++) {
+            int glyph = glyphIndex(text[i]);
+            if (glyph < 0 || text[i] == ' ') {
+                continue;
+            }
+            srcRect.set(glyph * cellWidth, 0, (glyph + 1) * cellWidth, cellHeight);
+            dstRect.set(x + i * cellWidth, top, x + (i + 1) * cellWidth, top + cellHeight);
+            canvas.drawBitmap(bitmap, srcRect, dstRect, bitmapPaint);
+        }
+    }
+
+    // ===== 私有方法 =====
+
+    private static int glyphIndex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        switch (c) {
+            case '-': return 10;
+            case ':': return 11;
+            case ' ': return 12;
+            default: return -1;
+        }
+    }
+
+    private static void writeDigits(char[] out, int offset, int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            out[offset + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static void putQuad(FloatBuffer buffer, float x0, float y0, float x1, float y1) {
+        // 两个三角形：左下、右下、左上 / 左上、右下、右上
+        buffer.put(x0).put(y0);
+        buffer.put(x1).put(y0);
+        buffer.put(x0).put(y1);
+        buffer.put(x0).put(y1);
+        buffer.put(x1).put(y0);
+        buffer.put(x1).put(y1);
+    }
+}
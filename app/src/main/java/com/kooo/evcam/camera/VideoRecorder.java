@@ -2,6 +2,8 @@ package com.kooo.evcam.camera;
 
 
 import com.kooo.evcam.AppLog;
+import com.kooo.evcam.StorageHelper;
+import com.kooo.evcam.VideoRepairManager;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -12,6 +14,7 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -68,6 +71,9 @@ public class VideoRecorder {
     private int videoBitrate = 3000000;  // 默认 3Mbps
     private int videoFrameRate = 30;     // 默认 30fps
     
+    // H.265 编码（设置了探测器时按实际编码分辨率选择，不可用时使用 H.264）
+    private EncoderCapabilityProber encoderProber;
+    
     // 实际使用的编码分辨率（可能因限制而缩小）
     private int actualEncodeWidth;
     private int actualEncodeHeight;
@@ -151,6 +157,16 @@ public class VideoRecorder {
         AppLog.d(TAG, "Camera " + cameraId + " frame rate set to " + frameRate + " fps");
     }
 
+    /**
+     * 启用 H.265 编码（需在 prepareRecording 之前调用）
+     * 探测器判断当前编码分辨率下有可用的 H.265 硬件编码器时使用 H.265（码率按比例换算），
+     * MediaRecorder 准备失败时自动回退到 H.264
+     * @param prober 编码器探测器，null 表示使用 H.264
+     */
+    public void setHevcProber(EncoderCapabilityProber prober) {
+        this.encoderProber = prober;
+    }
+
     /**
      * 获取当前配置的码率
      */
@@ -332,6 +348,49 @@ public class VideoRecorder {
         actualEncodeWidth = encodeWidth;
         actualEncodeHeight = encodeHeight;
         
+        EncoderCapabilityProber.EncoderChoice hevcEncoder = encoderProber != null
+                ? encoderProber.selectHevcEncoder(encodeWidth, encodeHeight, videoFrameRate, videoBitrate) : null;
+        try {
+            configureMediaRecorder(filePath, encodeWidth, encodeHeight, hevcEncoder != null);
+        } catch (IOException | RuntimeException e) {
+            if (hevcEncoder == null) {
+                throw e;
+            }
+            AppLog.w(TAG, "Camera " + cameraId + " MediaRecorder HEVC prepare failed, falling back to H.264: " + e.getMessage());
+            encoderProber.reportFailure(hevcEncoder, videoFrameRate);
+            releaseMediaRecorder();
+            hevcEncoder = null;
+            configureMediaRecorder(filePath, encodeWidth, encodeHeight, false);
+        }
+        int encodeBitrate = hevcEncoder != null ? EncoderCapabilityProber.hevcBitRate(videoBitrate) : videoBitrate;
+        String codecLabel = hevcEncoder != null ? "H.265" : "H.264";
+        
+        // 日志：显示原始和实际编码分辨率
+        if (width != encodeWidth || height != encodeHeight) {
+            AppLog.w(TAG, "Camera " + cameraId + " MediaRecorder configured with ADJUSTED resolution: " + 
+                    width + "x" + height + " -> " + encodeWidth + "x" + encodeHeight + 
+                    " @ " + videoFrameRate + "fps, " + (encodeBitrate / 1000) + " Kbps, " + codecLabel);
+        } else {
+            AppLog.d(TAG, "Camera " + cameraId + " MediaRecorder configured: " + encodeWidth + "x" + encodeHeight + 
+                    " @ " + videoFrameRate + "fps, " + (encodeBitrate / 1000) + " Kbps, " + codecLabel);
+        }
+        
+        // 准备后立即缓存 Surface，确保整个录制周期使用同一个对象
+        // 这对于某些车机平台很重要，因为 Camera2 API 可能无法识别不同的 Surface 包装对象
+        cachedSurface = mediaRecorder.getSurface();
+        if (cachedSurface != null) {
+            AppLog.d(TAG, "Camera " + cameraId + " MediaRecorder Surface created and cached: " + cachedSurface + 
+                    ", isValid=" + cachedSurface.isValid());
+        } else {
+            AppLog.e(TAG, "Camera " + cameraId + " MediaRecorder Surface is NULL after prepare!");
+        }
+    }
+
+    /**
+     * 创建并配置 MediaRecorder（到 prepare 为止）
+     * @param hevc true 表示使用 H.265 编码
+     */
+    private void configureMediaRecorder(String filePath, int encodeWidth, int encodeHeight, boolean hevc) throws IOException {
         mediaRecorder = new MediaRecorder();
         
         // 添加监听器以监控 MediaRecorder 状态（调试用）
@@ -367,31 +426,11 @@ public class VideoRecorder {
         mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
         mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
         mediaRecorder.setOutputFile(filePath);
-        mediaRecorder.setVideoEncodingBitRate(videoBitrate);
+        mediaRecorder.setVideoEncodingBitRate(hevc ? EncoderCapabilityProber.hevcBitRate(videoBitrate) : videoBitrate);
         mediaRecorder.setVideoFrameRate(videoFrameRate);
         mediaRecorder.setVideoSize(encodeWidth, encodeHeight);  // 使用调整后的分辨率
-        mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        mediaRecorder.setVideoEncoder(hevc ? MediaRecorder.VideoEncoder.HEVC : MediaRecorder.VideoEncoder.H264);
         mediaRecorder.prepare();
-        
-        // 日志：显示原始和实际编码分辨率
-        if (width != encodeWidth || height != encodeHeight) {
-            AppLog.w(TAG, "Camera " + cameraId + " MediaRecorder configured with ADJUSTED resolution: " + 
-                    width + "x" + height + " -> " + encodeWidth + "x" + encodeHeight + 
-                    " @ " + videoFrameRate + "fps, " + (videoBitrate / 1000) + " Kbps");
-        } else {
-            AppLog.d(TAG, "Camera " + cameraId + " MediaRecorder configured: " + encodeWidth + "x" + encodeHeight + 
-                    " @ " + videoFrameRate + "fps, " + (videoBitrate / 1000) + " Kbps");
-        }
-        
-        // 准备后立即缓存 Surface，确保整个录制周期使用同一个对象
-        // 这对于某些车机平台很重要，因为 Camera2 API 可能无法识别不同的 Surface 包装对象
-        cachedSurface = mediaRecorder.getSurface();
-        if (cachedSurface != null) {
-            AppLog.d(TAG, "Camera " + cameraId + " MediaRecorder Surface created and cached: " + cachedSurface + 
-                    ", isValid=" + cachedSurface.isValid());
-        } else {
-            AppLog.e(TAG, "Camera " + cameraId + " MediaRecorder Surface is NULL after prepare!");
-        }
     }
 
     /**
@@ -466,7 +505,8 @@ public class VideoRecorder {
             AppLog.d(TAG, "Camera " + cameraId + " using local timestamp: " + timestamp);
         }
         String fileName = timestamp + "_" + cameraPosition + ".mp4";
-        return new File(saveDirectory, fileName).getAbsolutePath();
+        // 按日期分层存储时，跨零点的分段放入新日期的目录
+        return StorageHelper.resolveSegmentFile(new File(saveDirectory), fileName).getAbsolutePath();
     }
 
     /**
@@ -821,6 +861,7 @@ public class VideoRecorder {
         // 保存当前分段的文件路径（已完成的文件）
         String completedFilePath = currentFilePath;
         boolean completedFileValid = false;
+        String failedFilePath = null;  // stop() 失败的文件，释放后尝试修复
         
         try {
             // 【第三步】停止当前 MediaRecorder
@@ -851,17 +892,16 @@ public class VideoRecorder {
                     AppLog.e(TAG, "Error stopping segment for camera " + cameraId + " (file size was: " + fileSizeBeforeStop + " bytes)", e);
                     isRecording.set(false);  // 即使失败也更新状态
 
-                    // 停止失败，删除损坏的文件
-                    if (currentFilePath != null) {
-                        File file = new File(currentFilePath);
-                        if (file.exists()) {
-                            file.delete();
-                            AppLog.w(TAG, "Deleted corrupted segment file: " + currentFilePath);
-                        }
-                    }
-                    completedFilePath = null;  // 文件已删除，标记为无效
+                    // 停止失败，释放 MediaRecorder 后尝试修复（无法修复的删除）
+                    failedFilePath = currentFilePath;
+                    completedFilePath = null;  // 先标记为无效，修复成功后恢复
                 }
                 releaseMediaRecorder();
+
+                if (failedFilePath != null && salvageFailedFile(failedFilePath)) {
+                    completedFilePath = failedFilePath;
+                    completedFileValid = true;
+                }
             }
 
             // 【第四步】准备下一段（使用新的时间戳）
@@ -997,6 +1037,7 @@ public class VideoRecorder {
         }
 
         List<String> deletedFiles = new ArrayList<>();
+        String failedFilePath = null;  // stop() 失败的文件，释放后尝试修复
         try {
             if (mediaRecorder != null) {
                 // 如果文件太小（<10KB），说明 MediaRecorder 没有接收到帧，跳过 stop()
@@ -1019,17 +1060,13 @@ public class VideoRecorder {
             AppLog.e(TAG, "Failed to stop recording for camera " + cameraId + " (file size was: " + fileSizeBeforeStop + " bytes)", e);
             isRecording.set(false);
 
-            // 录制失败，删除损坏的文件
-            if (currentFilePath != null) {
-                File file = new File(currentFilePath);
-                if (file.exists()) {
-                    file.delete();
-                    deletedFiles.add(file.getName());
-                    AppLog.w(TAG, "Deleted corrupted video file: " + currentFilePath);
-                }
-            }
+            // 录制失败，释放 MediaRecorder 后尝试修复（无法修复的删除）
+            failedFilePath = currentFilePath;
         } finally {
             releaseMediaRecorder();
+            if (failedFilePath != null && !salvageFailedFile(failedFilePath) && !new File(failedFilePath).exists()) {
+                deletedFiles.add(new File(failedFilePath).getName());
+            }
             currentFilePath = null;
             segmentIndex = 0;
             
@@ -1111,10 +1148,52 @@ public class VideoRecorder {
             AppLog.w(TAG, "Video file too small: " + filePath + " (size: " + fileSize + " bytes, minimum: " + MIN_VALID_FILE_SIZE + " bytes). Deleting...");
             file.delete();
             return file.getName();
-        } else {
-            AppLog.d(TAG, "Video file validated: " + filePath + " (size: " + (fileSize / 1024) + " KB)");
-            return null;
         }
+
+        // 无可解码帧的直接删除；异常中断的文件（无 moov 或分片不完整）交给后台修复，不阻塞下一段开始
+        if (!VideoRepairManager.repairFileAsync(file, this::onBackgroundRepairFinished)) {
+            return file.getName();
+        }
+
+        AppLog.d(TAG, "Video file validated: " + filePath + " (size: " + (fileSize / 1024) + " KB)");
+        return null;
+    }
+
+    /**
+     * MediaRecorder.stop() 失败后处理文件（必须在释放 MediaRecorder 之后调用，确保文件已关闭）
+     * 文件足够大时交给后台修复；太小或没有可解码帧的删除；暂时找不到参考分段的保留给启动时修复
+     * @return true 表示文件保留（后台修复，传输前会等待修复完成）
+     */
+    private boolean salvageFailedFile(String filePath) {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            return false;
+        }
+        if (file.length() >= MIN_VALID_FILE_SIZE
+                && VideoRepairManager.repairFileAsync(file, this::onBackgroundRepairFinished)) {
+            AppLog.w(TAG, "Camera " + cameraId + " Kept video file after stop failure for background repair: " + filePath);
+            return true;
+        }
+        if (file.exists() && file.length() < MIN_VALID_FILE_SIZE) {
+            file.delete();
+            AppLog.w(TAG, "Deleted corrupted video file: " + filePath);
+        }
+        return false;
+    }
+
+    /**
+     * 后台修复结束（在修复线程上调用）：无法修复且已删除的文件通知外部
+     */
+    private void onBackgroundRepairFinished(File file, boolean usable) {
+        if (usable) {
+            AppLog.d(TAG, "Camera " + cameraId + " Video file repaired in background: " + file.getName());
+            return;
+        }
+        if (file.exists()) {
+            AppLog.w(TAG, "Camera " + cameraId + " Video file could not be repaired now, left for startup repair: " + file.getName());
+            return;
+        }
+        notifyCorruptedFilesDeleted(Collections.singletonList(file.getName()));
     }
 
     /**
@@ -0,0 +1,435 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 防断电的分片 MP4（fMP4, moof/mdat）写入器
+ * 纯 Java 实现，不依赖 Android API，可在 JVM 上直接单元测试
+ *
+ * 与 MediaMuxer 的区别：
+ * - MediaMuxer 在 stop() 时才写 moov，中途断电的文件没有 moov，无法播放
+ * - 本类在开始时写入自描述的初始化段（ftyp + moov/mvex），之后每 N 个关键帧写出一个 moof+mdat 分片，
+ *   每个分片写出后 fsync（默认开启，见 setSyncOnFragment），断电最多丢失最后一个未写出的分片，之前的分片都可以正常播放
+ *
+ * 写入方式：每个分片组装完成后，通过 FileChannel 一次性顺序追加（聚合写），
+ * 大幅减少慢速 U 盘上的系统调用次数
+ *
+ * 输入样本可以是 Annex-B（MediaCodec 输出）或 4 字节长度前缀格式，写入时统一转换为长度前缀格式
+ */
+public class FragmentedMp4Writer implements Closeable {
+
+    /** 视频轨道时间刻度（90kHz） */
+    public static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+
+    // trun 样本标志
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;      // sample_depends_on=2（不依赖其他帧）
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;  // sample_depends_on=1, is_non_sync_sample=1
+
+    // trun 标志：data_offset + sample_duration + sample_size + sample_flags
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd 标志：default-base-is-moof
+    private static final int TFHD_FLAGS = 0x020000;
+
+    private static final long DEFAULT_SAMPLE_DURATION_TICKS = TIMESCALE / 30;
+    private static final int INITIAL_PAYLOAD_CAPACITY = 1024 * 1024;
+    private static final int INITIAL_SAMPLE_CAPACITY = 64;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Mp4TrackFormat format;
+    private final boolean avc;
+    private final boolean hevc;
+    private final int keyFramesPerFragment;
+
+    // 分片组装缓冲（复用，避免稳态分配）
+    private final Mp4BoxWriter headerWriter = new Mp4BoxWriter(4096);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+    private ByteBuffer payload;
+
+    // 当前分片的样本信息
+    private int sampleCount = 0;
+    private int[] sampleSizes = new int[INITIAL_SAMPLE_CAPACITY];
+    private long[] sampleTicks = new long[INITIAL_SAMPLE_CAPACITY];
+    private boolean[] sampleSync = new boolean[INITIAL_SAMPLE_CAPACITY];
+    private int keyFramesInFragment = 0;
+
+    // 时间轴
+    private long firstPtsUs = -1;
+    private long nextDecodeTime = 0;  // 已写出样本的总时长（ticks），即下一分片的 baseMediaDecodeTime
+    private long lastDurationTicks = DEFAULT_SAMPLE_DURATION_TICKS;
+
+    // 统计
+    private int sequenceNumber = 0;
+    private long bytesWritten = 0;
+    private long samplesWritten = 0;
+
+    // 初始化段中时长字段的文件偏移（正常关闭时回填，便于播放器显示总时长）
+    private int mvhdDurationPos;
+    private int tkhdDurationPos;
+    private int mdhdDurationPos;
+    private int mehdDurationPos;
+    // 多路同步信息字段的文件偏移（见 Mp4SyncInfo）
+    private int syncInfoPos;
+
+    private boolean syncOnFragment = true;
+    private boolean closed = false;
+
+    /**
+     * @param outputFile 输出文件（已存在时会被截断）
+     * @param format 轨道格式
+     * @param keyFramesPerFragment 每个分片包含的关键帧（GOP）数，>= 1
+     */
+    public FragmentedMp4Writer(File outputFile, Mp4TrackFormat format, int keyFramesPerFragment) throws IOException {
+        this.format = format;
+        this.avc = "avc1".equals(format.sampleEntryType) || "avc3".equals(format.sampleEntryType);
+        this.hevc = format.isHevc();
+        this.keyFramesPerFragment = Math.max(1, keyFramesPerFragment);
+        this.file = new RandomAccessFile(outputFile, "rw");
+        this.channel = file.getChannel();
+        this.payload = ByteBuffer.allocateDirect(INITIAL_PAYLOAD_CAPACITY).order(ByteOrder.BIG_ENDIAN);
+        try {
+            channel.truncate(0);
+            writeInitSegment();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * 每写出一个分片后是否 fsync（默认开启）
+     * 关闭后已写出的分片可能仍在页缓存中，断电时丢失的不止最后一个分片；开启时调用线程会阻塞到数据落盘
+     */
+    public void setSyncOnFragment(boolean syncOnFragment) {
+        this.syncOnFragment = syncOnFragment;
+    }
+
+    /**
+     * 写入一个编码样本（一帧）
+     * @param data 样本数据，读取范围为 [position, limit)，方法返回后 position/limit 保持不变
+     * @param ptsUs 呈现时间戳（微秒）
+     * @param keyFrame 是否为关键帧
+     */
+    public void writeSample(ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+        if (closed) {
+            throw new IOException("Writer already closed");
+        }
+        if (sampleCount == 0 && !keyFrame && samplesWritten == 0) {
+            // 文件必须从关键帧开始，丢弃开头的非关键帧
+            return;
+        }
+        if (firstPtsUs < 0) {
+            firstPtsUs = ptsUs;
+        }
+        long ticks = (ptsUs - firstPtsUs) * TIMESCALE / 1000000L;
+
+        // 新的关键帧到来且当前分片已满足 GOP 数，先写出当前分片
+        if (keyFrame && sampleCount > 0 && keyFramesInFragment >= keyFramesPerFragment) {
+            flushFragment(ticks);
+        }
+
+        ensureSampleCapacity(sampleCount + 1);
+        int size = appendSamplePayload(data);
+        sampleSizes[sampleCount] = size;
+        sampleTicks[sampleCount] = ticks;
+        sampleSync[sampleCount] = keyFrame;
+        sampleCount++;
+        if (keyFrame) {
+            keyFramesInFragment++;
+        }
+    }
+
+    /**
+     * 写出剩余样本并回填总时长
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (sampleCount > 0) {
+                flushFragment(-1);
+            }
+            patchDurations();
+        } finally {
+            closed = true;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 回填多路同步信息（初始化段中预留的 udta/evsy）
+     * 可在任意时刻调用（通常在分段第一帧写入时），不影响顺序追加的分片数据
+     */
+    public void writeSyncInfo(Mp4SyncInfo info) throws IOException {
+        if (closed) {
+            throw new IOException("Writer already closed");
+        }
+        ByteBuffer buffer = info.toFields();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, syncInfoPos + buffer.position());
+        }
+    }
+
+    /**
+     * 已写入文件的字节数
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * 已写出的分片数
+     */
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    /**
+     * 已写出的样本数（不含尚在缓冲中的样本）
+     */
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    // ===== 私有方法 =====
+
+    /**
+     * 写入初始化段：ftyp + moov（含 mvex，空样本表）
+     */
+    private void writeInitSegment() throws IOException {
+        long now = Mp4MovieBoxes.now();
+        Mp4BoxWriter w = headerWriter;
+        w.reset();
+
+        Mp4MovieBoxes.writeFtyp(w, format, true);
+
+        w.startBox("moov");
+        mvhdDurationPos = Mp4MovieBoxes.writeMvhd(w, now, 0, TRACK_ID + 1);
+
+        w.startBox("trak");
+        tkhdDurationPos = Mp4MovieBoxes.writeTkhd(w, now, TRACK_ID, 0, format.width, format.height);
+        w.startBox("mdia");
+        mdhdDurationPos = Mp4MovieBoxes.writeMdhd(w, now, TIMESCALE, 0);
+        Mp4MovieBoxes.writeVideoHandler(w);
+        w.startBox("minf");
+        Mp4MovieBoxes.writeVideoMediaHeaders(w);
+        w.startBox("stbl");
+        Mp4MovieBoxes.writeSampleDescription(w, format);
+        // 分片文件的样本表为空，样本信息都在 moof 中
+        w.startFullBox("stts", 0, 0).putInt(0).endBox();
+        w.startFullBox("stsc", 0, 0).putInt(0).endBox();
+        w.startFullBox("stsz", 0, 0).putInt(0).putInt(0).endBox();
+        w.startFullBox("stco", 0, 0).putInt(0).endBox();
+        w.endBox();  // stbl
+        w.endBox();  // minf
+        w.endBox();  // mdia
+        w.endBox();  // trak
+
+        w.startBox("mvex");
+        w.startFullBox("mehd", 0, 0);
+        mehdDurationPos = w.position();
+        w.putInt(0).endBox();
+        w.startFullBox("trex", 0, 0)
+                .putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0)
+                .endBox();
+        w.endBox();  // mvex
+
+        syncInfoPos = Mp4SyncInfo.writePlaceholder(w);
+
+        w.endBox();  // moov
+
+        writeFully(w.toBuffer(), null);
+    }
+
+    /**
+     * 写出当前分片
+     * @param nextTicks 下一个样本的时间（用于计算最后一个样本的时长），-1 表示未知（关闭时）
+     */
+    private void flushFragment(long nextTicks) throws IOException {
+        Mp4BoxWriter w = headerWriter;
+        w.reset();
+        sequenceNumber++;
+
+        w.startBox("moof");
+        w.startFullBox("mfhd", 0, 0).putInt(sequenceNumber).endBox();
+        w.startBox("traf");
+        w.startFullBox("tfhd", 0, TFHD_FLAGS).putInt(TRACK_ID).endBox();
+        w.startFullBox("tfdt", 1, 0).putLong(nextDecodeTime).endBox();
+        w.startFullBox("trun", 0, TRUN_FLAGS).putInt(sampleCount);
+        int dataOffsetPos = w.position();
+        w.putInt(0);
+        long fragmentDuration = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            long duration;
+            if (i + 1 < sampleCount) {
+                duration = sampleTicks[i + 1] - sampleTicks[i];
+            } else if (nextTicks >= 0) {
+                duration = nextTicks - sampleTicks[i];
+            } else {
+                duration = lastDurationTicks;
+            }
+            if (duration <= 0) {
+                duration = 1;  // 时间戳异常（重复/倒退）时保证时长为正
+            }
+            lastDurationTicks = duration;
+            fragmentDuration += duration;
+            w.putInt((int) duration);
+            w.putInt(sampleSizes[i]);
+            w.putInt(sampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        w.endBox();  // trun
+        w.endBox();  // traf
+        w.endBox();  // moof
+
+        int moofSize = w.position();
+        w.patchInt(dataOffsetPos, moofSize + 8);
+
+        payload.flip();
+        w.putInt(8 + payload.remaining()).putFourCC("mdat");
+
+        writeFully(w.toBuffer(), payload);
+        payload.clear();
+
+        if (syncOnFragment) {
+            channel.force(false);
+        }
+
+        nextDecodeTime += fragmentDuration;
+        samplesWritten += sampleCount;
+        sampleCount = 0;
+        keyFramesInFragment = 0;
+    }
+
+    /**
+     * 把样本追加到分片负载缓冲，Annex-B 转换为 4 字节长度前缀
+     * @return 样本写入后的字节数
+     */
+    private int appendSamplePayload(ByteBuffer data) {
+        final int originalPosition = data.position();
+        final int originalLimit = data.limit();
+        final int startPosition = payload.position();
+        try {
+            if (NalUnits.isAnnexB(data, originalPosition, originalLimit)) {
+                int startCode = NalUnits.findStartCode(data, originalPosition, originalLimit);
+                while (startCode >= 0) {
+                    int nalStart = startCode + NalUnits.startCodeLength(data, startCode);
+                    int next = NalUnits.findStartCode(data, nalStart, originalLimit);
+                    int nalEnd = next >= 0 ? next : originalLimit;
+                    int nalLength = nalEnd - nalStart;
+                    if (nalLength > 0 && !isAccessUnitDelimiter(data.get(nalStart))) {
+                        ensurePayloadCapacity(4 + nalLength);
+                        payload.putInt(nalLength);
+                        data.limit(nalEnd);
+                        data.position(nalStart);
+                        payload.put(data);
+                        data.limit(originalLimit);
+                    }
+                    startCode = next;
+                }
+            } else {
+                ensurePayloadCapacity(originalLimit - originalPosition);
+                payload.put(data);
+            }
+        } finally {
+            data.limit(originalLimit);
+            data.position(originalPosition);
+        }
+        return payload.position() - startPosition;
+    }
+
+    /**
+     * 访问单元分隔符（AUD）在 MP4 中不需要，写入时去掉
+     */
+    private boolean isAccessUnitDelimiter(byte header) {
+        if (avc) {
+            return NalUnits.avcNalType(header) == NalUnits.AVC_NAL_AUD;
+        }
+        return hevc && NalUnits.hevcNalType(header) == NalUnits.HEVC_NAL_AUD;
+    }
+
+    private void ensurePayloadCapacity(int extra) {
+        if (payload.remaining() >= extra) {
+            return;
+        }
+        int newCapacity = Math.max(payload.capacity() * 2, payload.position() + extra);
+        ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity).order(ByteOrder.BIG_ENDIAN);
+        payload.flip();
+        grown.put(payload);
+        payload = grown;
+    }
+
+    private void ensureSampleCapacity(int required) {
+        if (required <= sampleSizes.length) {
+            return;
+        }
+        int newCapacity = Math.max(sampleSizes.length * 2, required);
+        sampleSizes = Arrays.copyOf(sampleSizes, newCapacity);
+        sampleTicks = Arrays.copyOf(sampleTicks, newCapacity);
+        sampleSync = Arrays.copyOf(sampleSync, newCapacity);
+    }
+
+    /**
+     * 顺序追加写入（聚合写：头部 + 负载一次提交）
+     */
+    private void writeFully(ByteBuffer head, ByteBuffer body) throws IOException {
+        long total;
+        if (body == null) {
+            total = head.remaining();
+            while (head.hasRemaining()) {
+                channel.write(head);
+            }
+        } else {
+            total = head.remaining() + body.remaining();
+            gatherBuffers[0] = head;
+            gatherBuffers[1] = body;
+            long written = 0;
+            while (written < total) {
+                written += channel.write(gatherBuffers);
+            }
+            gatherBuffers[0] = null;
+            gatherBuffers[1] = null;
+        }
+        bytesWritten += total;
+    }
+
+    /**
+     * 正常关闭时回填 mvhd/tkhd/mdhd/mehd 中的总时长
+     */
+    private void patchDurations() throws IOException {
+        long mediaDuration = nextDecodeTime;
+        long movieDuration = mediaDuration * Mp4MovieBoxes.MOVIE_TIMESCALE / TIMESCALE;
+        patchFileInt(mvhdDurationPos, movieDuration);
+        patchFileInt(tkhdDurationPos, movieDuration);
+        patchFileInt(mdhdDurationPos, mediaDuration);
+        patchFileInt(mehdDurationPos, movieDuration);
+    }
+
+    private void patchFileInt(long position, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(0, (int) Math.min(value, 0xFFFFFFFFL));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
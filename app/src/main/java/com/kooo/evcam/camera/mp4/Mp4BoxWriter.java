@@ -0,0 +1,178 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ISO BMFF（MP4）Box 序列化工具
+ * 纯 Java 实现，不依赖 Android API，可在 JVM 上直接单元测试
+ *
+ * 用法：startBox / startFullBox 开始一个 Box，写入内容后 endBox 回填 Box 大小，支持嵌套
+ */
+public final class Mp4BoxWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer buffer;
+    private final int[] boxStarts = new int[MAX_DEPTH];
+    private int depth = 0;
+
+    public Mp4BoxWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocate(Math.max(64, initialCapacity)).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * 清空内容（复用底层缓冲区）
+     */
+    public void reset() {
+        buffer.clear();
+        depth = 0;
+    }
+
+    /**
+     * 当前写入位置（即已写入字节数）
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    public Mp4BoxWriter startBox(String type) {
+        if (depth >= MAX_DEPTH) {
+            throw new IllegalStateException("Box nesting too deep");
+        }
+        ensureCapacity(8);
+        boxStarts[depth++] = buffer.position();
+        buffer.putInt(0);  // 大小占位，endBox 时回填
+        putFourCC(type);
+        return this;
+    }
+
+    public Mp4BoxWriter startFullBox(String type, int version, int flags) {
+        startBox(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    public Mp4BoxWriter endBox() {
+        if (depth == 0) {
+            throw new IllegalStateException("endBox without startBox");
+        }
+        int start = boxStarts[--depth];
+        buffer.putInt(start, buffer.position() - start);
+        return this;
+    }
+
+    public Mp4BoxWriter putByte(int value) {
+        ensureCapacity(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public Mp4BoxWriter putShort(int value) {
+        ensureCapacity(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public Mp4BoxWriter putInt(int value) {
+        ensureCapacity(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public Mp4BoxWriter putLong(long value) {
+        ensureCapacity(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public Mp4BoxWriter putBytes(byte[] data) {
+        return putBytes(data, 0, data.length);
+    }
+
+    public Mp4BoxWriter putBytes(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        buffer.put(data, offset, length);
+        return this;
+    }
+
+    public Mp4BoxWriter putZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    public Mp4BoxWriter putFourCC(String fourCC) {
+        if (fourCC.length() != 4) {
+            throw new IllegalArgumentException("Invalid fourCC: " + fourCC);
+        }
+        ensureCapacity(4);
+        buffer.put(fourCC.getBytes(StandardCharsets.US_ASCII));
+        return this;
+    }
+
+    /**
+     * 16.16 定点数
+     */
+    public Mp4BoxWriter putFixed16(double value) {
+        return putInt((int) Math.round(value * 65536.0));
+    }
+
+    /**
+     * 8.8 定点数
+     */
+    public Mp4BoxWriter putFixed8(double value) {
+        return putShort((int) Math.round(value * 256.0));
+    }
+
+    /**
+     * 写入单位变换矩阵（mvhd/tkhd 使用）
+     */
+    public Mp4BoxWriter putUnityMatrix() {
+        putInt(0x00010000).putInt(0).putInt(0);
+        putInt(0).putInt(0x00010000).putInt(0);
+        putInt(0).putInt(0).putInt(0x40000000);
+        return this;
+    }
+
+    /**
+     * 覆盖已写入位置的 32 位值（用于回填偏移量等）
+     */
+    public void patchInt(int position, int value) {
+        buffer.putInt(position, value);
+    }
+
+    /**
+     * 返回已写入内容的只读视图（position=0, limit=已写入长度），不复制数据
+     */
+    public ByteBuffer toBuffer() {
+        ByteBuffer out = buffer.asReadOnlyBuffer();
+        out.flip();
+        return out;
+    }
+
+    /**
+     * 复制已写入内容
+     */
+    public byte[] toByteArray() {
+        ByteBuffer out = toBuffer();
+        byte[] data = new byte[out.remaining()];
+        out.get(data);
+        return data;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() >= extra) {
+            return;
+        }
+        int required = buffer.position() + extra;
+        int newCapacity = Math.max(buffer.capacity() * 2, required);
+        ByteBuffer grown = ByteBuffer.allocate(newCapacity).order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,119 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * moov 中与样本表无关的公共 Box（mvhd/tkhd/mdhd/hdlr/vmhd/dinf/stsd）
+ * 供分片写入器与修复引擎共用，保证两者生成的文件头一致
+ */
+final class Mp4MovieBoxes {
+
+    /** 影片时间刻度（毫秒） */
+    static final int MOVIE_TIMESCALE = 1000;
+
+    private static final long SECONDS_1904_TO_1970 = 2082844800L;
+
+    private Mp4MovieBoxes() {
+    }
+
+    /**
+     * 当前时间（MP4 时间基准：1904-01-01 起的秒数）
+     */
+    static long now() {
+        return System.currentTimeMillis() / 1000 + SECONDS_1904_TO_1970;
+    }
+
+    static void writeFtyp(Mp4BoxWriter w, Mp4TrackFormat format, boolean fragmented) {
+        w.startBox("ftyp").putFourCC("isom").putInt(0x200).putFourCC("isom");
+        if (fragmented) {
+            w.putFourCC("iso6");
+        }
+        w.putFourCC(format.sampleEntryType).putFourCC("mp41").endBox();
+    }
+
+    /**
+     * @return duration 字段的位置（用于回填）
+     */
+    static int writeMvhd(Mp4BoxWriter w, long time, long duration, int nextTrackId) {
+        w.startFullBox("mvhd", 0, 0)
+                .putInt((int) time).putInt((int) time)
+                .putInt(MOVIE_TIMESCALE);
+        int durationPos = w.position();
+        w.putInt((int) duration)
+                .putFixed16(1.0).putFixed8(1.0).putZeros(2 + 8)
+                .putUnityMatrix()
+                .putZeros(24)
+                .putInt(nextTrackId)
+                .endBox();
+        return durationPos;
+    }
+
+    /**
+     * @return duration 字段的位置（用于回填）
+     */
+    static int writeTkhd(Mp4BoxWriter w, long time, int trackId, long duration, int width, int height) {
+        w.startFullBox("tkhd", 0, 0x000003)  // track_enabled | track_in_movie
+                .putInt((int) time).putInt((int) time)
+                .putInt(trackId).putInt(0);
+        int durationPos = w.position();
+        w.putInt((int) duration)
+                .putZeros(8)
+                .putShort(0).putShort(0).putShort(0).putShort(0)  // layer, alternate_group, volume, reserved
+                .putUnityMatrix()
+                .putFixed16(width).putFixed16(height)
+                .endBox();
+        return durationPos;
+    }
+
+    /**
+     * @return duration 字段的位置（用于回填）
+     */
+    static int writeMdhd(Mp4BoxWriter w, long time, int timescale, long duration) {
+        w.startFullBox("mdhd", 0, 0)
+                .putInt((int) time).putInt((int) time)
+                .putInt(timescale);
+        int durationPos = w.position();
+        w.putInt((int) duration)
+                .putShort(0x55C4)  // 'und'
+                .putShort(0)
+                .endBox();
+        return durationPos;
+    }
+
+    static void writeVideoHandler(Mp4BoxWriter w) {
+        w.startFullBox("hdlr", 0, 0)
+                .putInt(0).putFourCC("vide").putZeros(12)
+                .putBytes("VideoHandler".getBytes(StandardCharsets.US_ASCII)).putByte(0)
+                .endBox();
+    }
+
+    /**
+     * vmhd + dinf（minf 中位于 stbl 之前的部分）
+     */
+    static void writeVideoMediaHeaders(Mp4BoxWriter w) {
+        w.startFullBox("vmhd", 0, 1).putShort(0).putZeros(6).endBox();
+        w.startBox("dinf");
+        w.startFullBox("dref", 0, 0).putInt(1);
+        w.startFullBox("url ", 0, 1).endBox();  // 数据在本文件内
+        w.endBox();  // dref
+        w.endBox();  // dinf
+    }
+
+    /**
+     * stsd（单个视频样本入口 + 解码器配置 Box）
+     */
+    static void writeSampleDescription(Mp4BoxWriter w, Mp4TrackFormat format) {
+        w.startFullBox("stsd", 0, 0).putInt(1);
+        w.startBox(format.sampleEntryType)
+                .putZeros(6).putShort(1)                       // reserved + data_reference_index
+                .putShort(0).putShort(0).putZeros(12)          // pre_defined + reserved
+                .putShort(format.width).putShort(format.height)
+                .putInt(0x00480000).putInt(0x00480000)         // 72 dpi
+                .putInt(0).putShort(1)                         // reserved + frame_count
+                .putZeros(32)                                  // compressorname
+                .putShort(0x0018).putShort(0xFFFF);            // depth + pre_defined
+        w.startBox(format.configBoxType).putBytes(format.configPayload).endBox();
+        w.endBox();  // sample entry
+        w.endBox();  // stsd
+    }
+}
@@ -0,0 +1,685 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * MP4 离线修复引擎（针对异常断电留下的截断文件）
+ * 纯 Java 实现，不依赖 Android API，可在 JVM 上直接单元测试
+ *
+ * 支持两种损坏：
+ * 1. MediaMuxer / MediaRecorder 文件：有 mdat 但没有 moov
+ *    扫描 mdat 中的 H.264 / H.265 NAL（4 字节长度前缀），按访问单元重建 stsz/stco/stss/stts，
+ *    使用同机位正常分段的参数集（avcC / hvcC）作为参考，在文件末尾追加新的 moov（原地修复，不复制数据）
+ * 2. 分片 MP4 文件：末尾分片写到一半，截掉不完整的尾部即可
+ *
+ * 内存占用有上限：mdat 通过固定大小的内存映射窗口顺序读取，只读取每个 NAL 的头部，
+ * 内存只与帧数成正比（每帧约 12 字节），与文件大小无关
+ */
+public final class Mp4RepairEngine {
+
+    /** 文件状态 */
+    public enum Status {
+        /** 完整的普通 MP4（有 moov） */
+        OK,
+        /** 分片 MP4（可能需要截掉不完整的尾部） */
+        FRAGMENTED,
+        /** 有 mdat 无 moov，可以修复 */
+        NEEDS_REPAIR,
+        /** 无法识别或没有可恢复的数据 */
+        UNREPAIRABLE
+    }
+
+    private static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+    private static final long DEFAULT_SAMPLE_DURATION_US = 1000000L / 30;
+    static final int MAX_MOOV_SIZE = 16 * 1024 * 1024;  // 读取参考文件 moov 的上限
+    private static final int MAP_WINDOW_SIZE = 8 * 1024 * 1024;  // 内存映射窗口大小
+    private static final int INITIAL_SAMPLE_CAPACITY = 4096;
+
+    private Mp4RepairEngine() {
+    }
+
+    // ===== 检查 =====
+
+    /**
+     * 顶层 Box 扫描结果
+     */
+    public static final class Inspection {
+        public final Status status;
+        public final long fileLength;
+        /** 最后一个完整顶层 Box 的结束位置（分片文件截断修复使用） */
+        public final long validEnd;
+        final long mdatOffset;
+        final int mdatHeaderSize;
+        final long mdatEnd;
+        final long moovOffset;
+        final long moovSize;
+
+        Inspection(Status status, long fileLength, long validEnd, long mdatOffset, int mdatHeaderSize,
+                   long mdatEnd, long moovOffset, long moovSize) {
+            this.status = status;
+            this.fileLength = fileLength;
+            this.validEnd = validEnd;
+            this.mdatOffset = mdatOffset;
+            this.mdatHeaderSize = mdatHeaderSize;
+            this.mdatEnd = mdatEnd;
+            this.moovOffset = moovOffset;
+            this.moovSize = moovSize;
+        }
+
+        /**
+         * 是否需要修复（无 moov，或分片文件尾部不完整）
+         */
+        public boolean needsRepair() {
+            return status == Status.NEEDS_REPAIR || (status == Status.FRAGMENTED && validEnd < fileLength);
+        }
+    }
+
+    /**
+     * 扫描顶层 Box（只读取 Box 头，开销很小）
+     */
+    public static Inspection inspect(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long pos = 0;
+            long validEnd = 0;
+            long mdatOffset = -1;
+            int mdatHeaderSize = 0;
+            long mdatEnd = -1;
+            long moovOffset = -1;
+            long moovSize = 0;
+            boolean hasMoof = false;
+
+            while (pos + 8 <= length) {
+                raf.seek(pos);
+                long size = raf.readInt() & 0xFFFFFFFFL;
+                int type = raf.readInt();
+                int headerSize = 8;
+                if (!isPrintableFourCC(type)) {
+                    break;  // 尾部垃圾数据
+                }
+                if (size == 1) {
+                    if (pos + 16 > length) {
+                        break;
+                    }
+                    size = raf.readLong();
+                    headerSize = 16;
+                    if (size == 0) {
+                        size = length - pos;  // 64 位大小尚未回填（写入中断）
+                    }
+                } else if (size == 0) {
+                    size = length - pos;  // 延伸到文件末尾
+                }
+                if (size < headerSize) {
+                    break;
+                }
+                long boxEnd = pos + size;
+                boolean complete = boxEnd <= length;
+
+                if (type == fourCC("mdat") && mdatOffset < 0) {
+                    mdatOffset = pos;
+                    mdatHeaderSize = headerSize;
+                    mdatEnd = Math.min(boxEnd, length);
+                } else if (type == fourCC("moov") && complete) {
+                    moovOffset = pos;
+                    moovSize = size;
+                } else if (type == fourCC("moof")) {
+                    hasMoof = true;
+                }
+
+                if (!complete) {
+                    break;
+                }
+                // 单独的 moof 没有对应的 mdat 时不算有效结尾
+                if (type != fourCC("moof")) {
+                    validEnd = boxEnd;
+                }
+                pos = boxEnd;
+            }
+
+            Status status;
+            if (moovOffset >= 0) {
+                status = hasMoof ? Status.FRAGMENTED : Status.OK;
+            } else if (mdatOffset >= 0 && mdatEnd - mdatOffset > mdatHeaderSize) {
+                status = Status.NEEDS_REPAIR;
+            } else {
+                status = Status.UNREPAIRABLE;
+            }
+            return new Inspection(status, length, validEnd, mdatOffset, mdatHeaderSize, mdatEnd, moovOffset, moovSize);
+        }
+    }
+
+    // ===== 参考格式 =====
+
+    /**
+     * 从正常分段中提取的参考信息
+     */
+    public static final class Reference {
+        public final Mp4TrackFormat format;
+        public final long sampleDurationUs;
+
+        Reference(Mp4TrackFormat format, long sampleDurationUs) {
+            this.format = format;
+            this.sampleDurationUs = sampleDurationUs;
+        }
+    }
+
+    /**
+     * 从正常的（普通或分片）MP4 中读取 avc1 / hvc1 轨道格式和平均帧时长
+     * @return 参考信息；文件不可用或不是 H.264 / H.265 时返回 null
+     */
+    public static Reference readReference(File file) throws IOException {
+        Inspection inspection = inspect(file);
+        if (inspection.moovOffset < 0 || inspection.moovSize > MAX_MOOV_SIZE) {
+            return null;
+        }
+        byte[] moov = new byte[(int) inspection.moovSize];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(inspection.moovOffset);
+            raf.readFully(moov);
+        }
+
+        int moovEnd = moov.length;
+        int trak = findChild(moov, 8, moovEnd, "trak");
+        while (trak >= 0) {
+            int trakEnd = trak + boxSize(moov, trak);
+            int mdia = findChild(moov, trak + 8, trakEnd, "mdia");
+            Reference reference = mdia >= 0 ? readVideoTrack(moov, mdia) : null;
+            if (reference != null) {
+                return reference;
+            }
+            trak = findChild(moov, trakEnd, moovEnd, "trak");
+        }
+        return null;
+    }
+
+    private static Reference readVideoTrack(byte[] moov, int mdia) {
+        int mdiaEnd = mdia + boxSize(moov, mdia);
+        int mdhd = findChild(moov, mdia + 8, mdiaEnd, "mdhd");
+        int minf = findChild(moov, mdia + 8, mdiaEnd, "minf");
+        if (mdhd < 0 || minf < 0) {
+            return null;
+        }
+        int mdhdVersion = moov[mdhd + 8] & 0xFF;
+        long timescale = readUInt32(moov, mdhd + 12 + (mdhdVersion == 1 ? 16 : 8));
+
+        int minfEnd = minf + boxSize(moov, minf);
+        int stbl = findChild(moov, minf + 8, minfEnd, "stbl");
+        if (stbl < 0) {
+            return null;
+        }
+        int stblEnd = stbl + boxSize(moov, stbl);
+        int stsd = findChild(moov, stbl + 8, stblEnd, "stsd");
+        if (stsd < 0) {
+            return null;
+        }
+        // stsd: 头(8) + version/flags(4) + entry_count(4)，随后是第一个样本入口
+        int entry = stsd + 16;
+        if (entry + 8 + 78 > stsd + boxSize(moov, stsd)) {
+            return null;
+        }
+        String entryType = typeAt(moov, entry);
+        String configType;
+        if ("avc1".equals(entryType)) {
+            configType = "avcC";
+        } else if ("hvc1".equals(entryType) || "hev1".equals(entryType)) {
+            configType = "hvcC";
+        } else {
+            return null;
+        }
+        int entryEnd = entry + boxSize(moov, entry);
+        int width = readUInt16(moov, entry + 8 + 24);
+        int height = readUInt16(moov, entry + 8 + 26);
+        int configBox = findChild(moov, entry + 8 + 78, entryEnd, configType);
+        if (configBox < 0) {
+            return null;
+        }
+        byte[] config = Arrays.copyOfRange(moov, configBox + 8, configBox + boxSize(moov, configBox));
+        Mp4TrackFormat format = new Mp4TrackFormat(entryType, configType, config, width, height);
+
+        // 平均帧时长（分片文件的 stts 为空，使用默认 30fps）
+        long sampleDurationUs = DEFAULT_SAMPLE_DURATION_US;
+        int stts = findChild(moov, stbl + 8, stblEnd, "stts");
+        if (stts >= 0 && timescale > 0) {
+            int entryCount = (int) readUInt32(moov, stts + 12);
+            long samples = 0;
+            long ticks = 0;
+            for (int i = 0; i < entryCount && stts + 16 + i * 8 + 8 <= stblEnd; i++) {
+                long count = readUInt32(moov, stts + 16 + i * 8);
+                long delta = readUInt32(moov, stts + 20 + i * 8);
+                samples += count;
+                ticks += count * delta;
+            }
+            if (samples > 0 && ticks > 0) {
+                sampleDurationUs = ticks * 1000000L / timescale / samples;
+            }
+        }
+        return new Reference(format, sampleDurationUs);
+    }
+
+    // ===== 修复 =====
+
+    /**
+     * 修复结果
+     */
+    public static final class Result {
+        public final boolean repaired;
+        /** 文件中没有任何可恢复的数据（可以删除） */
+        public final boolean unrecoverable;
+        public final int sampleCount;
+        public final int keyFrameCount;
+        public final long durationMs;
+        public final String message;
+
+        Result(boolean repaired, boolean unrecoverable, int sampleCount, int keyFrameCount, long durationMs, String message) {
+            this.repaired = repaired;
+            this.unrecoverable = unrecoverable;
+            this.sampleCount = sampleCount;
+            this.keyFrameCount = keyFrameCount;
+            this.durationMs = durationMs;
+            this.message = message;
+        }
+
+        static Result failed(String message) {
+            return new Result(false, false, 0, 0, 0, message);
+        }
+
+        static Result unrecoverable(String message) {
+            return new Result(false, true, 0, 0, 0, message);
+        }
+    }
+
+    /**
+     * 原地修复文件
+     * @param file 待修复文件
+     * @param reference 参考格式（同机位正常分段），仅修复无 moov 的文件时需要
+     */
+    public static Result repair(File file, Reference reference) throws IOException {
+        Inspection inspection = inspect(file);
+        switch (inspection.status) {
+            case FRAGMENTED:
+                return truncateFragmentTail(file, inspection);
+            case NEEDS_REPAIR:
+                if (reference == null) {
+                    return Result.failed("no reference format");
+                }
+                return rebuildMoov(file, inspection, reference);
+            case OK:
+                return Result.failed("file is intact");
+            default:
+                return Result.unrecoverable("no media data");
+        }
+    }
+
+    /**
+     * 分片文件：截掉不完整的尾部分片
+     */
+    private static Result truncateFragmentTail(File file, Inspection inspection) throws IOException {
+        if (inspection.validEnd >= inspection.fileLength) {
+            return Result.failed("file is intact");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(inspection.validEnd);
+            channel.force(true);
+        }
+        return new Result(true, false, 0, 0, 0,
+                "truncated incomplete fragment (" + (inspection.fileLength - inspection.validEnd) + " bytes)");
+    }
+
+    /**
+     * 无 moov 文件：扫描 mdat 重建样本表并追加 moov
+     */
+    private static Result rebuildMoov(File file, Inspection inspection, Reference reference) throws IOException {
+        SampleTable table = new SampleTable();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            MappedReader reader = new MappedReader(channel, inspection.fileLength);
+            long mdatStart = inspection.mdatOffset + inspection.mdatHeaderSize;
+            if (reference.format.isHevc()) {
+                scanHevcAccessUnits(reader, mdatStart, inspection.mdatEnd, table);
+            } else {
+                scanAccessUnits(reader, mdatStart, inspection.mdatEnd, table);
+            }
+            reader.close();
+
+            if (table.count == 0 || table.syncCount == 0) {
+                return Result.unrecoverable("no decodable frames in mdat");
+            }
+
+            long dataEnd = table.offsets[table.count - 1] + table.sizes[table.count - 1];
+            long mdatSize = dataEnd - inspection.mdatOffset;
+            if (inspection.mdatHeaderSize == 8 && mdatSize > 0xFFFFFFFFL) {
+                return Result.failed("mdat too large for 32-bit header");
+            }
+
+            long sampleDelta = Math.max(1, reference.sampleDurationUs * TIMESCALE / 1000000L);
+            ByteBuffer moov = buildMoov(reference.format, table, sampleDelta);
+
+            // 截掉尾部残缺数据 → 追加 moov → 回填 mdat 大小 → 落盘
+            channel.truncate(dataEnd);
+            long writePos = dataEnd;
+            while (moov.hasRemaining()) {
+                writePos += channel.write(moov, writePos);
+            }
+            ByteBuffer sizeField = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            if (inspection.mdatHeaderSize == 16) {
+                sizeField.putLong(0, mdatSize);
+                writeFully(channel, sizeField, inspection.mdatOffset + 8);
+            } else {
+                sizeField.putInt(0, (int) mdatSize);
+                sizeField.limit(4);
+                writeFully(channel, sizeField, inspection.mdatOffset);
+            }
+            channel.force(true);
+
+            long durationMs = table.count * sampleDelta * 1000L / TIMESCALE;
+            return new Result(true, false, table.count, table.syncCount, durationMs,
+                    "rebuilt moov: " + table.count + " frames, " + table.syncCount + " key frames, "
+                            + (inspection.fileLength - dataEnd) + " tail bytes dropped");
+        }
+    }
+
+    /**
+     * 扫描 mdat 中的长度前缀 NAL，按访问单元（帧）划分样本
+     * 遇到非法 NAL（通常是断电时写了一半的尾部）即停止
+     */
+    private static void scanAccessUnits(MappedReader reader, long start, long end, SampleTable table) throws IOException {
+        long pos = start;
+        long unitStart = -1;
+        long unitSize = 0;
+        boolean unitHasSlice = false;
+        boolean unitIsKey = false;
+
+        while (pos + 5 <= end) {
+            long nalLength = reader.readInt(pos) & 0xFFFFFFFFL;
+            if (nalLength == 0 || nalLength > end - pos - 4) {
+                break;
+            }
+            int header = reader.readByte(pos + 4) & 0xFF;
+            int type = header & 0x1F;
+            if ((header & 0x80) != 0 || type == 0 || type > 23) {
+                break;
+            }
+
+            boolean slice = type == NalUnits.AVC_NAL_SLICE || type == NalUnits.AVC_NAL_IDR;
+            boolean startsNewUnit;
+            if (slice) {
+                // first_mb_in_slice == 0（ue(v) 编码的第一位为 1）表示新的一帧
+                boolean firstSlice = nalLength >= 2 && (reader.readByte(pos + 5) & 0x80) != 0;
+                startsNewUnit = unitHasSlice && firstSlice;
+            } else {
+                // SEI/SPS/PPS/AUD 及其他非 VCL NAL 只能出现在一帧的第一个 slice 之前
+                startsNewUnit = unitHasSlice && (type == NalUnits.AVC_NAL_SEI || type == NalUnits.AVC_NAL_SPS
+                        || type == NalUnits.AVC_NAL_PPS || type == NalUnits.AVC_NAL_AUD
+                        || (type >= 14 && type <= 18));
+            }
+            if (startsNewUnit) {
+                table.add(unitStart, (int) unitSize, unitIsKey);
+                unitStart = -1;
+                unitSize = 0;
+                unitHasSlice = false;
+                unitIsKey = false;
+            }
+            if (unitStart < 0) {
+                unitStart = pos;
+            }
+            unitSize += 4 + nalLength;
+            unitHasSlice |= slice;
+            unitIsKey |= type == NalUnits.AVC_NAL_IDR;
+            pos += 4 + nalLength;
+        }
+        // 最后一帧：只有包含 slice 的才是完整帧
+        if (unitHasSlice) {
+            table.add(unitStart, (int) unitSize, unitIsKey);
+        }
+    }
+
+    /**
+     * 扫描 mdat 中的 H.265 长度前缀 NAL，按访问单元划分样本（规则同 scanAccessUnits）
+     */
+    private static void scanHevcAccessUnits(MappedReader reader, long start, long end, SampleTable table) throws IOException {
+        long pos = start;
+        long unitStart = -1;
+        long unitSize = 0;
+        boolean unitHasSlice = false;
+        boolean unitIsKey = false;
+
+        while (pos + 7 <= end) {
+            long nalLength = reader.readInt(pos) & 0xFFFFFFFFL;
+            if (nalLength < 3 || nalLength > end - pos - 4) {
+                break;
+            }
+            int header = reader.readByte(pos + 4) & 0xFF;
+            int header2 = reader.readByte(pos + 5) & 0xFF;
+            int type = (header >> 1) & 0x3F;
+            // forbidden_zero_bit 必须为 0，nuh_temporal_id_plus1 不能为 0，保留的 VCL 类型视为非法
+            if ((header & 0x80) != 0 || (header2 & 0x07) == 0 || (type >= 10 && type <= 15) || (type >= 24 && type <= 31)) {
+                break;
+            }
+
+            boolean slice = type < 32;
+            boolean startsNewUnit;
+            if (slice) {
+                // first_slice_segment_in_pic_flag（slice 头第一位）为 1 表示新的一帧
+                boolean firstSlice = (reader.readByte(pos + 6) & 0x80) != 0;
+                startsNewUnit = unitHasSlice && firstSlice;
+            } else {
+                // VPS/SPS/PPS/AUD/前缀 SEI 等只能出现在一帧的第一个 slice 之前（后缀 SEI 除外）
+                startsNewUnit = unitHasSlice && (type == NalUnits.HEVC_NAL_VPS || type == NalUnits.HEVC_NAL_SPS
+                        || type == NalUnits.HEVC_NAL_PPS || type == NalUnits.HEVC_NAL_AUD
+                        || type == NalUnits.HEVC_NAL_PREFIX_SEI || (type >= 41 && type <= 44) || (type >= 48 && type <= 55));
+            }
+            if (startsNewUnit) {
+                table.add(unitStart, (int) unitSize, unitIsKey);
+                unitStart = -1;
+                unitSize = 0;
+                unitHasSlice = false;
+                unitIsKey = false;
+            }
+            if (unitStart < 0) {
+                unitStart = pos;
+            }
+            unitSize += 4 + nalLength;
+            unitHasSlice |= slice;
+            unitIsKey |= type >= NalUnits.HEVC_NAL_BLA_W_LP && type <= NalUnits.HEVC_NAL_RSV_IRAP_23;
+            pos += 4 + nalLength;
+        }
+        if (unitHasSlice) {
+            table.add(unitStart, (int) unitSize, unitIsKey);
+        }
+    }
+
+    private static ByteBuffer buildMoov(Mp4TrackFormat format, SampleTable table, long sampleDelta) {
+        long mediaDuration = table.count * sampleDelta;
+        long movieDuration = mediaDuration * Mp4MovieBoxes.MOVIE_TIMESCALE / TIMESCALE;
+        boolean use64BitOffsets = table.offsets[table.count - 1] > 0xFFFFFFFFL;
+        long now = Mp4MovieBoxes.now();
+
+        Mp4BoxWriter w = new Mp4BoxWriter(1024 + table.count * (use64BitOffsets ? 12 : 8) + table.syncCount * 4);
+        w.startBox("moov");
+        Mp4MovieBoxes.writeMvhd(w, now, movieDuration, TRACK_ID + 1);
+        w.startBox("trak");
+        Mp4MovieBoxes.writeTkhd(w, now, TRACK_ID, movieDuration, format.width, format.height);
+        w.startBox("mdia");
+        Mp4MovieBoxes.writeMdhd(w, now, TIMESCALE, mediaDuration);
+        Mp4MovieBoxes.writeVideoHandler(w);
+        w.startBox("minf");
+        Mp4MovieBoxes.writeVideoMediaHeaders(w);
+        w.startBox("stbl");
+        Mp4MovieBoxes.writeSampleDescription(w, format);
+
+        // stts：原始时间戳已丢失，按参考帧率等间隔
+        w.startFullBox("stts", 0, 0).putInt(1).putInt(table.count).putInt((int) sampleDelta).endBox();
+
+        w.startFullBox("stss", 0, 0).putInt(table.syncCount);
+        for (int i = 0; i < table.syncCount; i++) {
+            w.putInt(table.syncSamples[i]);
+        }
+        w.endBox();
+
+        // 每个样本单独成块，避免依赖原始的块划分
+        w.startFullBox("stsc", 0, 0).putInt(1).putInt(1).putInt(1).putInt(1).endBox();
+
+        w.startFullBox("stsz", 0, 0).putInt(0).putInt(table.count);
+        for (int i = 0; i < table.count; i++) {
+            w.putInt(table.sizes[i]);
+        }
+        w.endBox();
+
+        if (use64BitOffsets) {
+            w.startFullBox("co64", 0, 0).putInt(table.count);
+            for (int i = 0; i < table.count; i++) {
+                w.putLong(table.offsets[i]);
+            }
+        } else {
+            w.startFullBox("stco", 0, 0).putInt(table.count);
+            for (int i = 0; i < table.count; i++) {
+                w.putInt((int) table.offsets[i]);
+            }
+        }
+        w.endBox();
+
+        w.endBox();  // stbl
+        w.endBox();  // minf
+        w.endBox();  // mdia
+        w.endBox();  // trak
+        w.endBox();  // moov
+        return w.toBuffer();
+    }
+
+    // ===== 工具 =====
+
+    /**
+     * 样本表（基本类型数组，按需扩容）
+     */
+    private static final class SampleTable {
+        long[] offsets = new long[INITIAL_SAMPLE_CAPACITY];
+        int[] sizes = new int[INITIAL_SAMPLE_CAPACITY];
+        int[] syncSamples = new int[INITIAL_SAMPLE_CAPACITY / 16];
+        int count = 0;
+        int syncCount = 0;
+
+        void add(long offset, int size, boolean sync) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            count++;
+            if (sync) {
+                if (syncCount == syncSamples.length) {
+                    syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                }
+                syncSamples[syncCount++] = count;  // stss 中样本序号从 1 开始
+            }
+        }
+    }
+
+    /**
+     * 基于固定大小内存映射窗口的顺序读取器
+     */
+    private static final class MappedReader {
+        private final FileChannel channel;
+        private final long fileLength;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedReader(FileChannel channel, long fileLength) {
+            this.channel = channel;
+            this.fileLength = fileLength;
+        }
+
+        int readInt(long position) throws IOException {
+            ensureMapped(position, 4);
+            return window.getInt((int) (position - windowStart));
+        }
+
+        byte readByte(long position) throws IOException {
+            ensureMapped(position, 1);
+            return window.get((int) (position - windowStart));
+        }
+
+        private void ensureMapped(long position, int length) throws IOException {
+            if (window != null && position >= windowStart && position + length <= windowStart + window.limit()) {
+                return;
+            }
+            long size = Math.min(MAP_WINDOW_SIZE, fileLength - position);
+            if (size < length) {
+                throw new IOException("Read beyond end of file at " + position);
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            window.order(ByteOrder.BIG_ENDIAN);
+            windowStart = position;
+        }
+
+        void close() {
+            window = null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static boolean isPrintableFourCC(int type) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int c = (type >> shift) & 0xFF;
+            if (c < 0x20 || c > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在 [from, to) 范围内查找指定类型的子 Box
+     * @return Box 起始位置，找不到返回 -1
+     */
+    static int findChild(byte[] data, int from, int to, String type) {
+        int pos = from;
+        while (pos + 8 <= to) {
+            int size = boxSize(data, pos);
+            if (size < 8 || pos + size > to) {
+                return -1;
+            }
+            if (type.equals(typeAt(data, pos))) {
+                return pos;
+            }
+            pos += size;
+        }
+        return -1;
+    }
+
+    static int boxSize(byte[] data, int pos) {
+        return (int) readUInt32(data, pos);
+    }
+
+    private static String typeAt(byte[] data, int pos) {
+        return new String(data, pos + 4, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static long readUInt32(byte[] data, int pos) {
+        return ((data[pos] & 0xFFL) << 24) | ((data[pos + 1] & 0xFFL) << 16)
+                | ((data[pos + 2] & 0xFFL) << 8) | (data[pos + 3] & 0xFFL);
+    }
+
+    private static int readUInt16(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+}
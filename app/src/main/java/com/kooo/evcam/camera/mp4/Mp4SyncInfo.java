@@ -0,0 +1,107 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 多路录制同步信息（写在 moov/udta 下的自定义 Box 'evsy'）
+ * 纯 Java 实现，不依赖 Android API
+ *
+ * 同一次录制中所有摄像头共用一个单调时钟原点，每个分段记录：
+ * - originNs：会话原点（传感器时间戳时基，纳秒）
+ * - originWallTimeMs：原点对应的系统时间（毫秒，用于显示）
+ * - startOffsetUs：本文件时间 0 对应的会话时间（微秒）
+ *
+ * 回放时两路文件的画面对齐偏移 = 两者 startOffsetUs 之差（originNs 相同时才可比较）
+ *
+ * Box 布局：FullBox(version=0, flags=0) + originNs(int64) + originWallTimeMs(int64) + startOffsetUs(int64)
+ */
+public final class Mp4SyncInfo {
+
+    /** Box 类型 */
+    public static final String BOX_TYPE = "evsy";
+
+    private static final int PAYLOAD_SIZE = 24;
+
+    public final long originNs;
+    public final long originWallTimeMs;
+    public final long startOffsetUs;
+
+    public Mp4SyncInfo(long originNs, long originWallTimeMs, long startOffsetUs) {
+        this.originNs = originNs;
+        this.originWallTimeMs = originWallTimeMs;
+        this.startOffsetUs = startOffsetUs;
+    }
+
+    /**
+     * 是否与另一个文件属于同一录制会话（可以按 startOffsetUs 对齐）
+     */
+    public boolean isSameSession(Mp4SyncInfo other) {
+        return other != null && originNs == other.originNs;
+    }
+
+    /**
+     * 写入 udta/evsy 占位（字段全为 0，首个样本写入前回填）
+     * @return 字段起始位置（用于回填）
+     */
+    static int writePlaceholder(Mp4BoxWriter w) {
+        w.startBox("udta");
+        w.startFullBox(BOX_TYPE, 0, 0);
+        int fieldsPos = w.position();
+        w.putZeros(PAYLOAD_SIZE).endBox();
+        w.endBox();  // udta
+        return fieldsPos;
+    }
+
+    /**
+     * 编码字段（与 writePlaceholder 的占位布局一致）
+     */
+    ByteBuffer toFields() {
+        ByteBuffer buffer = ByteBuffer.allocate(PAYLOAD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        buffer.putLong(originNs).putLong(originWallTimeMs).putLong(startOffsetUs);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从 MP4 文件读取同步信息
+     * @return 同步信息；文件没有 evsy Box 或尚未回填时返回 null
+     */
+    public static Mp4SyncInfo read(File file) throws IOException {
+        Mp4RepairEngine.Inspection inspection = Mp4RepairEngine.inspect(file);
+        if (inspection.moovOffset < 0 || inspection.moovSize > Mp4RepairEngine.MAX_MOOV_SIZE) {
+            return null;
+        }
+        byte[] moov = new byte[(int) inspection.moovSize];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(inspection.moovOffset);
+            raf.readFully(moov);
+        }
+
+        int udta = Mp4RepairEngine.findChild(moov, 8, moov.length, "udta");
+        if (udta < 0) {
+            return null;
+        }
+        int udtaEnd = udta + Mp4RepairEngine.boxSize(moov, udta);
+        int box = Mp4RepairEngine.findChild(moov, udta + 8, udtaEnd, BOX_TYPE);
+        if (box < 0 || Mp4RepairEngine.boxSize(moov, box) < 12 + PAYLOAD_SIZE) {
+            return null;
+        }
+        ByteBuffer fields = ByteBuffer.wrap(moov, box + 12, PAYLOAD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        long originNs = fields.getLong();
+        long originWallTimeMs = fields.getLong();
+        long startOffsetUs = fields.getLong();
+        if (originNs == 0 && originWallTimeMs == 0) {
+            return null;  // 占位未回填（还没有写入样本）
+        }
+        return new Mp4SyncInfo(originNs, originWallTimeMs, startOffsetUs);
+    }
+
+    @Override
+    public String toString() {
+        return "origin=" + originNs + "ns (wall " + originWallTimeMs + "ms), start=" + startOffsetUs + "us";
+    }
+}
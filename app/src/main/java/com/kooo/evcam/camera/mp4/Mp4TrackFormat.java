@@ -0,0 +1,113 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * MP4 视频轨道描述（样本入口类型 + 解码器配置 Box）
+ * 纯 Java 实现，从 SPS/PPS 构建 avcC，从 VPS/SPS/PPS 构建 hvcC
+ */
+public final class Mp4TrackFormat {
+
+    /** 样本入口类型，例如 "avc1"、"hvc1" */
+    public final String sampleEntryType;
+    /** 解码器配置 Box 类型，例如 "avcC"、"hvcC" */
+    public final String configBoxType;
+    /** 解码器配置 Box 的负载（不含 Box 头） */
+    public final byte[] configPayload;
+    public final int width;
+    public final int height;
+
+    public Mp4TrackFormat(String sampleEntryType, String configBoxType, byte[] configPayload, int width, int height) {
+        this.sampleEntryType = sampleEntryType;
+        this.configBoxType = configBoxType;
+        this.configPayload = configPayload;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * 由 H.264 SPS/PPS（不含起始码）构建 avc1 轨道格式
+     */
+    public static Mp4TrackFormat avc(int width, int height, byte[] sps, byte[] pps) {
+        if (sps == null || sps.length < 4 || pps == null || pps.length == 0) {
+            throw new IllegalArgumentException("Invalid SPS/PPS");
+        }
+        int profileIdc = sps[1] & 0xFF;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + sps.length + pps.length);
+        out.write(1);                 // configurationVersion
+        out.write(profileIdc);        // AVCProfileIndication
+        out.write(sps[2] & 0xFF);     // profile_compatibility
+        out.write(sps[3] & 0xFF);     // AVCLevelIndication
+        out.write(0xFF);              // reserved(6) + lengthSizeMinusOne(2) = 3，即 4 字节长度前缀
+        out.write(0xE1);              // reserved(3) + numOfSequenceParameterSets(5) = 1
+        out.write((sps.length >> 8) & 0xFF);
+        out.write(sps.length & 0xFF);
+        out.write(sps, 0, sps.length);
+        out.write(1);                 // numOfPictureParameterSets
+        out.write((pps.length >> 8) & 0xFF);
+        out.write(pps.length & 0xFF);
+        out.write(pps, 0, pps.length);
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 144) {
+            // High 系列 profile 的扩展字段（硬件编码器输出固定为 4:2:0 8bit）
+            out.write(0xFC | 1);      // chroma_format_idc = 1
+            out.write(0xF8);          // bit_depth_luma_minus8 = 0
+            out.write(0xF8);          // bit_depth_chroma_minus8 = 0
+            out.write(0);             // numOfSequenceParameterSetExt
+        }
+        return new Mp4TrackFormat("avc1", "avcC", out.toByteArray(), width, height);
+    }
+
+    /**
+     * 由 H.265 VPS/SPS/PPS（不含起始码）构建 hvc1 轨道格式
+     * 参数集只放在 hvcC 中（hvc1），profile/tier/level 从 SPS 的 profile_tier_level 中读取
+     */
+    public static Mp4TrackFormat hevc(int width, int height, byte[] vps, byte[] sps, byte[] pps) {
+        if (vps == null || vps.length == 0 || sps == null || pps == null || pps.length == 0) {
+            throw new IllegalArgumentException("Invalid VPS/SPS/PPS");
+        }
+        // SPS RBSP：NAL 头(2) + sps_video_parameter_set_id(4) / max_sub_layers_minus1(3) / temporal_id_nesting(1)
+        // 随后是 general_profile_tier_level 的前 12 字节
+        byte[] rbsp = NalUnits.unescapeRbsp(sps, 15);
+        if (rbsp.length < 15) {
+            throw new IllegalArgumentException("SPS too short");
+        }
+        int maxSubLayersMinus1 = (rbsp[2] >> 1) & 0x07;
+        int temporalIdNesting = rbsp[2] & 0x01;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + vps.length + sps.length + pps.length);
+        out.write(1);                 // configurationVersion
+        out.write(rbsp, 3, 12);       // profile_space/tier/profile_idc + compatibility(32) + constraint(48) + level_idc
+        out.write(0xF0);              // reserved(4) + min_spatial_segmentation_idc(12) = 0
+        out.write(0x00);
+        out.write(0xFC);              // reserved(6) + parallelismType(2) = 0
+        out.write(0xFD);              // reserved(6) + chromaFormat(2) = 1（4:2:0）
+        out.write(0xF8);              // reserved(5) + bitDepthLumaMinus8(3) = 0
+        out.write(0xF8);              // reserved(5) + bitDepthChromaMinus8(3) = 0
+        out.write(0);                 // avgFrameRate(16) = 0（未指定）
+        out.write(0);
+        // constantFrameRate(2) + numTemporalLayers(3) + temporalIdNested(1) + lengthSizeMinusOne(2) = 3
+        out.write(((maxSubLayersMinus1 + 1) << 3) | (temporalIdNesting << 2) | 3);
+        out.write(3);                 // numOfArrays
+        writeHevcNalArray(out, NalUnits.HEVC_NAL_VPS, vps);
+        writeHevcNalArray(out, NalUnits.HEVC_NAL_SPS, sps);
+        writeHevcNalArray(out, NalUnits.HEVC_NAL_PPS, pps);
+        return new Mp4TrackFormat("hvc1", "hvcC", out.toByteArray(), width, height);
+    }
+
+    /**
+     * 是否为 H.265 轨道
+     */
+    public boolean isHevc() {
+        return "hvc1".equals(sampleEntryType) || "hev1".equals(sampleEntryType);
+    }
+
+    private static void writeHevcNalArray(ByteArrayOutputStream out, int nalType, byte[] nal) {
+        out.write(0x80 | nalType);    // array_completeness = 1 + reserved(1) + NAL_unit_type(6)
+        out.write(0);                 // numNalus = 1
+        out.write(1);
+        out.write((nal.length >> 8) & 0xFF);
+        out.write(nal.length & 0xFF);
+        out.write(nal, 0, nal.length);
+    }
+}
@@ -0,0 +1,141 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * H.264 / H.265 NAL 单元工具（Annex-B 起始码扫描等）
+ * 纯 Java 实现，扫描过程不分配内存
+ */
+public final class NalUnits {
+
+    // H.264 NAL 类型
+    public static final int AVC_NAL_SLICE = 1;
+    public static final int AVC_NAL_IDR = 5;
+    public static final int AVC_NAL_SEI = 6;
+    public static final int AVC_NAL_SPS = 7;
+    public static final int AVC_NAL_PPS = 8;
+    public static final int AVC_NAL_AUD = 9;
+
+    // H.265 NAL 类型
+    public static final int HEVC_NAL_BLA_W_LP = 16;  // IRAP（关键帧）范围起点
+    public static final int HEVC_NAL_RSV_IRAP_23 = 23;  // IRAP 范围终点
+    public static final int HEVC_NAL_VPS = 32;
+    public static final int HEVC_NAL_SPS = 33;
+    public static final int HEVC_NAL_PPS = 34;
+    public static final int HEVC_NAL_AUD = 35;
+    public static final int HEVC_NAL_PREFIX_SEI = 39;
+    public static final int HEVC_NAL_SUFFIX_SEI = 40;
+
+    private NalUnits() {
+    }
+
+    /**
+     * 在 [from, limit) 范围内查找下一个起始码（00 00 01 或 00 00 00 01）
+     * @return 起始码第一个字节的绝对位置，找不到时返回 -1
+     */
+    public static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0) {
+                byte b2 = data.get(i + 2);
+                if (b2 == 1) {
+                    return i;
+                }
+                if (b2 == 0 && i + 3 < limit && data.get(i + 3) == 1) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 起始码长度（3 或 4），position 必须是 findStartCode 的返回值
+     */
+    public static int startCodeLength(ByteBuffer data, int position) {
+        return data.get(position + 2) == 1 ? 3 : 4;
+    }
+
+    /**
+     * 判断数据是否为 Annex-B 格式（以起始码开头）
+     */
+    public static boolean isAnnexB(ByteBuffer data, int offset, int limit) {
+        if (limit - offset < 4) {
+            return false;
+        }
+        if (data.get(offset) != 0 || data.get(offset + 1) != 0) {
+            return false;
+        }
+        byte b2 = data.get(offset + 2);
+        return b2 == 1 || (b2 == 0 && data.get(offset + 3) == 1);
+    }
+
+    /**
+     * H.264 NAL 类型（NAL 头字节的低 5 位）
+     */
+    public static int avcNalType(byte header) {
+        return header & 0x1F;
+    }
+
+    /**
+     * H.265 NAL 类型（两字节 NAL 头第一个字节的第 1~6 位）
+     */
+    public static int hevcNalType(byte header) {
+        return (header >> 1) & 0x3F;
+    }
+
+    /**
+     * 去掉 NAL 负载中的防竞争字节（00 00 03 -> 00 00），得到 RBSP
+     * 只处理前 maxBytes 个输出字节（解析 SPS 头部字段时不需要整个负载）
+     */
+    public static byte[] unescapeRbsp(byte[] nal, int maxBytes) {
+        byte[] out = new byte[Math.min(nal.length, maxBytes)];
+        int length = 0;
+        int zeros = 0;
+        for (int i = 0; i < nal.length && length < out.length; i++) {
+            int b = nal[i] & 0xFF;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            out[length++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    /**
+     * 把 Annex-B 数据拆分为 NAL 负载（不含起始码）
+     * 仅用于编解码器配置（csd）等低频场景，会分配内存
+     */
+    public static List<byte[]> splitAnnexB(byte[] data) {
+        List<byte[]> result = new ArrayList<>();
+        if (data == null || data.length == 0) {
+            return result;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (!isAnnexB(buffer, 0, data.length)) {
+            result.add(data.clone());
+            return result;
+        }
+        int start = findStartCode(buffer, 0, data.length);
+        while (start >= 0) {
+            int payloadStart = start + startCodeLength(buffer, start);
+            int next = findStartCode(buffer, payloadStart, data.length);
+            int payloadEnd = next >= 0 ? next : data.length;
+            // 去掉下一个起始码之前的尾随 0（trailing_zero_8bits）
+            while (payloadEnd > payloadStart && data[payloadEnd - 1] == 0 && next >= 0) {
+                payloadEnd--;
+            }
+            if (payloadEnd > payloadStart) {
+                byte[] nal = new byte[payloadEnd - payloadStart];
+                System.arraycopy(data, payloadStart, nal, 0, nal.length);
+                result.add(nal);
+            }
+            start = next;
+        }
+        return result;
+    }
+}
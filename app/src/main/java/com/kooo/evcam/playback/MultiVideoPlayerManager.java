@@ -114,6 +114,15 @@ public class MultiVideoPlayerManager {
             return;
         }
 
+        // 拼接录制：只有一个合成文件，直接在单路 VideoView 中播放
+        if (group.isMosaic()) {
+            totalVideos = 1;
+            isSingleMode = true;
+            singleModePosition = VideoGroup.POSITION_MOSAIC;
+            loadVideoIfExists(VideoGroup.POSITION_MOSAIC, group.getVideoFile(VideoGroup.POSITION_MOSAIC), videoSingle);
+            return;
+        }
+
         // 统计要加载的视频数量
         if (group.hasVideo(VideoGroup.POSITION_FRONT)) totalVideos++;
         if (group.hasVideo(VideoGroup.POSITION_BACK)) totalVideos++;
@@ -1,5 +1,7 @@
 package com.kooo.evcam.playback;
 
+import com.kooo.evcam.StorageHelper;
+
 import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -44,10 +46,17 @@ public class PhotoGroup {
      * 添加图片文件到分组
      */
     public void addFile(File file) {
+        addFile(file, file.length());
+    }
+
+    /**
+     * 添加图片文件到分组（大小已知，不访问文件）
+     */
+    public void addFile(File file, long size) {
         String position = extractPosition(file.getName());
         if (position != null) {
             photoFiles.put(position, file);
-            totalSize += file.length();
+            totalSize += size;
         }
     }
 
@@ -185,6 +194,8 @@ public class PhotoGroup {
         for (File file : photoFiles.values()) {
             if (file.delete()) {
                 deleted++;
+                // 按日期分层存储时，一天的文件删完后移除空目录
+                StorageHelper.deleteEmptyShardDirs(file.getParentFile());
             }
         }
         if (deleted > 0) {
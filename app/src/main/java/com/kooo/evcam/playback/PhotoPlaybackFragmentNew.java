@@ -29,6 +29,7 @@ import android.widget.PopupMenu;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.kooo.evcam.MainActivity;
+import com.kooo.evcam.MediaIndex;
 import com.kooo.evcam.R;
 import com.kooo.evcam.StorageHelper;
 
@@ -441,26 +442,28 @@ public class PhotoPlaybackFragmentNew extends Fragment {
             return;
         }
 
-        File[] files = saveDir.listFiles((dir, name) -> {
-            String lower = name.toLowerCase();
-            return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png");
-        });
-
-        if (files == null || files.length == 0) {
-            showEmptyState();
-            return;
-        }
+        // 从媒体索引读取文件名和大小，不逐个访问文件
+        List<MediaIndex.Entry> files = MediaIndex.getInstance(getContext()).list(saveDir);
 
         // 第一步：按时间戳分组（同一秒拍摄的多路图片）
         Map<String, PhotoGroup> groupMap = new HashMap<>();
-        for (File file : files) {
-            String timestamp = PhotoGroup.extractTimestampPrefix(file.getName());
+        for (MediaIndex.Entry entry : files) {
+            String lower = entry.getName().toLowerCase();
+            if (!lower.endsWith(".jpg") && !lower.endsWith(".jpeg") && !lower.endsWith(".png")) {
+                continue;
+            }
+            String timestamp = PhotoGroup.extractTimestampPrefix(entry.getName());
             PhotoGroup group = groupMap.get(timestamp);
             if (group == null) {
                 group = new PhotoGroup(timestamp);
                 groupMap.put(timestamp, group);
             }
-            group.addFile(file);
+            group.addFile(entry.file, entry.size);
+        }
+
+        if (groupMap.isEmpty()) {
+            showEmptyState();
+            return;
         }
 
         // 转为列表并排序（最新的在前）
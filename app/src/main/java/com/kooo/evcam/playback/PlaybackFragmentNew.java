@@ -26,6 +26,7 @@ import android.widget.PopupMenu;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.kooo.evcam.MainActivity;
+import com.kooo.evcam.MediaIndex;
 import com.kooo.evcam.R;
 import com.kooo.evcam.StorageHelper;
 
@@ -326,7 +327,8 @@ public class PlaybackFragmentNew extends Fragment {
             GestureDetector detector = new GestureDetector(getContext(), new GestureDetector.SimpleOnGestureListener() {
                 @Override
                 public boolean onDoubleTap(MotionEvent e) {
-                    if (isSingleMode) {
+                    // 拼接录制只有一个合成文件，没有多路可切换
+                    if (isSingleMode && !isMosaicGroup()) {
                         switchToMultiMode();
                     }
                     return true;
@@ -408,7 +410,7 @@ public class PlaybackFragmentNew extends Fragment {
      * 只切换到有视频的摄像头
      */
     private void cycleViewMode() {
-        if (currentGroup == null) return;
+        if (currentGroup == null || isMosaicGroup()) return;
         
         // 构建可用位置列表
         java.util.List<String> availablePositions = new java.util.ArrayList<>();
@@ -444,10 +446,18 @@ public class PlaybackFragmentNew extends Fragment {
             case VideoGroup.POSITION_BACK: return "后";
             case VideoGroup.POSITION_LEFT: return "左";
             case VideoGroup.POSITION_RIGHT: return "右";
+            case VideoGroup.POSITION_MOSAIC: return "拼接";
             default: return "";
         }
     }
 
+    /**
+     * 当前视频组是否为拼接录制（只能单路播放）
+     */
+    private boolean isMosaicGroup() {
+        return currentGroup != null && currentGroup.isMosaic();
+    }
+
     /**
      * 切换单路/多路模式
      */
@@ -509,6 +519,14 @@ public class PlaybackFragmentNew extends Fragment {
         this.currentGroup = group;
         noSelectionHint.setVisibility(View.GONE);
         
+        // 拼接录制：固定使用单路视图播放合成文件
+        if (group.isMosaic()) {
+            isSingleMode = true;
+            currentSinglePosition = VideoGroup.POSITION_MOSAIC;
+            labelSingle.setText(getPositionLabel(VideoGroup.POSITION_MOSAIC));
+            btnViewMode.setText(getPositionLabel(VideoGroup.POSITION_MOSAIC));
+        }
+        
         // 如果在单路模式下，检查当前选择的摄像头是否有视频
         if (isSingleMode) {
             if (!group.hasVideo(currentSinglePosition)) {
@@ -577,22 +595,31 @@ public class PlaybackFragmentNew extends Fragment {
             return;
         }
 
-        File[] files = saveDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
-        if (files == null || files.length == 0) {
+        // 从媒体索引读取文件名和大小，不逐个访问文件
+        List<MediaIndex.Entry> files = MediaIndex.getInstance(getContext()).list(saveDir);
+        if (files.isEmpty()) {
             showEmptyState();
             return;
         }
 
         // 第一步：按时间戳分组（同一秒录制的多路视频）
         Map<String, VideoGroup> groupMap = new HashMap<>();
-        for (File file : files) {
-            String timestamp = VideoGroup.extractTimestampPrefix(file.getName());
+        for (MediaIndex.Entry entry : files) {
+            String name = entry.getName();
+            if (!name.toLowerCase().endsWith(".mp4")) {
+                continue;
+            }
+            String timestamp = VideoGroup.extractTimestampPrefix(name);
             VideoGroup group = groupMap.get(timestamp);
             if (group == null) {
                 group = new VideoGroup(timestamp);
                 groupMap.put(timestamp, group);
             }
-            group.addFile(file);
+            group.addFile(entry.file, entry.size);
+        }
+        if (groupMap.isEmpty()) {
+            showEmptyState();
+            return;
         }
 
         // 转为列表并排序（最新的在前）
@@ -1,5 +1,8 @@
 package com.kooo.evcam.playback;
 
+import com.kooo.evcam.StorageHelper;
+import com.kooo.evcam.camera.SubStreamEncoder;
+
 import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -20,6 +23,8 @@ public class VideoGroup {
     public static final String POSITION_BACK = "back";
     public static final String POSITION_LEFT = "left";
     public static final String POSITION_RIGHT = "right";
+    /** 拼接录制（多路合成到一个文件） */
+    public static final String POSITION_MOSAIC = "mosaic";
     
     /** 时间戳前缀，如 "20260131_1254" */
     private final String timestampPrefix;
@@ -45,10 +50,19 @@ public class VideoGroup {
      * @param file 视频文件
      */
     public void addFile(File file) {
+        addFile(file, file.length());
+    }
+    
+    /**
+     * 添加视频文件到分组（大小已知，不访问文件）
+     * @param file 视频文件
+     * @param size 文件大小（字节）
+     */
+    public void addFile(File file, long size) {
         String position = extractPosition(file.getName());
         if (position != null) {
             videoFiles.put(position, file);
-            totalSize += file.length();
+            totalSize += size;
         }
     }
     
@@ -197,10 +211,19 @@ public class VideoGroup {
             return videoFiles.get(POSITION_LEFT);
         } else if (videoFiles.containsKey(POSITION_RIGHT)) {
             return videoFiles.get(POSITION_RIGHT);
+        } else if (videoFiles.containsKey(POSITION_MOSAIC)) {
+            return videoFiles.get(POSITION_MOSAIC);
         }
         return null;
     }
     
+    /**
+     * 是否为拼接录制分组（只有一个合成文件，按单路播放）
+     */
+    public boolean isMosaic() {
+        return videoFiles.containsKey(POSITION_MOSAIC);
+    }
+    
     /**
      * 获取视频路数
      */
@@ -246,6 +269,9 @@ public class VideoGroup {
         for (File file : videoFiles.values()) {
             if (file.delete()) {
                 deleted++;
+                SubStreamEncoder.deleteSubStreamFile(file);  // 同时删除子码流文件
+                // 按日期分层存储时，一天的文件删完后移除空目录
+                StorageHelper.deleteEmptyShardDirs(file.getParentFile());
             }
         }
         if (deleted > 0) {
@@ -15,6 +15,7 @@ import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.signature.ObjectKey;
 import com.kooo.evcam.R;
+import com.kooo.evcam.camera.SubStreamEncoder;
 
 import java.io.File;
 import java.util.HashSet;
@@ -160,17 +161,20 @@ public class VideoGroupAdapter extends RecyclerView.Adapter<VideoGroupAdapter.Vi
             return;
         }
 
+        // 有子码流时从子码流取帧（分辨率低，解码快）
+        File thumbnailSource = SubStreamEncoder.preferSubStream(videoFile);
+
         RequestOptions options = new RequestOptions()
                 .frame(0)
                 .centerCrop()
                 .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
-                .signature(new ObjectKey(videoFile.lastModified()))
+                .signature(new ObjectKey(thumbnailSource.lastModified()))
                 .placeholder(android.R.color.black)
                 .error(android.R.color.black);
 
         Glide.with(context)
                 .asBitmap()
-                .load(videoFile)
+                .load(thumbnailSource)
                 .apply(options)
                 .into(imageView);
     }
@@ -388,9 +388,19 @@ public abstract class RemoteCommandHandler {
         
         AppLog.d(TAG, "找到 " + videoFiles.size() + " 个视频文件，开始上传到" + platformName);
         
+        // 有子码流的分段上传子码流，无需转码（传输到最终目录仍按主码流文件进行，子码流随之传输）
+        List<File> uploadFiles = mediaFileFinder.resolveUploadFiles(videoFiles);
+        if (uploadFiles.isEmpty()) {
+            // 全部为没有子码流的 H.265 文件，接收端不一定能播放，不上传
+            sendError(chatId, "视频为 H.265 编码且没有子码流，无法上传");
+            mediaFileFinder.transferToFinalDir(videoFiles);
+            returnToBackgroundIfNeeded();
+            return;
+        }
+        
         // 创建上传服务并上传
         MediaUploadService uploadService = createVideoUploadService();
-        uploadService.uploadVideos(videoFiles, chatId, new RemoteUploadCallback() {
+        uploadService.uploadVideos(uploadFiles, chatId, new RemoteUploadCallback() {
             @Override
             public void onProgress(String message) {
                 AppLog.d(TAG, platformName + " 视频上传进度: " + message);
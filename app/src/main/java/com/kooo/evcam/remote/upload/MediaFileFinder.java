@@ -1,10 +1,14 @@
 package com.kooo.evcam.remote.upload;
 
 import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
 
 import com.kooo.evcam.AppLog;
 import com.kooo.evcam.FileTransferManager;
+import com.kooo.evcam.MediaIndex;
 import com.kooo.evcam.StorageHelper;
+import com.kooo.evcam.camera.SubStreamEncoder;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -59,17 +63,15 @@ public class MediaFileFinder {
             return new ArrayList<>();
         }
         
-        File[] files = videoDir.listFiles((dir, name) -> 
-            name.startsWith(timestamp) && name.endsWith(".mp4")
-        );
+        List<File> files = findIndexedFiles(videoDir, timestamp, ".mp4");
         
-        if (files == null || files.length == 0) {
+        if (files.isEmpty()) {
             AppLog.e(TAG, "未找到录制的视频文件，时间戳: " + timestamp);
-            return new ArrayList<>();
+            return files;
         }
         
-        AppLog.d(TAG, "从最终目录找到 " + files.length + " 个视频文件");
-        return new ArrayList<>(Arrays.asList(files));
+        AppLog.d(TAG, "从最终目录找到 " + files.size() + " 个视频文件");
+        return files;
     }
     
     /**
@@ -111,19 +113,12 @@ public class MediaFileFinder {
         // 2. 从最终目录查找所有时间戳对应的文件
         File videoDir = StorageHelper.getVideoDir(context);
         if (videoDir != null && videoDir.exists()) {
-            File[] files = videoDir.listFiles((dir, name) -> {
-                if (!name.endsWith(".mp4")) {
-                    return false;
-                }
-                for (String ts : timestamps) {
-                    if (name.startsWith(ts)) {
-                        return true;
-                    }
-                }
-                return false;
-            });
+            List<File> files = new ArrayList<>();
+            for (String ts : timestamps) {
+                files.addAll(findIndexedFiles(videoDir, ts, ".mp4"));
+            }
             
-            if (files != null && files.length > 0) {
+            if (!files.isEmpty()) {
                 // 避免重复添加（临时目录和最终目录可能有同名文件）
                 for (File f : files) {
                     boolean exists = false;
@@ -150,6 +145,54 @@ public class MediaFileFinder {
         return allFiles;
     }
     
+    /**
+     * 获取实际上传的文件
+     * 录制了子码流的分段上传子码流文件（低分辨率、低码率，不受平台文件大小限制），否则上传原文件；
+     * 没有子码流的 H.265 文件跳过（接收端不一定能播放 H.265）
+     * 
+     * @param videoFiles 主码流视频文件列表
+     * @return 上传文件列表（跳过的文件不在其中，全部跳过时为空列表）
+     */
+    public List<File> resolveUploadFiles(List<File> videoFiles) {
+        List<File> uploadFiles = new ArrayList<>(videoFiles.size());
+        int subStreamCount = 0;
+        for (File videoFile : videoFiles) {
+            File uploadFile = SubStreamEncoder.preferSubStream(videoFile);
+            if (uploadFile != videoFile) {
+                subStreamCount++;
+            } else if (isHevcVideo(videoFile)) {
+                AppLog.w(TAG, "H.265 视频没有子码流，跳过上传: " + videoFile.getName());
+                continue;
+            }
+            uploadFiles.add(uploadFile);
+        }
+        if (subStreamCount > 0) {
+            AppLog.d(TAG, "使用子码流上传 " + subStreamCount + "/" + videoFiles.size() + " 个视频文件");
+        }
+        return uploadFiles;
+    }
+    
+    /**
+     * 判断视频文件的视频轨是否为 H.265 编码（无法读取时按非 H.265 处理）
+     */
+    private boolean isHevcVideo(File videoFile) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(videoFile.getAbsolutePath());
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            AppLog.w(TAG, "读取视频编码格式失败: " + videoFile.getName() + ", " + e.getMessage());
+        } finally {
+            extractor.release();
+        }
+        return false;
+    }
+    
     /**
      * 查找照片文件
      * 
@@ -168,18 +211,37 @@ public class MediaFileFinder {
             return new ArrayList<>();
         }
         
-        File[] files = photoDir.listFiles((dir, name) -> 
-            name.startsWith(timestamp) && 
-            (name.endsWith(".jpg") || name.endsWith(".jpeg"))
-        );
+        List<File> files = findIndexedFiles(photoDir, timestamp, ".jpg", ".jpeg");
         
-        if (files == null || files.length == 0) {
+        if (files.isEmpty()) {
             AppLog.e(TAG, "未找到拍摄的照片，时间戳: " + timestamp);
-            return new ArrayList<>();
+            return files;
         }
         
-        AppLog.d(TAG, "找到 " + files.length + " 张照片");
-        return new ArrayList<>(Arrays.asList(files));
+        AppLog.d(TAG, "找到 " + files.size() + " 张照片");
+        return files;
+    }
+    
+    /**
+     * 通过媒体索引按时间戳前缀查找文件（不列举目录）
+     * 
+     * @param dir 目录
+     * @param timestamp 时间戳前缀
+     * @param extensions 允许的扩展名
+     * @return 文件列表（按文件名排序）
+     */
+    private List<File> findIndexedFiles(File dir, String timestamp, String... extensions) {
+        List<File> files = new ArrayList<>();
+        for (MediaIndex.Entry entry : MediaIndex.getInstance(context).listByPrefix(dir, timestamp)) {
+            String name = entry.getName();
+            for (String extension : extensions) {
+                if (name.endsWith(extension)) {
+                    files.add(entry.file);
+                    break;
+                }
+            }
+        }
+        return files;
     }
     
     /**
@@ -203,7 +265,7 @@ public class MediaFileFinder {
         for (File tempFile : tempFiles) {
             if (tempFile.exists()) {
                 // 构造目标文件路径
-                File targetFile = new File(videoDir, tempFile.getName());
+                File targetFile = StorageHelper.resolveMediaFile(context, videoDir, tempFile.getName());
                 
                 transferManager.addTransferTask(tempFile, targetFile, new FileTransferManager.TransferCallback() {
                     @Override
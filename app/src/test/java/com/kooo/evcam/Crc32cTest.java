@@ -0,0 +1,70 @@
+package com.kooo.evcam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    @Test
+    public void standardCheckValue() {
+        Crc32c crc = new Crc32c();
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        crc.update(data, 0, data.length);
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    @Test
+    public void knownVectors() {
+        // RFC 3720（iSCSI）B.4 的测试向量
+        byte[] zeros = new byte[32];
+        byte[] ones = new byte[32];
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            ones[i] = (byte) 0xFF;
+            ascending[i] = (byte) i;
+        }
+        assertEquals(0x8A9136AAL, checksum(zeros));
+        assertEquals(0x62A8AB43L, checksum(ones));
+        assertEquals(0x46DD794EL, checksum(ascending));
+        assertEquals(0x00000000L, checksum(new byte[0]));
+    }
+
+    @Test
+    public void bufferUpdatesMatchArrayUpdate() {
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+        long expected = checksum(data);
+
+        // 直接缓冲区（复制时使用）分多次计算，且超过中转缓冲区大小
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        Crc32c crc = new Crc32c();
+        direct.limit(30_000);
+        crc.update(direct);
+        assertEquals(30_000, direct.position());
+        direct.limit(data.length);
+        crc.update(direct);
+        assertEquals(data.length, direct.position());
+        assertEquals(expected, crc.getValue());
+
+        // 堆缓冲区（带数组偏移的切片）
+        ByteBuffer heap = ByteBuffer.wrap(data, 0, data.length);
+        heap.position(1);
+        ByteBuffer slice = heap.slice();
+        crc.reset();
+        crc.update(data[0]);
+        crc.update(slice);
+        assertEquals(expected, crc.getValue());
+    }
+
+    private static long checksum(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,226 @@
+package com.kooo.evcam.camera.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+
+    private static final long FRAME_US = 40000;  // 25fps，对应 3600 ticks（90kHz）
+    private static final int FRAME_TICKS = 3600;
+    private static final int SYNC_FLAGS = 0x02000000;
+    private static final int NON_SYNC_FLAGS = 0x01010000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void initSegmentLayout() throws Exception {
+        File file = folder.newFile("init.mp4");
+        new FragmentedMp4Writer(file, Mp4TestFiles.avcFormat(), 1).close();
+        byte[] data = Mp4TestFiles.readFile(file);
+
+        List<Mp4TestFiles.Box> top = Mp4TestFiles.children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "moov"), Mp4TestFiles.types(top));
+        assertEquals("isom", new String(data, 8, 4, "US-ASCII"));
+
+        List<Mp4TestFiles.Box> moov = Mp4TestFiles.children(data, top.get(1));
+        assertEquals(Arrays.asList("mvhd", "trak", "mvex", "udta"), Mp4TestFiles.types(moov));
+        Mp4TestFiles.Box trex = Mp4TestFiles.find(data, "moov", "mvex", "trex");
+        assertEquals(1, Mp4TestFiles.readInt(data, trex.fullBoxBody()));  // track_ID
+
+        // 样本入口保留了 avcC 中的 SPS
+        Mp4TestFiles.Box stsd = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+        Mp4TestFiles.Box entry = Mp4TestFiles.children(data, stsd.fullBoxBody() + 4, stsd.end()).get(0);
+        assertEquals("avc1", entry.type);
+        Mp4TestFiles.Box avcC = Mp4TestFiles.children(data, entry.offset + 8 + 78, entry.end()).get(0);
+        assertEquals("avcC", avcC.type);
+        assertArrayEquals(Mp4TestFiles.avcFormat().configPayload,
+                Arrays.copyOfRange(data, avcC.offset + 8, avcC.end()));
+    }
+
+    @Test
+    public void fragmentsFollowKeyFrames() throws Exception {
+        File file = folder.newFile("fragments.mp4");
+        writeFrames(file, 1, new boolean[]{true, false, false, true, false});
+        byte[] data = Mp4TestFiles.readFile(file);
+
+        List<Mp4TestFiles.Box> top = Mp4TestFiles.children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"), Mp4TestFiles.types(top));
+
+        List<Fragment> fragments = parseFragments(data, top);
+        assertEquals(2, fragments.size());
+
+        Fragment first = fragments.get(0);
+        assertEquals(1, first.sequenceNumber);
+        assertEquals(0, first.baseDecodeTime);
+        assertEquals(3, first.durations.length);
+        assertArrayEquals(new int[]{SYNC_FLAGS, NON_SYNC_FLAGS, NON_SYNC_FLAGS}, first.flags);
+        // 分片内最后一个样本的时长由下一分片第一个样本的时间决定
+        assertArrayEquals(new int[]{FRAME_TICKS, FRAME_TICKS, FRAME_TICKS}, first.durations);
+
+        Fragment second = fragments.get(1);
+        assertEquals(2, second.sequenceNumber);
+        assertEquals(3L * FRAME_TICKS, second.baseDecodeTime);
+        assertArrayEquals(new int[]{SYNC_FLAGS, NON_SYNC_FLAGS}, second.flags);
+        assertArrayEquals(new int[]{FRAME_TICKS, FRAME_TICKS}, second.durations);
+
+        for (Fragment fragment : fragments) {
+            // default-base-is-moof：data_offset 指向紧跟 moof 的 mdat 负载
+            assertEquals(fragment.moof.size + 8, fragment.dataOffset);
+            assertEquals(fragment.moof.end(), fragment.mdat.offset);
+        }
+    }
+
+    @Test
+    public void samplesRoundTripAsLengthPrefixedNals() throws Exception {
+        File file = folder.newFile("roundtrip.mp4");
+        boolean[] keys = {true, false, true, false, false, true};
+        byte[][] frames = writeFrames(file, 1, keys);
+        byte[] data = Mp4TestFiles.readFile(file);
+
+        List<byte[]> samples = new ArrayList<>();
+        for (Fragment fragment : parseFragments(data, Mp4TestFiles.children(data, 0, data.length))) {
+            int pos = fragment.moof.offset + fragment.dataOffset;
+            for (int size : fragment.sizes) {
+                samples.add(Arrays.copyOfRange(data, pos, pos + size));
+                pos += size;
+            }
+            assertEquals(fragment.mdat.end(), pos);
+        }
+        assertEquals(frames.length, samples.size());
+        for (int i = 0; i < frames.length; i++) {
+            assertArrayEquals("sample " + i, Mp4TestFiles.lengthPrefixed(frames[i]), samples.get(i));
+        }
+    }
+
+    @Test
+    public void dropsLeadingNonKeyFramesAndAccessUnitDelimiters() throws Exception {
+        File file = folder.newFile("aud.mp4");
+        byte[] key = Mp4TestFiles.annexBFrame(true, 32, 1);
+        byte[] aud = {0, 0, 0, 1, 0x09, (byte) 0xF0};
+        byte[] keyWithAud = new byte[aud.length + key.length];
+        System.arraycopy(aud, 0, keyWithAud, 0, aud.length);
+        System.arraycopy(key, 0, keyWithAud, aud.length, key.length);
+
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, Mp4TestFiles.avcFormat(), 1)) {
+            writer.writeSample(ByteBuffer.wrap(Mp4TestFiles.annexBFrame(false, 16, 9)), 0, false);
+            writer.writeSample(ByteBuffer.wrap(keyWithAud), FRAME_US, true);
+        }
+        byte[] data = Mp4TestFiles.readFile(file);
+        List<Fragment> fragments = parseFragments(data, Mp4TestFiles.children(data, 0, data.length));
+
+        assertEquals(1, fragments.size());
+        assertArrayEquals(new int[]{Mp4TestFiles.lengthPrefixed(key).length}, fragments.get(0).sizes);
+        assertEquals(0, fragments.get(0).baseDecodeTime);  // 时间轴从第一个关键帧开始
+    }
+
+    @Test
+    public void closePatchesDurations() throws Exception {
+        File file = folder.newFile("duration.mp4");
+        writeFrames(file, 2, new boolean[]{true, false, true, false, true});
+        byte[] data = Mp4TestFiles.readFile(file);
+
+        long mediaTicks = 5L * FRAME_TICKS;
+        long movieMs = mediaTicks * 1000 / FragmentedMp4Writer.TIMESCALE;
+        Mp4TestFiles.Box mvhd = Mp4TestFiles.find(data, "moov", "mvhd");
+        assertEquals(movieMs, Mp4TestFiles.readInt(data, mvhd.fullBoxBody() + 12));
+        Mp4TestFiles.Box mdhd = Mp4TestFiles.find(data, "moov", "trak", "mdia", "mdhd");
+        assertEquals(FragmentedMp4Writer.TIMESCALE, Mp4TestFiles.readInt(data, mdhd.fullBoxBody() + 8));
+        assertEquals(mediaTicks, Mp4TestFiles.readInt(data, mdhd.fullBoxBody() + 12));
+        Mp4TestFiles.Box mehd = Mp4TestFiles.find(data, "moov", "mvex", "mehd");
+        assertEquals(movieMs, Mp4TestFiles.readInt(data, mehd.fullBoxBody()));
+    }
+
+    @Test
+    public void writerCountersMatchFile() throws Exception {
+        File file = folder.newFile("counters.mp4");
+        boolean[] keys = {true, false, true, false, true, false, true};
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, Mp4TestFiles.avcFormat(), 2);
+        for (int i = 0; i < keys.length; i++) {
+            writer.writeSample(ByteBuffer.wrap(Mp4TestFiles.annexBFrame(keys[i], 100, i)), i * FRAME_US, keys[i]);
+        }
+        // 两个 GOP 一个分片：第 5 帧（第三个关键帧）到来时写出第一个分片
+        assertEquals(1, writer.getFragmentCount());
+        assertEquals(4, writer.getSamplesWritten());
+        writer.close();
+
+        assertEquals(2, writer.getFragmentCount());
+        assertEquals(keys.length, writer.getSamplesWritten());
+        assertEquals(file.length(), writer.getBytesWritten());
+    }
+
+    // ===== 工具 =====
+
+    private static byte[][] writeFrames(File file, int keyFramesPerFragment, boolean[] keys) throws Exception {
+        byte[][] frames = new byte[keys.length][];
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, Mp4TestFiles.avcFormat(), keyFramesPerFragment)) {
+            for (int i = 0; i < keys.length; i++) {
+                frames[i] = Mp4TestFiles.annexBFrame(keys[i], keys[i] ? 400 + i : 60 + i, i);
+                writer.writeSample(ByteBuffer.wrap(frames[i]), 1_000_000 + i * FRAME_US, keys[i]);
+            }
+        }
+        return frames;
+    }
+
+    private static final class Fragment {
+        Mp4TestFiles.Box moof;
+        Mp4TestFiles.Box mdat;
+        int sequenceNumber;
+        long baseDecodeTime;
+        int dataOffset;
+        int[] durations;
+        int[] sizes;
+        int[] flags;
+    }
+
+    private static List<Fragment> parseFragments(byte[] data, List<Mp4TestFiles.Box> top) {
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = 0; i < top.size(); i++) {
+            if (!top.get(i).type.equals("moof")) {
+                continue;
+            }
+            Fragment fragment = new Fragment();
+            fragment.moof = top.get(i);
+            fragment.mdat = top.get(i + 1);
+            assertEquals("mdat", fragment.mdat.type);
+
+            List<Mp4TestFiles.Box> moof = Mp4TestFiles.children(data, fragment.moof);
+            assertEquals(Arrays.asList("mfhd", "traf"), Mp4TestFiles.types(moof));
+            fragment.sequenceNumber = Mp4TestFiles.readInt(data, moof.get(0).fullBoxBody());
+
+            List<Mp4TestFiles.Box> traf = Mp4TestFiles.children(data, moof.get(1));
+            assertEquals(Arrays.asList("tfhd", "tfdt", "trun"), Mp4TestFiles.types(traf));
+            assertEquals(0x020000, Mp4TestFiles.readInt(data, traf.get(0).offset + 8) & 0xFFFFFF);
+            fragment.baseDecodeTime = Mp4TestFiles.readLong(data, traf.get(1).fullBoxBody());
+
+            Mp4TestFiles.Box trun = traf.get(2);
+            int count = Mp4TestFiles.readInt(data, trun.fullBoxBody());
+            assertEquals(12 + 4 + 4 + count * 12, trun.size);
+            fragment.dataOffset = Mp4TestFiles.readInt(data, trun.fullBoxBody() + 4);
+            fragment.durations = new int[count];
+            fragment.sizes = new int[count];
+            fragment.flags = new int[count];
+            int sampleSizes = 0;
+            for (int s = 0; s < count; s++) {
+                int pos = trun.fullBoxBody() + 8 + s * 12;
+                fragment.durations[s] = Mp4TestFiles.readInt(data, pos);
+                fragment.sizes[s] = Mp4TestFiles.readInt(data, pos + 4);
+                fragment.flags[s] = Mp4TestFiles.readInt(data, pos + 8);
+                sampleSizes += fragment.sizes[s];
+            }
+            assertEquals(fragment.mdat.size - 8, sampleSizes);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+}
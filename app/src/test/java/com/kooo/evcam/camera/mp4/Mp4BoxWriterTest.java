@@ -0,0 +1,103 @@
+package com.kooo.evcam.camera.mp4;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4BoxWriterTest {
+
+    @Test
+    public void nestedBoxSizesAreBackfilled() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        w.startBox("moov");
+        w.startFullBox("mvhd", 1, 0x000003).putInt(7).endBox();
+        w.startBox("trak");
+        w.startBox("free").putZeros(5).endBox();
+        w.endBox();  // trak
+        w.endBox();  // moov
+        byte[] data = w.toByteArray();
+
+        assertEquals(8 + 16 + 8 + 13, data.length);
+        List<Mp4TestFiles.Box> top = Mp4TestFiles.children(data, 0, data.length);
+        assertEquals(Arrays.asList("moov"), Mp4TestFiles.types(top));
+        assertEquals(data.length, top.get(0).size);
+
+        List<Mp4TestFiles.Box> moov = Mp4TestFiles.children(data, top.get(0));
+        assertEquals(Arrays.asList("mvhd", "trak"), Mp4TestFiles.types(moov));
+        assertEquals(16, moov.get(0).size);
+        assertEquals(0x01000003, Mp4TestFiles.readInt(data, moov.get(0).offset + 8));  // version + flags
+        assertEquals(7, Mp4TestFiles.readInt(data, moov.get(0).fullBoxBody()));
+        assertEquals(21, moov.get(1).size);
+        assertEquals(13, Mp4TestFiles.children(data, moov.get(1)).get(0).size);
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        w.startBox("mdat");
+        byte[] payload = new byte[10000];
+        Arrays.fill(payload, (byte) 0x5A);
+        w.putBytes(payload).endBox();
+        byte[] data = w.toByteArray();
+
+        assertEquals(8 + payload.length, data.length);
+        assertEquals(data.length, Mp4TestFiles.readInt(data, 0));
+        assertArrayEquals(payload, Arrays.copyOfRange(data, 8, data.length));
+    }
+
+    @Test
+    public void patchIntOverwritesInPlace() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        w.startBox("trun");
+        int pos = w.position();
+        w.putInt(0).putInt(42).endBox();
+        w.patchInt(pos, 0x12345678);
+        byte[] data = w.toByteArray();
+
+        assertEquals(16, Mp4TestFiles.readInt(data, 0));
+        assertEquals(0x12345678, Mp4TestFiles.readInt(data, pos));
+        assertEquals(42, Mp4TestFiles.readInt(data, pos + 4));
+    }
+
+    @Test
+    public void toBufferIsReadOnlyViewOfWrittenBytes() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        w.startBox("free").putInt(1).endBox();
+        ByteBuffer view = w.toBuffer();
+
+        assertTrue(view.isReadOnly());
+        assertEquals(0, view.position());
+        assertEquals(12, view.remaining());
+        // 读取视图不影响写入器，可以继续追加
+        view.get(new byte[view.remaining()]);
+        w.startBox("skip").endBox();
+        assertEquals(20, w.toBuffer().remaining());
+    }
+
+    @Test
+    public void fixedPointAndMatrixEncoding() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        w.putFixed16(1.0).putFixed8(1.0).putUnityMatrix();
+        byte[] data = w.toByteArray();
+
+        assertEquals(4 + 2 + 36, data.length);
+        assertEquals(0x00010000, Mp4TestFiles.readInt(data, 0));
+        assertEquals(0x0100, ((data[4] & 0xFF) << 8) | (data[5] & 0xFF));
+        assertEquals(0x00010000, Mp4TestFiles.readInt(data, 6));
+        assertEquals(0x40000000, Mp4TestFiles.readInt(data, 6 + 32));
+    }
+
+    @Test
+    public void rejectsInvalidUsage() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        assertThrows(IllegalStateException.class, w::endBox);
+        assertThrows(IllegalArgumentException.class, () -> w.putFourCC("abc"));
+    }
+}
@@ -0,0 +1,422 @@
+package com.kooo.evcam.camera.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4RepairEngineTest {
+
+    private static final long FRAME_US = 40000;
+    private static final int FRAME_TICKS = 3600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // ===== 无 moov 文件（MediaMuxer 断电） =====
+
+    @Test
+    public void rebuildsMoovForTruncatedPlainMdat() throws Exception {
+        assertRebuildsPlainMdat(false);
+    }
+
+    @Test
+    public void rebuildsMoovForTruncatedLargeSizeMdat() throws Exception {
+        assertRebuildsPlainMdat(true);
+    }
+
+    private void assertRebuildsPlainMdat(boolean largeSize) throws Exception {
+        PlainFile plain = new PlainFile(largeSize);
+        plain.frame(avcNal(0x67, 12), avcNal(0x68, 4), avcSlice(0x65, true, 300));  // SPS + PPS + IDR
+        plain.frame(avcSlice(0x41, true, 80));
+        plain.frame(avcSlice(0x41, true, 40), avcSlice(0x41, false, 40));           // 两个 slice 的一帧
+        plain.frame(avcNal(0x06, 8), avcSlice(0x65, true, 280));                     // SEI + IDR
+        plain.frame(avcSlice(0x41, true, 90));
+        plain.tornNal(avcSlice(0x41, true, 500), 37);                               // 断电时写了一半
+        File file = plain.write(folder.newFile("plain.mp4"));
+        long originalLength = file.length();
+
+        Mp4RepairEngine.Inspection inspection = Mp4RepairEngine.inspect(file);
+        assertEquals(Mp4RepairEngine.Status.NEEDS_REPAIR, inspection.status);
+        assertTrue(inspection.needsRepair());
+
+        Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, writeReference());
+        assertTrue(result.message, result.repaired);
+        assertEquals(5, result.sampleCount);
+        assertEquals(2, result.keyFrameCount);
+        assertEquals(Mp4RepairEngine.Status.OK, Mp4RepairEngine.inspect(file).status);
+
+        byte[] data = Mp4TestFiles.readFile(file);
+        List<Mp4TestFiles.Box> top = Mp4TestFiles.children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), Mp4TestFiles.types(top));
+        // mdat 大小回填为完整帧的结尾，残缺的尾部被截掉
+        int dataEnd = plain.frameOffsets.get(4) + plain.frameSizes.get(4);
+        assertEquals(dataEnd, top.get(1).end());
+        assertEquals(largeSize ? 1 : dataEnd - top.get(1).offset, Mp4TestFiles.readInt(data, top.get(1).offset));
+        if (largeSize) {
+            assertEquals(dataEnd - top.get(1).offset, Mp4TestFiles.readLong(data, top.get(1).offset + 8));
+        }
+        assertEquals(dataEnd + top.get(2).size, data.length);
+        assertTrue(data.length < originalLength + top.get(2).size);
+
+        Mp4TestFiles.Box stbl = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl");
+        assertEquals(Arrays.asList("stsd", "stts", "stss", "stsc", "stsz", "stco"),
+                Mp4TestFiles.types(Mp4TestFiles.children(data, stbl)));
+
+        // 参数集来自参考文件
+        Mp4TestFiles.Box stsd = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+        Mp4TestFiles.Box entry = Mp4TestFiles.children(data, stsd.fullBoxBody() + 4, stsd.end()).get(0);
+        assertEquals("avc1", entry.type);
+        Mp4TestFiles.Box avcC = Mp4TestFiles.children(data, entry.offset + 8 + 78, entry.end()).get(0);
+        assertArrayEquals(Mp4TestFiles.avcFormat().configPayload,
+                Arrays.copyOfRange(data, avcC.offset + 8, avcC.end()));
+
+        // stts：按参考帧率等间隔
+        Mp4TestFiles.Box stts = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stts");
+        assertEquals(1, Mp4TestFiles.readInt(data, stts.fullBoxBody()));
+        assertEquals(5, Mp4TestFiles.readInt(data, stts.fullBoxBody() + 4));
+        assertEquals(FRAME_TICKS, Mp4TestFiles.readInt(data, stts.fullBoxBody() + 8));
+        assertEquals(5L * FRAME_US / 1000, result.durationMs);
+
+        Mp4TestFiles.Box stss = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stss");
+        assertArrayEquals(new int[]{1, 4}, readIntArray(data, stss.fullBoxBody() + 4, 2));
+        assertEquals(2, Mp4TestFiles.readInt(data, stss.fullBoxBody()));
+
+        Mp4TestFiles.Box stsz = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stsz");
+        assertEquals(5, Mp4TestFiles.readInt(data, stsz.fullBoxBody() + 4));
+        assertArrayEquals(toArray(plain.frameSizes), readIntArray(data, stsz.fullBoxBody() + 8, 5));
+
+        Mp4TestFiles.Box stco = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stco");
+        assertEquals(5, Mp4TestFiles.readInt(data, stco.fullBoxBody()));
+        assertArrayEquals(toArray(plain.frameOffsets), readIntArray(data, stco.fullBoxBody() + 4, 5));
+    }
+
+    @Test
+    public void rebuildsHevcAccessUnits() throws Exception {
+        PlainFile plain = new PlainFile(false);
+        plain.frame(hevcNal(32, 10), hevcNal(33, 20), hevcNal(34, 6), hevcSlice(19, true, 200));  // VPS/SPS/PPS + IDR
+        plain.frame(hevcSlice(1, true, 60), hevcSlice(1, false, 60));
+        plain.frame(hevcSlice(1, true, 50), hevcNal(40, 6));                                    // 后缀 SEI 属于当前帧
+        plain.tornNal(hevcSlice(1, true, 400), 100);
+        File file = plain.write(folder.newFile("hevc.mp4"));
+
+        Mp4TrackFormat hevc = new Mp4TrackFormat("hvc1", "hvcC", new byte[23], 1920, 1080);
+        Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, new Mp4RepairEngine.Reference(hevc, FRAME_US));
+        assertTrue(result.message, result.repaired);
+        assertEquals(3, result.sampleCount);
+        assertEquals(1, result.keyFrameCount);
+
+        byte[] data = Mp4TestFiles.readFile(file);
+        Mp4TestFiles.Box stsz = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stsz");
+        assertArrayEquals(toArray(plain.frameSizes), readIntArray(data, stsz.fullBoxBody() + 8, 3));
+        Mp4TestFiles.Box stsd = Mp4TestFiles.find(data, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+        assertEquals("hvc1", Mp4TestFiles.children(data, stsd.fullBoxBody() + 4, stsd.end()).get(0).type);
+    }
+
+    @Test
+    public void plainMdatWithoutReferenceIsNotModified() throws Exception {
+        PlainFile plain = new PlainFile(false);
+        plain.frame(avcSlice(0x65, true, 100));
+        File file = plain.write(folder.newFile("noref.mp4"));
+        byte[] before = Mp4TestFiles.readFile(file);
+
+        Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, null);
+        assertFalse(result.repaired);
+        assertFalse(result.unrecoverable);
+        assertArrayEquals(before, Mp4TestFiles.readFile(file));
+    }
+
+    @Test
+    public void mdatWithoutKeyFrameIsUnrecoverable() throws Exception {
+        PlainFile plain = new PlainFile(false);
+        plain.frame(avcSlice(0x41, true, 100));
+        plain.frame(avcSlice(0x41, true, 100));
+        File file = plain.write(folder.newFile("nokey.mp4"));
+
+        Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, writeReference());
+        assertFalse(result.repaired);
+        assertTrue(result.unrecoverable);
+    }
+
+    @Test
+    public void emptyFileIsUnrepairable() throws Exception {
+        File file = folder.newFile("empty.mp4");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(ftyp());
+        }
+        assertEquals(Mp4RepairEngine.Status.UNREPAIRABLE, Mp4RepairEngine.inspect(file).status);
+        assertTrue(Mp4RepairEngine.repair(file, writeReference()).unrecoverable);
+    }
+
+    // ===== 分片文件 =====
+
+    @Test
+    public void intactFragmentedFileNeedsNoRepair() throws Exception {
+        File file = writeFragmented("intact.mp4", 3);
+        Mp4RepairEngine.Inspection inspection = Mp4RepairEngine.inspect(file);
+        assertEquals(Mp4RepairEngine.Status.FRAGMENTED, inspection.status);
+        assertEquals(file.length(), inspection.validEnd);
+        assertFalse(inspection.needsRepair());
+        assertFalse(Mp4RepairEngine.repair(file, null).repaired);
+    }
+
+    @Test
+    public void tornFinalMdatIsTruncated() throws Exception {
+        File file = writeFragmented("torn-mdat.mp4", 3);
+        List<Mp4TestFiles.Box> top = topBoxes(file);
+        Mp4TestFiles.Box lastMoof = top.get(top.size() - 2);
+        Mp4TestFiles.Box lastMdat = top.get(top.size() - 1);
+        truncate(file, lastMdat.offset + 20);
+
+        assertTornFragmentRejected(file, lastMoof.offset, 2);
+    }
+
+    @Test
+    public void tornFinalMoofIsTruncated() throws Exception {
+        File file = writeFragmented("torn-moof.mp4", 3);
+        List<Mp4TestFiles.Box> top = topBoxes(file);
+        Mp4TestFiles.Box lastMoof = top.get(top.size() - 2);
+        truncate(file, lastMoof.offset + lastMoof.size / 2);
+
+        assertTornFragmentRejected(file, lastMoof.offset, 2);
+    }
+
+    @Test
+    public void moofWithoutMdatIsTruncated() throws Exception {
+        File file = writeFragmented("no-mdat.mp4", 3);
+        List<Mp4TestFiles.Box> top = topBoxes(file);
+        Mp4TestFiles.Box lastMoof = top.get(top.size() - 2);
+        truncate(file, lastMoof.end());  // moof 完整但 mdat 一个字节都没写出
+
+        assertTornFragmentRejected(file, lastMoof.offset, 2);
+    }
+
+    @Test
+    public void trailingGarbageAfterFragmentsIsTruncated() throws Exception {
+        File file = writeFragmented("garbage.mp4", 2);
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(length);
+            raf.write(new byte[64]);  // 文件系统预分配但未写入的零块
+        }
+        assertTornFragmentRejected(file, length, 2);
+    }
+
+    private void assertTornFragmentRejected(File file, long expectedEnd, int expectedFragments) throws Exception {
+        Mp4RepairEngine.Inspection inspection = Mp4RepairEngine.inspect(file);
+        assertEquals(Mp4RepairEngine.Status.FRAGMENTED, inspection.status);
+        assertTrue(inspection.needsRepair());
+        assertEquals(expectedEnd, inspection.validEnd);
+
+        Mp4RepairEngine.Result result = Mp4RepairEngine.repair(file, null);
+        assertTrue(result.message, result.repaired);
+        assertEquals(expectedEnd, file.length());
+
+        List<Mp4TestFiles.Box> top = topBoxes(file);
+        int moofs = 0;
+        for (int i = 0; i < top.size(); i++) {
+            if (top.get(i).type.equals("moof")) {
+                moofs++;
+                assertEquals("mdat", top.get(i + 1).type);
+            }
+        }
+        assertEquals(expectedFragments, moofs);
+        assertFalse(Mp4RepairEngine.inspect(file).needsRepair());
+    }
+
+    // ===== 参考格式 =====
+
+    @Test
+    public void readsReferenceFromFragmentedFile() throws Exception {
+        Mp4RepairEngine.Reference reference = Mp4RepairEngine.readReference(writeFragmented("ref.mp4", 1));
+        assertNotNull(reference);
+        assertEquals("avc1", reference.format.sampleEntryType);
+        assertEquals(Mp4TestFiles.WIDTH, reference.format.width);
+        assertEquals(Mp4TestFiles.HEIGHT, reference.format.height);
+        assertArrayEquals(Mp4TestFiles.avcFormat().configPayload, reference.format.configPayload);
+    }
+
+    @Test
+    public void readsFrameDurationFromRepairedFile() throws Exception {
+        PlainFile plain = new PlainFile(false);
+        plain.frame(avcSlice(0x65, true, 100));
+        plain.frame(avcSlice(0x41, true, 50));
+        File file = plain.write(folder.newFile("repaired-ref.mp4"));
+        Mp4RepairEngine.repair(file, writeReference());
+
+        Mp4RepairEngine.Reference reference = Mp4RepairEngine.readReference(file);
+        assertNotNull(reference);
+        assertEquals(FRAME_US, reference.sampleDurationUs);
+    }
+
+    // ===== 工具 =====
+
+    /**
+     * 参考格式：avc1 + 40ms 帧时长（分片文件的 stts 为空，帧时长直接指定）
+     */
+    private Mp4RepairEngine.Reference writeReference() throws Exception {
+        Mp4RepairEngine.Reference fromFile = Mp4RepairEngine.readReference(writeFragmented("reference.mp4", 1));
+        assertNotNull(fromFile);
+        return new Mp4RepairEngine.Reference(fromFile.format, FRAME_US);
+    }
+
+    private File writeFragmented(String name, int fragments) throws Exception {
+        File file = folder.newFile(name);
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, Mp4TestFiles.avcFormat(), 1)) {
+            int frame = 0;
+            for (int f = 0; f < fragments; f++) {
+                for (int i = 0; i < 3; i++, frame++) {
+                    boolean key = i == 0;
+                    writer.writeSample(ByteBuffer.wrap(Mp4TestFiles.annexBFrame(key, key ? 300 : 80, frame)),
+                            frame * FRAME_US, key);
+                }
+            }
+        }
+        return file;
+    }
+
+    private static List<Mp4TestFiles.Box> topBoxes(File file) throws IOException {
+        byte[] data = Mp4TestFiles.readFile(file);
+        return Mp4TestFiles.children(data, 0, data.length);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static byte[] ftyp() {
+        Mp4BoxWriter w = new Mp4BoxWriter(64);
+        Mp4MovieBoxes.writeFtyp(w, Mp4TestFiles.avcFormat(), false);
+        return w.toByteArray();
+    }
+
+    /**
+     * 非 VCL NAL（不含长度前缀），负载不会被误认为 slice 头
+     */
+    private static byte[] avcNal(int header, int payloadSize) {
+        byte[] nal = new byte[1 + payloadSize];
+        nal[0] = (byte) header;
+        Arrays.fill(nal, 1, nal.length, (byte) 0x11);
+        return nal;
+    }
+
+    /**
+     * H.264 slice NAL
+     * @param firstSlice true 时 first_mb_in_slice = 0（一帧的第一个 slice）
+     */
+    private static byte[] avcSlice(int header, boolean firstSlice, int payloadSize) {
+        byte[] nal = avcNal(header, payloadSize);
+        nal[1] = (byte) (firstSlice ? 0x88 : 0x40);
+        return nal;
+    }
+
+    private static byte[] hevcNal(int type, int payloadSize) {
+        byte[] nal = new byte[2 + payloadSize];
+        nal[0] = (byte) (type << 1);
+        nal[1] = 0x01;  // nuh_temporal_id_plus1 = 1
+        Arrays.fill(nal, 2, nal.length, (byte) 0x11);
+        return nal;
+    }
+
+    private static byte[] hevcSlice(int type, boolean firstSlice, int payloadSize) {
+        byte[] nal = hevcNal(type, payloadSize);
+        nal[2] = (byte) (firstSlice ? 0x80 : 0x20);
+        return nal;
+    }
+
+    private static int[] readIntArray(byte[] data, int pos, int count) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Mp4TestFiles.readInt(data, pos + i * 4);
+        }
+        return values;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * 模拟 MediaMuxer 断电留下的文件：ftyp + 大小未回填的 mdat + 长度前缀 NAL，没有 moov
+     */
+    private static final class PlainFile {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Integer> frameOffsets = new ArrayList<>();
+        final List<Integer> frameSizes = new ArrayList<>();
+
+        PlainFile(boolean largeSize) {
+            byte[] ftyp = ftyp();
+            out.write(ftyp, 0, ftyp.length);
+            if (largeSize) {
+                writeInt(1);
+                writeFourCC();
+                writeInt(0);
+                writeInt(0);  // 64 位大小尚未回填
+            } else {
+                writeInt(0);  // 大小尚未回填
+                writeFourCC();
+            }
+        }
+
+        void frame(byte[]... nals) {
+            frameOffsets.add(out.size());
+            int size = 0;
+            for (byte[] nal : nals) {
+                writeInt(nal.length);
+                out.write(nal, 0, nal.length);
+                size += 4 + nal.length;
+            }
+            frameSizes.add(size);
+        }
+
+        /**
+         * 只写出 NAL 的前 written 个字节（长度前缀声明的是完整长度）
+         */
+        void tornNal(byte[] nal, int written) {
+            writeInt(nal.length);
+            out.write(nal, 0, written);
+        }
+
+        File write(File file) throws IOException {
+            try (FileOutputStream stream = new FileOutputStream(file)) {
+                out.writeTo(stream);
+            }
+            return file;
+        }
+
+        private void writeInt(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private void writeFourCC() {
+            out.write('m');
+            out.write('d');
+            out.write('a');
+            out.write('t');
+        }
+    }
+}
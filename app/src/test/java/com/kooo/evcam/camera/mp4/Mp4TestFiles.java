@@ -0,0 +1,168 @@
+package com.kooo.evcam.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 测试用的 MP4 构造与解析工具（只解析测试需要的字段）
+ */
+final class Mp4TestFiles {
+
+    static final byte[] SPS = {0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9, 0x40, 0x50};
+    static final byte[] PPS = {0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB};
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+
+    private Mp4TestFiles() {
+    }
+
+    static Mp4TrackFormat avcFormat() {
+        return Mp4TrackFormat.avc(WIDTH, HEIGHT, SPS, PPS);
+    }
+
+    /**
+     * 构造一帧 H.264 样本（Annex-B，单个 slice）
+     * @param keyFrame true 为 IDR，false 为 P 帧
+     * @param payloadSize slice 头之后的负载长度
+     * @param seed 负载内容种子（便于区分各帧）
+     */
+    static byte[] annexBFrame(boolean keyFrame, int payloadSize, int seed) {
+        byte[] frame = new byte[4 + 2 + payloadSize];
+        frame[3] = 1;
+        frame[4] = (byte) (keyFrame ? 0x65 : 0x41);
+        frame[5] = (byte) 0x88;  // first_mb_in_slice = 0
+        for (int i = 0; i < payloadSize; i++) {
+            frame[6 + i] = (byte) (seed + i | 0x10);  // 不会出现起始码
+        }
+        return frame;
+    }
+
+    /**
+     * 把 Annex-B 帧转换为 4 字节长度前缀格式（单个 NAL）
+     */
+    static byte[] lengthPrefixed(byte[] annexBFrame) {
+        int nalLength = annexBFrame.length - 4;
+        ByteBuffer out = ByteBuffer.allocate(4 + nalLength);
+        out.putInt(nalLength).put(annexBFrame, 4, nalLength);
+        return out.array();
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    // ===== Box 解析 =====
+
+    static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int end() {
+            return offset + size;
+        }
+
+        /** FullBox 的内容起始位置（跳过 version/flags） */
+        int fullBoxBody() {
+            return offset + 12;
+        }
+    }
+
+    /**
+     * 解析 [from, to) 范围内的同级 Box，大小不合法时抛出 AssertionError
+     */
+    static List<Box> children(byte[] data, int from, int to) {
+        List<Box> boxes = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            if (pos + 8 > to) {
+                throw new AssertionError("Truncated box header at " + pos);
+            }
+            long size = readInt(data, pos) & 0xFFFFFFFFL;
+            if (size == 1 && pos + 16 <= to) {
+                size = readLong(data, pos + 8);  // 64 位大小
+            }
+            if (size < 8 || pos + size > to) {
+                throw new AssertionError("Invalid box size " + size + " at " + pos);
+            }
+            boxes.add(new Box(new String(data, pos + 4, 4, StandardCharsets.US_ASCII), pos, (int) size));
+            pos += (int) size;
+        }
+        return boxes;
+    }
+
+    static List<Box> children(byte[] data, Box parent) {
+        return children(data, parent.offset + 8, parent.end());
+    }
+
+    /**
+     * 按路径查找 Box，例如 find(data, "moov", "trak", "mdia")
+     */
+    static Box find(byte[] data, String... path) {
+        List<Box> level = children(data, 0, data.length);
+        Box found = null;
+        for (String type : path) {
+            found = null;
+            for (Box box : level) {
+                if (box.type.equals(type)) {
+                    found = box;
+                    break;
+                }
+            }
+            if (found == null) {
+                throw new AssertionError("Box not found: " + type);
+            }
+            level = childrenOf(data, found);
+        }
+        return found;
+    }
+
+    static List<String> types(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    /**
+     * 容器 Box 的子 Box（stsd 等非纯容器 Box 返回空列表）
+     */
+    private static List<Box> childrenOf(byte[] data, Box box) {
+        switch (box.type) {
+            case "moov":
+            case "trak":
+            case "mdia":
+            case "minf":
+            case "stbl":
+            case "mvex":
+            case "moof":
+            case "traf":
+            case "udta":
+            case "dinf":
+                return children(data, box);
+            default:
+                return new ArrayList<>();
+        }
+    }
+
+    static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    static long readLong(byte[] data, int pos) {
+        return ((long) readInt(data, pos) << 32) | (readInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+}